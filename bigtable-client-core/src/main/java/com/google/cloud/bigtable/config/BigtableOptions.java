@@ -20,6 +20,7 @@ import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.util.Objects;
 import com.google.cloud.bigtable.grpc.BigtableClusterName;
+import com.google.cloud.bigtable.grpc.io.ChannelPool;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
@@ -59,6 +60,68 @@ public class BigtableOptions implements Serializable {
    */
   public static final int BIGTABLE_BULK_MAX_ROW_KEY_COUNT_DEFAULT = 100;
 
+  /**
+   * How long a partially filled bulk mutation can wait for more mutations before it is sent. 0, the
+   * default, means that it waits until it is full or flushed.
+   */
+  public static final long BIGTABLE_BULK_LINGER_MS_DEFAULT = 0;
+
+  /**
+   * The number of bulk mutations that a buffered mutator builds and sends side by side. 0, the
+   * default, means that it builds one at a time, and that the mutations of a row can be applied out
+   * of order when a bulk mutation is retried.
+   */
+  public static final int BIGTABLE_BULK_SHARD_COUNT_DEFAULT = 0;
+
+  /**
+   * Round robin is kept as the default since it has no per-call bookkeeping.
+   * {@link ChannelPool.ChannelSelectionStrategy#LEAST_OUTSTANDING} is better when long running
+   * scans and latency sensitive gets share the same pool.
+   */
+  public static final ChannelPool.ChannelSelectionStrategy
+      BIGTABLE_CHANNEL_SELECTION_STRATEGY_DEFAULT =
+          ChannelPool.ChannelSelectionStrategy.ROUND_ROBIN;
+
+  /**
+   * The smallest number of data channels an adaptive channel pool shrinks to.
+   */
+  public static final int BIGTABLE_MIN_DATA_CHANNEL_COUNT_DEFAULT = 2;
+
+  /**
+   * An adaptive channel pool adds channels once the average number of concurrent RPCs per channel
+   * stays above this value. Each RPC is an HTTP/2 stream, and servers typically allow 100
+   * concurrent streams per connection.
+   */
+  public static final int BIGTABLE_TARGET_RPCS_PER_CHANNEL_DEFAULT = 20;
+
+  /**
+   * netty's native epoll transport is used by default when it is available, which is on Linux
+   * when the optional netty-transport-native-epoll dependency is on the classpath. NIO is used
+   * everywhere else.
+   */
+  public static final boolean BIGTABLE_USE_EPOLL_DEFAULT = true;
+
+  /**
+   * The default HTTP/2 flow control window, 1 MB.
+   */
+  public static final int BIGTABLE_FLOW_CONTROL_WINDOW_DEFAULT = 1 << 20;
+
+  /**
+   * The largest flow control window that auto tuning grows to by default, 16 MB. That is enough to
+   * fill a 1 Gbps link with a 100ms round trip time.
+   */
+  public static final int BIGTABLE_MAX_FLOW_CONTROL_WINDOW_DEFAULT = 1 << 24;
+
+  /**
+   * By default, a single row read is hedged if it takes longer than 95% of recent reads.
+   */
+  public static final double BIGTABLE_HEDGE_DELAY_PERCENTILE_DEFAULT = 95;
+
+  /**
+   * By default, hedged reads add at most 5% to the number of single row reads.
+   */
+  public static final double BIGTABLE_MAX_HEDGE_RATIO_DEFAULT = 0.05;
+
   private static final Logger LOG = new Logger(BigtableOptions.class);
 
   private static int getDefaultDataChannelCount() {
@@ -98,6 +161,27 @@ public class BigtableOptions implements Serializable {
     private boolean useBulkApi = false;
     private int bulkMaxRowKeyCount = BIGTABLE_BULK_MAX_ROW_KEY_COUNT_DEFAULT;
     private long bulkMaxRequestSize = BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES_DEFAULT;
+    private long bulkLingerMs = BIGTABLE_BULK_LINGER_MS_DEFAULT;
+    private int bulkShardCount = BIGTABLE_BULK_SHARD_COUNT_DEFAULT;
+    private boolean bulkPartitionByTablet = false;
+    private boolean bulkCoalesceRows = false;
+    private ChannelPool.ChannelSelectionStrategy channelSelectionStrategy =
+        BIGTABLE_CHANNEL_SELECTION_STRATEGY_DEFAULT;
+    private boolean replaceUnhealthyChannels = false;
+    private boolean useAdaptiveChannelPool = false;
+    private int minDataChannelCount = BIGTABLE_MIN_DATA_CHANNEL_COUNT_DEFAULT;
+    private int targetRpcsPerChannel = BIGTABLE_TARGET_RPCS_PER_CHANNEL_DEFAULT;
+    private boolean useEpoll = BIGTABLE_USE_EPOLL_DEFAULT;
+    private int flowControlWindow = BIGTABLE_FLOW_CONTROL_WINDOW_DEFAULT;
+    private boolean autoTuneFlowControlWindow = false;
+    private int maxFlowControlWindow = BIGTABLE_MAX_FLOW_CONTROL_WINDOW_DEFAULT;
+    private boolean usePlaintextNegotiation = false;
+    private boolean warmUpChannels = false;
+    private boolean useSharedChannelPool = false;
+    private boolean hedgeSingleRowReads = false;
+    private double hedgeDelayPercentile = BIGTABLE_HEDGE_DELAY_PERCENTILE_DEFAULT;
+    private double maxHedgeRatio = BIGTABLE_MAX_HEDGE_RATIO_DEFAULT;
+    private CallOptionsConfig callOptionsConfig = new CallOptionsConfig.Builder().build();
 
     public Builder() {
     }
@@ -119,6 +203,26 @@ public class BigtableOptions implements Serializable {
       this.useBulkApi = original.useBulkApi;
       this.bulkMaxRowKeyCount = original.bulkMaxRowKeyCount;
       this.bulkMaxRequestSize = original.bulkMaxRequestSize;
+      this.bulkLingerMs = original.bulkLingerMs;
+      this.bulkShardCount = original.bulkShardCount;
+      this.bulkPartitionByTablet = original.bulkPartitionByTablet;
+      this.bulkCoalesceRows = original.bulkCoalesceRows;
+      this.channelSelectionStrategy = original.channelSelectionStrategy;
+      this.replaceUnhealthyChannels = original.replaceUnhealthyChannels;
+      this.useAdaptiveChannelPool = original.useAdaptiveChannelPool;
+      this.minDataChannelCount = original.minDataChannelCount;
+      this.targetRpcsPerChannel = original.targetRpcsPerChannel;
+      this.useEpoll = original.useEpoll;
+      this.flowControlWindow = original.flowControlWindow;
+      this.autoTuneFlowControlWindow = original.autoTuneFlowControlWindow;
+      this.maxFlowControlWindow = original.maxFlowControlWindow;
+      this.usePlaintextNegotiation = original.usePlaintextNegotiation;
+      this.warmUpChannels = original.warmUpChannels;
+      this.useSharedChannelPool = original.useSharedChannelPool;
+      this.hedgeSingleRowReads = original.hedgeSingleRowReads;
+      this.hedgeDelayPercentile = original.hedgeDelayPercentile;
+      this.maxHedgeRatio = original.maxHedgeRatio;
+      this.callOptionsConfig = original.callOptionsConfig;
     }
 
     public Builder setTableAdminHost(String tableAdminHost) {
@@ -207,6 +311,141 @@ public class BigtableOptions implements Serializable {
       return this;
     }
 
+    /**
+     * Sends a partially filled bulk mutation once its oldest mutation has waited this long, so
+     * that the latency of a write is bounded when few writes are made. 0 means no limit.
+     */
+    public Builder setBulkLingerMs(long bulkLingerMs) {
+      Preconditions.checkArgument(
+        bulkLingerMs >= 0, "bulkLingerMs must be greater or equal to 0.");
+      this.bulkLingerMs = bulkLingerMs;
+      return this;
+    }
+
+    /**
+     * Splits the bulk mutations of a buffered mutator between this many shards by row key. Each
+     * shard has at most one bulk mutation in flight, so the mutations of a row are applied in
+     * order, and the shards send their bulk mutations concurrently. 0 means a single shard that
+     * does not keep the mutations in order.
+     */
+    public Builder setBulkShardCount(int bulkShardCount) {
+      Preconditions.checkArgument(
+        bulkShardCount >= 0, "bulkShardCount must be greater or equal to 0.");
+      this.bulkShardCount = bulkShardCount;
+      return this;
+    }
+
+    /**
+     * Groups the mutations of a bulk mutation by tablet, using the sampled row keys of the table,
+     * so that the latency of a bulk mutation is not set by the slowest of many tablets.
+     */
+    public Builder setBulkPartitionByTablet(boolean bulkPartitionByTablet) {
+      this.bulkPartitionByTablet = bulkPartitionByTablet;
+      return this;
+    }
+
+    /**
+     * Merges the mutations for a row key that is already in a bulk mutation into its entry, so
+     * that the row key is sent once and the row is mutated once.
+     */
+    public Builder setBulkCoalesceRows(boolean bulkCoalesceRows) {
+      this.bulkCoalesceRows = bulkCoalesceRows;
+      return this;
+    }
+
+    public Builder setChannelSelectionStrategy(
+        ChannelPool.ChannelSelectionStrategy channelSelectionStrategy) {
+      this.channelSelectionStrategy = Preconditions.checkNotNull(channelSelectionStrategy);
+      return this;
+    }
+
+    public Builder setReplaceUnhealthyChannels(boolean replaceUnhealthyChannels) {
+      this.replaceUnhealthyChannels = replaceUnhealthyChannels;
+      return this;
+    }
+
+    public Builder setUseAdaptiveChannelPool(boolean useAdaptiveChannelPool) {
+      this.useAdaptiveChannelPool = useAdaptiveChannelPool;
+      return this;
+    }
+
+    public Builder setMinDataChannelCount(int minDataChannelCount) {
+      Preconditions.checkArgument(
+        minDataChannelCount > 0, "minDataChannelCount must be greater than 0.");
+      this.minDataChannelCount = minDataChannelCount;
+      return this;
+    }
+
+    public Builder setTargetRpcsPerChannel(int targetRpcsPerChannel) {
+      Preconditions.checkArgument(
+        targetRpcsPerChannel > 0, "targetRpcsPerChannel must be greater than 0.");
+      this.targetRpcsPerChannel = targetRpcsPerChannel;
+      return this;
+    }
+
+    public Builder setUseEpoll(boolean useEpoll) {
+      this.useEpoll = useEpoll;
+      return this;
+    }
+
+    public Builder setFlowControlWindow(int flowControlWindow) {
+      Preconditions.checkArgument(
+        flowControlWindow > 0, "flowControlWindow must be greater than 0.");
+      this.flowControlWindow = flowControlWindow;
+      return this;
+    }
+
+    public Builder setAutoTuneFlowControlWindow(boolean autoTuneFlowControlWindow) {
+      this.autoTuneFlowControlWindow = autoTuneFlowControlWindow;
+      return this;
+    }
+
+    public Builder setMaxFlowControlWindow(int maxFlowControlWindow) {
+      Preconditions.checkArgument(
+        maxFlowControlWindow > 0, "maxFlowControlWindow must be greater than 0.");
+      this.maxFlowControlWindow = maxFlowControlWindow;
+      return this;
+    }
+
+    public Builder setUsePlaintextNegotiation(boolean usePlaintextNegotiation) {
+      this.usePlaintextNegotiation = usePlaintextNegotiation;
+      return this;
+    }
+
+    public Builder setWarmUpChannels(boolean warmUpChannels) {
+      this.warmUpChannels = warmUpChannels;
+      return this;
+    }
+
+    public Builder setUseSharedChannelPool(boolean useSharedChannelPool) {
+      this.useSharedChannelPool = useSharedChannelPool;
+      return this;
+    }
+
+    public Builder setHedgeSingleRowReads(boolean hedgeSingleRowReads) {
+      this.hedgeSingleRowReads = hedgeSingleRowReads;
+      return this;
+    }
+
+    public Builder setHedgeDelayPercentile(double hedgeDelayPercentile) {
+      Preconditions.checkArgument(hedgeDelayPercentile > 0 && hedgeDelayPercentile <= 100,
+        "hedgeDelayPercentile must be greater than 0 and at most 100.");
+      this.hedgeDelayPercentile = hedgeDelayPercentile;
+      return this;
+    }
+
+    public Builder setMaxHedgeRatio(double maxHedgeRatio) {
+      Preconditions.checkArgument(maxHedgeRatio >= 0 && maxHedgeRatio <= 1,
+        "maxHedgeRatio must be between 0 and 1.");
+      this.maxHedgeRatio = maxHedgeRatio;
+      return this;
+    }
+
+    public Builder setCallOptionsConfig(CallOptionsConfig callOptionsConfig) {
+      this.callOptionsConfig = callOptionsConfig;
+      return this;
+    }
+
     public BigtableOptions build() {
       return new BigtableOptions(
           clusterAdminHost,
@@ -224,7 +463,27 @@ public class BigtableOptions implements Serializable {
           asyncMutatorCount,
           useBulkApi,
           bulkMaxRowKeyCount,
-          bulkMaxRequestSize);
+          bulkMaxRequestSize,
+          bulkLingerMs,
+          bulkShardCount,
+          bulkPartitionByTablet,
+          bulkCoalesceRows,
+          channelSelectionStrategy,
+          replaceUnhealthyChannels,
+          useAdaptiveChannelPool,
+          minDataChannelCount,
+          targetRpcsPerChannel,
+          useEpoll,
+          flowControlWindow,
+          autoTuneFlowControlWindow,
+          maxFlowControlWindow,
+          usePlaintextNegotiation,
+          warmUpChannels,
+          useSharedChannelPool,
+          hedgeSingleRowReads,
+          hedgeDelayPercentile,
+          maxHedgeRatio,
+          callOptionsConfig);
     }
   }
 
@@ -245,6 +504,26 @@ public class BigtableOptions implements Serializable {
   private final boolean useBulkApi;
   private final int bulkMaxRowKeyCount;
   private final long bulkMaxRequestSize;
+  private final long bulkLingerMs;
+  private final int bulkShardCount;
+  private final boolean bulkPartitionByTablet;
+  private final boolean bulkCoalesceRows;
+  private final ChannelPool.ChannelSelectionStrategy channelSelectionStrategy;
+  private final boolean replaceUnhealthyChannels;
+  private final boolean useAdaptiveChannelPool;
+  private final int minDataChannelCount;
+  private final int targetRpcsPerChannel;
+  private final boolean useEpoll;
+  private final int flowControlWindow;
+  private final boolean autoTuneFlowControlWindow;
+  private final int maxFlowControlWindow;
+  private final boolean usePlaintextNegotiation;
+  private final boolean warmUpChannels;
+  private final boolean useSharedChannelPool;
+  private final boolean hedgeSingleRowReads;
+  private final double hedgeDelayPercentile;
+  private final double maxHedgeRatio;
+  private final CallOptionsConfig callOptionsConfig;
 
 
   @VisibleForTesting
@@ -266,6 +545,26 @@ public class BigtableOptions implements Serializable {
       useBulkApi = false;
       bulkMaxRowKeyCount = -1;
       bulkMaxRequestSize = -1;
+      bulkLingerMs = BIGTABLE_BULK_LINGER_MS_DEFAULT;
+      bulkShardCount = BIGTABLE_BULK_SHARD_COUNT_DEFAULT;
+      bulkPartitionByTablet = false;
+      bulkCoalesceRows = false;
+      channelSelectionStrategy = BIGTABLE_CHANNEL_SELECTION_STRATEGY_DEFAULT;
+      replaceUnhealthyChannels = false;
+      useAdaptiveChannelPool = false;
+      minDataChannelCount = 1;
+      targetRpcsPerChannel = BIGTABLE_TARGET_RPCS_PER_CHANNEL_DEFAULT;
+      useEpoll = BIGTABLE_USE_EPOLL_DEFAULT;
+      flowControlWindow = BIGTABLE_FLOW_CONTROL_WINDOW_DEFAULT;
+      autoTuneFlowControlWindow = false;
+      maxFlowControlWindow = BIGTABLE_MAX_FLOW_CONTROL_WINDOW_DEFAULT;
+      usePlaintextNegotiation = false;
+      warmUpChannels = false;
+      useSharedChannelPool = false;
+      hedgeSingleRowReads = false;
+      hedgeDelayPercentile = BIGTABLE_HEDGE_DELAY_PERCENTILE_DEFAULT;
+      maxHedgeRatio = BIGTABLE_MAX_HEDGE_RATIO_DEFAULT;
+      callOptionsConfig = null;
   }
 
   private BigtableOptions(
@@ -284,7 +583,27 @@ public class BigtableOptions implements Serializable {
       int asyncMutatorCount,
       boolean useBulkApi,
       int bulkMaxKeyCount,
-      long bulkMaxRequestSize) {
+      long bulkMaxRequestSize,
+      long bulkLingerMs,
+      int bulkShardCount,
+      boolean bulkPartitionByTablet,
+      boolean bulkCoalesceRows,
+      ChannelPool.ChannelSelectionStrategy channelSelectionStrategy,
+      boolean replaceUnhealthyChannels,
+      boolean useAdaptiveChannelPool,
+      int minDataChannelCount,
+      int targetRpcsPerChannel,
+      boolean useEpoll,
+      int flowControlWindow,
+      boolean autoTuneFlowControlWindow,
+      int maxFlowControlWindow,
+      boolean usePlaintextNegotiation,
+      boolean warmUpChannels,
+      boolean useSharedChannelPool,
+      boolean hedgeSingleRowReads,
+      double hedgeDelayPercentile,
+      double maxHedgeRatio,
+      CallOptionsConfig callOptionsConfig) {
     Preconditions.checkArgument(channelCount > 0, "Channel count has to be at least 1.");
     Preconditions.checkArgument(timeoutMs >= -1,
       "ChannelTimeoutMs has to be positive, or -1 for none.");
@@ -305,6 +624,26 @@ public class BigtableOptions implements Serializable {
     this.useBulkApi = useBulkApi;
     this.bulkMaxRowKeyCount = bulkMaxKeyCount;
     this.bulkMaxRequestSize = bulkMaxRequestSize;
+    this.bulkLingerMs = bulkLingerMs;
+    this.bulkShardCount = bulkShardCount;
+    this.bulkPartitionByTablet = bulkPartitionByTablet;
+    this.bulkCoalesceRows = bulkCoalesceRows;
+    this.channelSelectionStrategy = channelSelectionStrategy;
+    this.replaceUnhealthyChannels = replaceUnhealthyChannels;
+    this.useAdaptiveChannelPool = useAdaptiveChannelPool;
+    this.minDataChannelCount = minDataChannelCount;
+    this.targetRpcsPerChannel = targetRpcsPerChannel;
+    this.useEpoll = useEpoll;
+    this.flowControlWindow = flowControlWindow;
+    this.autoTuneFlowControlWindow = autoTuneFlowControlWindow;
+    this.maxFlowControlWindow = maxFlowControlWindow;
+    this.usePlaintextNegotiation = usePlaintextNegotiation;
+    this.warmUpChannels = warmUpChannels;
+    this.useSharedChannelPool = useSharedChannelPool;
+    this.hedgeSingleRowReads = hedgeSingleRowReads;
+    this.hedgeDelayPercentile = hedgeDelayPercentile;
+    this.maxHedgeRatio = maxHedgeRatio;
+    this.callOptionsConfig = callOptionsConfig;
 
     if (!Strings.isNullOrEmpty(projectId)
         && !Strings.isNullOrEmpty(zoneId)
@@ -409,6 +748,160 @@ public class BigtableOptions implements Serializable {
     return bulkMaxRequestSize;
   }
 
+  /**
+   * How long a partially filled bulk mutation can wait for more mutations before it is sent, or 0
+   * if it waits until it is full or flushed.
+   */
+  public long getBulkLingerMs() {
+    return bulkLingerMs;
+  }
+
+  /**
+   * The number of shards that a buffered mutator splits its bulk mutations between, or 0 for a
+   * single shard that does not keep the mutations of a row in order.
+   */
+  public int getBulkShardCount() {
+    return bulkShardCount;
+  }
+
+  /**
+   * Whether the mutations of a bulk mutation are grouped by tablet.
+   */
+  public boolean isBulkPartitionByTablet() {
+    return bulkPartitionByTablet;
+  }
+
+  /**
+   * Whether the mutations for a row key that is already in a bulk mutation are merged into its
+   * entry.
+   */
+  public boolean isBulkCoalesceRows() {
+    return bulkCoalesceRows;
+  }
+
+  /**
+   * How the data {@link ChannelPool} distributes RPCs across its channels.
+   */
+  public ChannelPool.ChannelSelectionStrategy getChannelSelectionStrategy() {
+    return channelSelectionStrategy;
+  }
+
+  /**
+   * Whether channels that keep failing with UNAVAILABLE or INTERNAL are replaced with new ones.
+   */
+  public boolean replaceUnhealthyChannels() {
+    return replaceUnhealthyChannels;
+  }
+
+  /**
+   * Whether the number of data channels follows the load, between {@link #getMinChannelCount()}
+   * and {@link #getChannelCount()}, rather than staying at {@link #getChannelCount()}.
+   */
+  public boolean useAdaptiveChannelPool() {
+    return useAdaptiveChannelPool;
+  }
+
+  /**
+   * The smallest number of data channels to keep open when the channel pool is adaptive.
+   */
+  public int getMinChannelCount() {
+    return minDataChannelCount;
+  }
+
+  /**
+   * The number of concurrent RPCs per data channel above which an adaptive channel pool grows.
+   */
+  public int getTargetRpcsPerChannel() {
+    return targetRpcsPerChannel;
+  }
+
+  /**
+   * Whether channels use netty's native epoll transport when it is available, rather than NIO.
+   */
+  public boolean useEpoll() {
+    return useEpoll;
+  }
+
+  /**
+   * The HTTP/2 flow control window of new channels, in bytes. This is the initial window when
+   * {@link #autoTuneFlowControlWindow()} is set.
+   */
+  public int getFlowControlWindow() {
+    return flowControlWindow;
+  }
+
+  /**
+   * Whether the flow control window of data channels grows toward the measured
+   * bandwidth-delay product of the connection.
+   */
+  public boolean autoTuneFlowControlWindow() {
+    return autoTuneFlowControlWindow;
+  }
+
+  /**
+   * The largest flow control window, in bytes, that auto tuning grows to.
+   */
+  public int getMaxFlowControlWindow() {
+    return maxFlowControlWindow;
+  }
+
+  /**
+   * Whether channels talk to the server over plaintext HTTP/2 instead of TLS. This is only useful
+   * for local servers, such as an emulator or
+   * {@link com.google.cloud.bigtable.grpc.testing.FakeBigtableDataService}.
+   */
+  public boolean usePlaintextNegotiation() {
+    return usePlaintextNegotiation;
+  }
+
+  /**
+   * Whether {@link com.google.cloud.bigtable.grpc.BigtableSession} creates all of its data
+   * channels in parallel when it is constructed, and connects each of them before the first RPC.
+   */
+  public boolean warmUpChannels() {
+    return warmUpChannels;
+  }
+
+  /**
+   * Whether {@link com.google.cloud.bigtable.grpc.BigtableSession}s that connect to the same data
+   * host with the same credentials share one reference counted data
+   * {@link com.google.cloud.bigtable.grpc.io.ChannelPool}. The channel options of the first session
+   * are used for the shared pool.
+   */
+  public boolean useSharedChannelPool() {
+    return useSharedChannelPool;
+  }
+
+  /**
+   * Whether reads of a single row key send a second request on another channel if the first one
+   * is slower than {@link #getHedgeDelayPercentile()} of recent reads.
+   */
+  public boolean hedgeSingleRowReads() {
+    return hedgeSingleRowReads;
+  }
+
+  /**
+   * The percentile of recent single row read latencies after which a read is hedged.
+   */
+  public double getHedgeDelayPercentile() {
+    return hedgeDelayPercentile;
+  }
+
+  /**
+   * The largest fraction of single row reads that can be hedged. This keeps hedging from adding
+   * load to a server that is already slow.
+   */
+  public double getMaxHedgeRatio() {
+    return maxHedgeRatio;
+  }
+
+  /**
+   * The deadlines of the data RPCs.
+   */
+  public CallOptionsConfig getCallOptionsConfig() {
+    return callOptionsConfig;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (obj == null || obj.getClass() != BigtableOptions.class) {
@@ -425,6 +918,24 @@ public class BigtableOptions implements Serializable {
         && (useBulkApi == other.useBulkApi)
         && (bulkMaxRowKeyCount == other.bulkMaxRowKeyCount)
         && (bulkMaxRequestSize == other.bulkMaxRequestSize)
+        && (bulkLingerMs == other.bulkLingerMs)
+        && (bulkShardCount == other.bulkShardCount)
+        && (bulkPartitionByTablet == other.bulkPartitionByTablet)
+        && (bulkCoalesceRows == other.bulkCoalesceRows)
+        && (replaceUnhealthyChannels == other.replaceUnhealthyChannels)
+        && (useAdaptiveChannelPool == other.useAdaptiveChannelPool)
+        && (minDataChannelCount == other.minDataChannelCount)
+        && (targetRpcsPerChannel == other.targetRpcsPerChannel)
+        && (useEpoll == other.useEpoll)
+        && (flowControlWindow == other.flowControlWindow)
+        && (autoTuneFlowControlWindow == other.autoTuneFlowControlWindow)
+        && (maxFlowControlWindow == other.maxFlowControlWindow)
+        && (usePlaintextNegotiation == other.usePlaintextNegotiation)
+        && (warmUpChannels == other.warmUpChannels)
+        && (useSharedChannelPool == other.useSharedChannelPool)
+        && (hedgeSingleRowReads == other.hedgeSingleRowReads)
+        && (hedgeDelayPercentile == other.hedgeDelayPercentile)
+        && (maxHedgeRatio == other.maxHedgeRatio)
         && Objects.equal(clusterAdminHost, other.clusterAdminHost)
         && Objects.equal(tableAdminHost, other.tableAdminHost)
         && Objects.equal(dataHost, other.dataHost)
@@ -433,7 +944,9 @@ public class BigtableOptions implements Serializable {
         && Objects.equal(clusterId, other.clusterId)
         && Objects.equal(userAgent, other.userAgent)
         && Objects.equal(credentialOptions, other.credentialOptions)
-        && Objects.equal(retryOptions, other.retryOptions);
+        && Objects.equal(retryOptions, other.retryOptions)
+        && Objects.equal(channelSelectionStrategy, other.channelSelectionStrategy)
+        && Objects.equal(callOptionsConfig, other.callOptionsConfig);
   }
 
   @Override
@@ -455,6 +968,26 @@ public class BigtableOptions implements Serializable {
         .add("useBulkApi", useBulkApi)
         .add("bulkMaxKeyCount", bulkMaxRowKeyCount)
         .add("bulkMaxRequestSize", bulkMaxRequestSize)
+        .add("bulkLingerMs", bulkLingerMs)
+        .add("bulkShardCount", bulkShardCount)
+        .add("bulkPartitionByTablet", bulkPartitionByTablet)
+        .add("bulkCoalesceRows", bulkCoalesceRows)
+        .add("channelSelectionStrategy", channelSelectionStrategy)
+        .add("replaceUnhealthyChannels", replaceUnhealthyChannels)
+        .add("useAdaptiveChannelPool", useAdaptiveChannelPool)
+        .add("minDataChannelCount", minDataChannelCount)
+        .add("targetRpcsPerChannel", targetRpcsPerChannel)
+        .add("useEpoll", useEpoll)
+        .add("flowControlWindow", flowControlWindow)
+        .add("autoTuneFlowControlWindow", autoTuneFlowControlWindow)
+        .add("maxFlowControlWindow", maxFlowControlWindow)
+        .add("usePlaintextNegotiation", usePlaintextNegotiation)
+        .add("warmUpChannels", warmUpChannels)
+        .add("useSharedChannelPool", useSharedChannelPool)
+        .add("hedgeSingleRowReads", hedgeSingleRowReads)
+        .add("hedgeDelayPercentile", hedgeDelayPercentile)
+        .add("maxHedgeRatio", maxHedgeRatio)
+        .add("callOptionsConfig", callOptionsConfig)
         .toString();
   }
 
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.config;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * Deadlines for the data RPCs. Each attempt of an RPC gets the deadline for its method. An RPC that
+ * is retried also stops retrying once the overall deadline has passed since its first attempt.
+ * </p>
+ * <p>
+ * Scans do not have a deadline, since they can legitimately run for a long time. A scan that stops
+ * making progress is instead limited by {@link RetryOptions#getReadPartialRowTimeoutMillis()}.
+ * </p>
+ */
+public class CallOptionsConfig implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Deadlines are disabled by default.
+   */
+  public static final boolean DEFAULT_USE_TIMEOUT = false;
+
+  /**
+   * The default deadline for each attempt of a MutateRow or MutateRows RPC: 60 seconds.
+   */
+  public static final int DEFAULT_MUTATE_TIMEOUT_MS =
+      (int) TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+
+  /**
+   * The default deadline for each attempt of a single row read: 30 seconds.
+   */
+  public static final int DEFAULT_READ_ROW_TIMEOUT_MS =
+      (int) TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  /**
+   * The default deadline for a CheckAndMutateRow RPC: 30 seconds.
+   */
+  public static final int DEFAULT_CHECK_AND_MUTATE_TIMEOUT_MS =
+      (int) TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  /**
+   * The default deadline for a ReadModifyWriteRow RPC: 30 seconds.
+   */
+  public static final int DEFAULT_READ_MODIFY_WRITE_TIMEOUT_MS =
+      (int) TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  /**
+   * The default deadline for all of the attempts of an RPC, including backoff: 2 minutes.
+   */
+  public static final int DEFAULT_OVERALL_TIMEOUT_MS =
+      (int) TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
+
+  /**
+   * A Builder for CallOptionsConfig objects.
+   */
+  public static class Builder {
+    private boolean useTimeout = DEFAULT_USE_TIMEOUT;
+    private int mutateTimeoutMs = DEFAULT_MUTATE_TIMEOUT_MS;
+    private int readRowTimeoutMs = DEFAULT_READ_ROW_TIMEOUT_MS;
+    private int checkAndMutateTimeoutMs = DEFAULT_CHECK_AND_MUTATE_TIMEOUT_MS;
+    private int readModifyWriteTimeoutMs = DEFAULT_READ_MODIFY_WRITE_TIMEOUT_MS;
+    private int overallTimeoutMs = DEFAULT_OVERALL_TIMEOUT_MS;
+
+    public Builder() {
+    }
+
+    private Builder(CallOptionsConfig original) {
+      this.useTimeout = original.useTimeout;
+      this.mutateTimeoutMs = original.mutateTimeoutMs;
+      this.readRowTimeoutMs = original.readRowTimeoutMs;
+      this.checkAndMutateTimeoutMs = original.checkAndMutateTimeoutMs;
+      this.readModifyWriteTimeoutMs = original.readModifyWriteTimeoutMs;
+      this.overallTimeoutMs = original.overallTimeoutMs;
+    }
+
+    /**
+     * Enable or disable deadlines.
+     */
+    public Builder setUseTimeout(boolean useTimeout) {
+      this.useTimeout = useTimeout;
+      return this;
+    }
+
+    /**
+     * The deadline in milliseconds for each attempt of a MutateRow or MutateRows RPC.
+     */
+    public Builder setMutateTimeoutMs(int mutateTimeoutMs) {
+      this.mutateTimeoutMs = mutateTimeoutMs;
+      return this;
+    }
+
+    /**
+     * The deadline in milliseconds for each attempt of a single row read.
+     */
+    public Builder setReadRowTimeoutMs(int readRowTimeoutMs) {
+      this.readRowTimeoutMs = readRowTimeoutMs;
+      return this;
+    }
+
+    /**
+     * The deadline in milliseconds for each attempt of a CheckAndMutateRow RPC.
+     */
+    public Builder setCheckAndMutateTimeoutMs(int checkAndMutateTimeoutMs) {
+      this.checkAndMutateTimeoutMs = checkAndMutateTimeoutMs;
+      return this;
+    }
+
+    /**
+     * The deadline in milliseconds for a ReadModifyWriteRow RPC, which is never retried.
+     */
+    public Builder setReadModifyWriteTimeoutMs(int readModifyWriteTimeoutMs) {
+      this.readModifyWriteTimeoutMs = readModifyWriteTimeoutMs;
+      return this;
+    }
+
+    /**
+     * The deadline in milliseconds for all of the attempts of an RPC, including backoff.
+     */
+    public Builder setOverallTimeoutMs(int overallTimeoutMs) {
+      this.overallTimeoutMs = overallTimeoutMs;
+      return this;
+    }
+
+    public CallOptionsConfig build() {
+      return new CallOptionsConfig(useTimeout, mutateTimeoutMs, readRowTimeoutMs,
+          checkAndMutateTimeoutMs, readModifyWriteTimeoutMs, overallTimeoutMs);
+    }
+  }
+
+  private final boolean useTimeout;
+  private final int mutateTimeoutMs;
+  private final int readRowTimeoutMs;
+  private final int checkAndMutateTimeoutMs;
+  private final int readModifyWriteTimeoutMs;
+  private final int overallTimeoutMs;
+
+  private CallOptionsConfig(boolean useTimeout, int mutateTimeoutMs, int readRowTimeoutMs,
+      int checkAndMutateTimeoutMs, int readModifyWriteTimeoutMs, int overallTimeoutMs) {
+    Preconditions.checkArgument(mutateTimeoutMs > 0, "mutateTimeoutMs must be positive.");
+    Preconditions.checkArgument(readRowTimeoutMs > 0, "readRowTimeoutMs must be positive.");
+    Preconditions.checkArgument(checkAndMutateTimeoutMs > 0,
+      "checkAndMutateTimeoutMs must be positive.");
+    Preconditions.checkArgument(readModifyWriteTimeoutMs > 0,
+      "readModifyWriteTimeoutMs must be positive.");
+    Preconditions.checkArgument(overallTimeoutMs > 0, "overallTimeoutMs must be positive.");
+    this.useTimeout = useTimeout;
+    this.mutateTimeoutMs = mutateTimeoutMs;
+    this.readRowTimeoutMs = readRowTimeoutMs;
+    this.checkAndMutateTimeoutMs = checkAndMutateTimeoutMs;
+    this.readModifyWriteTimeoutMs = readModifyWriteTimeoutMs;
+    this.overallTimeoutMs = overallTimeoutMs;
+  }
+
+  /**
+   * Whether the RPCs have deadlines. If this is false, none of the other values are used.
+   */
+  public boolean isUseTimeout() {
+    return useTimeout;
+  }
+
+  /**
+   * The deadline in milliseconds for each attempt of a MutateRow or MutateRows RPC.
+   */
+  public int getMutateTimeoutMs() {
+    return mutateTimeoutMs;
+  }
+
+  /**
+   * The deadline in milliseconds for each attempt of a single row read.
+   */
+  public int getReadRowTimeoutMs() {
+    return readRowTimeoutMs;
+  }
+
+  /**
+   * The deadline in milliseconds for each attempt of a CheckAndMutateRow RPC.
+   */
+  public int getCheckAndMutateTimeoutMs() {
+    return checkAndMutateTimeoutMs;
+  }
+
+  /**
+   * The deadline in milliseconds for a ReadModifyWriteRow RPC.
+   */
+  public int getReadModifyWriteTimeoutMs() {
+    return readModifyWriteTimeoutMs;
+  }
+
+  /**
+   * The deadline in milliseconds for all of the attempts of an RPC, including backoff.
+   */
+  public int getOverallTimeoutMs() {
+    return overallTimeoutMs;
+  }
+
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == null || obj.getClass() != CallOptionsConfig.class) {
+      return false;
+    }
+    if (this == obj) {
+      return true;
+    }
+    CallOptionsConfig other = (CallOptionsConfig) obj;
+    return useTimeout == other.useTimeout
+        && mutateTimeoutMs == other.mutateTimeoutMs
+        && readRowTimeoutMs == other.readRowTimeoutMs
+        && checkAndMutateTimeoutMs == other.checkAndMutateTimeoutMs
+        && readModifyWriteTimeoutMs == other.readModifyWriteTimeoutMs
+        && overallTimeoutMs == other.overallTimeoutMs;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(useTimeout, mutateTimeoutMs, readRowTimeoutMs,
+      checkAndMutateTimeoutMs, readModifyWriteTimeoutMs, overallTimeoutMs);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("useTimeout", useTimeout)
+        .add("mutateTimeoutMs", mutateTimeoutMs)
+        .add("readRowTimeoutMs", readRowTimeoutMs)
+        .add("checkAndMutateTimeoutMs", checkAndMutateTimeoutMs)
+        .add("readModifyWriteTimeoutMs", readModifyWriteTimeoutMs)
+        .add("overallTimeoutMs", overallTimeoutMs)
+        .toString();
+  }
+}
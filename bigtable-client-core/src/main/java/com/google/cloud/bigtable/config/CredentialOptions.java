@@ -230,4 +230,13 @@ public class CredentialOptions implements Serializable {
     CredentialOptions other = (CredentialOptions) obj;
     return credentialType == other.credentialType;
   }
+
+  /**
+   * Consistent with the {@code equals} methods of all of the subclasses, since equal options
+   * always have the same type.
+   */
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(credentialType);
+  }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.config;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.NanoClock;
+import com.google.cloud.bigtable.config.RetryOptions.BackoffStrategy;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A {@link BackOff} that picks each interval at random, so that clients which failed at the same
+ * time do not all retry at the same time. It uses the same initial interval, multiplier, maximum
+ * interval and maximum elapsed time as an {@link ExponentialBackOff}.
+ * </p>
+ * <ul>
+ * <li>{@link BackoffStrategy#FULL_JITTER} waits between 0 and the exponential interval.</li>
+ * <li>{@link BackoffStrategy#DECORRELATED_JITTER} waits between the initial interval and the
+ * multiplier times the previous wait, so each wait depends on the last one rather than on the
+ * number of attempts.</li>
+ * </ul>
+ */
+class JitteredBackOff implements BackOff {
+
+  private final BackoffStrategy strategy;
+  private final long initialIntervalMillis;
+  private final double multiplier;
+  private final long maxIntervalMillis;
+  private final long maxElapsedTimeMillis;
+  private final NanoClock nanoClock;
+  private final Random random;
+
+  private long startTimeNanos;
+  private double exponentialIntervalMillis;
+  private long previousIntervalMillis;
+
+  JitteredBackOff(BackoffStrategy strategy, ExponentialBackOff.Builder settings) {
+    this(strategy, settings, new Random());
+  }
+
+  @VisibleForTesting
+  JitteredBackOff(BackoffStrategy strategy, ExponentialBackOff.Builder settings, Random random) {
+    Preconditions.checkArgument(strategy != BackoffStrategy.EXPONENTIAL,
+      "Use an ExponentialBackOff for the EXPONENTIAL strategy.");
+    this.strategy = strategy;
+    this.initialIntervalMillis = settings.getInitialIntervalMillis();
+    this.multiplier = settings.getMultiplier();
+    this.maxIntervalMillis = settings.getMaxIntervalMillis();
+    this.maxElapsedTimeMillis = settings.getMaxElapsedTimeMillis();
+    this.nanoClock = settings.getNanoClock();
+    this.random = random;
+    reset();
+  }
+
+  @Override
+  public void reset() {
+    startTimeNanos = nanoClock.nanoTime();
+    exponentialIntervalMillis = initialIntervalMillis;
+    previousIntervalMillis = initialIntervalMillis;
+  }
+
+  @Override
+  public long nextBackOffMillis() {
+    long elapsedMillis =
+        TimeUnit.NANOSECONDS.toMillis(nanoClock.nanoTime() - startTimeNanos);
+    if (elapsedMillis > maxElapsedTimeMillis) {
+      return STOP;
+    }
+    long interval;
+    if (strategy == BackoffStrategy.FULL_JITTER) {
+      interval = randomBetween(0, (long) exponentialIntervalMillis);
+      exponentialIntervalMillis =
+          Math.min(maxIntervalMillis, exponentialIntervalMillis * multiplier);
+    } else {
+      long upperBound =
+          Math.max(initialIntervalMillis, (long) (previousIntervalMillis * multiplier));
+      interval = Math.min(maxIntervalMillis, randomBetween(initialIntervalMillis, upperBound));
+      previousIntervalMillis = interval;
+    }
+    return interval;
+  }
+
+  /**
+   * @return A random number from min to max, inclusive.
+   */
+  private long randomBetween(long min, long max) {
+    return min + (long) (random.nextDouble() * (max - min + 1));
+  }
+}
@@ -19,7 +19,9 @@ import io.grpc.Status;
 import io.grpc.Status.Code;
 
 import java.io.Serializable;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -27,6 +29,8 @@ import com.google.api.client.util.BackOff;
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.client.util.Objects;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 /**
@@ -76,6 +80,94 @@ public class RetryOptions implements Serializable {
    */
   public static final int DEFAULT_MAX_SCAN_TIMEOUT_RETRIES = 3;
 
+  /**
+   * The retry budget is disabled by default, so that retries are only limited per RPC.
+   */
+  public static final boolean DEFAULT_ENABLE_RETRY_BUDGET = false;
+
+  /**
+   * The number of retries that can be made in a burst before the retry budget needs to be refilled
+   * (default value: 100).
+   */
+  public static final int DEFAULT_RETRY_BUDGET_MAX_TOKENS = 100;
+
+  /**
+   * The fraction of a retry that each RPC that succeeds on its first attempt adds to the retry
+   * budget (default value: 0.1). Over time, at most one retry is made for every ten RPCs.
+   */
+  public static final double DEFAULT_RETRY_BUDGET_TOKEN_RATIO = 0.1;
+
+  /**
+   * How the time to wait between retries grows.
+   */
+  public enum BackoffStrategy {
+    /**
+     * Multiply the wait by the backoff multiplier after each retry. The wait is randomized by up to
+     * 50% either way.
+     */
+    EXPONENTIAL,
+
+    /**
+     * Wait a random time between 0 and the exponential wait. This spreads out the retries of
+     * clients that failed at the same time the most.
+     */
+    FULL_JITTER,
+
+    /**
+     * Wait a random time between the initial backoff and the backoff multiplier times the previous
+     * wait.
+     */
+    DECORRELATED_JITTER
+  }
+
+  /**
+   * The default strategy is {@link BackoffStrategy#EXPONENTIAL}.
+   */
+  public static final BackoffStrategy DEFAULT_BACKOFF_STRATEGY = BackoffStrategy.EXPONENTIAL;
+
+  /**
+   * A backoff strategy and initial backoff that are used for a specific {@link Status.Code}
+   * instead of the defaults.
+   */
+  public static class BackoffPolicy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final BackoffStrategy strategy;
+    private final int initialBackoffMillis;
+
+    public BackoffPolicy(BackoffStrategy strategy, int initialBackoffMillis) {
+      this.strategy = Preconditions.checkNotNull(strategy);
+      this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public BackoffStrategy getStrategy() {
+      return strategy;
+    }
+
+    public int getInitialBackoffMillis() {
+      return initialBackoffMillis;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BackoffPolicy)) {
+        return false;
+      }
+      BackoffPolicy other = (BackoffPolicy) obj;
+      return strategy == other.strategy && initialBackoffMillis == other.initialBackoffMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * strategy.hashCode() + initialBackoffMillis;
+    }
+
+    @Override
+    public String toString() {
+      return strategy + "(" + initialBackoffMillis + "ms)";
+    }
+  }
+
   /**
    * A Builder for ChannelOptions objects.
    */
@@ -89,6 +181,11 @@ public class RetryOptions implements Serializable {
     private int readPartialRowTimeoutMillis = DEFAULT_READ_PARTIAL_ROW_TIMEOUT_MS;
     private int maxScanTimeoutRetries = DEFAULT_MAX_SCAN_TIMEOUT_RETRIES;
     private Set<Status.Code> statusToRetryOn = new HashSet<>(DEFAULT_ENABLE_GRPC_RETRIES_SET);
+    private boolean enableRetryBudget = DEFAULT_ENABLE_RETRY_BUDGET;
+    private int retryBudgetMaxTokens = DEFAULT_RETRY_BUDGET_MAX_TOKENS;
+    private double retryBudgetTokenRatio = DEFAULT_RETRY_BUDGET_TOKEN_RATIO;
+    private BackoffStrategy backoffStrategy = DEFAULT_BACKOFF_STRATEGY;
+    private Map<Status.Code, BackoffPolicy> backoffPolicies = new EnumMap<>(Status.Code.class);
 
     /**
      * Enable or disable retries.
@@ -172,6 +269,48 @@ public class RetryOptions implements Serializable {
       return this;
     }
 
+    /**
+     * Enable or disable the retry budget that is shared by all of the RPCs of a session.
+     */
+    public Builder setEnableRetryBudget(boolean enableRetryBudget) {
+      this.enableRetryBudget = enableRetryBudget;
+      return this;
+    }
+
+    /**
+     * Set the number of retries that can be made in a burst.
+     */
+    public Builder setRetryBudgetMaxTokens(int retryBudgetMaxTokens) {
+      this.retryBudgetMaxTokens = retryBudgetMaxTokens;
+      return this;
+    }
+
+    /**
+     * Set the fraction of a retry that is added to the retry budget by each RPC that succeeds on
+     * its first attempt.
+     */
+    public Builder setRetryBudgetTokenRatio(double retryBudgetTokenRatio) {
+      this.retryBudgetTokenRatio = retryBudgetTokenRatio;
+      return this;
+    }
+
+    /**
+     * Set how the time to wait between retries grows.
+     */
+    public Builder setBackoffStrategy(BackoffStrategy backoffStrategy) {
+      this.backoffStrategy = Preconditions.checkNotNull(backoffStrategy);
+      return this;
+    }
+
+    /**
+     * Back off differently when an RPC fails with the given code.
+     */
+    public Builder setBackoffPolicy(Status.Code code, BackoffStrategy strategy,
+        int initialBackoffMillis) {
+      backoffPolicies.put(code, new BackoffPolicy(strategy, initialBackoffMillis));
+      return this;
+    }
+
     /**
      * Construct a new RetryOptions object.
      */
@@ -185,7 +324,12 @@ public class RetryOptions implements Serializable {
           streamingBatchSize,
           readPartialRowTimeoutMillis,
           maxScanTimeoutRetries,
-          ImmutableSet.copyOf(statusToRetryOn));
+          ImmutableSet.copyOf(statusToRetryOn),
+          enableRetryBudget,
+          retryBudgetMaxTokens,
+          retryBudgetTokenRatio,
+          backoffStrategy,
+          ImmutableMap.copyOf(backoffPolicies));
     }
   }
 
@@ -198,6 +342,11 @@ public class RetryOptions implements Serializable {
   private final int readPartialRowTimeoutMillis;
   private final int maxScanTimeoutRetries;
   private final ImmutableSet<Code> statusToRetryOn;
+  private final boolean retryBudgetEnabled;
+  private final int retryBudgetMaxTokens;
+  private final double retryBudgetTokenRatio;
+  private final BackoffStrategy backoffStrategy;
+  private final ImmutableMap<Code, BackoffPolicy> backoffPolicies;
 
 
   public RetryOptions(
@@ -210,6 +359,28 @@ public class RetryOptions implements Serializable {
       int readPartialRowTimeoutMillis,
       int maxScanTimeoutRetries,
       ImmutableSet<Code> statusToRetryOn) {
+    this(retriesEnabled, initialBackoffMillis, backoffMultiplier, maxElaspedBackoffMillis,
+        streamingBufferSize, streamingBatchSize, readPartialRowTimeoutMillis,
+        maxScanTimeoutRetries, statusToRetryOn, DEFAULT_ENABLE_RETRY_BUDGET,
+        DEFAULT_RETRY_BUDGET_MAX_TOKENS, DEFAULT_RETRY_BUDGET_TOKEN_RATIO,
+        DEFAULT_BACKOFF_STRATEGY, ImmutableMap.<Code, BackoffPolicy> of());
+  }
+
+  private RetryOptions(
+      boolean retriesEnabled,
+      int initialBackoffMillis,
+      double backoffMultiplier,
+      int maxElaspedBackoffMillis,
+      int streamingBufferSize,
+      int streamingBatchSize,
+      int readPartialRowTimeoutMillis,
+      int maxScanTimeoutRetries,
+      ImmutableSet<Code> statusToRetryOn,
+      boolean retryBudgetEnabled,
+      int retryBudgetMaxTokens,
+      double retryBudgetTokenRatio,
+      BackoffStrategy backoffStrategy,
+      ImmutableMap<Code, BackoffPolicy> backoffPolicies) {
     this.retriesEnabled = retriesEnabled;
     this.initialBackoffMillis = initialBackoffMillis;
     this.maxElaspedBackoffMillis = maxElaspedBackoffMillis;
@@ -219,6 +390,11 @@ public class RetryOptions implements Serializable {
     this.readPartialRowTimeoutMillis = readPartialRowTimeoutMillis;
     this.maxScanTimeoutRetries = maxScanTimeoutRetries;
     this.statusToRetryOn = statusToRetryOn;
+    this.retryBudgetEnabled = retryBudgetEnabled;
+    this.retryBudgetMaxTokens = retryBudgetMaxTokens;
+    this.retryBudgetTokenRatio = retryBudgetTokenRatio;
+    this.backoffStrategy = backoffStrategy;
+    this.backoffPolicies = backoffPolicies;
   }
 
   /**
@@ -291,8 +467,67 @@ public class RetryOptions implements Serializable {
     return statusToRetryOn.contains(code);
   }
 
+  /**
+   * Whether the RPCs of a session share a retry budget, which stops retries when too many RPCs are
+   * failing.
+   */
+  public boolean enableRetryBudget() {
+    return retryBudgetEnabled;
+  }
+
+  /**
+   * The number of retries that can be made in a burst.
+   */
+  public int getRetryBudgetMaxTokens() {
+    return retryBudgetMaxTokens;
+  }
+
+  /**
+   * The fraction of a retry that is added to the retry budget by each RPC that succeeds on its
+   * first attempt.
+   */
+  public double getRetryBudgetTokenRatio() {
+    return retryBudgetTokenRatio;
+  }
+
+  /**
+   * How the time to wait between retries grows, unless a {@link BackoffPolicy} is set for the
+   * failure's {@link Status.Code}.
+   */
+  public BackoffStrategy getBackoffStrategy() {
+    return backoffStrategy;
+  }
+
+  /**
+   * @return The {@link BackoffPolicy} for RPCs that fail with the given code.
+   */
+  public BackoffPolicy getBackoffPolicy(Status.Code code) {
+    BackoffPolicy policy = backoffPolicies.get(code);
+    return policy != null ? policy : new BackoffPolicy(backoffStrategy, initialBackoffMillis);
+  }
+
   public BackOff createBackoff() {
-    return createBackoffBuilder().build();
+    return createBackoff(backoffStrategy, createBackoffBuilder());
+  }
+
+  /**
+   * @return A {@link BackOff} for an RPC that failed with the given code.
+   */
+  public BackOff createBackoff(Status.Code code) {
+    BackoffPolicy policy = backoffPolicies.get(code);
+    if (policy == null) {
+      return createBackoff();
+    }
+    return createBackoff(policy.getStrategy(),
+      createBackoffBuilder().setInitialIntervalMillis(policy.getInitialBackoffMillis()));
+  }
+
+  private static BackOff createBackoff(BackoffStrategy strategy,
+      ExponentialBackOff.Builder builder) {
+    if (strategy == BackoffStrategy.EXPONENTIAL) {
+      return builder.build();
+    }
+    return new JitteredBackOff(strategy, builder);
   }
 
   @VisibleForTesting
@@ -321,6 +556,11 @@ public class RetryOptions implements Serializable {
         && streamingBufferSize == other.streamingBufferSize
         && streamingBatchSize == other.streamingBatchSize
         && readPartialRowTimeoutMillis == other.readPartialRowTimeoutMillis
-        && maxScanTimeoutRetries == other.maxScanTimeoutRetries;
+        && maxScanTimeoutRetries == other.maxScanTimeoutRetries
+        && retryBudgetEnabled == other.retryBudgetEnabled
+        && retryBudgetMaxTokens == other.retryBudgetMaxTokens
+        && retryBudgetTokenRatio == other.retryBudgetTokenRatio
+        && backoffStrategy == other.backoffStrategy
+        && Objects.equal(backoffPolicies, other.backoffPolicies);
   }
 }
@@ -27,6 +27,7 @@ import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.bigtable.v1.Row;
 import com.google.bigtable.v1.SampleRowKeysRequest;
 import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
 import com.google.cloud.bigtable.grpc.scanner.ResultScanner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -122,4 +123,9 @@ public interface BigtableDataClient {
 
   ListenableFuture<Empty> addMutationRetry(ListenableFuture<Empty> future,
       MutateRowRequest request);
+
+  /**
+   * @return The retry budget that is shared by this client's RPCs, or null if it is disabled.
+   */
+  RetryBudget getRetryBudget();
 }
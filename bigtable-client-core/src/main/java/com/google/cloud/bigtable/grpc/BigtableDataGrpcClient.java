@@ -22,10 +22,12 @@ import io.grpc.Status;
 import io.grpc.stub.ClientCalls;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.bigtable.v1.BigtableServiceGrpc;
@@ -43,13 +45,17 @@ import com.google.bigtable.v1.Row;
 import com.google.bigtable.v1.SampleRowKeysRequest;
 import com.google.bigtable.v1.SampleRowKeysResponse;
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.grpc.async.BigtableAsyncUtilities;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
 import com.google.cloud.bigtable.grpc.async.RetryingRpcFunction;
 import com.google.cloud.bigtable.grpc.async.BigtableAsyncRpc;
+import com.google.cloud.bigtable.grpc.async.HedgingRpc;
 import com.google.cloud.bigtable.grpc.io.CancellationToken;
 import com.google.cloud.bigtable.grpc.io.ChannelPool;
+import com.google.cloud.bigtable.grpc.scanner.AbstractBigtableResultScanner;
 import com.google.cloud.bigtable.grpc.scanner.BigtableResultScannerFactory;
 import com.google.cloud.bigtable.grpc.scanner.ResponseQueueReader;
 import com.google.cloud.bigtable.grpc.scanner.ResultScanner;
@@ -100,6 +106,17 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
         }
       };
 
+  /**
+   * Whether an entry of a {@link MutateRowsRequest} can be sent again without applying it twice.
+   */
+  public static final Predicate<Entry> IS_RETRYABLE_ENTRY =
+      new Predicate<Entry>() {
+        @Override
+        public boolean apply(Entry entry) {
+          return entry != null && allCellsHaveTimestamps(entry.getMutationsList());
+        }
+      };
+
   @VisibleForTesting
   public static final Predicate<CheckAndMutateRowRequest> IS_RETRYABLE_CHECK_AND_MUTATE =
       new Predicate<CheckAndMutateRowRequest>() {
@@ -130,7 +147,16 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
 
   private final ScheduledExecutorService retryExecutorService;
   private final RetryOptions retryOptions;
+  private final RetryBudget retryBudget;
   private final BigtableOptions bigtableOptions;
+
+  // The deadlines of each type of RPC, or 0 for none.
+  private final int mutateTimeoutMs;
+  private final int readRowTimeoutMs;
+  private final int checkAndMutateTimeoutMs;
+  private final int readModifyWriteTimeoutMs;
+  private final int overallTimeoutMs;
+
   private final BigtableResultScannerFactory streamingScannerFactory =
       new BigtableResultScannerFactory() {
         @Override
@@ -143,6 +169,7 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
 
   private final BigtableAsyncRpc<SampleRowKeysRequest, List<SampleRowKeysResponse>> sampleRowKeysAsync;
   private final BigtableAsyncRpc<ReadRowsRequest, List<Row>> readRowsAsync;
+  private final HedgingRpc<ReadRowsRequest, List<Row>> hedgedReadRowAsync;
 
   private final BigtableAsyncRpc<MutateRowRequest, Empty> mutateRowRpc;
   private final BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> mutateRowsRpc;
@@ -165,10 +192,27 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
     this.retryExecutorService = retryExecutorService;
     this.bigtableOptions = bigtableOptions;
     this.retryOptions = bigtableOptions.getRetryOptions();
+    this.retryBudget = RetryBudget.create(retryOptions);
     this.asyncUtilities = asyncUtilities;
 
+    CallOptionsConfig callOptionsConfig = bigtableOptions.getCallOptionsConfig();
+    boolean useTimeout = callOptionsConfig != null && callOptionsConfig.isUseTimeout();
+    this.mutateTimeoutMs = useTimeout ? callOptionsConfig.getMutateTimeoutMs() : 0;
+    this.readRowTimeoutMs = useTimeout ? callOptionsConfig.getReadRowTimeoutMs() : 0;
+    this.checkAndMutateTimeoutMs =
+        useTimeout ? callOptionsConfig.getCheckAndMutateTimeoutMs() : 0;
+    this.readModifyWriteTimeoutMs =
+        useTimeout ? callOptionsConfig.getReadModifyWriteTimeoutMs() : 0;
+    this.overallTimeoutMs = useTimeout ? callOptionsConfig.getOverallTimeoutMs() : 0;
+
     this.sampleRowKeysAsync = asyncUtilities.createSampleRowKeyAsyncReader();
     this.readRowsAsync = asyncUtilities.createRowKeyAysncReader();
+    if (bigtableOptions.hedgeSingleRowReads()) {
+      this.hedgedReadRowAsync = new HedgingRpc<>(readRowsAsync, retryExecutorService,
+          bigtableOptions.getHedgeDelayPercentile(), bigtableOptions.getMaxHedgeRatio());
+    } else {
+      this.hedgedReadRowAsync = null;
+    }
     this.mutateRowRpc = asyncUtilities.createAsyncUnaryRpc(BigtableServiceGrpc.METHOD_MUTATE_ROW);
     this.mutateRowsRpc = asyncUtilities.createAsyncUnaryRpc(BigtableServiceGrpc.METHOD_MUTATE_ROWS);
     this.checkAndMutateRpc =
@@ -177,9 +221,14 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
         asyncUtilities.createAsyncUnaryRpc(BigtableServiceGrpc.METHOD_READ_MODIFY_WRITE_ROW);
   }
 
+  @Override
+  public RetryBudget getRetryBudget() {
+    return retryBudget;
+  }
+
   @Override
   public Empty mutateRow(MutateRowRequest request) throws ServiceException {
-    return performBlockingRpc(request, IS_RETRYABLE_MUTATION, mutateRowRpc);
+    return performBlockingRpc(request, IS_RETRYABLE_MUTATION, mutateRowRpc, mutateTimeoutMs);
   }
 
   @Override
@@ -193,48 +242,56 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
               mutateRowRpc,
               IS_RETRYABLE_MUTATION,
               retryExecutorService,
-              null);
+              null,
+              mutateTimeoutMs,
+              overallTimeoutMs,
+              retryBudget);
       return retryingRpcFunction.addRetry(future);
     } else {
-      return mutateRowRpc.call(request, null);
+      return mutateRowRpc.call(request, createCallOptions(mutateTimeoutMs), null);
     }
   }
 
   @Override
   public ListenableFuture<Empty> mutateRowAsync(MutateRowRequest request) {
     expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
-    return performRetryingAsyncRpc(request, mutateRowRpc, IS_RETRYABLE_MUTATION, null);
+    return performRetryingAsyncRpc(request, mutateRowRpc, IS_RETRYABLE_MUTATION, null,
+      mutateTimeoutMs);
   }
 
   @Override
   public MutateRowsResponse mutateRows(MutateRowsRequest request) throws ServiceException {
-    return performBlockingRpc(request, ARE_RETRYABLE_MUTATIONS, mutateRowsRpc);
+    return performBlockingRpc(request, ARE_RETRYABLE_MUTATIONS, mutateRowsRpc, mutateTimeoutMs);
   }
 
   @Override
   public ListenableFuture<MutateRowsResponse> mutateRowsAsync(MutateRowsRequest request) {
     expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
-    return performRetryingAsyncRpc(request, mutateRowsRpc, ARE_RETRYABLE_MUTATIONS, null);
+    return performRetryingAsyncRpc(request, mutateRowsRpc, ARE_RETRYABLE_MUTATIONS, null,
+      mutateTimeoutMs);
   }
 
   @Override
   public CheckAndMutateRowResponse checkAndMutateRow(CheckAndMutateRowRequest request)
       throws ServiceException {
-    return performBlockingRpc(request, IS_RETRYABLE_CHECK_AND_MUTATE, checkAndMutateRpc);
+    return performBlockingRpc(request, IS_RETRYABLE_CHECK_AND_MUTATE, checkAndMutateRpc,
+      checkAndMutateTimeoutMs);
   }
 
   @Override
   public ListenableFuture<CheckAndMutateRowResponse> checkAndMutateRowAsync(
       CheckAndMutateRowRequest request) {
     expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
-    return performRetryingAsyncRpc(request, checkAndMutateRpc, IS_RETRYABLE_CHECK_AND_MUTATE, null);
+    return performRetryingAsyncRpc(request, checkAndMutateRpc, IS_RETRYABLE_CHECK_AND_MUTATE, null,
+      checkAndMutateTimeoutMs);
   }
 
   private <ReqT, RespT> RespT performBlockingRpc(ReqT request, Predicate<ReqT> retryablePredicate,
-      BigtableAsyncRpc<ReqT, RespT> rpc) {
+      BigtableAsyncRpc<ReqT, RespT> rpc, int timeoutMs) {
     CancellationToken token = new CancellationToken();
     try {
-      return getUnchecked(performRetryingAsyncRpc(request, rpc, retryablePredicate, token));
+      return getUnchecked(
+        performRetryingAsyncRpc(request, rpc, retryablePredicate, token, timeoutMs));
     } catch (Throwable t) {
       token.cancel();
       throw Throwables.propagate(t);
@@ -265,13 +322,16 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
     }
   }
 
+  /**
+   * @param timeoutMs The deadline of each attempt, or 0 for none.
+   */
   private <ReqT, RespT> ListenableFuture<RespT> performRetryingAsyncRpc(ReqT request,
       BigtableAsyncRpc<ReqT, RespT> rpc, Predicate<ReqT> isRetryable,
-      CancellationToken cancellationToken) {
+      CancellationToken cancellationToken, int timeoutMs) {
     if (retryOptions.enableRetries()) {
       RetryingRpcFunction<ReqT, RespT> retryingRpcFunction =
-          new RetryingRpcFunction<>(
-              retryOptions, request, rpc, isRetryable, retryExecutorService, cancellationToken);
+          new RetryingRpcFunction<>(retryOptions, request, rpc, isRetryable, retryExecutorService,
+              cancellationToken, timeoutMs, overallTimeoutMs, retryBudget);
       return retryingRpcFunction.callRpcWithRetry();
     } else {
       if (retryOptions.enableRetries()) {
@@ -284,15 +344,26 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
               + "In future releases this case will fail.");
         }
       }
-      return rpc.call(request, cancellationToken);
+      return rpc.call(request, createCallOptions(timeoutMs), cancellationToken);
+    }
+  }
+
+  /**
+   * @param timeoutMs The deadline of the call, or 0 for none.
+   */
+  private static CallOptions createCallOptions(int timeoutMs) {
+    if (timeoutMs <= 0) {
+      return CallOptions.DEFAULT;
     }
+    return CallOptions.DEFAULT.withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS);
   }
 
   @Override
   public Row readModifyWriteRow(ReadModifyWriteRowRequest request) {
     CancellationToken token = new CancellationToken();
     try {
-      return getUnchecked(readWriteModifyRpc.call(request, token));
+      return getUnchecked(
+        readWriteModifyRpc.call(request, createCallOptions(readModifyWriteTimeoutMs), token));
     } catch (Throwable t) {
       token.cancel();
       throw Throwables.propagate(t);
@@ -302,33 +373,57 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
   @Override
   public ListenableFuture<Row> readModifyWriteRowAsync(ReadModifyWriteRowRequest request) {
     expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
-    return readWriteModifyRpc.call(request, null);
+    return readWriteModifyRpc.call(request, createCallOptions(readModifyWriteTimeoutMs), null);
   }
 
   @Override
   public ImmutableList<SampleRowKeysResponse> sampleRowKeys(SampleRowKeysRequest request) {
     return ImmutableList
-        .copyOf(performBlockingRpc(request, IS_RETRYABLE_SAMPLE_ROW_KEY, sampleRowKeysAsync));
+        .copyOf(performBlockingRpc(request, IS_RETRYABLE_SAMPLE_ROW_KEY, sampleRowKeysAsync, 0));
   }
 
   @Override
   public ListenableFuture<List<SampleRowKeysResponse>>
       sampleRowKeysAsync(SampleRowKeysRequest request) {
-    return performRetryingAsyncRpc(request, sampleRowKeysAsync, IS_RETRYABLE_SAMPLE_ROW_KEY, null);
+    return performRetryingAsyncRpc(request, sampleRowKeysAsync, IS_RETRYABLE_SAMPLE_ROW_KEY, null,
+      0);
   }
 
   @Override
   public ListenableFuture<List<Row>> readRowsAsync(ReadRowsRequest request) {
     expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
-    return performRetryingAsyncRpc(request, readRowsAsync, IS_RETRYABLE_READ_ROW, null);
+    return performRetryingAsyncRpc(request, getReadRowsRpc(request), IS_RETRYABLE_READ_ROW, null,
+      isSingleRowRead(request) ? readRowTimeoutMs : 0);
+  }
+
+  /**
+   * Single row reads are hedged if {@link BigtableOptions#hedgeSingleRowReads()} is set.
+   */
+  private BigtableAsyncRpc<ReadRowsRequest, List<Row>> getReadRowsRpc(ReadRowsRequest request) {
+    if (hedgedReadRowAsync != null && isSingleRowRead(request)) {
+      return hedgedReadRowAsync;
+    }
+    return readRowsAsync;
+  }
+
+  private static boolean isSingleRowRead(ReadRowsRequest request) {
+    return request.getTargetCase() == ReadRowsRequest.TargetCase.ROW_KEY;
   }
 
   @Override
   public ResultScanner<Row> readRows(ReadRowsRequest request) {
+    if (hedgedReadRowAsync != null && isSingleRowRead(request)) {
+      // A single row is small enough to read in full before returning it, which lets the read be
+      // hedged.
+      expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
+      return createListScanner(
+        performBlockingRpc(request, IS_RETRYABLE_READ_ROW, hedgedReadRowAsync, readRowTimeoutMs));
+    }
     // Delegate all resumable operations to the scanner. It will request a non-resumable
     // scanner during operation.
     if (retryOptions.enableRetries()) {
-      return new ResumingStreamingResultScanner(retryOptions, request, streamingScannerFactory);
+      return new ResumingStreamingResultScanner(retryOptions, request, streamingScannerFactory,
+          retryBudget);
     } else {
       return streamRows(request);
     }
@@ -336,7 +431,7 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
 
   private ResultScanner<Row> streamRows(ReadRowsRequest request) {
     expandPoolIfNecessary(this.bigtableOptions.getChannelCount());
-    boolean isGet = request.getTargetCase() == ReadRowsRequest.TargetCase.ROW_KEY;
+    boolean isGet = isSingleRowRead(request);
 
     int streamingBufferSize;
     int batchRequestSize;
@@ -351,8 +446,10 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
       streamingBufferSize = retryOptions.getStreamingBufferSize();
     }
 
+    // Single row reads get a deadline. Scans are limited by the partial row timeout instead.
     ClientCall<ReadRowsRequest, ReadRowsResponse> readRowsCall =
-        channelPool.newCall(BigtableServiceGrpc.METHOD_READ_ROWS, CallOptions.DEFAULT);
+        channelPool.newCall(BigtableServiceGrpc.METHOD_READ_ROWS,
+          createCallOptions(isGet ? readRowTimeoutMs : 0));
 
     CancellationToken cancellationToken = createCancellationToken(readRowsCall);
 
@@ -377,6 +474,25 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
     return resultScanner;
   }
 
+  private static ResultScanner<Row> createListScanner(List<Row> rows) {
+    final Iterator<Row> iterator = rows.iterator();
+    return new AbstractBigtableResultScanner() {
+      @Override
+      public Row next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+
+      @Override
+      public int available() {
+        return iterator.hasNext() ? 1 : 0;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
   private CancellationToken createCancellationToken(final ClientCall<ReadRowsRequest, ReadRowsResponse> readRowsCall) {
     // If the scanner is closed before we're done streaming, we want to cancel the RPC.
     CancellationToken cancellationToken = new CancellationToken();
@@ -409,6 +525,10 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
   }
 
   private void expandPoolIfNecessary(int channelCount) {
+    if (bigtableOptions.useAdaptiveChannelPool()) {
+      // The pool sizes itself.
+      return;
+    }
     try {
       this.channelPool.ensureChannelCount(channelCount);
     } catch (IOException e) {
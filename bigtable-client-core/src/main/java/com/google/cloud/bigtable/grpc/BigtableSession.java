@@ -16,7 +16,11 @@
 
 package com.google.cloud.bigtable.grpc;
 
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
@@ -35,10 +39,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLException;
@@ -46,18 +53,28 @@ import javax.net.ssl.SSLException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.api.client.util.Strings;
+import com.google.bigtable.v1.BigtableServiceGrpc;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.ReadRowsResponse;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.config.CredentialFactory;
 import com.google.cloud.bigtable.config.CredentialOptions;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
 import com.google.cloud.bigtable.grpc.io.ChannelPool;
+import com.google.cloud.bigtable.grpc.io.ChannelPoolRegistry;
 import com.google.cloud.bigtable.grpc.io.CredentialInterceptorCache;
+import com.google.cloud.bigtable.grpc.io.FlowControlWindowTuner;
 import com.google.cloud.bigtable.grpc.io.HeaderInterceptor;
 import com.google.cloud.bigtable.grpc.io.UserAgentInterceptor;
 import com.google.cloud.bigtable.util.ThreadPoolUtil;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * <p>Encapsulates the creation of Bigtable Grpc services.</p>
@@ -75,12 +92,12 @@ public class BigtableSession implements Closeable {
   private static final Logger LOG = new Logger(BigtableSession.class);
   private static SslContextBuilder sslBuilder;
 
+  // The longest time to wait for a channel to connect when warming up channels.
+  private final static int CHANNEL_CONNECT_TIMEOUT_SECONDS = 10;
+
   // 256 MB, server has 256 MB limit.
   private final static int MAX_MESSAGE_SIZE = 1 << 28; 
 
-  // 1 MB -- TODO(sduskis): make this configurable
-  private final static int FLOW_CONTROL_WINDOW = 1 << 20;
-
   @VisibleForTesting
   static final String PROJECT_ID_EMPTY_OR_NULL = "ProjectId must not be empty or null.";
   @VisibleForTesting
@@ -199,7 +216,7 @@ public class BigtableSession implements Closeable {
     connectionStartupExecutor.shutdown();
   }
 
-  private BigtableDataClient dataClient;
+  private BigtableDataGrpcClient dataClient;
   private BigtableTableAdminClient tableAdminClient;
   private BigtableClusterAdminClient clusterAdminClient;
 
@@ -207,8 +224,24 @@ public class BigtableSession implements Closeable {
   private final List<ManagedChannel> managedChannels = Collections
       .synchronizedList(new ArrayList<ManagedChannel>());
   private final ImmutableList<HeaderInterceptor> headerInterceptors;
+  private final ChannelPool.ChannelFactory channelFactory;
+  private final ChannelPoolRegistry.Lease dataChannelLease;
 
   public BigtableSession(BigtableOptions options) throws IOException {
+    this(options, (ChannelPool.ChannelFactory) null);
+  }
+
+  /**
+   * Creates a session whose channels are created by the given {@link ChannelPool.ChannelFactory}
+   * rather than by connecting to the hosts in the {@link BigtableOptions}. This can be used to talk
+   * to an in-process server, such as
+   * {@link com.google.cloud.bigtable.grpc.testing.FakeBigtableDataService}.
+   *
+   * @param channelFactory Creates the session's channels, or null to connect to the configured
+   *          hosts.
+   */
+  public BigtableSession(BigtableOptions options,
+      @Nullable ChannelPool.ChannelFactory channelFactory) throws IOException {
     Preconditions.checkArgument(
         !Strings.isNullOrEmpty(options.getProjectId()), PROJECT_ID_EMPTY_OR_NULL);
     Preconditions.checkArgument(
@@ -222,7 +255,8 @@ public class BigtableSession implements Closeable {
         + "on data host %s, table admin host %s.",
         options.getProjectId(), options.getZoneId(), options.getClusterId(), options.getDataHost(),
         options.getTableAdminHost());
-    if (!isAlpnProviderEnabled()) {
+    if (channelFactory == null && !options.usePlaintextNegotiation()
+        && !isAlpnProviderEnabled()) {
       LOG.error(
           "Neither Jetty ALPN nor OpenSSL are available. "
           + "OpenSSL unavailability cause:\n%s",
@@ -231,6 +265,7 @@ public class BigtableSession implements Closeable {
           + "netty-tcnative were properly configured.");
     }
     this.options = options;
+    this.channelFactory = channelFactory;
 
     Builder<HeaderInterceptor> headerInterceptorBuilder = new ImmutableList.Builder<>();
 
@@ -253,17 +288,62 @@ public class BigtableSession implements Closeable {
     headerInterceptorBuilder.add(new UserAgentInterceptor(options.getUserAgent()));
     headerInterceptors = headerInterceptorBuilder.build();
 
-    ChannelPool dataChannel = createChannelPool(options.getDataHost());
-
     BigtableSessionSharedThreadPools sharedPools = BigtableSessionSharedThreadPools.getInstance();
+    ChannelPool dataChannel;
+    if (options.useSharedChannelPool() && channelFactory == null) {
+      // The first session for a host and set of credentials creates the pool, with its own channel
+      // options. Later sessions reuse it until the last of them is closed.
+      ChannelPoolRegistry.Key key = new ChannelPoolRegistry.Key(options.getDataHost(),
+          options.getPort(), credentialOptions, options.getUserAgent());
+      dataChannelLease = ChannelPoolRegistry.getInstance().acquire(key,
+        new ChannelPoolRegistry.ChannelPoolFactory() {
+          @Override
+          public ChannelPool create() throws IOException {
+            return createDataChannelPool();
+          }
+        });
+      dataChannel = dataChannelLease.getChannelPool();
+    } else {
+      dataChannelLease = null;
+      dataChannel = createDataChannelPool();
+      managedChannels.add(dataChannel);
+    }
 
     // More often than not, users want the dataClient. Create a new one in the constructor.
-    this.dataClient =
-        new BigtableDataGrpcClient(dataChannel, sharedPools.getRetryExecutor(), options);
+    try {
+      this.dataClient =
+          new BigtableDataGrpcClient(dataChannel, sharedPools.getRetryExecutor(), options);
+    } catch (RuntimeException e) {
+      // The session is not returned, so close() will never release the channels.
+      if (dataChannelLease != null) {
+        dataChannelLease.release();
+      } else {
+        dataChannel.shutdownNow();
+      }
+      throw e;
+    }
 
     // Defer the creation of both the tableAdminClient and clusterAdminClient until we need them.
   }
 
+  /**
+   * Creates a {@link BigtableSession} in the background. Combined with
+   * {@link BigtableOptions#warmUpChannels()}, this lets a service connect to Bigtable while it
+   * initializes other things.
+   *
+   * @return A future that contains the session, or the exception that the constructor threw.
+   */
+  public static ListenableFuture<BigtableSession> createAsync(final BigtableOptions options) {
+    ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+      BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool());
+    return executor.submit(new Callable<BigtableSession>() {
+      @Override
+      public BigtableSession call() throws IOException {
+        return new BigtableSession(options);
+      }
+    });
+  }
+
   /**
    * Use {@link BigtableSession#BigtableSession(BigtableOptions)} instead;
    */
@@ -300,10 +380,63 @@ public class BigtableSession implements Closeable {
     }
   }
 
+  /**
+   * Creates the {@link ChannelPool} for the data host, configured by the {@link BigtableOptions}.
+   * The caller is responsible for shutting it down.
+   */
+  private ChannelPool createDataChannelPool() throws IOException {
+    BigtableSessionSharedThreadPools sharedPools = BigtableSessionSharedThreadPools.getInstance();
+    ChannelPool dataChannel;
+    if (options.autoTuneFlowControlWindow() && channelFactory == null) {
+      int initialWindow = options.getFlowControlWindow();
+      FlowControlWindowTuner dataWindowTuner = new FlowControlWindowTuner(initialWindow,
+          Math.max(initialWindow, options.getMaxFlowControlWindow()));
+      dataChannel = newChannelPool(options.getDataHost(), dataWindowTuner);
+      dataChannel.enableFlowControlWindowTuning(dataWindowTuner,
+        sharedPools.getBatchThreadPool());
+    } else {
+      dataChannel = newChannelPool(options.getDataHost(), null);
+    }
+
+    try {
+      if (options.warmUpChannels()) {
+        int initialChannelCount = options.useAdaptiveChannelPool()
+            ? Math.min(options.getMinChannelCount(), options.getChannelCount())
+            : options.getChannelCount();
+        long start = System.nanoTime();
+        dataChannel.ensureChannelCount(initialChannelCount, sharedPools.getBatchThreadPool());
+        LOG.info("Created and connected %d data channels in %d ms.", dataChannel.size(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+    } catch (IOException e) {
+      dataChannel.shutdownNow();
+      throw e;
+    }
+
+    if (options.useAdaptiveChannelPool()) {
+      dataChannel.enableAdaptiveSizing(
+        Math.min(options.getMinChannelCount(), options.getChannelCount()),
+        options.getChannelCount(),
+        options.getTargetRpcsPerChannel(),
+        ChannelPool.DEFAULT_IDLE_CHANNEL_TIMEOUT_MS,
+        sharedPools.getRetryExecutor(),
+        sharedPools.getBatchThreadPool());
+    }
+    return dataChannel;
+  }
+
   public BigtableDataClient getDataClient() {
     return dataClient;
   }
 
+  /**
+   * @return The retry budget that is shared by the data RPCs of this session, or null if
+   *         {@link RetryOptions#enableRetryBudget()} is false.
+   */
+  public RetryBudget getRetryBudget() {
+    return dataClient.getRetryBudget();
+  }
+
   public synchronized BigtableTableAdminClient getTableAdminClient() throws IOException {
     if (tableAdminClient == null) {
       ManagedChannel channel = createChannelPool(options.getTableAdminHost());
@@ -327,35 +460,119 @@ public class BigtableSession implements Closeable {
    * </p>
    */
   protected ChannelPool createChannelPool(final String hostString) throws IOException {
-    ChannelPool.ChannelFactory channelFactory = new ChannelPool.ChannelFactory() {
-      @Override
-      public ManagedChannel create() throws IOException {
-        return createNettyChannel(hostString);
-      }
-    };
-    ChannelPool channelPool = new ChannelPool(headerInterceptors, channelFactory);
+    return createChannelPool(hostString, null);
+  }
+
+  /**
+   * <p>
+   * Create a new {@link ChannelPool} whose channels use the flow control window of the given
+   * {@link FlowControlWindowTuner} at the time that they are created.
+   * </p>
+   */
+  protected ChannelPool createChannelPool(final String hostString,
+      @Nullable final FlowControlWindowTuner windowTuner) throws IOException {
+    ChannelPool channelPool = newChannelPool(hostString, windowTuner);
     managedChannels.add(channelPool);
     return channelPool;
   }
 
+  private ChannelPool newChannelPool(final String hostString,
+      @Nullable final FlowControlWindowTuner windowTuner) throws IOException {
+    ChannelPool.ChannelFactory factory = channelFactory;
+    if (factory == null) {
+      factory = new ChannelPool.ChannelFactory() {
+        @Override
+        public ManagedChannel create() throws IOException {
+          ManagedChannel channel = windowTuner == null
+              ? createNettyChannel(hostString)
+              : createNettyChannel(hostString, windowTuner.getWindow());
+          if (options.warmUpChannels()) {
+            connect(channel);
+          }
+          return channel;
+        }
+      };
+    }
+    ChannelPool channelPool = new ChannelPool(headerInterceptors, factory,
+        options.getChannelSelectionStrategy());
+    if (options.replaceUnhealthyChannels()) {
+      channelPool.enableUnhealthyChannelReplacement(ChannelPool.DEFAULT_FAILURE_WINDOW_SIZE,
+        ChannelPool.DEFAULT_FAILURE_THRESHOLD,
+        BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool());
+    }
+    return channelPool;
+  }
+
   protected ManagedChannel createNettyChannel(final String host) throws IOException {
+    return createNettyChannel(host, options.getFlowControlWindow());
+  }
+
+  protected ManagedChannel createNettyChannel(final String host, int flowControlWindow)
+      throws IOException {
     // TODO Go back to using host names once grpc 0.14.0 is out, which fixes bug
     // when ipv6 address is available but not reachable.
     InetAddress address = InetAddress.getByName(host);
     BigtableSessionSharedThreadPools sharedPools = BigtableSessionSharedThreadPools.getInstance();
-    return NettyChannelBuilder
+    NettyChannelBuilder builder = NettyChannelBuilder
         .forAddress(new InetSocketAddress(address, options.getPort()))
         .maxMessageSize(MAX_MESSAGE_SIZE)
-        .sslContext(createSslContext())
-        .eventLoopGroup(sharedPools.getElg())
+        .eventLoopGroup(sharedPools.getEventLoopGroup(options.useEpoll()))
+        .channelType(sharedPools.getChannelType(options.useEpoll()))
         .executor(sharedPools.getBatchThreadPool())
-        .negotiationType(NegotiationType.TLS)
-        .flowControlWindow(FLOW_CONTROL_WINDOW)
-        .build();
+        .flowControlWindow(flowControlWindow);
+    if (options.usePlaintextNegotiation()) {
+      builder.negotiationType(NegotiationType.PLAINTEXT);
+    } else {
+      builder.sslContext(createSslContext()).negotiationType(NegotiationType.TLS);
+    }
+    return builder.build();
+  }
+
+  /**
+   * <p>
+   * grpc channels connect lazily, so the first RPC on each channel has to wait for the TCP
+   * connection and the TLS handshake. This method sends a ReadRows request without credentials
+   * and waits for the server to reject it, which means that the channel is connected.
+   * </p>
+   * <p>
+   * A channel that could not be connected is still usable; it tries to connect again on the next
+   * RPC.
+   * </p>
+   */
+  private static void connect(ManagedChannel channel) {
+    final SettableFuture<Status> closed = SettableFuture.create();
+    ClientCall<ReadRowsRequest, ReadRowsResponse> call =
+        channel.newCall(BigtableServiceGrpc.METHOD_READ_ROWS, CallOptions.DEFAULT);
+    call.start(new ClientCall.Listener<ReadRowsResponse>() {
+      @Override
+      public void onClose(Status status, Metadata trailers) {
+        closed.set(status);
+      }
+    }, new Metadata());
+    call.request(1);
+    call.sendMessage(ReadRowsRequest.getDefaultInstance());
+    call.halfClose();
+    try {
+      Status status = closed.get(CHANNEL_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (status.getCode() == Status.Code.UNAVAILABLE) {
+        LOG.warn("Could not connect a channel to %s: %s", channel.authority(), status);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      call.cancel();
+    } catch (ExecutionException | TimeoutException e) {
+      LOG.warn("Timed out while connecting a channel to %s.", channel.authority());
+      call.cancel();
+    }
   }
 
   @Override
   public synchronized void close() throws IOException {
+    // A shared data pool is only shut down by the last session that uses it. That session waits for
+    // it to terminate along with its other channels.
+    if (dataChannelLease != null && dataChannelLease.release()) {
+      managedChannels.add(dataChannelLease.getChannelPool());
+    }
     if (managedChannels.isEmpty()) {
       return;
     }
@@ -15,9 +15,16 @@
  */
 package com.google.cloud.bigtable.grpc;
 
+import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.util.ThreadPoolUtil;
 
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -29,9 +36,12 @@ import java.util.concurrent.ThreadFactory;
  * few {@link BigtableSession}s.  All executors are automatically expand if there is higher use.
  */
 public class BigtableSessionSharedThreadPools {
+  private static final Logger LOG = new Logger(BigtableSessionSharedThreadPools.class);
+
   public static final String BATCH_POOL_THREAD_NAME = "bigtable-batch-pool";
   public static final String RETRY_THREADPOOL_NAME = "bigtable-rpc-retry";
   public static final String GRPC_EVENTLOOP_GROUP_NAME = "bigtable-grpc-elg";
+  public static final String GRPC_EPOLL_EVENTLOOP_GROUP_NAME = "bigtable-grpc-epoll-elg";
 
   /** Number of threads to use to initiate retry calls */
   public static final int RETRY_THREAD_COUNT = 4;
@@ -57,6 +67,12 @@ public class BigtableSessionSharedThreadPools {
    */
   protected NioEventLoopGroup elg;
 
+  /**
+   * netty's native epoll transport, which is only available on Linux. It is created the first time
+   * that a channel asks for it.
+   */
+  protected EventLoopGroup epollElg;
+
   /**
    * Used for a few cases that benefit from retries, such as puts, gets and scans.
    */
@@ -88,4 +104,69 @@ public class BigtableSessionSharedThreadPools {
   public ScheduledExecutorService getRetryExecutor() {
     return retryExecutor;
   }
+
+  /**
+   * Indicates whether netty's native epoll transport can be used on this machine. It requires
+   * Linux and the netty-transport-native-epoll jar, including its native library.
+   */
+  public static boolean isEpollAvailable() {
+    try {
+      return EpollHolder.isAvailable();
+    } catch (Throwable t) {
+      // The epoll classes or their native library could not be loaded.
+      return false;
+    }
+  }
+
+  /**
+   * Gets the event loop group to use for new netty channels. Use the same value of {@code useEpoll}
+   * for {@link #getChannelType(boolean)}.
+   *
+   * @param useEpoll Whether the epoll transport should be used when it is available.
+   * @return An {@link EventLoopGroup} for epoll if {@code useEpoll} is set and epoll is available,
+   *         otherwise an NIO {@link EventLoopGroup}.
+   */
+  public EventLoopGroup getEventLoopGroup(boolean useEpoll) {
+    if (useEpoll && isEpollAvailable()) {
+      return getEpollElg();
+    }
+    return elg;
+  }
+
+  /**
+   * Gets the netty {@link Channel} class that matches {@link #getEventLoopGroup(boolean)}.
+   */
+  public Class<? extends Channel> getChannelType(boolean useEpoll) {
+    if (useEpoll && isEpollAvailable()) {
+      return EpollHolder.channelType();
+    }
+    return NioSocketChannel.class;
+  }
+
+  private synchronized EventLoopGroup getEpollElg() {
+    if (epollElg == null) {
+      LOG.info("gRPC is using the native epoll transport.");
+      epollElg = EpollHolder.createEventLoopGroup(
+        createThreadFactory(GRPC_EPOLL_EVENTLOOP_GROUP_NAME));
+    }
+    return epollElg;
+  }
+
+  /**
+   * Keeps references to the epoll classes out of {@link BigtableSessionSharedThreadPools}, so that
+   * they are only loaded once epoll is actually used.
+   */
+  private static class EpollHolder {
+    private static boolean isAvailable() {
+      return Epoll.isAvailable();
+    }
+
+    private static EventLoopGroup createEventLoopGroup(ThreadFactory threadFactory) {
+      return new EpollEventLoopGroup(0, threadFactory);
+    }
+
+    private static Class<? extends Channel> channelType() {
+      return EpollSocketChannel.class;
+    }
+  }
 }
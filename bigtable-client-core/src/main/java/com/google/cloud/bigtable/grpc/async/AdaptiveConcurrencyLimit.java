@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A limit on the number of in-flight RPCs that adapts to the measured RPC latency, in the manner of
+ * TCP Vegas. The lowest latency seen recently is taken as the latency of an idle cluster. The
+ * latencies of RPCs are averaged over a window of roughly {@code limit} RPCs, and the number of
+ * RPCs that were queued on the server is estimated as
+ * {@code limit * (1 - minLatency / averageLatency)}.
+ * </p>
+ * <ul>
+ * <li>If fewer than {@link #ALPHA} RPCs were queued and the limit was actually used, the limit is
+ * raised by one.</li>
+ * <li>If more than {@link #BETA} RPCs were queued, the limit is multiplied by
+ * {@link #BACKOFF_RATIO}.</li>
+ * </ul>
+ * <p>
+ * Both thresholds are multiplied by {@code log10(limit)} once the limit is above 10, so that the
+ * normal variation in latency does not hold a large limit down.
+ * </p>
+ * <p>
+ * The lowest latency is measured again every {@link #MIN_LATENCY_RESET_WINDOWS} windows, so that
+ * the limit follows the cluster when its idle latency changes.
+ * </p>
+ * <p>
+ * Samples are added to the window without a lock. Only the sample that closes a window takes the
+ * lock to update the limit. A sample that races with the close of a window can be counted in the
+ * next one instead, which does not matter for an average over many RPCs.
+ * </p>
+ */
+public class AdaptiveConcurrencyLimit {
+
+  /** Below this many queued RPCs, the limit is raised. */
+  public static final int ALPHA = 3;
+
+  /** Above this many queued RPCs, the limit is lowered. */
+  public static final int BETA = 6;
+
+  /** The limit is multiplied by this when the latency rises. */
+  public static final double BACKOFF_RATIO = 0.9;
+
+  /** Latencies are averaged over at least this many RPCs. */
+  public static final int MIN_WINDOW_SIZE = 10;
+
+  /** The lowest latency is measured again after this many windows. */
+  public static final int MIN_LATENCY_RESET_WINDOWS = 100;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private volatile int limit;
+
+  // Guarded by this.
+  private long minLatencyNanos = Long.MAX_VALUE;
+  private int windowsSinceMinLatencyReset;
+  private volatile long lastAverageLatencyNanos;
+
+  // The samples of the current window.
+  private final AtomicInteger windowCount = new AtomicInteger();
+  private final AtomicLong windowLatencySumNanos = new AtomicLong();
+  private final AtomicLong windowMinLatencyNanos = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+
+  /**
+   * @param initialLimit The limit to start with.
+   * @param minLimit The lowest that the limit can go.
+   * @param maxLimit The highest that the limit can go.
+   */
+  public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+    Preconditions.checkArgument(minLimit > 0, "minLimit must be positive.");
+    Preconditions.checkArgument(minLimit <= initialLimit && initialLimit <= maxLimit,
+      "initialLimit must be between minLimit and maxLimit.");
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = initialLimit;
+  }
+
+  /**
+   * Records the latency of a completed RPC.
+   *
+   * @param latencyNanos How long the RPC took.
+   * @param inFlight The number of RPCs that were in flight when it completed, including itself.
+   */
+  public void onSample(long latencyNanos, int inFlight) {
+    windowLatencySumNanos.addAndGet(latencyNanos);
+    updateMin(windowMinLatencyNanos, latencyNanos);
+    updateMax(windowMaxInFlight, inFlight);
+    int count = windowCount.incrementAndGet();
+    // Only the thread that resets the count closes the window.
+    if (count < Math.max(MIN_WINDOW_SIZE, limit) || !windowCount.compareAndSet(count, 0)) {
+      return;
+    }
+    long latencySumNanos = windowLatencySumNanos.getAndSet(0);
+    long minWindowLatencyNanos = windowMinLatencyNanos.getAndSet(Long.MAX_VALUE);
+    int maxInFlight = windowMaxInFlight.getAndSet(0);
+    closeWindow(latencySumNanos / count, minWindowLatencyNanos, maxInFlight);
+  }
+
+  private synchronized void closeWindow(long averageLatencyNanos, long minWindowLatencyNanos,
+      int maxInFlight) {
+    if (++windowsSinceMinLatencyReset >= MIN_LATENCY_RESET_WINDOWS) {
+      windowsSinceMinLatencyReset = 0;
+      minLatencyNanos = minWindowLatencyNanos;
+    } else {
+      minLatencyNanos = Math.min(minLatencyNanos, minWindowLatencyNanos);
+    }
+    lastAverageLatencyNanos = averageLatencyNanos;
+    double queued = limit * (1 - (double) minLatencyNanos / Math.max(1, averageLatencyNanos));
+    double scale = Math.max(1, Math.log10(limit));
+    if (queued > BETA * scale) {
+      limit = Math.max(minLimit, (int) (limit * BACKOFF_RATIO));
+    } else if (queued < ALPHA * scale && maxInFlight >= limit / 2) {
+      // Only probe for more capacity if the current limit is being used.
+      limit = Math.min(maxLimit, limit + 1);
+    }
+  }
+
+  private static void updateMin(AtomicLong min, long value) {
+    long current = min.get();
+    while (value < current && !min.compareAndSet(current, value)) {
+      current = min.get();
+    }
+  }
+
+  private static void updateMax(AtomicInteger max, int value) {
+    int current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * @return The number of RPCs that are currently allowed to be in flight.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return The lowest that the limit can go.
+   */
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  /**
+   * @return The highest that the limit can go.
+   */
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  /**
+   * @return The lowest recent latency in nanoseconds, or -1 if no window has completed yet.
+   */
+  public synchronized long getMinLatencyNanos() {
+    return minLatencyNanos == Long.MAX_VALUE ? -1 : minLatencyNanos;
+  }
+
+  /**
+   * @return The average latency in nanoseconds of the last completed window.
+   */
+  public long getLastAverageLatencyNanos() {
+    return lastAverageLatencyNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("AdaptiveConcurrencyLimit{limit=%d, minLatencyNanos=%d, "
+        + "lastAverageLatencyNanos=%d}", limit, getMinLatencyNanos(), lastAverageLatencyNanos);
+  }
+}
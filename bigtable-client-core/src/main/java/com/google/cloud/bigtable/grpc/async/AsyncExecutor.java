@@ -225,6 +225,19 @@ public class AsyncExecutor {
     return call(MUTATE_ROWS_ASYNC, request);
   }
 
+  /**
+   * Performs a {@link BigtableDataClient#mutateRowsAsync(MutateRowsRequest)} on the
+   * {@link MutateRowsRequest} with the given priority. This method may block if
+   * {@link RpcThrottler#registerOperationWithHeapSize(long, RpcPriority)} blocks.
+   * @param request The {@link MutateRowRequest} to send.
+   * @param priority The {@link RpcPriority} of the RPC.
+   * @return a {@link ListenableFuture} which can be listened to for completion events.
+   */
+  public ListenableFuture<MutateRowsResponse> mutateRowsAsync(MutateRowsRequest request,
+      RpcPriority priority) throws InterruptedException {
+    return call(MUTATE_ROWS_ASYNC, request, priority);
+  }
+
   /**
    * Performs a {@link BigtableDataClient#checkAndMutateRowAsync(CheckAndMutateRowRequest)} on the
    * {@link CheckAndMutateRowRequest}. This method may block if
@@ -267,11 +280,32 @@ public class AsyncExecutor {
     return call(READ_ROWS_ASYNC, request);
   }
 
+  /**
+   * Performs a {@link BigtableDataClient#readRowsAsync(ReadRowsRequest)} on the
+   * {@link ReadRowsRequest} with the given priority. This method may block if
+   * {@link RpcThrottler#registerOperationWithHeapSize(long, RpcPriority)} blocks.
+   *
+   * @param request The {@link ReadRowsRequest} to send.
+   * @param priority The {@link RpcPriority} of the RPC.
+   *
+   * @return a {@link ListenableFuture} which can be listened to for completion events.
+   */
+  public ListenableFuture<List<Row>> readRowsAsync(ReadRowsRequest request, RpcPriority priority)
+      throws InterruptedException {
+    return call(READ_ROWS_ASYNC, request, priority);
+  }
+
   private <RequestT extends GeneratedMessage, ResponseT> ListenableFuture<ResponseT> call(
       AsyncCall<RequestT, ResponseT> rpc, RequestT request) throws InterruptedException {
+    return call(rpc, request, RpcPriority.DEFAULT);
+  }
+
+  private <RequestT extends GeneratedMessage, ResponseT> ListenableFuture<ResponseT> call(
+      AsyncCall<RequestT, ResponseT> rpc, RequestT request, RpcPriority priority)
+      throws InterruptedException {
     // Wait until both the memory and rpc count maximum requirements are achieved before getting a
     // unique id used to track this request.
-    long id = sizeManager.registerOperationWithHeapSize(request.getSerializedSize());
+    long id = sizeManager.registerOperationWithHeapSize(request.getSerializedSize(), priority);
     return call(rpc, request, id);
   }
 
@@ -316,6 +350,10 @@ public class AsyncExecutor {
     return client;
   }
 
+  public RpcThrottler getRpcThrottler() {
+    return sizeManager;
+  }
+
   public ListenableFuture<Empty> addMutationRetry(ListenableFuture<Empty> future,
       MutateRowRequest request) {
     return this.client.addMutationRetry(future, request);
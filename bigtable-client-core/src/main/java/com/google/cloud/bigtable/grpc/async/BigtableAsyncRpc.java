@@ -18,9 +18,19 @@ package com.google.cloud.bigtable.grpc.async;
 import com.google.cloud.bigtable.grpc.io.CancellationToken;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import io.grpc.CallOptions;
+
 /**
  * This interface represents a logical asynchronous RPC.
  */
 public interface BigtableAsyncRpc<REQUEST, RESPONSE> {
-  ListenableFuture<RESPONSE> call(REQUEST request, CancellationToken cancellationToken);
+  /**
+   * Starts the RPC.
+   *
+   * @param request The request to send.
+   * @param callOptions The options for the call, including its deadline.
+   * @param cancellationToken Cancels the RPC, or null if it cannot be cancelled.
+   */
+  ListenableFuture<RESPONSE> call(REQUEST request, CallOptions callOptions,
+      CancellationToken cancellationToken);
 }
\ No newline at end of file
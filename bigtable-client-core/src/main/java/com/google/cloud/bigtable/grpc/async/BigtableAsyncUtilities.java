@@ -101,10 +101,10 @@ public interface BigtableAsyncUtilities {
         createAsyncUnaryRpc(final MethodDescriptor<RequestT, ResponseT> method) {
       return new BigtableAsyncRpc<RequestT, ResponseT>() {
         @Override
-        public ListenableFuture<ResponseT> call(RequestT request,
+        public ListenableFuture<ResponseT> call(RequestT request, CallOptions callOptions,
             CancellationToken cancellationToken) {
           AsyncUnaryOperationObserver<ResponseT> listener = new AsyncUnaryOperationObserver<>();
-          ClientCall<RequestT, ResponseT> call = channel.newCall(method, CallOptions.DEFAULT);
+          ClientCall<RequestT, ResponseT> call = channel.newCall(method, callOptions);
           // Initially ask for two responses from flow-control so that if a misbehaving server sends
           // more than one responses, we can catch it and fail it in the listener.
           //
@@ -121,9 +121,9 @@ public interface BigtableAsyncUtilities {
             final Function<List<ResponseT>, List<OutputT>> function) {
       return new BigtableAsyncRpc<RequestT, List<OutputT>>() {
         @Override
-        public ListenableFuture<List<OutputT>> call(RequestT request,
+        public ListenableFuture<List<OutputT>> call(RequestT request, CallOptions callOptions,
             CancellationToken cancellationToken) {
-          ClientCall<RequestT, ResponseT> call = channel.newCall(method, CallOptions.DEFAULT);
+          ClientCall<RequestT, ResponseT> call = channel.newCall(method, callOptions);
           addCancellationListener(cancellationToken, call);
           CollectingClientCallListener<ResponseT> responseCollector =
               new CollectingClientCallListener<>(call);
@@ -15,30 +15,63 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.NanoClock;
 import com.google.bigtable.v1.MutateRowRequest;
 import com.google.bigtable.v1.MutateRowsRequest;
 import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.BigtableDataGrpcClient;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Empty;
 import com.google.rpc.Status;
 
 import io.grpc.StatusRuntimeException;
 
 /**
+ * <p>
  * This class combines a collection of {@link MutateRowRequest}s into a single
  * {@link MutateRowsRequest}. This class is not thread safe, and requires calling classes to make it
  * thread safe.
+ * </p>
+ * <p>
+ * If it is created with a {@link BigtableDataClient}, the entries that fail with a retryable
+ * status are sent again together in a smaller {@link MutateRowsRequest} after a backoff, until they
+ * succeed or the {@link RetryOptions} stop retrying them. Entries that fail with any other status
+ * fail right away. Each round of retries spends a token of the session's {@link RetryBudget}, and
+ * no round starts after the overall deadline of the first request. Resends are registered with an
+ * {@link RpcThrottler}, on an {@link Executor} that is allowed to block, so that retries count
+ * against the same limits as new requests.
+ * </p>
+ * <p>
+ * If it coalesces rows, the mutations of a row key that already has an entry are added to the end
+ * of that entry, so the row is sent and locked once, and its mutations are applied in order. The
+ * future of each {@link #add(MutateRowRequest)} is still set on its own, when the entry completes.
+ * </p>
  */
 public class BulkMutation {
 
+  protected static final Logger LOG = new Logger(BulkMutation.class);
+
   private final static StatusRuntimeException MISSING_ENTRY_EXCEPTION =
       io.grpc.Status.UNKNOWN
           .withDescription("Mutation does not have a status")
@@ -46,12 +79,79 @@ public class BulkMutation {
 
   private final List<SettableFuture<Empty>> futures = new ArrayList<>();
   private final MutateRowsRequest.Builder builder;
-  
+  private final BigtableDataClient client;
+  private final RetryOptions retryOptions;
+  private final ScheduledExecutorService retryExecutorService;
+  private final boolean coalesceRows;
+  private final RetryBudget retryBudget;
+  private final long overallTimeoutNanos;
+  private final RpcThrottler rpcThrottler;
+  private final Executor resendExecutor;
+  // The index of the entry for each row key, if rows are coalesced.
+  private final Map<ByteString, Integer> entryIndexes = new HashMap<>();
+
   private long approximateByteSize = 0l;
+  // The number of calls to add, including the ones that were coalesced into an earlier entry.
+  private int mutationCount = 0;
+
+  @VisibleForTesting
+  NanoClock clock = NanoClock.SYSTEM;
 
   public BulkMutation(String tableName) {
+    this(tableName, null, null, null);
+  }
+
+  /**
+   * @param tableName The table to mutate.
+   * @param client Resends the entries that fail with a retryable status.
+   * @param retryOptions Decides which entries are retried, and how long to wait between retries.
+   * @param retryExecutorService Schedules the retries.
+   */
+  public BulkMutation(String tableName, BigtableDataClient client, RetryOptions retryOptions,
+      ScheduledExecutorService retryExecutorService) {
+    this(tableName, client, retryOptions, retryExecutorService, false);
+  }
+
+  /**
+   * @param tableName The table to mutate.
+   * @param client Resends the entries that fail with a retryable status.
+   * @param retryOptions Decides which entries are retried, and how long to wait between retries.
+   * @param retryExecutorService Schedules the retries.
+   * @param coalesceRows Adds the mutations of a row key that was already added to its entry.
+   */
+  public BulkMutation(String tableName, BigtableDataClient client, RetryOptions retryOptions,
+      ScheduledExecutorService retryExecutorService, boolean coalesceRows) {
+    this(tableName, client, retryOptions, retryExecutorService, coalesceRows, null, 0, null, null);
+  }
+
+  /**
+   * @param tableName The table to mutate.
+   * @param client Resends the entries that fail with a retryable status.
+   * @param retryOptions Decides which entries are retried, and how long to wait between retries.
+   * @param retryExecutorService Schedules the retries.
+   * @param coalesceRows Adds the mutations of a row key that was already added to its entry.
+   * @param retryBudget Shared by the RPCs of a session, or null to only limit retries with the
+   *          {@link RetryOptions}.
+   * @param overallTimeoutMs The time after the first request is sent at which retries stop, or 0
+   *          to only be limited by the {@link RetryOptions}.
+   * @param rpcThrottler Registers the resends, or null to send them without limits.
+   * @param resendExecutor Registers and sends the retries once their backoff is over, so that the
+   *          retry threads never wait for the {@link RpcThrottler}. If it is null, the retry thread
+   *          sends them.
+   */
+  public BulkMutation(String tableName, BigtableDataClient client, RetryOptions retryOptions,
+      ScheduledExecutorService retryExecutorService, boolean coalesceRows, RetryBudget retryBudget,
+      int overallTimeoutMs, RpcThrottler rpcThrottler, Executor resendExecutor) {
     this.builder = MutateRowsRequest.newBuilder().setTableName(tableName);
     this.approximateByteSize = tableName.length() + 2;
+    this.client = client;
+    this.retryOptions = retryOptions;
+    this.retryExecutorService = retryExecutorService;
+    this.coalesceRows = coalesceRows;
+    this.retryBudget = retryBudget;
+    this.overallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(overallTimeoutMs);
+    this.rpcThrottler = rpcThrottler;
+    this.resendExecutor = resendExecutor;
   }
 
   /**
@@ -65,23 +165,97 @@ public class BulkMutation {
    */
   public SettableFuture<Empty> add(MutateRowRequest request) {
     SettableFuture<Empty> future = SettableFuture.create();
+    add(toEntry(request), future);
+    return future;
+  }
+
+  /**
+   * Adds an entry created by {@link #toEntry(MutateRowRequest)}, so that the entry can be built
+   * before the calling class makes this call thread safe. NOTE: Users have to make sure that this
+   * gets called in a thread safe way.
+   * @param entry The {@link com.google.bigtable.v1.MutateRowsRequest.Entry} to add
+   * @param future The {@link SettableFuture} to populate when the {@link MutateRowsResponse}
+   *          returns from the server.
+   */
+  public void add(MutateRowsRequest.Entry entry, SettableFuture<Empty> future) {
+    mutationCount++;
+    if (coalesceRows) {
+      Integer index = entryIndexes.get(entry.getRowKey());
+      if (index != null) {
+        builder.getEntriesBuilder(index).addAllMutations(entry.getMutationsList());
+        approximateByteSize += entry.getSerializedSize()
+            - CodedOutputStream.computeBytesSize(
+              MutateRowsRequest.Entry.ROW_KEY_FIELD_NUMBER, entry.getRowKey());
+        setWhenDone(future, futures.get(index));
+        return;
+      }
+      entryIndexes.put(entry.getRowKey(), futures.size());
+      // Each caller's future follows the entry's future, so that cancelling one of them does not
+      // affect the others.
+      SettableFuture<Empty> entryFuture = SettableFuture.create();
+      setWhenDone(future, entryFuture);
+      future = entryFuture;
+    }
     futures.add(future);
-    MutateRowsRequest.Entry entry = MutateRowsRequest.Entry.newBuilder()
+    builder.addEntries(entry);
+    approximateByteSize += entry.getSerializedSize();
+  }
+
+  private static void setWhenDone(final SettableFuture<Empty> future,
+      ListenableFuture<Empty> entryFuture) {
+    Futures.addCallback(entryFuture, new FutureCallback<Empty>() {
+      @Override
+      public void onSuccess(Empty result) {
+        future.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        future.setException(t);
+      }
+    });
+  }
+
+  /**
+   * @return The {@link com.google.bigtable.v1.MutateRowsRequest.Entry} that has the row key and
+   *         the mutations of the {@link MutateRowRequest}.
+   */
+  public static MutateRowsRequest.Entry toEntry(MutateRowRequest request) {
+    return MutateRowsRequest.Entry.newBuilder()
       .setRowKey(request.getRowKey())
       .addAllMutations(request.getMutationsList())
       .build();
-    builder.addEntries(entry);
-    approximateByteSize += entry.getSerializedSize();
-    return future;
   }
 
   public long getApproximateByteSize() {
     return approximateByteSize;
   }
 
+  /**
+   * @return The number of entries, which is the number of calls to add, unless rows are coalesced.
+   */
   public int getRowKeyCount() {
     return futures.size();
   }
+
+  /**
+   * @return The number of calls to add. Unlike {@link #getRowKeyCount()}, this also counts the
+   *         mutations that were coalesced into the entry of an earlier one, so it bounds the number
+   *         of mutations in the request.
+   */
+  public int getMutationCount() {
+    return mutationCount;
+  }
+
+  /**
+   * @return true if the entries that fail with a retryable status are retried by this
+   *         BulkMutation.
+   */
+  public boolean retriesFailedEntries() {
+    return client != null && retryExecutorService != null && retryOptions != null
+        && retryOptions.enableRetries();
+  }
+
   /**
    * @return a completed {@link MutateRowsRequest} with all of the entries from
    * {@link BulkMutation#add(MutateRowRequest)}.
@@ -96,51 +270,195 @@ public class BulkMutation {
    * {@link MutateRowsResponse} is complete.
    */
   public void addCallback(ListenableFuture<MutateRowsResponse> bulkFuture) {
-    FutureCallback<MutateRowsResponse> callback = new FutureCallback<MutateRowsResponse>() {
-      @Override
-      public void onSuccess(MutateRowsResponse result) {
-        Iterator<Status> statuses = result.getStatusesList().iterator();
-        Iterator<SettableFuture<Empty>> entries = futures.iterator();
-        while (entries.hasNext() && statuses.hasNext()) {
-          SettableFuture<Empty> future = entries.next();
-          Status status = statuses.next();
-          if (status.getCode() == io.grpc.Status.Code.OK.value()) {
-            future.set(Empty.getDefaultInstance());
-          } else {
-            future.setException(toException(status));
+    // The overall deadline starts when the request is sent.
+    long deadlineNanos =
+        overallTimeoutNanos > 0 ? clock.nanoTime() + overallTimeoutNanos : Long.MAX_VALUE;
+    new Batch(builder.getEntriesList(), futures, null, deadlineNanos).addCallback(bulkFuture);
+  }
+
+  /**
+   * The entries of one MutateRowsRequest, and the futures to set when they complete.
+   */
+  private class Batch {
+    private final List<MutateRowsRequest.Entry> entries;
+    private final List<SettableFuture<Empty>> entryFutures;
+    private BackOff backoff;
+    // The time after which no more retries are started, or Long.MAX_VALUE for none.
+    private final long deadlineNanos;
+
+    Batch(List<MutateRowsRequest.Entry> entries, List<SettableFuture<Empty>> entryFutures,
+        BackOff backoff, long deadlineNanos) {
+      this.entries = entries;
+      this.entryFutures = entryFutures;
+      this.backoff = backoff;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    void addCallback(ListenableFuture<MutateRowsResponse> bulkFuture) {
+      FutureCallback<MutateRowsResponse> callback = new FutureCallback<MutateRowsResponse>() {
+        @Override
+        public void onSuccess(MutateRowsResponse result) {
+          handleResponse(result);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          for (SettableFuture<Empty> future : entryFutures) {
+            future.setException(t);
           }
         }
-        // TODO: better handling of these cases?
-        while (entries.hasNext()) {
-          entries.next().setException(MISSING_ENTRY_EXCEPTION);
+      };
+      Futures.addCallback(bulkFuture, callback);
+    }
+
+    private void handleResponse(MutateRowsResponse result) {
+      List<MutateRowsRequest.Entry> retryEntries = new ArrayList<>();
+      List<SettableFuture<Empty>> retryFutures = new ArrayList<>();
+      List<Status> retryStatuses = new ArrayList<>();
+      Iterator<Status> statuses = result.getStatusesList().iterator();
+      Iterator<SettableFuture<Empty>> futureIterator = entryFutures.iterator();
+      Iterator<MutateRowsRequest.Entry> entryIterator = entries.iterator();
+      while (futureIterator.hasNext() && statuses.hasNext()) {
+        SettableFuture<Empty> future = futureIterator.next();
+        MutateRowsRequest.Entry entry = entryIterator.next();
+        Status status = statuses.next();
+        if (status.getCode() == io.grpc.Status.Code.OK.value()) {
+          future.set(Empty.getDefaultInstance());
+        } else if (isRetryable(entry, status)) {
+          retryEntries.add(entry);
+          retryFutures.add(future);
+          retryStatuses.add(status);
+        } else {
+          future.setException(toException(status));
         }
-        if (statuses.hasNext()) {
-          int count = 0;
-          while (statuses.hasNext()) {
-            count++;
-            statuses.next();
-          }
-          throw new IllegalStateException(String.format("Got %d extra statusus", count));
+      }
+      // TODO: better handling of these cases?
+      while (futureIterator.hasNext()) {
+        futureIterator.next().setException(MISSING_ENTRY_EXCEPTION);
+      }
+      if (!retryEntries.isEmpty()) {
+        retry(retryEntries, retryFutures, retryStatuses);
+      }
+      if (statuses.hasNext()) {
+        int count = 0;
+        while (statuses.hasNext()) {
+          count++;
+          statuses.next();
         }
+        throw new IllegalStateException(String.format("Got %d extra statusus", count));
       }
+    }
 
-      protected StatusRuntimeException toException(Status status) {
-        io.grpc.Status grpcStatus = io.grpc.Status
-            .fromCodeValue(status.getCode())
-            .withDescription(status.getMessage());
-        for (Any detail : status.getDetailsList()) {
-          grpcStatus.augmentDescription(detail.toString());
-        }
-        return grpcStatus.asRuntimeException();
+    /**
+     * Like {@link BigtableDataClient#addMutationRetry(ListenableFuture, MutateRowRequest)}, only
+     * retries entries whose cells all have timestamps, since the others would be applied twice.
+     */
+    private boolean isRetryable(MutateRowsRequest.Entry entry, Status status) {
+      return retriesFailedEntries()
+          && retryOptions.isRetryable(io.grpc.Status.fromCodeValue(status.getCode()).getCode())
+          && BigtableDataGrpcClient.IS_RETRYABLE_ENTRY.apply(entry);
+    }
+
+    /**
+     * Sends the failed entries again after a backoff, or fails them with their last status if they
+     * have been retried for too long, or if the {@link RetryBudget} is spent.
+     */
+    private void retry(final List<MutateRowsRequest.Entry> retryEntries,
+        final List<SettableFuture<Empty>> retryFutures, List<Status> retryStatuses) {
+      if (backoff == null) {
+        io.grpc.Status.Code code =
+            io.grpc.Status.fromCodeValue(retryStatuses.get(0).getCode()).getCode();
+        backoff = retryOptions.createBackoff(code);
       }
+      long backoffMillis;
+      try {
+        backoffMillis = backoff.nextBackOffMillis();
+      } catch (IOException e) {
+        backoffMillis = BackOff.STOP;
+      }
+      if (backoffMillis == BackOff.STOP) {
+        failAll(retryFutures, retryStatuses);
+        return;
+      }
+      if (deadlineNanos != Long.MAX_VALUE
+          && clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis) - deadlineNanos >= 0) {
+        LOG.debug("Not retrying %d failed entries of a bulk mutation after the overall deadline.",
+          retryEntries.size());
+        failAll(retryFutures, retryStatuses);
+        return;
+      }
+      if (retryBudget != null && !retryBudget.tryAcquire()) {
+        LOG.debug("Not retrying %d failed entries of a bulk mutation. The retry budget is spent.",
+          retryEntries.size());
+        failAll(retryFutures, retryStatuses);
+        return;
+      }
+      LOG.debug("Retrying %d failed entries of a bulk mutation in %d ms.", retryEntries.size(),
+        backoffMillis);
+      final Batch retryBatch = new Batch(retryEntries, retryFutures, backoff, deadlineNanos);
+      final Runnable resend = new Runnable() {
+        @Override
+        public void run() {
+          retryBatch.send();
+        }
+      };
+      retryExecutorService.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (resendExecutor == null) {
+            resend.run();
+          } else {
+            resendExecutor.execute(resend);
+          }
+        }
+      }, backoffMillis, TimeUnit.MILLISECONDS);
+    }
 
-      @Override
-      public void onFailure(Throwable t) {
-        for (SettableFuture<Empty> future : futures) {
-          future.setException(t);
+    /**
+     * Sends the entries, after waiting for the {@link RpcThrottler} if there is one.
+     */
+    private void send() {
+      MutateRowsRequest request = MutateRowsRequest.newBuilder()
+          .setTableName(builder.getTableName())
+          .addAllEntries(entries)
+          .build();
+      ListenableFuture<MutateRowsResponse> future;
+      try {
+        if (rpcThrottler == null) {
+          future = client.mutateRowsAsync(request);
+        } else {
+          long id = rpcThrottler.registerOperationWithHeapSize(request.getSerializedSize(),
+            RpcPriority.BULK);
+          try {
+            future = client.mutateRowsAsync(request);
+          } catch (Exception e) {
+            future = Futures.immediateFailedFuture(e);
+          }
+          rpcThrottler.addCallback(future, id);
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future = Futures.immediateFailedFuture(e);
+      } catch (Exception e) {
+        future = Futures.immediateFailedFuture(e);
       }
-    };
-    Futures.addCallback(bulkFuture, callback);
+      addCallback(future);
+    }
+  }
+
+  private static void failAll(List<SettableFuture<Empty>> futures, List<Status> statuses) {
+    for (int i = 0; i < futures.size(); i++) {
+      futures.get(i).setException(toException(statuses.get(i)));
+    }
+  }
+
+  protected static StatusRuntimeException toException(Status status) {
+    io.grpc.Status grpcStatus = io.grpc.Status
+        .fromCodeValue(status.getCode())
+        .withDescription(status.getMessage());
+    for (Any detail : status.getDetailsList()) {
+      grpcStatus.augmentDescription(detail.toString());
+    }
+    return grpcStatus.asRuntimeException();
   }
-}
\ No newline at end of file
+}
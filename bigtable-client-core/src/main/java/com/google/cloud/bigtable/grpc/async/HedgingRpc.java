@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.api.client.util.NanoClock;
+import com.google.cloud.bigtable.grpc.io.CancellationToken;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+
+/**
+ * <p>
+ * A {@link BigtableAsyncRpc} that sends a second copy of a request if the first one has not
+ * completed within a percentile of recent latencies. Whichever copy succeeds first is used, and the
+ * other one is cancelled through its {@link CancellationToken}. Each copy is a separate call on the
+ * underlying {@link io.grpc.Channel}, so a {@link com.google.cloud.bigtable.grpc.io.ChannelPool}
+ * sends it on a different channel.
+ * </p>
+ * <p>
+ * Hedged requests are limited by a budget, so that they add at most a fixed fraction of extra load.
+ * A slow server causes more requests to be hedged, and the budget stops hedging from making it
+ * slower still. Only use this for idempotent requests, such as single row reads.
+ * </p>
+ */
+public class HedgingRpc<RequestT, ResponseT> implements BigtableAsyncRpc<RequestT, ResponseT> {
+
+  /** The number of recent latencies that the hedging delay is computed from. */
+  public static final int DEFAULT_LATENCY_WINDOW_SIZE = 1000;
+
+  /** No requests are hedged until this many latencies have been recorded. */
+  public static final int MIN_LATENCY_SAMPLES = 100;
+
+  /** The number of hedged requests that can be sent in a burst. */
+  public static final int MAX_BUDGET_BURST = 10;
+
+  /**
+   * Keeps the most recent latencies in a ring buffer, and periodically computes a percentile of
+   * them.
+   */
+  @VisibleForTesting
+  static class LatencyTracker {
+    // A ring of the last latencies. Callers record and read concurrently.
+    private final AtomicLongArray latencies;
+    private final double percentile;
+    private final AtomicLong count = new AtomicLong();
+    private volatile long cachedPercentileNanos = -1;
+    private volatile long cachedAtCount;
+
+    LatencyTracker(int windowSize, double percentile) {
+      Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+      Preconditions.checkArgument(percentile > 0 && percentile <= 100,
+        "percentile must be in (0, 100]");
+      this.latencies = new AtomicLongArray(windowSize);
+      this.percentile = percentile;
+    }
+
+    void record(long latencyNanos) {
+      long index = count.getAndIncrement();
+      latencies.set((int) (index % latencies.length()), latencyNanos);
+    }
+
+    /**
+     * @return The percentile of the recorded latencies, or -1 if there are too few of them. The
+     *         value is recomputed after every tenth of the window has been replaced.
+     */
+    long getPercentileNanos() {
+      long currentCount = count.get();
+      int windowSize = latencies.length();
+      if (currentCount < Math.min(MIN_LATENCY_SAMPLES, windowSize)) {
+        return -1;
+      }
+      if (cachedPercentileNanos == -1
+          || currentCount - cachedAtCount >= Math.max(1, windowSize / 10)) {
+        long[] sorted = new long[(int) Math.min(currentCount, windowSize)];
+        for (int i = 0; i < sorted.length; i++) {
+          sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        cachedPercentileNanos = sorted[Math.max(0, index)];
+        cachedAtCount = currentCount;
+      }
+      return cachedPercentileNanos;
+    }
+  }
+
+  /**
+   * A token bucket that earns a fraction of a token for each request, and spends a whole token for
+   * each hedged request.
+   */
+  @VisibleForTesting
+  static class Budget {
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    Budget(double ratio, double maxTokens) {
+      Preconditions.checkArgument(ratio >= 0 && ratio <= 1, "ratio must be in [0, 1]");
+      this.ratio = ratio;
+      this.maxTokens = maxTokens;
+    }
+
+    synchronized void onRequest() {
+      tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    synchronized boolean tryAcquire() {
+      if (tokens < 1) {
+        return false;
+      }
+      tokens -= 1;
+      return true;
+    }
+  }
+
+  private final BigtableAsyncRpc<RequestT, ResponseT> delegate;
+  private final ScheduledExecutorService scheduler;
+  private final LatencyTracker latencyTracker;
+  private final Budget budget;
+  private final AtomicInteger hedgedCount = new AtomicInteger();
+  private final AtomicInteger hedgeWinCount = new AtomicInteger();
+
+  @VisibleForTesting
+  NanoClock clock = NanoClock.SYSTEM;
+
+  /**
+   * @param delegate The RPC to hedge.
+   * @param scheduler Sends the hedged requests.
+   * @param delayPercentile The percentile of recent latencies after which a request is hedged.
+   * @param maxHedgeRatio The largest fraction of requests that can be hedged, such as 0.05.
+   */
+  public HedgingRpc(BigtableAsyncRpc<RequestT, ResponseT> delegate,
+      ScheduledExecutorService scheduler, double delayPercentile, double maxHedgeRatio) {
+    this(delegate, scheduler, new LatencyTracker(DEFAULT_LATENCY_WINDOW_SIZE, delayPercentile),
+        new Budget(maxHedgeRatio, MAX_BUDGET_BURST));
+  }
+
+  @VisibleForTesting
+  HedgingRpc(BigtableAsyncRpc<RequestT, ResponseT> delegate, ScheduledExecutorService scheduler,
+      LatencyTracker latencyTracker, Budget budget) {
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.scheduler = Preconditions.checkNotNull(scheduler);
+    this.latencyTracker = latencyTracker;
+    this.budget = budget;
+  }
+
+  @Override
+  public ListenableFuture<ResponseT> call(final RequestT request,
+      final CallOptions callOptions, CancellationToken cancellationToken) {
+    budget.onRequest();
+    final HedgedCall call = new HedgedCall();
+    if (cancellationToken != null) {
+      cancellationToken.addListener(new Runnable() {
+        @Override
+        public void run() {
+          call.cancel();
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    call.send(request, callOptions, call.primaryToken, false);
+
+    long delayNanos = latencyTracker.getPercentileNanos();
+    if (delayNanos >= 0 && !call.result.isDone()) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (!call.result.isDone() && budget.tryAcquire()) {
+            hedgedCount.incrementAndGet();
+            // The deadline in the CallOptions is absolute, so the hedge gets the time that is left.
+            call.send(request, callOptions, call.hedgeToken, true);
+          }
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+    return call.result;
+  }
+
+  /**
+   * @return The number of requests that were hedged.
+   */
+  public int getHedgedCount() {
+    return hedgedCount.get();
+  }
+
+  /**
+   * @return The number of hedged requests that finished before the original request.
+   */
+  public int getHedgeWinCount() {
+    return hedgeWinCount.get();
+  }
+
+  /**
+   * Tracks the one or two copies of a request.
+   */
+  private class HedgedCall {
+    private final SettableFuture<ResponseT> result = SettableFuture.create();
+    private final CancellationToken primaryToken = new CancellationToken();
+    private final CancellationToken hedgeToken = new CancellationToken();
+    private final long startNanos = clock.nanoTime();
+    private int outstanding;
+
+    private void send(RequestT request, CallOptions callOptions, CancellationToken token,
+        final boolean isHedge) {
+      synchronized (this) {
+        if (result.isDone()) {
+          return;
+        }
+        outstanding++;
+      }
+      ListenableFuture<ResponseT> future;
+      try {
+        future = delegate.call(request, callOptions, token);
+      } catch (RuntimeException e) {
+        onFailure(e);
+        return;
+      }
+      Futures.addCallback(future, new FutureCallback<ResponseT>() {
+        @Override
+        public void onSuccess(ResponseT response) {
+          if (result.set(response)) {
+            latencyTracker.record(clock.nanoTime() - startNanos);
+            if (isHedge) {
+              hedgeWinCount.incrementAndGet();
+              primaryToken.cancel();
+            } else {
+              hedgeToken.cancel();
+            }
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          HedgedCall.this.onFailure(t);
+        }
+      });
+    }
+
+    /**
+     * A failure is only reported once the other copy, if there is one, has failed as well.
+     */
+    private void onFailure(Throwable t) {
+      synchronized (this) {
+        if (--outstanding == 0) {
+          result.setException(t);
+        }
+      }
+    }
+
+    private void cancel() {
+      primaryToken.cancel();
+      hedgeToken.cancel();
+      result.cancel(false);
+    }
+  }
+}
@@ -1,33 +1,163 @@
 package com.google.cloud.bigtable.grpc.async;
 
+import com.google.api.client.util.NanoClock;
 import com.google.cloud.bigtable.config.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * This class limits access by RPCs to system resources
+ * This class limits access by RPCs to system resources.
+ * <p>
+ * The number of in-flight RPCs and the number of outstanding bytes are kept in atomic counters, so
+ * registering and completing an operation does not take a lock unless the limiter is full. Each
+ * in-flight operation occupies one of {@code maxInFlightRpcs} slots, which holds its size, and the
+ * operation id encodes the slot. A completion therefore finds the size of its operation without a
+ * map lookup. Threads that wait for resources are woken up by the completions rather than polling.
+ * <p>
+ * With an {@link AdaptiveConcurrencyLimit}, the number of RPCs that are allowed in flight follows
+ * the measured RPC latency, up to {@code maxInFlightRpcs}. See
+ * {@link #getCurrentMaxInFlightRpcs()}.
+ * <p>
+ * Operations can be registered against a weighted {@link Share}, such as one per table. While the
+ * limiter has room, any share can use all of it. Once operations have to wait, the next resources
+ * that are released go to the waiting share that uses the least in proportion to its weight, so a
+ * share that floods the limiter cannot starve the others.
+ * <p>
+ * Operations also have an {@link RpcPriority}. A low priority can only use part of the limiter,
+ * which keeps the rest for higher priorities, and waiting operations of a higher priority go first.
+ * Waiters are tracked per priority, so operations of a priority that has room still take the
+ * lock-free path while a lower priority waits at its cap, and completions only wake the waiters of
+ * the highest waiting priority, when it has room.
  */
 public class ResourceLimiter {
   private static final Logger LOG = new Logger(ResourceLimiter.class);
 
-  private static final long REGISTER_WAIT_MILLIS = 5;
+  /**
+   * A weighted share of a {@link ResourceLimiter}. Its usage is the larger of the fractions of the
+   * in-flight RPCs and of the outstanding bytes that it holds, divided by its weight.
+   */
+  public static class Share {
+    private final String name;
+    private final int weight;
+    private final AtomicInteger inFlightRpcs = new AtomicInteger();
+    private final AtomicLong heapSize = new AtomicLong();
+
+    // The number of waiting operations of each priority. Guarded by the lock of the limiter.
+    private final int[] waiterCounts = new int[RpcPriority.values().length];
+
+    private Share(String name, int weight) {
+      Preconditions.checkArgument(weight > 0, "weight must be positive.");
+      this.name = name;
+      this.weight = weight;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
+    /**
+     * @return The number of RPCs in flight for this share.
+     */
+    public int getInFlightRpcs() {
+      return inFlightRpcs.get();
+    }
+
+    /**
+     * @return The total size of the outstanding RPCs of this share.
+     */
+    public long getHeapSize() {
+      return heapSize.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Share{name=%s, weight=%d, inFlightRpcs=%d, heapSize=%d}", name,
+        weight, inFlightRpcs.get(), heapSize.get());
+    }
+  }
+
+  public static final int DEFAULT_SHARE_WEIGHT = 1;
+
+  private static final RpcPriority[] PRIORITIES = RpcPriority.values();
 
   private final long maxHeapSize;
   private final int maxInFlightRpcs;
   private final AtomicLong operationSequenceGenerator = new AtomicLong();
-  private final Map<Long, Long> pendingOperationsWithSize = new HashMap<>();
-  private final LinkedBlockingDeque<Long> completedOperationIds = new LinkedBlockingDeque<>();
-  private long currentWriteBufferSize;
+  private final AtomicLong currentWriteBufferSize = new AtomicLong();
+  private final AtomicInteger currentInFlightRpcs = new AtomicInteger();
+
+  // The id of the operation in each slot, or 0 if the slot is free, and the size of that operation.
+  private final AtomicLongArray slotOperationIds;
+  private final AtomicLongArray slotHeapSizes;
+
+  // Only used with an adaptive limit: the time at which the operation in each slot started.
+  private final AdaptiveConcurrencyLimit adaptiveLimit;
+  private final AtomicLongArray slotStartNanos;
+  private final NanoClock clock;
+
+  // The share of the operation in each slot.
+  private final AtomicReferenceArray<Share> slotShares;
+  private final ConcurrentMap<String, Share> shares = new ConcurrentHashMap<>();
+  private final Share defaultShare = new Share("default", DEFAULT_SHARE_WEIGHT);
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // For each priority, signalled when resources are released that the priority can use.
+  private final Condition[] resourcesReleased = new Condition[PRIORITIES.length];
+  // For each priority, the number of waiting operations.
+  private final AtomicIntegerArray waiterCounts = new AtomicIntegerArray(PRIORITIES.length);
+  // For each priority, the shares that have waiting operations. Guarded by the lock.
+  private final List<List<Share>> waitingShares = new ArrayList<>();
 
   public ResourceLimiter(long maxHeapSize, int maxInFlightRpcs) {
+    this(maxHeapSize, maxInFlightRpcs, null);
+  }
+
+  /**
+   * @param maxHeapSize The maximum number of bytes across all outstanding RPCs.
+   * @param maxInFlightRpcs The maximum number of in-flight RPCs.
+   * @param adaptiveLimit Adjusts the number of RPCs that are allowed in flight from their latency,
+   *          or null to always allow {@code maxInFlightRpcs}.
+   */
+  public ResourceLimiter(long maxHeapSize, int maxInFlightRpcs,
+      AdaptiveConcurrencyLimit adaptiveLimit) {
+    this(maxHeapSize, maxInFlightRpcs, adaptiveLimit, NanoClock.SYSTEM);
+  }
+
+  @VisibleForTesting
+  ResourceLimiter(long maxHeapSize, int maxInFlightRpcs, AdaptiveConcurrencyLimit adaptiveLimit,
+      NanoClock clock) {
+    Preconditions.checkArgument(maxInFlightRpcs > 0, "maxInFlightRpcs must be positive.");
+    Preconditions.checkArgument(
+      adaptiveLimit == null || adaptiveLimit.getMaxLimit() <= maxInFlightRpcs,
+      "The adaptive limit cannot go above maxInFlightRpcs.");
     this.maxHeapSize = maxHeapSize;
     this.maxInFlightRpcs = maxInFlightRpcs;
+    this.slotOperationIds = new AtomicLongArray(maxInFlightRpcs);
+    this.slotHeapSizes = new AtomicLongArray(maxInFlightRpcs);
+    this.slotShares = new AtomicReferenceArray<>(maxInFlightRpcs);
+    this.adaptiveLimit = adaptiveLimit;
+    this.slotStartNanos = adaptiveLimit == null ? null : new AtomicLongArray(maxInFlightRpcs);
+    this.clock = clock;
+    for (int i = 0; i < PRIORITIES.length; i++) {
+      waitingShares.add(new ArrayList<Share>());
+      resourcesReleased[i] = lock.newCondition();
+    }
   }
 
   /**
@@ -40,23 +170,88 @@ public class ResourceLimiter {
    * @return A unique operation id
    * @throws InterruptedException
    */
-  public synchronized long registerOperationWithHeapSize(long heapSize)
+  public long registerOperationWithHeapSize(long heapSize)
+      throws InterruptedException {
+    return registerOperationWithHeapSize(heapSize, defaultShare, RpcPriority.DEFAULT);
+  }
+
+  /**
+   * Register an operation of a {@link Share} with the given size before sending. This call WILL
+   * BLOCK until resources are available, and the share is the one that is entitled to them.
+   *
+   * @param heapSize The serialized size of the RPC to be sent
+   * @param share A share returned by {@link #getShare(String, int)}
+   * @return A unique operation id
+   * @throws InterruptedException
+   */
+  public long registerOperationWithHeapSize(long heapSize, Share share)
+      throws InterruptedException {
+    return registerOperationWithHeapSize(heapSize, share, RpcPriority.DEFAULT);
+  }
+
+  /**
+   * Register an operation with the given size and priority before sending. This call WILL BLOCK
+   * until resources are available to the priority, and no operation of a higher priority or of a
+   * more entitled share is waiting.
+   *
+   * @param heapSize The serialized size of the RPC to be sent
+   * @param share A share returned by {@link #getShare(String, int)}, or null for the default share
+   * @param priority The priority of the RPC
+   * @return A unique operation id
+   * @throws InterruptedException
+   */
+  public long registerOperationWithHeapSize(long heapSize, Share share, RpcPriority priority)
       throws InterruptedException {
-    long operationId = operationSequenceGenerator.incrementAndGet();
-    while (unsynchronizedIsFull()) {
-      waitForCompletions(REGISTER_WAIT_MILLIS);
+    if (share == null) {
+      share = defaultShare;
+    }
+    // Once operations of the same or a higher priority are waiting, new ones wait their turn rather
+    // than taking the resources. Waiting operations of a lower priority do not hold them up.
+    if (hasWaitersAtOrAbove(priority.ordinal()) || !tryAcquire(heapSize, share, priority)) {
+      waitToAcquire(heapSize, share, priority);
     }
+    return occupySlot(heapSize, share);
+  }
 
-    pendingOperationsWithSize.put(operationId, heapSize);
-    currentWriteBufferSize += heapSize;
-    return operationId;
+  /**
+   * Gets the share with the given name, and creates it if it does not exist yet.
+   *
+   * @param name The name of the share, such as a table name.
+   * @param weight The weight of the share if it is created. Ignored if it already exists.
+   */
+  public Share getShare(String name, int weight) {
+    Share share = shares.get(name);
+    if (share == null) {
+      Share newShare = new Share(name, weight);
+      share = shares.putIfAbsent(name, newShare);
+      if (share == null) {
+        share = newShare;
+      }
+    }
+    return share;
   }
 
   /**
    * Mark an operation id, as returned by {@code registerOperationWithHeapSize}, as complete
    */
   public void markCanBeCompleted(long id) {
-    completedOperationIds.offerLast(id);
+    int slot = getSlot(id);
+    long heapSize = slotHeapSizes.get(slot);
+    long startNanos = adaptiveLimit == null ? 0 : slotStartNanos.get(slot);
+    Share share = slotShares.get(slot);
+    if (!slotOperationIds.compareAndSet(slot, id, 0)) {
+      LOG.warn("An operation completed successfully but provided multiple completion notifications."
+          + " Please notify Google that this occurred.");
+      return;
+    }
+    share.inFlightRpcs.decrementAndGet();
+    share.heapSize.addAndGet(-heapSize);
+    if (adaptiveLimit != null) {
+      adaptiveLimit.onSample(clock.nanoTime() - startNanos, currentInFlightRpcs.get());
+    }
+    currentWriteBufferSize.addAndGet(-heapSize);
+    currentInFlightRpcs.decrementAndGet();
+    signalWaiters();
   }
 
   /**
@@ -73,75 +268,233 @@ public class ResourceLimiter {
     return maxInFlightRpcs;
   }
 
+  /**
+   * @return The number of RPCs that are currently allowed in flight. This is
+   *         {@link #getMaxInFlightRpcs()}, unless there is an adaptive limit.
+   */
+  public int getCurrentMaxInFlightRpcs() {
+    return adaptiveLimit == null ? maxInFlightRpcs : adaptiveLimit.getLimit();
+  }
+
+  /**
+   * @return The number of RPCs that are currently in flight.
+   */
+  public int getInFlightRpcs() {
+    return currentInFlightRpcs.get();
+  }
+
+  /**
+   * @return The adaptive limit on in-flight RPCs, or null if the limit is fixed.
+   */
+  public AdaptiveConcurrencyLimit getAdaptiveLimit() {
+    return adaptiveLimit;
+  }
+
   /**
    * @return The total size of all currently outstanding RPCs
    */
   public long getHeapSize() {
-    return currentWriteBufferSize;
+    return currentWriteBufferSize.get();
   }
 
   /**
    * @return true if no more RPCs can be started, false otherwise
    */
-  public synchronized boolean isFull() {
-    return unsynchronizedIsFull();
+  public boolean isFull() {
+    return currentWriteBufferSize.get() >= maxHeapSize
+        || currentInFlightRpcs.get() >= getCurrentMaxInFlightRpcs();
   }
 
-  private boolean isFullInternal() {
-    return currentWriteBufferSize >= maxHeapSize
-        || pendingOperationsWithSize.size() >= maxInFlightRpcs;
+  /**
+   * @return true if there are currently in-flight RPCs
+   */
+  public boolean hasInflightRequests() {
+    return currentInFlightRpcs.get() > 0;
   }
 
-  private boolean unsynchronizedIsFull() {
-    if (!isFullInternal()) {
-      return false;
+  /**
+   * Takes an RPC permit and adds the size to the outstanding bytes of the limiter and of the share,
+   * unless the part of the limiter that the priority can use is full. As before, an operation is
+   * allowed in if that part is not yet full, even if its size then takes the outstanding bytes over
+   * the limit.
+   */
+  private boolean tryAcquire(long heapSize, Share share, RpcPriority priority) {
+    int limit = getMaxInFlightRpcs(priority);
+    long maxHeapSizeForPriority = getMaxHeapSize(priority);
+    while (true) {
+      int inFlight = currentInFlightRpcs.get();
+      if (inFlight >= limit) {
+        return false;
+      }
+      if (currentInFlightRpcs.compareAndSet(inFlight, inFlight + 1)) {
+        break;
+      }
     }
-    // If we're not full, don't worry about cleaning up just yet.
-    cleanupFinishedOperations();
-    return isFullInternal();
+    while (true) {
+      long size = currentWriteBufferSize.get();
+      if (size >= maxHeapSizeForPriority) {
+        // Give the permit back. Another thread may have been refused because of it.
+        currentInFlightRpcs.decrementAndGet();
+        signalWaiters();
+        return false;
+      }
+      if (currentWriteBufferSize.compareAndSet(size, size + heapSize)) {
+        share.inFlightRpcs.incrementAndGet();
+        share.heapSize.addAndGet(heapSize);
+        return true;
+      }
+    }
+  }
+
+  private int getMaxInFlightRpcs(RpcPriority priority) {
+    return Math.max(1, (int) (getCurrentMaxInFlightRpcs() * priority.getMaxFraction()));
+  }
+
+  private long getMaxHeapSize(RpcPriority priority) {
+    return (long) (maxHeapSize * priority.getMaxFraction());
   }
 
   /**
-   * @return true if there are currently in-flight RPCs
+   * @return true if the part of the limiter that the priority can use is not full.
    */
-  public synchronized boolean hasInflightRequests() {
-    cleanupFinishedOperations();
-    return !pendingOperationsWithSize.isEmpty();
+  private boolean hasRoom(RpcPriority priority) {
+    return currentInFlightRpcs.get() < getMaxInFlightRpcs(priority)
+        && currentWriteBufferSize.get() < getMaxHeapSize(priority);
   }
 
-  private void cleanupFinishedOperations() {
-    List<Long> toClean = new ArrayList<>();
-    completedOperationIds.drainTo(toClean);
-    if (!toClean.isEmpty()) {
-      markOperationsCompleted(toClean);
+  private boolean hasWaitersAtOrAbove(int priorityIndex) {
+    for (int i = 0; i <= priorityIndex; i++) {
+      if (waiterCounts.get(i) > 0) {
+        return true;
+      }
     }
+    return false;
   }
 
-  private synchronized void markOperationsCompleted(List<Long> operationSequenceIds) {
-    for (Long operationSequenceId : operationSequenceIds) {
-      markOperationComplete(operationSequenceId);
+  /**
+   * @return The index of the highest priority with waiting operations, or -1 if none are waiting.
+   */
+  private int getHighestWaitingPriority() {
+    for (int i = 0; i < PRIORITIES.length; i++) {
+      if (waiterCounts.get(i) > 0) {
+        return i;
+      }
     }
+    return -1;
   }
 
   /**
-   * Waits for a completion and then marks it as complete.
-   * @throws InterruptedException
+   * Blocks until the operation is the most entitled of the waiting operations and
+   * {@link #tryAcquire(long, Share, RpcPriority)} succeeds. The waiter count of the priority is
+   * raised before checking again under the lock, so a completion either sees the waiter and
+   * signals it, or happens before the check.
+   */
+  private void waitToAcquire(long heapSize, Share share, RpcPriority priority)
+      throws InterruptedException {
+    int priorityIndex = priority.ordinal();
+    lock.lock();
+    waiterCounts.incrementAndGet(priorityIndex);
+    if (share.waiterCounts[priorityIndex]++ == 0) {
+      waitingShares.get(priorityIndex).add(share);
+    }
+    boolean acquired = false;
+    try {
+      while (!(isMostEntitled(share, priorityIndex) && tryAcquire(heapSize, share, priority))) {
+        resourcesReleased[priorityIndex].await();
+      }
+      acquired = true;
+    } finally {
+      waiterCounts.decrementAndGet(priorityIndex);
+      if (--share.waiterCounts[priorityIndex] == 0) {
+        waitingShares.get(priorityIndex).remove(share);
+      }
+      // Another waiter may be next, either because there is room left or this one gave up.
+      signalHighestWaitingPriority();
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return true if no operations of a higher priority are waiting, and no other share with
+   *         operations of the same priority waiting uses less in proportion to its weight. Must be
+   *         called with the lock held.
    */
-  private void waitForCompletions(long timeoutMs) throws InterruptedException {
-    Long completedOperation =
-        this.completedOperationIds.pollFirst(timeoutMs, TimeUnit.MILLISECONDS);
-    if (completedOperation != null) {
-      markOperationComplete(completedOperation);
+  private boolean isMostEntitled(Share share, int priorityIndex) {
+    for (int i = 0; i < priorityIndex; i++) {
+      if (!waitingShares.get(i).isEmpty()) {
+        return false;
+      }
+    }
+    List<Share> samePriority = waitingShares.get(priorityIndex);
+    if (samePriority.size() == 1) {
+      return true;
     }
+    double usage = getUsage(share);
+    for (Share other : samePriority) {
+      if (getUsage(other) < usage) {
+        return false;
+      }
+    }
+    return true;
   }
 
-  private void markOperationComplete(Long operationSequenceId) {
-    Long heapSize = pendingOperationsWithSize.remove(operationSequenceId);
-    if (heapSize != null) {
-      currentWriteBufferSize -= heapSize;
-    } else {
-      LOG.warn("An operation completed successfully but provided multiple completion notifications."
-          + " Please notify Google that this occurred.");
+  private double getUsage(Share share) {
+    double rpcFraction = (double) share.inFlightRpcs.get() / getCurrentMaxInFlightRpcs();
+    double heapFraction = (double) share.heapSize.get() / Math.max(1, maxHeapSize);
+    return Math.max(rpcFraction, heapFraction) / share.weight;
+  }
+
+  /**
+   * Wakes up the waiters of the highest waiting priority if it has room. Waiters of a lower
+   * priority cannot go before them, and cannot have room if they do not, since a lower priority
+   * can use at most as much of the limiter.
+   */
+  private void signalWaiters() {
+    int priorityIndex = getHighestWaitingPriority();
+    if (priorityIndex != -1 && hasRoom(PRIORITIES[priorityIndex])) {
+      lock.lock();
+      try {
+        signalHighestWaitingPriority();
+      } finally {
+        lock.unlock();
+      }
     }
   }
+
+  /**
+   * Must be called with the lock held.
+   */
+  private void signalHighestWaitingPriority() {
+    int priorityIndex = getHighestWaitingPriority();
+    if (priorityIndex != -1 && hasRoom(PRIORITIES[priorityIndex])) {
+      // Operations have different sizes, and the shares take turns, so any of the waiters of the
+      // priority may be next.
+      resourcesReleased[priorityIndex].signalAll();
+    }
+  }
+
+  /**
+   * Finds a free slot for a new operation. There are as many slots as RPC permits, and the caller
+   * holds a permit, so a free slot always exists.
+   *
+   * @return The operation id, which encodes the slot.
+   */
+  private long occupySlot(long heapSize, Share share) {
+    long id = operationSequenceGenerator.incrementAndGet() * maxInFlightRpcs;
+    int slot = (int) ((id / maxInFlightRpcs) % maxInFlightRpcs);
+    while (!slotOperationIds.compareAndSet(slot, 0, id + slot)) {
+      slot = (slot + 1) % maxInFlightRpcs;
+    }
+    id += slot;
+    slotHeapSizes.set(slot, heapSize);
+    slotShares.set(slot, share);
+    if (adaptiveLimit != null) {
+      slotStartNanos.set(slot, clock.nanoTime());
+    }
+    return id;
+  }
+
+  private int getSlot(long id) {
+    return (int) (id % maxInFlightRpcs);
+  }
 }
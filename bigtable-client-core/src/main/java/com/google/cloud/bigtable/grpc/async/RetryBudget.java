@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A token bucket that limits the retries of all of the RPCs in a
+ * {@link com.google.cloud.bigtable.grpc.BigtableSession}. Each retry spends a token, and each RPC
+ * that succeeds on its first attempt earns a fraction of one. The bucket starts full.
+ * </p>
+ * <p>
+ * When a cluster is struggling, most RPCs fail and every one of them would otherwise retry,
+ * multiplying the load on the cluster. Once the budget is spent, RPCs fail right away instead of
+ * retrying, until enough RPCs succeed again.
+ * </p>
+ */
+public class RetryBudget {
+
+  /**
+   * Tokens are kept in millionths, so that the bucket can be updated with a compare-and-set
+   * instead of a lock. RPCs that succeed on their first attempt are on every client's hot path.
+   */
+  private static final long TOKEN_SCALE = 1000000;
+
+  private final long maxTokens;
+  private final long tokenRatio;
+  private final AtomicLong tokens;
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong rejectedRetryCount = new AtomicLong();
+
+  /**
+   * @param maxTokens The number of retries that can be made in a burst.
+   * @param tokenRatio The fraction of a retry that is earned by each successful first attempt.
+   */
+  public RetryBudget(int maxTokens, double tokenRatio) {
+    Preconditions.checkArgument(maxTokens > 0, "maxTokens must be positive.");
+    Preconditions.checkArgument(tokenRatio >= 0 && tokenRatio <= 1,
+      "tokenRatio must be in [0, 1].");
+    this.maxTokens = maxTokens * TOKEN_SCALE;
+    // A positive ratio never rounds down to nothing.
+    this.tokenRatio = tokenRatio == 0 ? 0 : Math.max(1, Math.round(tokenRatio * TOKEN_SCALE));
+    this.tokens = new AtomicLong(this.maxTokens);
+  }
+
+  /**
+   * @return A RetryBudget with the settings in the {@link RetryOptions}, or null if the retry
+   *         budget is disabled.
+   */
+  public static RetryBudget create(RetryOptions retryOptions) {
+    if (!retryOptions.enableRetryBudget()) {
+      return null;
+    }
+    return new RetryBudget(retryOptions.getRetryBudgetMaxTokens(),
+        retryOptions.getRetryBudgetTokenRatio());
+  }
+
+  /**
+   * Spends a token for a retry.
+   * @return true if the retry can be made, or false if the budget is spent.
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN_SCALE) {
+        rejectedRetryCount.incrementAndGet();
+        return false;
+      }
+      if (tokens.compareAndSet(current, current - TOKEN_SCALE)) {
+        retryCount.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Earns part of a token for an RPC that succeeded without being retried.
+   */
+  public void onFirstAttemptSuccess() {
+    while (true) {
+      long current = tokens.get();
+      // A full bucket, the common case, is not written to at all.
+      if (current >= maxTokens || tokenRatio == 0) {
+        return;
+      }
+      if (tokens.compareAndSet(current, Math.min(maxTokens, current + tokenRatio))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return The number of retries that can currently be made.
+   */
+  public double getAvailableTokens() {
+    return (double) tokens.get() / TOKEN_SCALE;
+  }
+
+  /**
+   * @return The number of retries that the budget has allowed.
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * @return The number of retries that were not made because the budget was spent.
+   */
+  public long getRejectedRetryCount() {
+    return rejectedRetryCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RetryBudget{availableTokens=%.1f, retryCount=%d, rejectedRetryCount=%d}",
+      getAvailableTokens(), getRetryCount(), getRejectedRetryCount());
+  }
+}
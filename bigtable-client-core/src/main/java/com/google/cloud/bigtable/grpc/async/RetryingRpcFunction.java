@@ -15,12 +15,13 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
-import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.util.BackOff;
-import com.google.api.client.util.Sleeper;
+import com.google.api.client.util.NanoClock;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.grpc.io.CancellationToken;
@@ -28,14 +29,19 @@ import com.google.cloud.bigtable.grpc.scanner.BigtableRetriesExhaustedException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+import io.grpc.CallOptions;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 
 /**
- * A {@link AsyncFunction} that retries a {@link BigtableAsyncRpc} request.
+ * A {@link AsyncFunction} that retries a {@link BigtableAsyncRpc} request. Each attempt can have a
+ * deadline, and retries stop once an overall deadline has passed since the first attempt.
  */
 public class RetryingRpcFunction<RequestT, ResponseT>
     implements AsyncFunction<StatusRuntimeException, ResponseT> {
@@ -47,7 +53,7 @@ public class RetryingRpcFunction<RequestT, ResponseT>
   @VisibleForTesting
   BackOff currentBackoff;
   @VisibleForTesting
-  Sleeper sleeper = Sleeper.DEFAULT;
+  NanoClock clock = NanoClock.SYSTEM;
 
   private final BigtableAsyncRpc<RequestT, ResponseT> rpc;
   private final RetryOptions retryOptions;
@@ -55,6 +61,11 @@ public class RetryingRpcFunction<RequestT, ResponseT>
   private final ScheduledExecutorService retryExecutorService;
   private int failedCount;
   private final CancellationToken cancellationToken;
+  private final long attemptTimeoutNanos;
+  private final long overallTimeoutNanos;
+  private boolean overallDeadlineStarted;
+  private long overallDeadlineNanos;
+  private final RetryBudget retryBudget;
 
   public RetryingRpcFunction(
           RetryOptions retryOptions,
@@ -63,12 +74,50 @@ public class RetryingRpcFunction<RequestT, ResponseT>
           Predicate<RequestT> isRetryable,
           ScheduledExecutorService retryExecutorService,
           CancellationToken cancellationToken) {
+    this(retryOptions, request, retryableRpc, isRetryable, retryExecutorService,
+        cancellationToken, 0, 0);
+  }
+
+  /**
+   * @param attemptTimeoutMs The deadline for each attempt, or 0 for none.
+   * @param overallTimeoutMs The time after the first attempt at which retries stop, or 0 to only be
+   *          limited by the {@link RetryOptions}.
+   */
+  public RetryingRpcFunction(
+          RetryOptions retryOptions,
+          RequestT request,
+          BigtableAsyncRpc<RequestT, ResponseT> retryableRpc,
+          Predicate<RequestT> isRetryable,
+          ScheduledExecutorService retryExecutorService,
+          CancellationToken cancellationToken,
+          int attemptTimeoutMs,
+          int overallTimeoutMs) {
+    this(retryOptions, request, retryableRpc, isRetryable, retryExecutorService,
+        cancellationToken, attemptTimeoutMs, overallTimeoutMs, null);
+  }
+
+  /**
+   * @param retryBudget Shared by the RPCs of a session, or null to only limit retries per RPC.
+   */
+  public RetryingRpcFunction(
+          RetryOptions retryOptions,
+          RequestT request,
+          BigtableAsyncRpc<RequestT, ResponseT> retryableRpc,
+          Predicate<RequestT> isRetryable,
+          ScheduledExecutorService retryExecutorService,
+          CancellationToken cancellationToken,
+          int attemptTimeoutMs,
+          int overallTimeoutMs,
+          RetryBudget retryBudget) {
+    this.attemptTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(attemptTimeoutMs);
+    this.overallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(overallTimeoutMs);
     this.retryOptions = retryOptions;
     this.request = request;
     this.rpc = retryableRpc;
     this.isRetryable = isRetryable;
     this.retryExecutorService = retryExecutorService;
     this.cancellationToken = cancellationToken;
+    this.retryBudget = retryBudget;
   }
 
   @Override
@@ -83,48 +132,123 @@ public class RetryingRpcFunction<RequestT, ResponseT>
   }
 
   private ListenableFuture<ResponseT> backOffAndRetry(StatusRuntimeException cause, Status status)
-      throws IOException, BigtableRetriesExhaustedException {
+      throws BigtableRetriesExhaustedException {
     if (this.currentBackoff == null) {
-      this.currentBackoff = retryOptions.createBackoff();
+      // The first failure's code picks the backoff policy for all of the retries.
+      this.currentBackoff = retryOptions.createBackoff(status.getCode());
     }
     long nextBackOff = currentBackoff.nextBackOffMillis();
     if (nextBackOff == BackOff.STOP) {
       throw new BigtableRetriesExhaustedException("Exhausted retries.", cause);
     }
+    if (overallTimeoutNanos > 0) {
+      long now = clock.nanoTime();
+      if (now + TimeUnit.MILLISECONDS.toNanos(nextBackOff) >= getOverallDeadlineNanos(now)) {
+        throw new BigtableRetriesExhaustedException("Exceeded the overall deadline.", cause);
+      }
+    }
+    if (retryBudget != null && !retryBudget.tryAcquire()) {
+      throw new BigtableRetriesExhaustedException("Exhausted the retry budget.", cause);
+    }
 
-    // TODO: Should this be done via a scheduled executor rather than holding on to a thread?
-    sleep(nextBackOff);
     // A retryable error.
     failedCount += 1;
     LOG.info("Retrying failed call. Failure #%d, got: %s", status.getCause(), failedCount, status);
-    return callRpcWithRetry();
+    return scheduleRetry(nextBackOff);
+  }
+
+  /**
+   * Calls the RPC again after a delay. No thread is used while waiting, so a few retry threads can
+   * handle any number of RPCs that are backing off. If the RPC is cancelled while it backs off,
+   * either through the returned future or the {@link CancellationToken}, the retry is unscheduled.
+   */
+  private ListenableFuture<ResponseT> scheduleRetry(long delayMillis) {
+    final SettableFuture<ResponseT> retryFuture = SettableFuture.create();
+    final ScheduledFuture<?> scheduledRetry = retryExecutorService.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (retryFuture.isCancelled()) {
+          return;
+        }
+        try {
+          retryFuture.setFuture(callRpcWithRetry());
+        } catch (Throwable t) {
+          retryFuture.setException(t);
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+    retryFuture.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (retryFuture.isCancelled()) {
+          scheduledRetry.cancel(false);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    if (cancellationToken != null) {
+      cancellationToken.addListener(new Runnable() {
+        @Override
+        public void run() {
+          retryFuture.cancel(true);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    return retryFuture;
   }
 
   /**
-   * Calls {@link BigtableAsyncRpc#call(Object, CancellationToken)} to get a
+   * Calls {@link BigtableAsyncRpc#call(Object, CallOptions, CancellationToken)} to get a
    * {@link ListenableFuture} and adds this to that future via
    * {@link Futures#catchingAsync(ListenableFuture, Class, AsyncFunction, Executor)} so that
    * retries happen correctly.
    * @return a {@link ListenableFuture} that will retry on exceptions that are deemed retryable.
    */
   public ListenableFuture<ResponseT> callRpcWithRetry() {
-    return addRetry(rpc.call(request, cancellationToken));
+    return addRetry(rpc.call(request, createCallOptions(), cancellationToken));
+  }
+
+  /**
+   * @return {@link CallOptions} with the earlier of the attempt deadline and the overall deadline.
+   *         The overall deadline starts with the first attempt.
+   */
+  @VisibleForTesting
+  CallOptions createCallOptions() {
+    long timeoutNanos = attemptTimeoutNanos > 0 ? attemptTimeoutNanos : Long.MAX_VALUE;
+    if (overallTimeoutNanos > 0) {
+      long now = clock.nanoTime();
+      timeoutNanos = Math.min(timeoutNanos, getOverallDeadlineNanos(now) - now);
+    }
+    if (timeoutNanos == Long.MAX_VALUE) {
+      return CallOptions.DEFAULT;
+    }
+    return CallOptions.DEFAULT.withDeadlineAfter(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+  }
+
+  private long getOverallDeadlineNanos(long now) {
+    if (!overallDeadlineStarted) {
+      overallDeadlineNanos = now + overallTimeoutNanos;
+      overallDeadlineStarted = true;
+    }
+    return overallDeadlineNanos;
   }
 
   public ListenableFuture<ResponseT> addRetry(final ListenableFuture<ResponseT> future) {
+    if (retryBudget != null && failedCount == 0) {
+      Futures.addCallback(future, new FutureCallback<ResponseT>() {
+        @Override
+        public void onSuccess(ResponseT result) {
+          retryBudget.onFirstAttemptSuccess();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+        }
+      });
+    }
     return Futures.catchingAsync(future, StatusRuntimeException.class, this, retryExecutorService);
   }
 
   public CancellationToken getCancellationToken() {
     return cancellationToken;
   }
-
-  private void sleep(long millis) throws IOException {
-    try {
-      sleeper.sleep(millis);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new IOException("Interrupted while sleeping for resume", e);
-    }
-  }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+/**
+ * The priority of an RPC that is registered with a {@link ResourceLimiter}. A priority may only be
+ * allowed to use a fraction of the in-flight RPCs and of the memory, so that the rest is kept for
+ * the higher priorities. When RPCs have to wait, the ones with a higher priority get the released
+ * resources first.
+ */
+public enum RpcPriority {
+  /** Latency-sensitive RPCs, such as reads issued by a user. Can use all of the limiter. */
+  INTERACTIVE(1.0),
+
+  /** RPCs without a particular priority. Can use all of the limiter, as before priorities. */
+  DEFAULT(1.0),
+
+  /** Throughput-oriented RPCs, such as buffered writes. Can use 80% of the limiter. */
+  BULK(0.8);
+
+  private final double maxFraction;
+
+  private RpcPriority(double maxFraction) {
+    this.maxFraction = maxFraction;
+  }
+
+  /**
+   * @return The fraction of the in-flight RPCs and of the memory that RPCs of this priority can
+   *         use.
+   */
+  public double getMaxFraction() {
+    return maxFraction;
+  }
+}
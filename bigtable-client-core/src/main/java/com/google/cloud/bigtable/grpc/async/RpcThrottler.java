@@ -23,47 +23,70 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Throttles the number of RPCs that are outstanding at any point in time.
+ * <p>
+ * Outstanding RPCs and retries are tracked with atomic counters, so registering and completing an
+ * operation does not allocate or take a lock. A thread in {@link #awaitCompletion()} is woken up by
+ * the completion that brings both counts to zero.
  */
 public class RpcThrottler {
   protected static final Logger LOG = new Logger(RpcThrottler.class);
 
-  private static final long DEFAULT_FINISH_WAIT_MILLIS = 250;
-
   // In awaitCompletion, wait up to this number of nanoseconds without any operations completing.  If
   // this amount of time goes by without any updates, awaitCompletion will log a warning.  Flush()
   // will still wait to complete.
   private static final long INTERVAL_NO_SUCCESS_WARNING_NANOS = 300000 * 1000;
 
+  private static final long DEFAULT_FINISH_WAIT_MILLIS =
+      TimeUnit.NANOSECONDS.toMillis(INTERVAL_NO_SUCCESS_WARNING_NANOS);
+
   private final ResourceLimiter resourceLimiter;
+  private final ResourceLimiter.Share share;
   private final NanoClock clock;
-  private final long finishWaitMillis;
-
-  private ReentrantLock lock = new ReentrantLock();
-  private Condition flushedCondition = lock.newCondition();
-  private Set<Long> outstandingRequests = new HashSet<>();
-  private Set<Long> outstandingRetries = new HashSet<>();
-  private AtomicLong retrySequenceGenerator = new AtomicLong();
-  private long noSuccessWarningDeadline;
+  private final long finishWaitNanos;
+
+  private final AtomicInteger outstandingRequests = new AtomicInteger();
+  private final AtomicInteger outstandingRetries = new AtomicInteger();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition flushedCondition = lock.newCondition();
+  private final AtomicInteger flushWaiterCount = new AtomicInteger();
+  private volatile long noSuccessWarningDeadline;
   private int noSuccessWarningCount;
 
   public RpcThrottler(ResourceLimiter resourceLimiter) {
-    this(resourceLimiter, NanoClock.SYSTEM, DEFAULT_FINISH_WAIT_MILLIS);
+    this(resourceLimiter, null);
+  }
+
+  /**
+   * @param resourceLimiter The limiter that the RPCs are registered with.
+   * @param share The share of the limiter that the RPCs count against, or null for the default.
+   */
+  public RpcThrottler(ResourceLimiter resourceLimiter, ResourceLimiter.Share share) {
+    this(resourceLimiter, share, NanoClock.SYSTEM, DEFAULT_FINISH_WAIT_MILLIS);
   }
 
   @VisibleForTesting
   RpcThrottler(ResourceLimiter resourceLimiter, NanoClock clock, long finishWaitMillis) {
+    this(resourceLimiter, null, clock, finishWaitMillis);
+  }
+
+  /**
+   * @param finishWaitMillis The longest that {@link #awaitCompletion()} waits before checking
+   *          whether it should log a warning. It is woken up earlier if everything completes.
+   */
+  private RpcThrottler(ResourceLimiter resourceLimiter, ResourceLimiter.Share share,
+      NanoClock clock, long finishWaitMillis) {
     this.resourceLimiter = resourceLimiter;
+    this.share = share;
     this.clock = clock;
-    this.finishWaitMillis = finishWaitMillis;
+    this.finishWaitNanos = TimeUnit.MILLISECONDS.toNanos(finishWaitMillis);
     resetNoSuccessWarningDeadline();
   }
 
@@ -75,14 +98,20 @@ public class RpcThrottler {
    */
   public long registerOperationWithHeapSize(long heapSize)
       throws InterruptedException {
-    long id = resourceLimiter.registerOperationWithHeapSize(heapSize);
+    return registerOperationWithHeapSize(heapSize, RpcPriority.DEFAULT);
+  }
 
-    lock.lock();
-    try {
-      outstandingRequests.add(id);
-    } finally {
-      lock.unlock();
-    }
+  /**
+   * Register a new RPC operation with a priority. Blocks until the requested resources are
+   * available to the priority. This method must be paired with a call to {@code addCallback}.
+   * @param heapSize The serialized size of the RPC
+   * @param priority The priority of the RPC
+   * @return An operation id
+   */
+  public long registerOperationWithHeapSize(long heapSize, RpcPriority priority)
+      throws InterruptedException {
+    long id = resourceLimiter.registerOperationWithHeapSize(heapSize, share, priority);
+    outstandingRequests.incrementAndGet();
     return id;
   }
 
@@ -113,27 +142,16 @@ public class RpcThrottler {
    * Retries do not count against any RPC resource limits.
    */
   public <T> void registerRetry(ListenableFuture<T> retryFuture) {
-    final long id = retrySequenceGenerator.incrementAndGet();
-
-    lock.lock();
-    try {
-      outstandingRetries.add(id);
-    } finally {
-      lock.unlock();
-    }
-    addRetryCallback(retryFuture, id);
-  }
-
-  private <T> void addRetryCallback(ListenableFuture<T> retryFuture, final long id) {
+    outstandingRetries.incrementAndGet();
     FutureCallback<T> callback = new FutureCallback<T>() {
       @Override
       public void onSuccess(T result) {
-        onRetryCompletion(id);
+        onRetryCompletion();
       }
 
       @Override
       public void onFailure(Throwable t) {
-        onRetryCompletion(id);
+        onRetryCompletion();
       }
     };
     Futures.addCallback(retryFuture, callback);
@@ -144,24 +162,31 @@ public class RpcThrottler {
    * @throws InterruptedException
    */
   public void awaitCompletion() throws InterruptedException {
+    if (isFlushed()) {
+      return;
+    }
     boolean performedWarning = false;
 
     lock.lock();
+    // Completions only signal when there is a waiter. The waiter is counted before checking
+    // isFlushed() again, so the last completion either sees it or happens before the check.
+    flushWaiterCount.incrementAndGet();
     try {
       while (!isFlushed()) {
-        flushedCondition.await(finishWaitMillis, TimeUnit.MILLISECONDS);
-
         long now = clock.nanoTime();
         if (now >= noSuccessWarningDeadline) {
           logNoSuccessWarning(now);
           resetNoSuccessWarningDeadline();
           performedWarning = true;
         }
+        long waitNanos = Math.min(finishWaitNanos, noSuccessWarningDeadline - now);
+        flushedCondition.awaitNanos(Math.max(waitNanos, 1));
       }
       if (performedWarning) {
         LOG.info("awaitCompletion() completed");
       }
     } finally {
+      flushWaiterCount.decrementAndGet();
       lock.unlock();
     }
   }
@@ -170,7 +195,7 @@ public class RpcThrottler {
     long lastUpdated = (now - noSuccessWarningDeadline + INTERVAL_NO_SUCCESS_WARNING_NANOS) / 1000;
     LOG.warn("No operations completed within the last %d seconds. "
             + "There are still %d rpcs and %d retries in progress.", lastUpdated,
-        outstandingRequests.size(), outstandingRetries.size());
+        outstandingRequests.get(), outstandingRetries.get());
     noSuccessWarningCount++;
   }
 
@@ -185,16 +210,11 @@ public class RpcThrottler {
    * @return true if there are any outstanding requests being tracked by this throttler
    */
   public boolean hasInflightRequests() {
-    lock.lock();
-    try {
-      return outstandingRequests.size() > 0;
-    } finally {
-      lock.unlock();
-    }
+    return outstandingRequests.get() > 0;
   }
 
   private boolean isFlushed() {
-    return outstandingRequests.isEmpty() && outstandingRetries.isEmpty();
+    return outstandingRequests.get() == 0 && outstandingRetries.get() == 0;
   }
 
   @VisibleForTesting
@@ -210,29 +230,24 @@ public class RpcThrottler {
   @VisibleForTesting
   void onRpcCompletion(long id) {
     resourceLimiter.markCanBeCompleted(id);
+    outstandingRequests.decrementAndGet();
+    onCompletion();
+  }
 
-    lock.lock();
-    try {
-      outstandingRequests.remove(id);
-      if (isFlushed()) {
-        flushedCondition.signal();
-      }
-    } finally {
-      lock.unlock();
-    }
-    resetNoSuccessWarningDeadline();
+  private void onRetryCompletion() {
+    outstandingRetries.decrementAndGet();
+    onCompletion();
   }
 
-  private void onRetryCompletion(long id) {
-    lock.lock();
-    try {
-      outstandingRetries.remove(id);
-      if (isFlushed()) {
-        flushedCondition.signal();
+  private void onCompletion() {
+    resetNoSuccessWarningDeadline();
+    if (flushWaiterCount.get() > 0 && isFlushed()) {
+      lock.lock();
+      try {
+        flushedCondition.signalAll();
+      } finally {
+        lock.unlock();
       }
-    } finally {
-      lock.unlock();
     }
-    resetNoSuccessWarningDeadline();
   }
-}
\ No newline at end of file
+}
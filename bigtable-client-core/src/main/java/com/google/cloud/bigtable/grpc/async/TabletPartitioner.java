@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.api.client.util.NanoClock;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+
+/**
+ * <p>
+ * Maps row keys to the tablets of a table, so that the mutations for one tablet can be sent
+ * together. The tablet boundaries are the row keys from {@link
+ * BigtableDataClient#sampleRowKeysAsync(SampleRowKeysRequest)}.
+ * </p>
+ * <p>
+ * The boundaries are cached, and are sampled again in the background once they are older than the
+ * refresh period. {@link #getPartition(ByteString)} never waits for a sample. Until the first one
+ * returns, or if it fails, every row key is in partition 0.
+ * </p>
+ * <p>
+ * A caller that needs to know whether the boundaries changed between two row keys can get the
+ * {@link Boundaries} of the last sample, and compare them with {@code ==}.
+ * </p>
+ */
+public class TabletPartitioner {
+
+  protected static final Logger LOG = new Logger(TabletPartitioner.class);
+
+  /**
+   * How long the tablet boundaries are used before they are sampled again.
+   */
+  public static final long REFRESH_MILLIS_DEFAULT = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * The tablet boundaries of one sample. Each sample that changes the boundaries creates a new
+   * instance.
+   */
+  public static final class Boundaries {
+    // The sorted end keys of the tablets, without the empty key of the last tablet.
+    private final ByteString[] endKeys;
+
+    private Boundaries(ByteString[] endKeys) {
+      this.endKeys = endKeys;
+    }
+
+    /**
+     * @return The index of the tablet that contains the row key. The first tablet is 0.
+     */
+    public int getPartition(ByteString rowKey) {
+      // Find the first tablet whose end key is after the row key.
+      int low = 0;
+      int high = endKeys.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (compare(rowKey, endKeys[mid]) < 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * @return The number of tablets.
+     */
+    public int getPartitionCount() {
+      return endKeys.length + 1;
+    }
+  }
+
+  private static final Boundaries NO_BOUNDARIES = new Boundaries(new ByteString[0]);
+
+  private final BigtableDataClient client;
+  private final String tableName;
+  private final long refreshNanos;
+  private final NanoClock clock;
+
+  private volatile Boundaries boundaries = NO_BOUNDARIES;
+  // When the boundaries were last sampled, or null if they never were.
+  private volatile Long sampleNanos = null;
+  private final AtomicBoolean sampling = new AtomicBoolean();
+
+  /**
+   * @param client Samples the row keys.
+   * @param tableName The fully qualified name of the table.
+   */
+  public TabletPartitioner(BigtableDataClient client, String tableName) {
+    this(client, tableName, REFRESH_MILLIS_DEFAULT, NanoClock.SYSTEM);
+  }
+
+  @VisibleForTesting
+  TabletPartitioner(BigtableDataClient client, String tableName, long refreshMillis,
+      NanoClock clock) {
+    this.client = client;
+    this.tableName = tableName;
+    this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+    this.clock = clock;
+  }
+
+  /**
+   * @return The index of the tablet that contains the row key, according to the last sample. The
+   *         first tablet is 0.
+   */
+  public int getPartition(ByteString rowKey) {
+    return getBoundaries().getPartition(rowKey);
+  }
+
+  /**
+   * @return The number of tablets in the last sample.
+   */
+  public int getPartitionCount() {
+    return boundaries.getPartitionCount();
+  }
+
+  /**
+   * @return The boundaries of the last sample. This does not wait for a sample, but starts one in
+   *         the background if the boundaries are stale.
+   */
+  public Boundaries getBoundaries() {
+    refreshIfStale();
+    return boundaries;
+  }
+
+  private void refreshIfStale() {
+    Long lastSampleNanos = sampleNanos;
+    if (lastSampleNanos != null && clock.nanoTime() - lastSampleNanos < refreshNanos) {
+      return;
+    }
+    // Only one sample is in flight at a time.
+    if (!sampling.compareAndSet(false, true)) {
+      return;
+    }
+    // Don't sample again right away if this one fails.
+    sampleNanos = clock.nanoTime();
+    ListenableFuture<List<SampleRowKeysResponse>> future;
+    try {
+      future = client.sampleRowKeysAsync(
+        SampleRowKeysRequest.newBuilder().setTableName(tableName).build());
+    } catch (RuntimeException e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(future, new FutureCallback<List<SampleRowKeysResponse>>() {
+      @Override
+      public void onSuccess(List<SampleRowKeysResponse> responses) {
+        List<ByteString> rowKeys = new ArrayList<>(responses.size());
+        for (SampleRowKeysResponse response : responses) {
+          if (!response.getRowKey().isEmpty()) {
+            rowKeys.add(response.getRowKey());
+          }
+        }
+        ByteString[] endKeys = rowKeys.toArray(new ByteString[rowKeys.size()]);
+        // Keep the same instance if nothing changed, so that callers don't see a change.
+        if (!Arrays.equals(endKeys, boundaries.endKeys)) {
+          boundaries = new Boundaries(endKeys);
+        }
+        sampling.set(false);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        LOG.warn("Could not sample the row keys of %s. Keeping %d tablets.", t, tableName,
+          getPartitionCount());
+        sampling.set(false);
+      }
+    });
+  }
+
+  /**
+   * Compares the row keys as unsigned bytes, which is the order of the rows in a table.
+   */
+  @VisibleForTesting
+  static int compare(ByteString left, ByteString right) {
+    int length = Math.min(left.size(), right.size());
+    for (int i = 0; i < length; i++) {
+      int result = (left.byteAt(i) & 0xff) - (right.byteAt(i) & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return left.size() - right.size();
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * <p>
+ * Limits the rate of writes, in mutations per second and in bytes per second. Unlike the
+ * {@link ResourceLimiter}, which limits how much work is in flight, this limits how fast work is
+ * sent, so that a bulk load can be kept from using all of a cluster's capacity.
+ * </p>
+ * <p>
+ * Each limit is a smooth token bucket (a {@link RateLimiter}), which can store up to a second of
+ * unused permits. A limit of 0 means that there is no limit. The limits can be changed while the
+ * limiter is in use.
+ * </p>
+ */
+public class WriteRateLimiter {
+
+  private volatile RateLimiter mutationRateLimiter;
+  private volatile RateLimiter byteRateLimiter;
+
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+
+  /**
+   * Creates a limiter that does not limit anything until one of its limits is set.
+   */
+  public WriteRateLimiter() {
+    this(0, 0);
+  }
+
+  /**
+   * @param maxMutationsPerSecond The highest rate of mutations, or 0 for no limit.
+   * @param maxBytesPerSecond The highest rate of bytes, or 0 for no limit.
+   */
+  public WriteRateLimiter(double maxMutationsPerSecond, double maxBytesPerSecond) {
+    setMaxMutationsPerSecond(maxMutationsPerSecond);
+    setMaxBytesPerSecond(maxBytesPerSecond);
+  }
+
+  /**
+   * Blocks until the mutations and their bytes can be sent without going over the limits.
+   *
+   * @param mutationCount The number of mutations to send.
+   * @param byteCount The size of the mutations in bytes.
+   * @return The number of nanoseconds that the call waited.
+   */
+  public long acquire(int mutationCount, long byteCount) {
+    double waitSeconds = 0;
+    RateLimiter mutations = mutationRateLimiter;
+    if (mutations != null && mutationCount > 0) {
+      waitSeconds += mutations.acquire(mutationCount);
+    }
+    RateLimiter bytes = byteRateLimiter;
+    if (bytes != null) {
+      while (byteCount > 0) {
+        int permits = (int) Math.min(byteCount, Integer.MAX_VALUE);
+        waitSeconds += bytes.acquire(permits);
+        byteCount -= permits;
+      }
+    }
+    long waitNanos = (long) (waitSeconds * TimeUnit.SECONDS.toNanos(1));
+    if (waitNanos > 0) {
+      totalWaitNanos.addAndGet(waitNanos);
+      waitCount.incrementAndGet();
+    }
+    return waitNanos;
+  }
+
+  /**
+   * @param maxMutationsPerSecond The highest rate of mutations, or 0 for no limit.
+   */
+  public synchronized void setMaxMutationsPerSecond(double maxMutationsPerSecond) {
+    mutationRateLimiter = updateRate(mutationRateLimiter, maxMutationsPerSecond);
+  }
+
+  /**
+   * @param maxBytesPerSecond The highest rate of bytes, or 0 for no limit.
+   */
+  public synchronized void setMaxBytesPerSecond(double maxBytesPerSecond) {
+    byteRateLimiter = updateRate(byteRateLimiter, maxBytesPerSecond);
+  }
+
+  private static RateLimiter updateRate(RateLimiter rateLimiter, double permitsPerSecond) {
+    Preconditions.checkArgument(permitsPerSecond >= 0, "The rate cannot be negative.");
+    if (permitsPerSecond == 0) {
+      return null;
+    } else if (rateLimiter == null) {
+      return RateLimiter.create(permitsPerSecond);
+    } else {
+      rateLimiter.setRate(permitsPerSecond);
+      return rateLimiter;
+    }
+  }
+
+  /**
+   * @return The highest rate of mutations, or 0 if there is no limit.
+   */
+  public double getMaxMutationsPerSecond() {
+    RateLimiter mutations = mutationRateLimiter;
+    return mutations == null ? 0 : mutations.getRate();
+  }
+
+  /**
+   * @return The highest rate of bytes, or 0 if there is no limit.
+   */
+  public double getMaxBytesPerSecond() {
+    RateLimiter bytes = byteRateLimiter;
+    return bytes == null ? 0 : bytes.getRate();
+  }
+
+  /**
+   * @return The total number of nanoseconds that callers of {@link #acquire(int, long)} waited.
+   */
+  public long getTotalWaitNanos() {
+    return totalWaitNanos.get();
+  }
+
+  /**
+   * @return The number of calls to {@link #acquire(int, long)} that had to wait.
+   */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("WriteRateLimiter{maxMutationsPerSecond=%s, maxBytesPerSecond=%s, "
+        + "totalWaitNanos=%d}", getMaxMutationsPerSecond(), getMaxBytesPerSecond(),
+      getTotalWaitNanos());
+  }
+}
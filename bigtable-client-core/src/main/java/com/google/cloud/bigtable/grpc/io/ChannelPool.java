@@ -17,25 +17,53 @@ package com.google.cloud.bigtable.grpc.io;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.google.api.client.util.NanoClock;
 import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.util.ThreadPoolUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.protobuf.MessageLite;
 
 import io.grpc.CallOptions;
-import io.grpc.Channel;
 import io.grpc.ClientCall;
 import io.grpc.ClientInterceptors.CheckedForwardingClientCall;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 
 /**
- * Manages a set of ClosableChannels and uses them in a round robin.
+ * Manages a set of ClosableChannels and uses them in a round robin, or by picking the channel with
+ * the fewest outstanding RPCs. Channels whose calls keep failing with transport errors can
+ * optionally be replaced; see {@link #enableUnhealthyChannelReplacement(int, int, Executor)}. The
+ * number of channels can either be fixed through {@link #ensureChannelCount(int)}, or follow the
+ * load; see {@link
+ * #enableAdaptiveSizing(int, int, int, long, ScheduledExecutorService, Executor)}. The
+ * pool can also measure round trip times and response throughput for a
+ * {@link FlowControlWindowTuner}; see {@link #enableFlowControlWindowTuning(FlowControlWindowTuner,
+ * Executor)}.
  */
 public class ChannelPool extends ManagedChannel {
 
@@ -45,18 +73,277 @@ public class ChannelPool extends ManagedChannel {
     ManagedChannel create() throws IOException;
   }
 
-  private final AtomicReference<ImmutableList<ManagedChannel>> channels = new AtomicReference<>();
+  /**
+   * Determines how {@link ChannelPool#newCall(MethodDescriptor, CallOptions)} picks a channel.
+   */
+  public enum ChannelSelectionStrategy {
+    /**
+     * Cycle through the channels in order, regardless of how busy each of them is.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Sample two channels at random and use the one with fewer outstanding RPCs (the
+     * "power of two choices"). This keeps a channel that is stuck behind a slow stream from
+     * receiving its full share of new calls.
+     */
+    LEAST_OUTSTANDING
+  }
+
+  /**
+   * The number of most recent calls on a channel that are considered when deciding whether the
+   * channel is unhealthy.
+   */
+  public static final int DEFAULT_FAILURE_WINDOW_SIZE = 20;
+
+  /**
+   * The number of UNAVAILABLE or INTERNAL statuses within the window of most recent calls that
+   * marks a channel as unhealthy.
+   */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+
+  /**
+   * How long a replaced or retired channel is given to finish its in-flight calls before it is
+   * forcefully shut down.
+   */
+  private static final long REPLACED_CHANNEL_DRAIN_SECONDS = 60;
+
+  /**
+   * Forces removed channels closed once they have drained. Its only task is to call
+   * {@link ManagedChannel#shutdownNow()}, so a single thread is enough for every pool. It is
+   * created the first time that a channel is removed.
+   */
+  private static class DrainSchedulerHolder {
+    private static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(
+          ThreadPoolUtil.createThreadFactory("bigtable-channel-drain"));
+  }
+
+  /**
+   * How long to wait between recycling two channels with an undersized flow control window, so
+   * that a growing window does not reconnect the whole pool at once.
+   */
+  private static final long WINDOW_RECYCLE_INTERVAL_MS = 1000;
+
+  /**
+   * How long a channel has to go without any calls before adaptive sizing can retire it.
+   */
+  public static final long DEFAULT_IDLE_CHANNEL_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * How often adaptive sizing reevaluates the number of channels.
+   */
+  private static final long RESIZE_INTERVAL_MS = 1000;
+
+  /**
+   * The number of consecutive resize intervals during which the pool has to be above its target
+   * load before channels are added. This keeps short bursts from growing the pool.
+   */
+  private static final int GROW_AFTER_INTERVALS = 2;
+
+  /**
+   * A snapshot of the state of the pool, including the decisions made by adaptive sizing.
+   */
+  public static class Stats {
+    private final int channelCount;
+    private final int outstandingRpcCount;
+    private final int addedChannelCount;
+    private final int retiredChannelCount;
+    private final int replacedChannelCount;
+    private final boolean adaptive;
+
+    private Stats(int channelCount, int outstandingRpcCount, int addedChannelCount,
+        int retiredChannelCount, int replacedChannelCount, boolean adaptive) {
+      this.channelCount = channelCount;
+      this.outstandingRpcCount = outstandingRpcCount;
+      this.addedChannelCount = addedChannelCount;
+      this.retiredChannelCount = retiredChannelCount;
+      this.replacedChannelCount = replacedChannelCount;
+      this.adaptive = adaptive;
+    }
+
+    public int getChannelCount() {
+      return channelCount;
+    }
+
+    public int getOutstandingRpcCount() {
+      return outstandingRpcCount;
+    }
+
+    /**
+     * @return The number of channels that adaptive sizing added because of high load.
+     */
+    public int getAddedChannelCount() {
+      return addedChannelCount;
+    }
+
+    /**
+     * @return The number of channels that adaptive sizing retired because they were idle.
+     */
+    public int getRetiredChannelCount() {
+      return retiredChannelCount;
+    }
+
+    public int getReplacedChannelCount() {
+      return replacedChannelCount;
+    }
+
+    public boolean isAdaptive() {
+      return adaptive;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("channelCount", channelCount)
+          .add("outstandingRpcCount", outstandingRpcCount)
+          .add("addedChannelCount", addedChannelCount)
+          .add("retiredChannelCount", retiredChannelCount)
+          .add("replacedChannelCount", replacedChannelCount)
+          .add("adaptive", adaptive)
+          .toString();
+    }
+  }
+
+  /**
+   * Settings for adaptive sizing.
+   */
+  private static class SizingPolicy {
+    private final int minChannels;
+    private final int maxChannels;
+    private final int targetRpcsPerChannel;
+    private final long idleTimeoutNanos;
+    private final Executor executor;
+
+    private SizingPolicy(int minChannels, int maxChannels, int targetRpcsPerChannel,
+        long idleTimeoutMs, Executor executor) {
+      this.minChannels = minChannels;
+      this.maxChannels = maxChannels;
+      this.targetRpcsPerChannel = targetRpcsPerChannel;
+      this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+      this.executor = executor;
+    }
+  }
+
+  /**
+   * Settings for replacing unhealthy channels.
+   */
+  private static class ReplacementPolicy {
+    private final int windowSize;
+    private final int failureThreshold;
+    private final Executor executor;
+
+    private ReplacementPolicy(int windowSize, int failureThreshold, Executor executor) {
+      this.windowSize = windowSize;
+      this.failureThreshold = failureThreshold;
+      this.executor = executor;
+    }
+  }
+
+  /**
+   * A {@link ManagedChannel} in the pool along with the number of RPCs that were started on it and
+   * have not been closed yet, and the outcome of its most recent calls.
+   */
+  private static class InstrumentedChannel {
+    private final ManagedChannel channel;
+    private final AtomicInteger outstandingRpcs = new AtomicInteger();
+    private final AtomicBoolean replacementScheduled = new AtomicBoolean();
+    // Set once the channel is no longer in the pool. It is shut down once it has no outstanding
+    // RPCs.
+    private volatile boolean removed;
+    private volatile long lastUsedNanos;
+    // The HTTP/2 flow control window that the channel was created with, or 0 if it's not known.
+    private volatile int flowControlWindow;
+
+    // A circular buffer of the most recent call outcomes; true means that the call failed with a
+    // transport level error. Guarded by "this".
+    private boolean[] failureWindow;
+    private int windowPosition;
+    private int windowCount;
+    private int failureCount;
+
+    private InstrumentedChannel(ManagedChannel channel, long nowNanos, int flowControlWindow) {
+      this.channel = channel;
+      this.lastUsedNanos = nowNanos;
+      this.flowControlWindow = flowControlWindow;
+    }
+
+    /**
+     * Records the outcome of a call, and returns true if the number of failures in the window has
+     * reached the policy's threshold.
+     */
+    private synchronized boolean recordStatus(Status.Code code, ReplacementPolicy policy) {
+      if (failureWindow == null || failureWindow.length != policy.windowSize) {
+        failureWindow = new boolean[policy.windowSize];
+        resetWindow();
+      }
+      boolean failed = isTransportFailure(code);
+      if (windowCount == failureWindow.length) {
+        if (failureWindow[windowPosition]) {
+          failureCount--;
+        }
+      } else {
+        windowCount++;
+      }
+      failureWindow[windowPosition] = failed;
+      if (failed) {
+        failureCount++;
+      }
+      windowPosition = (windowPosition + 1) % failureWindow.length;
+      return failureCount >= policy.failureThreshold;
+    }
+
+    private synchronized void resetWindow() {
+      if (failureWindow != null) {
+        Arrays.fill(failureWindow, false);
+      }
+      windowPosition = 0;
+      windowCount = 0;
+      failureCount = 0;
+    }
+  }
+
+  private static boolean isTransportFailure(Status.Code code) {
+    return code == Status.Code.UNAVAILABLE || code == Status.Code.INTERNAL;
+  }
+
+  private final AtomicReference<ImmutableList<InstrumentedChannel>> channels =
+      new AtomicReference<>();
+  // Channels that were removed from the pool, and that may not have terminated yet.
+  private final Set<InstrumentedChannel> removedChannels =
+      Collections.newSetFromMap(new ConcurrentHashMap<InstrumentedChannel, Boolean>());
   private final AtomicInteger requestCount = new AtomicInteger();
   private final ImmutableList<HeaderInterceptor> headerInterceptors;
   private final ChannelFactory factory;
   private final String authority;
+  private final ChannelSelectionStrategy selectionStrategy;
+  private final AtomicInteger replacedChannelCount = new AtomicInteger();
+  private final AtomicInteger addedChannelCount = new AtomicInteger();
+  private final AtomicInteger retiredChannelCount = new AtomicInteger();
 
+  private volatile ReplacementPolicy replacementPolicy;
+  private volatile SizingPolicy sizingPolicy;
+  private volatile FlowControlWindowTuner windowTuner;
+  private volatile Executor windowTuningExecutor;
+  // The earliest time at which the next undersized channel can be recycled.
+  private final AtomicLong nextWindowRecycleNanos = new AtomicLong();
+  private ScheduledFuture<?> resizeFuture;
+  private int intervalsAboveTarget = 0;
+  private final AtomicBoolean growing = new AtomicBoolean();
+  private volatile NanoClock clock = NanoClock.SYSTEM;
+  private volatile ScheduledExecutorService drainScheduler;
   private boolean shutdown = false;
 
   public ChannelPool(List<HeaderInterceptor> headerInterceptors, ChannelFactory factory)
       throws IOException {
+    this(headerInterceptors, factory, ChannelSelectionStrategy.ROUND_ROBIN);
+  }
+
+  public ChannelPool(List<HeaderInterceptor> headerInterceptors, ChannelFactory factory,
+      ChannelSelectionStrategy selectionStrategy) throws IOException {
+    this.selectionStrategy = Preconditions.checkNotNull(selectionStrategy);
     ManagedChannel channel = factory.create();
-    this.channels.set(ImmutableList.of(channel));
+    this.channels.set(ImmutableList.of(new InstrumentedChannel(channel, clock.nanoTime(), 0)));
     authority = channel.authority();
     this.factory = factory;
     if (headerInterceptors == null) {
@@ -66,6 +353,219 @@ public class ChannelPool extends ManagedChannel {
     }
   }
 
+  /**
+   * Turns on the replacement of unhealthy channels. Once {@code failureThreshold} of the last
+   * {@code windowSize} calls on a channel fail with UNAVAILABLE or INTERNAL, a new channel is
+   * created by the {@link ChannelFactory} on the given {@link Executor} and swapped in for the
+   * unhealthy one. The old channel is then shut down gracefully, so that calls that are already
+   * running on it can complete. {@link #newCall(MethodDescriptor, CallOptions)} is never blocked
+   * by a replacement; it keeps using the old channel until the new one is ready.
+   *
+   * @param windowSize The number of most recent calls per channel to consider.
+   * @param failureThreshold The number of failures within the window that triggers a replacement.
+   * @param executor The {@link Executor} on which channels are created and drained.
+   */
+  public void enableUnhealthyChannelReplacement(int windowSize, int failureThreshold,
+      Executor executor) {
+    Preconditions.checkArgument(windowSize > 0, "windowSize must be positive.");
+    Preconditions.checkArgument(failureThreshold > 0 && failureThreshold <= windowSize,
+      "failureThreshold must be between 1 and windowSize.");
+    this.replacementPolicy =
+        new ReplacementPolicy(windowSize, failureThreshold, Preconditions.checkNotNull(executor));
+  }
+
+  /**
+   * Feeds the round trip time and throughput of calls to a {@link FlowControlWindowTuner}. The
+   * {@link ChannelFactory} is expected to create channels with {@link
+   * FlowControlWindowTuner#getWindow()}. Once the tuner's window grows, channels that were created
+   * with a smaller window are replaced on the given {@link Executor} as they get used, one at a
+   * time, at most once per {@link #WINDOW_RECYCLE_INTERVAL_MS}.
+   */
+  public void enableFlowControlWindowTuning(FlowControlWindowTuner tuner, Executor executor) {
+    this.windowTuningExecutor = Preconditions.checkNotNull(executor);
+    this.nextWindowRecycleNanos.set(clock.nanoTime());
+    // The existing channels were created before the tuner made any measurements.
+    for (InstrumentedChannel channel : channels.get()) {
+      if (channel.flowControlWindow == 0) {
+        channel.flowControlWindow = tuner.getWindow();
+      }
+    }
+    this.windowTuner = Preconditions.checkNotNull(tuner);
+  }
+
+  private InstrumentedChannel createChannel() throws IOException {
+    FlowControlWindowTuner tuner = windowTuner;
+    int window = tuner == null ? 0 : tuner.getWindow();
+    return new InstrumentedChannel(factory.create(), clock.nanoTime(), window);
+  }
+
+  /**
+   * Lets the number of channels follow the load. Every second, the average number of outstanding
+   * RPCs per channel is compared to {@code targetRpcsPerChannel}. If the pool stays above its
+   * target, enough channels are added to bring it back to the target. Channels that have had no
+   * calls for {@code idleTimeoutMs} are retired while the pool is below its target. The number of
+   * channels always stays between {@code minChannels} and {@code maxChannels}. Callers should not
+   * use {@link #ensureChannelCount(int)} to grow the pool once adaptive sizing is enabled.
+   *
+   * @param minChannels The smallest number of channels to keep open.
+   * @param maxChannels The largest number of channels to open.
+   * @param targetRpcsPerChannel The number of concurrent RPCs (HTTP/2 streams) per channel that
+   *          the pool tries to stay under.
+   * @param idleTimeoutMs How long a channel has to be unused before it can be retired.
+   * @param scheduler The {@link ScheduledExecutorService} on which the load is checked. These
+   *          checks never wait for new channels.
+   * @param executor The {@link Executor} on which new channels are created, in parallel. Growing
+   *          the pool takes one thread of the executor per new channel, plus one that waits for
+   *          them, so it should not be a bounded pool.
+   */
+  public void enableAdaptiveSizing(int minChannels, int maxChannels, int targetRpcsPerChannel,
+      long idleTimeoutMs, ScheduledExecutorService scheduler, Executor executor)
+      throws IOException {
+    enableAdaptiveSizing(minChannels, maxChannels, targetRpcsPerChannel, idleTimeoutMs, executor);
+    synchronized (this) {
+      if (resizeFuture == null) {
+        resizeFuture = scheduler.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              resize();
+            } catch (RuntimeException e) {
+              LOG.warn("Could not resize the channel pool.", e);
+            }
+          }
+        }, RESIZE_INTERVAL_MS, RESIZE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void enableAdaptiveSizing(int minChannels, int maxChannels, int targetRpcsPerChannel,
+      long idleTimeoutMs, Executor executor) throws IOException {
+    Preconditions.checkArgument(minChannels > 0, "minChannels must be positive.");
+    Preconditions.checkArgument(maxChannels >= minChannels,
+      "maxChannels must be at least minChannels.");
+    Preconditions.checkArgument(targetRpcsPerChannel > 0,
+      "targetRpcsPerChannel must be positive.");
+    this.sizingPolicy = new SizingPolicy(minChannels, maxChannels, targetRpcsPerChannel,
+        idleTimeoutMs, Preconditions.checkNotNull(executor));
+    ensureChannelCount(minChannels, executor);
+  }
+
+  @VisibleForTesting
+  synchronized void setClock(NanoClock clock) {
+    this.clock = clock;
+  }
+
+  @VisibleForTesting
+  void setDrainScheduler(ScheduledExecutorService drainScheduler) {
+    this.drainScheduler = drainScheduler;
+  }
+
+  /**
+   * Adds or retires channels according to the adaptive {@link SizingPolicy}. New channels are
+   * created on the policy's {@link Executor} and outside of the pool's lock, so that neither the
+   * scheduler nor {@link #ensureChannelCount(int)} and replacements are held up by slow channel
+   * creation.
+   */
+  @VisibleForTesting
+  void resize() {
+    SizingPolicy policy = sizingPolicy;
+    if (policy == null || shutdown) {
+      return;
+    }
+    ImmutableList<InstrumentedChannel> current = channels.get();
+    int size = current.size();
+    int outstanding = 0;
+    for (InstrumentedChannel channel : current) {
+      outstanding += channel.outstandingRpcs.get();
+    }
+    int neededChannels = Math.min(policy.maxChannels, Math.max(policy.minChannels,
+      (outstanding + policy.targetRpcsPerChannel - 1) / policy.targetRpcsPerChannel));
+
+    boolean aboveTarget = outstanding > size * policy.targetRpcsPerChannel;
+    intervalsAboveTarget = aboveTarget ? intervalsAboveTarget + 1 : 0;
+    if (intervalsAboveTarget >= GROW_AFTER_INTERVALS && neededChannels > size) {
+      intervalsAboveTarget = 0;
+      grow(neededChannels - size, policy.executor);
+    } else if (!aboveTarget && size > neededChannels) {
+      retireIdleChannels(size - neededChannels, policy.idleTimeoutNanos);
+    }
+  }
+
+  private void grow(final int count, final Executor executor) {
+    // Only one growth at a time. The load is checked again once the new channels are in the pool.
+    if (!growing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            addChannels(count, executor);
+          } finally {
+            growing.set(false);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      growing.set(false);
+      throw e;
+    }
+  }
+
+  private void addChannels(int count, Executor executor) {
+    List<InstrumentedChannel> added = new ArrayList<>(count);
+    IOException failure = createChannels(count, executor, added);
+    if (failure != null) {
+      LOG.warn("Could not add a channel to the pool.", failure);
+    }
+    if (added.isEmpty()) {
+      return;
+    }
+    synchronized (this) {
+      if (shutdown) {
+        for (InstrumentedChannel channel : added) {
+          channel.channel.shutdownNow();
+        }
+        return;
+      }
+      List<InstrumentedChannel> newChannelList = new ArrayList<>(channels.get());
+      newChannelList.addAll(added);
+      setChannels(newChannelList);
+    }
+    addedChannelCount.addAndGet(added.size());
+    LOG.info("Added %d channels to the pool because of high load. The pool now has %d channels.",
+      added.size(), size());
+  }
+
+  private void retireIdleChannels(int maxRetired, long idleTimeoutNanos) {
+    List<InstrumentedChannel> retired = new ArrayList<>();
+    synchronized (this) {
+      if (shutdown) {
+        return;
+      }
+      long now = clock.nanoTime();
+      List<InstrumentedChannel> newChannelList = new ArrayList<>(channels.get());
+      for (int i = newChannelList.size() - 1; i >= 0 && retired.size() < maxRetired; i--) {
+        InstrumentedChannel channel = newChannelList.get(i);
+        if (channel.outstandingRpcs.get() == 0
+            && now - channel.lastUsedNanos >= idleTimeoutNanos) {
+          retired.add(newChannelList.remove(i));
+        }
+      }
+      if (retired.isEmpty()) {
+        return;
+      }
+      setChannels(newChannelList);
+    }
+    for (InstrumentedChannel channel : retired) {
+      drain(channel);
+    }
+    retiredChannelCount.addAndGet(retired.size());
+    LOG.info("Retired %d idle channels. The pool now has %d channels.", retired.size(), size());
+  }
+
   /**
    * Makes sure that the number of channels is at least as big as the specified capacity.  This
    * method is only synchornized when the pool has to be expanded.
@@ -80,9 +580,9 @@ public class ChannelPool extends ManagedChannel {
     if (channels.get().size() < capacity) {
       synchronized (this) {
         if (channels.get().size() < capacity) {
-          List<ManagedChannel> newChannelList = new ArrayList<>(channels.get());
+          List<InstrumentedChannel> newChannelList = new ArrayList<>(channels.get());
           while(newChannelList.size() < capacity) {
-            newChannelList.add(factory.create());
+            newChannelList.add(createChannel());
           }
           setChannels(newChannelList);
         }
@@ -91,18 +591,124 @@ public class ChannelPool extends ManagedChannel {
   }
 
   /**
-   * Performs a simple round robin on the list of {@link Channel}s in the {@code channels} list.
-   * This method should not be synchronized, if possible, to reduce bottlenecks.
-   * 
-   * @return A channel that can be used for a safe 
+   * Like {@link #ensureChannelCount(int)}, but creates the missing channels in parallel on the
+   * given {@link Executor}, and without holding the pool's lock. This method returns once all of
+   * the channels were created. Channels that could be created are added to the pool even if
+   * others failed.
+   *
+   * @param capacity The minimum number of channels required for the RPCs of the ChannelPool's
+   * clients.
+   * @param executor Runs {@link ChannelFactory#create()}.
+   * @throws IOException If the pool is closed, or if a channel could not be created.
+   */
+  public void ensureChannelCount(int capacity, Executor executor) throws IOException {
+    if (this.shutdown) {
+      throw new IOException("The channel is closed.");
+    }
+    int missing = capacity - channels.get().size();
+    if (missing <= 0) {
+      return;
+    }
+    List<InstrumentedChannel> created = new ArrayList<>(missing);
+    IOException failure = createChannels(missing, executor, created);
+
+    synchronized (this) {
+      List<InstrumentedChannel> newChannelList = new ArrayList<>(channels.get());
+      for (InstrumentedChannel channel : created) {
+        if (!shutdown && newChannelList.size() < capacity) {
+          newChannelList.add(channel);
+        } else {
+          // The pool was closed or grown by someone else in the meantime.
+          channel.channel.shutdownNow();
+        }
+      }
+      if (newChannelList.size() > channels.get().size()) {
+        setChannels(newChannelList);
+      }
+    }
+    if (this.shutdown) {
+      throw new IOException("The channel is closed.");
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Creates {@code count} channels in parallel on the given {@link Executor}, and waits for all of
+   * them. The channels that could be created are added to {@code created}.
+   *
+   * @return The last failure, or null if all of the channels were created.
+   */
+  private IOException createChannels(int count, Executor executor,
+      List<InstrumentedChannel> created) {
+    List<FutureTask<InstrumentedChannel>> tasks = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      FutureTask<InstrumentedChannel> task =
+          new FutureTask<>(new Callable<InstrumentedChannel>() {
+            @Override
+            public InstrumentedChannel call() throws IOException {
+              return createChannel();
+            }
+          });
+      executor.execute(task);
+      tasks.add(task);
+    }
+
+    IOException failure = null;
+    for (FutureTask<InstrumentedChannel> task : tasks) {
+      try {
+        // Wait for all of the tasks even if interrupted, so that no channel is leaked.
+        created.add(Uninterruptibles.getUninterruptibly(task));
+      } catch (ExecutionException e) {
+        failure = e.getCause() instanceof IOException
+            ? (IOException) e.getCause()
+            : new IOException("Could not create a channel.", e.getCause());
+      }
+    }
+    return failure;
+  }
+
+  /**
+   * Picks a channel from the {@code channels} list according to the {@link
+   * ChannelSelectionStrategy}. This method should not be synchronized, if possible, to reduce
+   * bottlenecks.
+   *
+   * @return A channel that can be used for a safe
    */
-  private ManagedChannel getNextChannel() {
+  private InstrumentedChannel getNextChannel() {
+    ImmutableList<InstrumentedChannel> channelsList = channels.get();
+    if (selectionStrategy == ChannelSelectionStrategy.LEAST_OUTSTANDING) {
+      return getLeastOutstandingChannel(channelsList);
+    }
     int currentRequestNum = requestCount.getAndIncrement();
-    ImmutableList<ManagedChannel> channelsList = channels.get();
     int index = Math.abs(currentRequestNum % channelsList.size());
     return channelsList.get(index);
   }
 
+  /**
+   * Compares two randomly chosen, distinct channels and returns the one with fewer outstanding
+   * RPCs. Looking at two channels rather than all of them keeps the cost constant as the pool
+   * grows, and avoids having every caller pile onto the same "best" channel.
+   */
+  private static InstrumentedChannel getLeastOutstandingChannel(
+      ImmutableList<InstrumentedChannel> channelsList) {
+    int size = channelsList.size();
+    if (size == 1) {
+      return channelsList.get(0);
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    InstrumentedChannel firstChannel = channelsList.get(first);
+    InstrumentedChannel secondChannel = channelsList.get(second);
+    return secondChannel.outstandingRpcs.get() < firstChannel.outstandingRpcs.get()
+        ? secondChannel : firstChannel;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -112,7 +718,8 @@ public class ChannelPool extends ManagedChannel {
   }
 
   /**
-   * Create a {@link ClientCall} on a Channel from the pool chosen in a round-robin fashion to the
+   * Create a {@link ClientCall} on a Channel from the pool chosen by the pool's
+   * {@link ChannelSelectionStrategy} to the
    * remote operation specified by the given {@link MethodDescriptor}. The returned {@link
    * ClientCall} does not trigger any remote behavior until {@link
    * ClientCall#start(ClientCall.Listener, Metadata)} is
@@ -130,8 +737,9 @@ public class ChannelPool extends ManagedChannel {
   }
 
   private <ReqT, RespT> ClientCall<ReqT, RespT> createWrappedCall(
-      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions, ManagedChannel channel) {
-    ClientCall<ReqT, RespT> delegate = channel.newCall(methodDescriptor, callOptions);
+      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions,
+      final InstrumentedChannel channel) {
+    ClientCall<ReqT, RespT> delegate = channel.channel.newCall(methodDescriptor, callOptions);
     return new CheckedForwardingClientCall<ReqT, RespT>(delegate) {
       @Override
       protected void checkedStart(ClientCall.Listener<RespT> responseListener, Metadata headers)
@@ -139,18 +747,215 @@ public class ChannelPool extends ManagedChannel {
         for (HeaderInterceptor interceptor : headerInterceptors) {
           interceptor.updateHeaders(headers);
         }
-        delegate().start(responseListener, headers);
+        channel.outstandingRpcs.incrementAndGet();
+        long startNanos = clock.nanoTime();
+        channel.lastUsedNanos = startNanos;
+        try {
+          delegate().start(
+            new InstrumentedListener<RespT>(responseListener, channel, windowTuner, startNanos),
+            headers);
+        } catch (RuntimeException e) {
+          releaseRpc(channel);
+          throw e;
+        }
       }
     };
   }
 
+  /**
+   * Updates the health of the channel with the result of a call, and schedules a replacement of
+   * the channel if it just became unhealthy.
+   */
+  private void recordStatus(InstrumentedChannel channel, Status.Code code) {
+    ReplacementPolicy policy = replacementPolicy;
+    if (policy != null && channel.recordStatus(code, policy)
+        && channel.replacementScheduled.compareAndSet(false, true)) {
+      LOG.info("Replacing a channel that is failing with transport errors.");
+      scheduleReplacement(channel, policy.executor);
+    }
+  }
+
+  /**
+   * Feeds the measurements of a call to the {@link FlowControlWindowTuner}, and recycles the
+   * channel if it was created with a smaller window than the tuner's current one, and no other
+   * channel was recycled during the last {@link #WINDOW_RECYCLE_INTERVAL_MS}.
+   */
+  private void recordTransfer(InstrumentedChannel channel, FlowControlWindowTuner tuner,
+      long bytes, long durationNanos) {
+    tuner.recordTransfer(bytes, durationNanos);
+    int window = tuner.getWindow();
+    if (channel.flowControlWindow < window && tryStartWindowRecycle()
+        && channel.replacementScheduled.compareAndSet(false, true)) {
+      LOG.debug("Recycling a channel created with a %d byte flow control window.",
+        channel.flowControlWindow);
+      scheduleReplacement(channel, windowTuningExecutor);
+    }
+  }
+
+  /**
+   * @return true if the interval since the last window recycle is over. In that case, the next
+   *         interval starts now.
+   */
+  private boolean tryStartWindowRecycle() {
+    long now = clock.nanoTime();
+    long next = nextWindowRecycleNanos.get();
+    return now - next >= 0 && nextWindowRecycleNanos.compareAndSet(next,
+      now + TimeUnit.MILLISECONDS.toNanos(WINDOW_RECYCLE_INTERVAL_MS));
+  }
+
+  private void scheduleReplacement(final InstrumentedChannel channel, Executor executor) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        replaceChannel(channel);
+      }
+    });
+  }
+
+  /**
+   * Creates a new channel, swaps it in for {@code old} and drains the old channel. This method
+   * blocks, and should only be called in the background.
+   */
+  private void replaceChannel(InstrumentedChannel old) {
+    InstrumentedChannel replacement;
+    try {
+      replacement = createChannel();
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Could not create a replacement channel. Will try again later.", e);
+      old.resetWindow();
+      old.replacementScheduled.set(false);
+      return;
+    }
+    synchronized (this) {
+      List<InstrumentedChannel> newChannelList = new ArrayList<>(channels.get());
+      int index = newChannelList.indexOf(old);
+      if (shutdown || index == -1) {
+        replacement.channel.shutdownNow();
+        return;
+      }
+      newChannelList.set(index, replacement);
+      setChannels(newChannelList);
+    }
+    replacedChannelCount.incrementAndGet();
+    drain(old);
+  }
+
+  /**
+   * Shuts down a channel that was removed from the pool once its outstanding RPCs have completed,
+   * and forces it closed after {@link #REPLACED_CHANNEL_DRAIN_SECONDS} in case calls are still
+   * running on it. The channel is tracked until it terminates, so that {@link #isTerminated()} and
+   * {@link #awaitTermination(long, TimeUnit)} wait for it. This does not wait for the channel, so
+   * the caller's thread is free right away.
+   * <p>
+   * A call that picked the channel just before it was removed, but that only starts after the
+   * channel has been shut down, fails with UNAVAILABLE like any call on a closed channel. It is
+   * then up to the caller's retry policy to send it again, on another channel.
+   */
+  private void drain(InstrumentedChannel removed) {
+    for (InstrumentedChannel channel : removedChannels) {
+      if (channel.channel.isTerminated()) {
+        removedChannels.remove(channel);
+      }
+    }
+    removedChannels.add(removed);
+    // Paired with releaseRpc(): either this sees the last RPC, or the last RPC sees the flag.
+    removed.removed = true;
+    if (removed.outstandingRpcs.get() == 0) {
+      removed.channel.shutdown();
+    }
+    final ManagedChannel channel = removed.channel;
+    ScheduledExecutorService scheduler = drainScheduler;
+    if (scheduler == null) {
+      scheduler = DrainSchedulerHolder.INSTANCE;
+    }
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!channel.isTerminated()) {
+          channel.shutdownNow();
+        }
+      }
+    }, REPLACED_CHANNEL_DRAIN_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Ends an outstanding RPC on the channel, and shuts the channel down if it was removed from the
+   * pool and this was its last RPC.
+   */
+  private void releaseRpc(InstrumentedChannel channel) {
+    if (channel.outstandingRpcs.decrementAndGet() == 0 && channel.removed) {
+      channel.channel.shutdown();
+    }
+  }
+
+  /**
+   * Forwards events to the caller's listener, and releases the call's slot in
+   * {@link InstrumentedChannel#outstandingRpcs} once the call is closed. If a
+   * {@link FlowControlWindowTuner} is set, the listener also measures the call's round trip time
+   * and response size.
+   */
+  private class InstrumentedListener<RespT> extends ClientCall.Listener<RespT> {
+    private final ClientCall.Listener<RespT> delegate;
+    private final InstrumentedChannel channel;
+    private final FlowControlWindowTuner tuner;
+    private final long startNanos;
+    private boolean receivedHeaders;
+    private long headersNanos;
+    private long responseBytes;
+
+    private InstrumentedListener(ClientCall.Listener<RespT> delegate, InstrumentedChannel channel,
+        FlowControlWindowTuner tuner, long startNanos) {
+      this.delegate = delegate;
+      this.channel = channel;
+      this.tuner = tuner;
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void onHeaders(Metadata headers) {
+      if (tuner != null) {
+        receivedHeaders = true;
+        headersNanos = clock.nanoTime();
+        tuner.recordRtt(headersNanos - startNanos);
+      }
+      delegate.onHeaders(headers);
+    }
+
+    @Override
+    public void onMessage(RespT message) {
+      if (tuner != null && message instanceof MessageLite) {
+        responseBytes += ((MessageLite) message).getSerializedSize();
+      }
+      delegate.onMessage(message);
+    }
+
+    @Override
+    public void onClose(Status status, Metadata trailers) {
+      releaseRpc(channel);
+      try {
+        recordStatus(channel, status.getCode());
+        if (tuner != null && receivedHeaders && status.isOk()) {
+          recordTransfer(channel, tuner, responseBytes, clock.nanoTime() - headersNanos);
+        }
+      } finally {
+        delegate.onClose(status, trailers);
+      }
+    }
+
+    @Override
+    public void onReady() {
+      delegate.onReady();
+    }
+  }
+
   /**
    * Sets the values in newChannelList to the {@code channels} AtomicReference.  The values are
    * copied into an {@link ImmutableList}.
    *
-   * @param newChannelList A {@link List} of {@link ManagedChannel}s to set to the {@code channels}
+   * @param newChannelList A {@link List} of {@link InstrumentedChannel}s to set to the
+   * {@code channels}
    */
-  private void setChannels(List<ManagedChannel> newChannelList) {
+  private void setChannels(List<InstrumentedChannel> newChannelList) {
     channels.set(ImmutableList.copyOf(newChannelList));
   }
 
@@ -158,10 +963,54 @@ public class ChannelPool extends ManagedChannel {
     return channels.get().size();
   }
 
+  public ChannelSelectionStrategy getSelectionStrategy() {
+    return selectionStrategy;
+  }
+
+  /**
+   * @return The number of unhealthy channels that were replaced since the pool was created.
+   */
+  public int getReplacedChannelCount() {
+    return replacedChannelCount.get();
+  }
+
+  /**
+   * @return A snapshot of the pool's size, load and sizing decisions.
+   */
+  public Stats getStats() {
+    return new Stats(size(), getOutstandingRpcCount(), addedChannelCount.get(),
+        retiredChannelCount.get(), replacedChannelCount.get(), sizingPolicy != null);
+  }
+
+  /**
+   * @return The number of RPCs that have been started on any channel in the pool, but that have
+   * not completed yet.
+   */
+  public int getOutstandingRpcCount() {
+    int count = 0;
+    for (InstrumentedChannel channel : channels.get()) {
+      count += channel.outstandingRpcs.get();
+    }
+    return count;
+  }
+
+  /**
+   * @return The channels in the pool, followed by the removed channels that may still be running
+   * calls.
+   */
+  private List<InstrumentedChannel> getAllChannels() {
+    List<InstrumentedChannel> all = new ArrayList<>(channels.get());
+    all.addAll(removedChannels);
+    return all;
+  }
+
   @Override
   public synchronized ManagedChannel shutdown() {
-    for (ManagedChannel channel : channels.get()) {
-      channel.shutdown();
+    if (resizeFuture != null) {
+      resizeFuture.cancel(false);
+    }
+    for (InstrumentedChannel channel : getAllChannels()) {
+      channel.channel.shutdown();
     }
     this.shutdown = true;
     return this;
@@ -174,8 +1023,8 @@ public class ChannelPool extends ManagedChannel {
 
   @Override
   public boolean isTerminated() {
-    for (ManagedChannel managedChannel: channels.get()) {
-      if (!managedChannel.isTerminated()) {
+    for (InstrumentedChannel channel : getAllChannels()) {
+      if (!channel.channel.isTerminated()) {
         return false;
       }
     }
@@ -184,8 +1033,8 @@ public class ChannelPool extends ManagedChannel {
 
   @Override
   public ManagedChannel shutdownNow() {
-    for (ManagedChannel channel : channels.get()) {
-      channel.shutdownNow();
+    for (InstrumentedChannel channel : getAllChannels()) {
+      channel.channel.shutdownNow();
     }
     return this;
   }
@@ -193,12 +1042,12 @@ public class ChannelPool extends ManagedChannel {
   @Override
   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
     long endTimeNanos = System.nanoTime() + unit.toNanos(timeout);
-    for (ManagedChannel channel : channels.get()) {
+    for (InstrumentedChannel channel : getAllChannels()) {
       long awaitTimeNanos = endTimeNanos - System.nanoTime();
       if (awaitTimeNanos <= 0) {
         break;
       }
-      channel.awaitTermination(awaitTimeNanos, TimeUnit.NANOSECONDS);
+      channel.channel.awaitTermination(awaitTimeNanos, TimeUnit.NANOSECONDS);
     }
 
     return isTerminated();
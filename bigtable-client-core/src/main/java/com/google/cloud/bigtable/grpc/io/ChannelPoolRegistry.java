@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.cloud.bigtable.config.CredentialOptions;
+import com.google.cloud.bigtable.config.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * <p>
+ * Shares {@link ChannelPool}s between sessions that connect to the same host, with the same
+ * credentials and user agent. Processes that open many sessions to the same cluster, such as
+ * MapReduce tasks and multi-tenant services, otherwise open a set of TCP connections per session.
+ * </p>
+ * <p>
+ * Each caller gets a {@link Lease} on a pool. The pool is created by the first caller, with that
+ * caller's configuration, and is shut down when the last lease is released. The pool is created
+ * outside of the registry's lock, since creating it can take a while to connect the channels.
+ * Callers for the same key wait for it, and callers for other keys do not.
+ * </p>
+ */
+public class ChannelPoolRegistry {
+  protected static final Logger LOG = new Logger(ChannelPoolRegistry.class);
+
+  private static ChannelPoolRegistry instance = new ChannelPoolRegistry();
+
+  public static ChannelPoolRegistry getInstance() {
+    return instance;
+  }
+
+  /**
+   * Creates the pool for a {@link Key} the first time that it is leased.
+   */
+  public interface ChannelPoolFactory {
+    ChannelPool create() throws IOException;
+  }
+
+  /**
+   * Identifies the pools that can be shared.
+   */
+  public static final class Key {
+    private final String host;
+    private final int port;
+    private final CredentialOptions credentialOptions;
+    private final String userAgent;
+
+    public Key(String host, int port, CredentialOptions credentialOptions, String userAgent) {
+      this.host = Preconditions.checkNotNull(host);
+      this.port = port;
+      this.credentialOptions = credentialOptions;
+      this.userAgent = userAgent;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return host.equals(other.host)
+          && port == other.port
+          && Objects.equal(credentialOptions, other.credentialOptions)
+          && Objects.equal(userAgent, other.userAgent);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(host, port, credentialOptions, userAgent);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("host", host)
+          .add("port", port)
+          .add("credentialType",
+            credentialOptions == null ? null : credentialOptions.getCredentialType())
+          .add("userAgent", userAgent)
+          .toString();
+    }
+  }
+
+  private static class Entry {
+    // Set by the caller that creates the pool.
+    private final SettableFuture<ChannelPool> channelPool = SettableFuture.create();
+    // Includes the callers that are waiting for the pool to be created. Guarded by the registry.
+    private int referenceCount;
+
+    /**
+     * @return true if the pool could not be created or was shut down.
+     */
+    private boolean isUnusable() {
+      if (!channelPool.isDone()) {
+        return false;
+      }
+      try {
+        return Uninterruptibles.getUninterruptibly(channelPool).isShutdown();
+      } catch (ExecutionException e) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * A reference to a shared {@link ChannelPool}. Do not shut the pool down directly; release the
+   * lease instead.
+   */
+  public final class Lease {
+    private final Key key;
+    private final Entry entry;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(Key key, Entry entry) {
+      this.key = key;
+      this.entry = entry;
+    }
+
+    public ChannelPool getChannelPool() {
+      // A lease is only given out once the pool was created.
+      return Futures.getUnchecked(entry.channelPool);
+    }
+
+    /**
+     * Gives up this reference to the pool. Releasing a lease more than once has no effect.
+     *
+     * @return true if this was the last reference, and the pool is being shut down.
+     */
+    public boolean release() {
+      return released.compareAndSet(false, true) && ChannelPoolRegistry.this.release(key, entry);
+    }
+  }
+
+  private final Map<Key, Entry> pools = new HashMap<>();
+
+  @VisibleForTesting
+  ChannelPoolRegistry() {
+  }
+
+  /**
+   * Leases the pool for the key, and creates it with the factory if there is none.
+   */
+  public Lease acquire(Key key, ChannelPoolFactory factory) throws IOException {
+    while (true) {
+      Entry entry;
+      boolean create = false;
+      synchronized (this) {
+        entry = pools.get(key);
+        if (entry == null || entry.isUnusable()) {
+          entry = new Entry();
+          pools.put(key, entry);
+          create = true;
+        }
+        entry.referenceCount++;
+      }
+      if (create) {
+        try {
+          entry.channelPool.set(factory.create());
+        } catch (Throwable e) {
+          // Wake up the callers that wait for the pool, so that they can try again.
+          entry.channelPool.setException(e);
+          abandon(key, entry);
+          throw e;
+        }
+        LOG.debug("Created a shared channel pool for %s.", key);
+        return new Lease(key, entry);
+      }
+      try {
+        entry.channelPool.get();
+        return new Lease(key, entry);
+      } catch (InterruptedException e) {
+        abandon(key, entry);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a shared channel pool.");
+      } catch (ExecutionException e) {
+        // The caller that created the pool failed, and threw the exception. Try again with this
+        // caller's factory.
+        abandon(key, entry);
+      }
+    }
+  }
+
+  /**
+   * Gives up the reference of a caller that did not get a lease. If the pool was created, and all
+   * of the leases on it were released in the meantime, it is shut down.
+   */
+  private synchronized void abandon(Key key, Entry entry) {
+    if (--entry.referenceCount > 0) {
+      return;
+    }
+    if (pools.get(key) == entry) {
+      pools.remove(key);
+    }
+    if (!entry.isUnusable()) {
+      LOG.debug("Shutting down the shared channel pool for %s.", key);
+      Futures.getUnchecked(entry.channelPool).shutdown();
+    }
+  }
+
+  private synchronized boolean release(Key key, Entry entry) {
+    if (--entry.referenceCount > 0) {
+      return false;
+    }
+    if (pools.get(key) == entry) {
+      pools.remove(key);
+    }
+    LOG.debug("Shutting down the shared channel pool for %s.", key);
+    Futures.getUnchecked(entry.channelPool).shutdown();
+    return true;
+  }
+
+  /**
+   * @return The number of unreleased leases on the pool for the key.
+   */
+  public synchronized int getReferenceCount(Key key) {
+    Entry entry = pools.get(key);
+    return entry == null ? 0 : entry.referenceCount;
+  }
+
+  /**
+   * @return The number of pools that are in use.
+   */
+  public synchronized int size() {
+    return pools.size();
+  }
+}
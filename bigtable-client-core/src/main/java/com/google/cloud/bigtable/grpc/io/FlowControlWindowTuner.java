@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.bigtable.config.Logger;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * Estimates the bandwidth-delay product (BDP) of the connection to the server, and grows the
+ * HTTP/2 flow control window toward it.
+ * </p>
+ * <p>
+ * A stream can have at most one window's worth of unacknowledged bytes in flight, so its
+ * throughput is capped at {@code window / RTT}. The round trip time is approximated by the
+ * smallest observed delay between starting a call and receiving its response headers. After each
+ * large response, the bytes that were in flight during a single round trip are estimated as
+ * {@code throughput * minRtt}. If that gets close to the window, the window is most likely what is
+ * limiting the stream, so the window is doubled, up to a maximum.
+ * </p>
+ * <p>
+ * grpc fixes the window of a netty channel when the channel is created, so a larger window only
+ * applies to channels created afterwards. {@link ChannelPool} recycles channels that were created
+ * with a smaller window.
+ * </p>
+ */
+public class FlowControlWindowTuner {
+
+  protected static final Logger LOG = new Logger(FlowControlWindowTuner.class);
+
+  /**
+   * The window grows once the bytes in flight during a round trip reach this fraction of it.
+   */
+  private static final double GROWTH_THRESHOLD = 2.0 / 3.0;
+
+  private final int maxWindow;
+  private final AtomicLong minRttNanos = new AtomicLong(Long.MAX_VALUE);
+  private volatile int window;
+
+  /**
+   * @param initialWindow The window to use before any measurements were made, in bytes.
+   * @param maxWindow The largest window to grow to, in bytes.
+   */
+  public FlowControlWindowTuner(int initialWindow, int maxWindow) {
+    Preconditions.checkArgument(initialWindow > 0, "initialWindow must be positive.");
+    Preconditions.checkArgument(maxWindow >= initialWindow,
+      "maxWindow must be at least as large as initialWindow.");
+    this.window = initialWindow;
+    this.maxWindow = maxWindow;
+  }
+
+  /**
+   * @return The flow control window, in bytes, that new channels should use.
+   */
+  public int getWindow() {
+    return window;
+  }
+
+  public int getMaxWindow() {
+    return maxWindow;
+  }
+
+  /**
+   * @return The smallest round trip time seen so far in nanoseconds, or -1 if there is no
+   *         measurement yet.
+   */
+  public long getMinRttNanos() {
+    long rtt = minRttNanos.get();
+    return rtt == Long.MAX_VALUE ? -1 : rtt;
+  }
+
+  /**
+   * Records the time between starting a call and receiving its response headers.
+   */
+  public void recordRtt(long rttNanos) {
+    if (rttNanos <= 0) {
+      return;
+    }
+    long current;
+    while (rttNanos < (current = minRttNanos.get())) {
+      if (minRttNanos.compareAndSet(current, rttNanos)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records the size of a response and the time it took to receive it, and grows the window if
+   * the response was likely throttled by flow control.
+   *
+   * @param bytes The number of response bytes that were received.
+   * @param durationNanos The time between the response headers and the end of the call.
+   */
+  public void recordTransfer(long bytes, long durationNanos) {
+    long rtt = minRttNanos.get();
+    int currentWindow = window;
+    // A response that fits within the window is never slowed down by flow control.
+    if (rtt == Long.MAX_VALUE || durationNanos <= 0 || bytes <= currentWindow
+        || currentWindow >= maxWindow) {
+      return;
+    }
+    double bytesInFlight = bytes * ((double) rtt / durationNanos);
+    if (bytesInFlight >= currentWindow * GROWTH_THRESHOLD) {
+      grow(currentWindow, bytesInFlight);
+    }
+  }
+
+  private synchronized void grow(int expectedWindow, double bytesInFlight) {
+    if (window != expectedWindow) {
+      // Another transfer already grew the window.
+      return;
+    }
+    window = (int) Math.min(maxWindow, 2L * expectedWindow);
+    LOG.info("Growing the flow control window from %d to %d bytes. Estimated bandwidth-delay "
+        + "product: %d bytes, min RTT: %d us.", expectedWindow, window, (long) bytesInFlight,
+        minRttNanos.get() / 1000);
+  }
+}
@@ -25,6 +25,7 @@ import com.google.bigtable.v1.Row;
 import com.google.bigtable.v1.RowSet;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
 import com.google.cloud.bigtable.grpc.io.IOExceptionWithStatus;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
@@ -104,6 +105,7 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
   private final ReadRowsRequest originalRequest;
   private final RetryOptions retryOptions;
   private final RequestRestarter restarter;
+  private final RetryBudget retryBudget;
 
   private BackOff currentErrorBackoff;
   private ResultScanner<Row> currentDelegate;
@@ -112,6 +114,8 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
   private long rowCount = 0;
   // The number of times we've retried after a timeout
   private AtomicInteger timeoutRetryCount = new AtomicInteger();
+  // Whether the scan has been reissued, or the first request has been credited to the retry budget.
+  private boolean retriedOrCredited = false;
 
   private final Logger logger;
 
@@ -119,7 +123,18 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     RetryOptions retryOptions,
     ReadRowsRequest originalRequest,
     BigtableResultScannerFactory scannerFactory) {
-    this(retryOptions, originalRequest, scannerFactory, LOG);
+    this(retryOptions, originalRequest, scannerFactory, (RetryBudget) null);
+  }
+
+  /**
+   * @param retryBudget Shared by the RPCs of a session, or null to only limit retries per scan.
+   */
+  public ResumingStreamingResultScanner(
+    RetryOptions retryOptions,
+    ReadRowsRequest originalRequest,
+    BigtableResultScannerFactory scannerFactory,
+    RetryBudget retryBudget) {
+    this(retryOptions, originalRequest, scannerFactory, retryBudget, LOG);
   }
 
   @VisibleForTesting
@@ -128,10 +143,21 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
       ReadRowsRequest originalRequest,
       BigtableResultScannerFactory scannerFactory,
       Logger logger) {
+    this(retryOptions, originalRequest, scannerFactory, null, logger);
+  }
+
+  @VisibleForTesting
+  ResumingStreamingResultScanner(
+      RetryOptions retryOptions,
+      ReadRowsRequest originalRequest,
+      BigtableResultScannerFactory scannerFactory,
+      RetryBudget retryBudget,
+      Logger logger) {
     this.originalRequest = originalRequest;
     this.scannerFactory = scannerFactory;
     this.currentDelegate = scannerFactory.createScanner(originalRequest);
     this.retryOptions = retryOptions;
+    this.retryBudget = retryBudget;
     this.logger = logger;
     switch(originalRequest.getTargetCase()) {
     case ROW_SET:
@@ -156,6 +182,13 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     while (true) {
       try {
         Row result = currentDelegate.next();
+        if (!retriedOrCredited) {
+          // The scan's first request got a response without being retried.
+          if (retryBudget != null) {
+            retryBudget.onFirstAttemptSuccess();
+          }
+          retriedOrCredited = true;
+        }
         if (result != null) {
           restarter.found(result.getKey());
           rowCount++;
@@ -187,6 +220,7 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     currentErrorBackoff = null;
 
     if (timeoutRetryCount.incrementAndGet() <= retryOptions.getMaxScanTimeoutRetries()) {
+      checkRetryBudget(rte);
       reissueRequest();
     }
     else {
@@ -200,13 +234,14 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     if (retryOptions.isRetryable(code)) {
       logger.info("Reissuing scan after receiving error with status: %s.", ioe, code.name());
       if (currentErrorBackoff == null) {
-        currentErrorBackoff = retryOptions.createBackoff();
+        currentErrorBackoff = retryOptions.createBackoff(code);
       }
       long nextBackOffMillis = currentErrorBackoff.nextBackOffMillis();
       if (nextBackOffMillis == BackOff.STOP) {
         throw new BigtableRetriesExhaustedException("Exhausted streaming retries.", ioe);
       }
 
+      checkRetryBudget(ioe);
       sleep(nextBackOffMillis);
       reissueRequest();
     } else {
@@ -224,7 +259,14 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     currentDelegate.close();
   }
 
+  private void checkRetryBudget(IOException cause) throws BigtableRetriesExhaustedException {
+    if (retryBudget != null && !retryBudget.tryAcquire()) {
+      throw new BigtableRetriesExhaustedException("Exhausted the retry budget.", cause);
+    }
+  }
+
   private void reissueRequest() {
+    retriedOrCredited = true;
     try {
       currentDelegate.close();
     } catch (IOException ioe) {
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.testing;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.bigtable.v1.BigtableServiceGrpc;
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.CheckAndMutateRowRequest;
+import com.google.bigtable.v1.CheckAndMutateRowResponse;
+import com.google.bigtable.v1.Family;
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRule;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.ReadRowsResponse;
+import com.google.bigtable.v1.ReadRowsResponse.Chunk;
+import com.google.bigtable.v1.Row;
+import com.google.bigtable.v1.RowRange;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.grpc.io.ChannelPool;
+import com.google.cloud.bigtable.grpc.testing.FakeRow.FlatCell;
+import com.google.cloud.bigtable.util.ThreadPoolUtil;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * <p>
+ * An in-memory implementation of the Bigtable data API, for load tests and benchmarks that need
+ * to run without a real cluster. Each table is a sorted concurrent map from row key to row, and
+ * tables are created the first time that they are used. ReadRows, SampleRowKeys, MutateRow,
+ * MutateRows, CheckAndMutateRow and ReadModifyWriteRow are supported. Writes to a single row are
+ * atomic.
+ * </p>
+ * <p>
+ * The service can add latency to every RPC, fail a fraction of RPCs or MutateRows entries, and
+ * split rows into several ReadRows responses. A BigtableSession can use the service over
+ * the in-process transport:
+ * </p>
+ * <pre>
+ * FakeBigtableDataService service = new FakeBigtableDataService();
+ * Server server = service.startInProcessServer("fake-bigtable");
+ * BigtableSession session = new BigtableSession(options,
+ *     FakeBigtableDataService.createInProcessChannelFactory("fake-bigtable"));
+ * </pre>
+ * <p>
+ * or over loopback, with {@link #startServer(int)} and
+ * {@link com.google.cloud.bigtable.config.BigtableOptions#usePlaintextNegotiation()}.
+ * </p>
+ *
+ * @see com.google.cloud.bigtable.grpc.BigtableSession
+ */
+public class FakeBigtableDataService implements BigtableServiceGrpc.BigtableService {
+
+  /**
+   * The number of rows between row keys returned by SampleRowKeys.
+   */
+  public static final int DEFAULT_SAMPLE_ROW_KEY_INTERVAL = 1000;
+
+  private static final Chunk COMMIT_ROW = Chunk.newBuilder().setCommitRow(true).build();
+
+  /**
+   * Handles a single RPC. Messages are sent to the observer; the RPC is completed by the caller.
+   */
+  private interface RpcHandler<T> {
+    void handle(StreamObserver<T> responseObserver);
+  }
+
+  private final ConcurrentMap<String, ConcurrentNavigableMap<ByteString, FakeRow>> tables =
+      new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong rpcCount = new AtomicLong();
+  private final AtomicLong injectedErrorCount = new AtomicLong();
+
+  private volatile long latencyNanos;
+  private volatile double errorRate;
+  private volatile double entryErrorRate;
+  private volatile Status.Code errorCode = Status.Code.UNAVAILABLE;
+  private volatile int cellsPerResponse = Integer.MAX_VALUE;
+  private volatile int sampleRowKeyInterval = DEFAULT_SAMPLE_ROW_KEY_INTERVAL;
+
+  public FakeBigtableDataService() {
+    this(Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+      ThreadPoolUtil.createThreadFactory("fake-bigtable")));
+  }
+
+  /**
+   * @param scheduler Runs RPCs that have been delayed by {@link #setLatency(long, TimeUnit)}.
+   */
+  public FakeBigtableDataService(ScheduledExecutorService scheduler) {
+    this.scheduler = Preconditions.checkNotNull(scheduler);
+  }
+
+  // Configuration
+
+  /**
+   * Delays every RPC by the given amount of time before it is processed.
+   */
+  public void setLatency(long latency, TimeUnit unit) {
+    Preconditions.checkArgument(latency >= 0, "latency must not be negative.");
+    this.latencyNanos = unit.toNanos(latency);
+  }
+
+  /**
+   * Fails the given fraction of RPCs with {@link #setErrorCode(Status.Code)}, before they have any
+   * effect.
+   */
+  public void setErrorRate(double errorRate) {
+    Preconditions.checkArgument(errorRate >= 0 && errorRate <= 1,
+      "errorRate must be between 0 and 1.");
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Fails the given fraction of MutateRows entries with {@link #setErrorCode(Status.Code)}, without
+   * failing the RPC.
+   */
+  public void setEntryErrorRate(double entryErrorRate) {
+    Preconditions.checkArgument(entryErrorRate >= 0 && entryErrorRate <= 1,
+      "entryErrorRate must be between 0 and 1.");
+    this.entryErrorRate = entryErrorRate;
+  }
+
+  /**
+   * The status of injected errors. Defaults to UNAVAILABLE.
+   */
+  public void setErrorCode(Status.Code errorCode) {
+    Preconditions.checkArgument(errorCode != Status.Code.OK, "errorCode must not be OK.");
+    this.errorCode = errorCode;
+  }
+
+  /**
+   * Splits rows that have more than the given number of cells into several ReadRows responses.
+   * By default, each row is sent in a single response.
+   */
+  public void setCellsPerResponse(int cellsPerResponse) {
+    Preconditions.checkArgument(cellsPerResponse > 0, "cellsPerResponse must be positive.");
+    this.cellsPerResponse = cellsPerResponse;
+  }
+
+  /**
+   * SampleRowKeys returns one row key for every {@code sampleRowKeyInterval} rows.
+   */
+  public void setSampleRowKeyInterval(int sampleRowKeyInterval) {
+    Preconditions.checkArgument(sampleRowKeyInterval > 0,
+      "sampleRowKeyInterval must be positive.");
+    this.sampleRowKeyInterval = sampleRowKeyInterval;
+  }
+
+  // Inspection
+
+  /**
+   * @return The number of RPCs that were received.
+   */
+  public long getRpcCount() {
+    return rpcCount.get();
+  }
+
+  /**
+   * @return The number of RPCs and MutateRows entries that failed with an injected error.
+   */
+  public long getInjectedErrorCount() {
+    return injectedErrorCount.get();
+  }
+
+  /**
+   * @return The number of rows with at least one cell in the table.
+   */
+  public int getRowCount(String tableName) {
+    int count = 0;
+    for (FakeRow row : getTable(tableName).values()) {
+      if (!row.isEmpty()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return The row with all of its cells, or null if it doesn't exist.
+   */
+  public Row getRow(String tableName, ByteString rowKey) {
+    FakeRow row = getTable(tableName).get(rowKey);
+    if (row == null) {
+      return null;
+    }
+    List<FlatCell> cells = row.getCells();
+    if (cells.isEmpty()) {
+      return null;
+    }
+    return Row.newBuilder().setKey(rowKey).addAllFamilies(FakeRow.toFamilies(cells)).build();
+  }
+
+  /**
+   * Deletes all of the tables.
+   */
+  public void clear() {
+    tables.clear();
+  }
+
+  // Servers
+
+  /**
+   * Starts an in-process server for this service. Use
+   * {@link #createInProcessChannelFactory(String)} to connect to it.
+   */
+  public Server startInProcessServer(String name) throws IOException {
+    return InProcessServerBuilder.forName(name)
+        .addService(BigtableServiceGrpc.bindService(this))
+        .build()
+        .start();
+  }
+
+  /**
+   * Starts a plaintext HTTP/2 server for this service on the given local port.
+   */
+  public Server startServer(int port) throws IOException {
+    return NettyServerBuilder.forAddress(new InetSocketAddress("localhost", port))
+        .addService(BigtableServiceGrpc.bindService(this))
+        .build()
+        .start();
+  }
+
+  /**
+   * Creates channels to the in-process server with the given name.
+   */
+  public static ChannelPool.ChannelFactory createInProcessChannelFactory(final String name) {
+    return new ChannelPool.ChannelFactory() {
+      @Override
+      public ManagedChannel create() throws IOException {
+        return InProcessChannelBuilder.forName(name).build();
+      }
+    };
+  }
+
+  // RPCs
+
+  @Override
+  public void readRows(final ReadRowsRequest request,
+      StreamObserver<ReadRowsResponse> responseObserver) {
+    handle(responseObserver, new RpcHandler<ReadRowsResponse>() {
+      @Override
+      public void handle(StreamObserver<ReadRowsResponse> observer) {
+        long limit = request.getNumRowsLimit() > 0 ? request.getNumRowsLimit() : Long.MAX_VALUE;
+        long count = 0;
+        for (FakeRow row : getRows(request)) {
+          if (count >= limit) {
+            break;
+          }
+          List<FlatCell> cells =
+              RowFilterEvaluator.apply(request.getFilter(), row.getKey(), row.getCells());
+          if (!cells.isEmpty()) {
+            sendRow(row.getKey(), cells, observer);
+            count++;
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public void sampleRowKeys(final SampleRowKeysRequest request,
+      StreamObserver<SampleRowKeysResponse> responseObserver) {
+    handle(responseObserver, new RpcHandler<SampleRowKeysResponse>() {
+      @Override
+      public void handle(StreamObserver<SampleRowKeysResponse> observer) {
+        int interval = sampleRowKeyInterval;
+        long offset = 0;
+        int count = 0;
+        for (FakeRow row : getTable(request.getTableName()).values()) {
+          offset += row.getSize();
+          if (++count % interval == 0) {
+            observer.onNext(SampleRowKeysResponse.newBuilder()
+                .setRowKey(row.getKey())
+                .setOffsetBytes(offset)
+                .build());
+          }
+        }
+        // The last sample marks the end of the table.
+        observer.onNext(SampleRowKeysResponse.newBuilder().setOffsetBytes(offset).build());
+      }
+    });
+  }
+
+  @Override
+  public void mutateRow(final MutateRowRequest request, StreamObserver<Empty> responseObserver) {
+    handle(responseObserver, new RpcHandler<Empty>() {
+      @Override
+      public void handle(StreamObserver<Empty> observer) {
+        getOrCreateRow(request.getTableName(), request.getRowKey())
+            .apply(request.getMutationsList(), nowMicros());
+        observer.onNext(Empty.getDefaultInstance());
+      }
+    });
+  }
+
+  @Override
+  public void mutateRows(final MutateRowsRequest request,
+      StreamObserver<MutateRowsResponse> responseObserver) {
+    handle(responseObserver, new RpcHandler<MutateRowsResponse>() {
+      @Override
+      public void handle(StreamObserver<MutateRowsResponse> observer) {
+        MutateRowsResponse.Builder response = MutateRowsResponse.newBuilder();
+        for (MutateRowsRequest.Entry entry : request.getEntriesList()) {
+          response.addStatuses(mutateEntry(request.getTableName(), entry));
+        }
+        observer.onNext(response.build());
+      }
+    });
+  }
+
+  @Override
+  public void checkAndMutateRow(final CheckAndMutateRowRequest request,
+      StreamObserver<CheckAndMutateRowResponse> responseObserver) {
+    handle(responseObserver, new RpcHandler<CheckAndMutateRowResponse>() {
+      @Override
+      public void handle(StreamObserver<CheckAndMutateRowResponse> observer) {
+        FakeRow row = getOrCreateRow(request.getTableName(), request.getRowKey());
+        boolean matched;
+        synchronized (row) {
+          matched = !RowFilterEvaluator
+              .apply(request.getPredicateFilter(), row.getKey(), row.getCells()).isEmpty();
+          row.apply(matched ? request.getTrueMutationsList() : request.getFalseMutationsList(),
+            nowMicros());
+        }
+        observer.onNext(
+          CheckAndMutateRowResponse.newBuilder().setPredicateMatched(matched).build());
+      }
+    });
+  }
+
+  @Override
+  public void readModifyWriteRow(final ReadModifyWriteRowRequest request,
+      StreamObserver<Row> responseObserver) {
+    handle(responseObserver, new RpcHandler<Row>() {
+      @Override
+      public void handle(StreamObserver<Row> observer) {
+        FakeRow row = getOrCreateRow(request.getTableName(), request.getRowKey());
+        List<FlatCell> modified = new ArrayList<>();
+        synchronized (row) {
+          // Validate all of the rules before modifying the row.
+          for (ReadModifyWriteRule rule : request.getRulesList()) {
+            modify(row, rule, 0);
+          }
+          long now = nowMicros();
+          for (ReadModifyWriteRule rule : request.getRulesList()) {
+            row.setCell(rule.getFamilyName(), rule.getColumnQualifier(), modify(row, rule, now));
+          }
+          for (ReadModifyWriteRule rule : request.getRulesList()) {
+            Cell cell = row.getLatestCell(rule.getFamilyName(), rule.getColumnQualifier());
+            FlatCell flatCell = new FlatCell(rule.getFamilyName(), rule.getColumnQualifier(), cell);
+            if (!containsColumn(modified, flatCell)) {
+              modified.add(flatCell);
+            }
+          }
+        }
+        Collections.sort(modified, FakeRow.CELL_COMPARATOR);
+        observer.onNext(Row.newBuilder()
+            .setKey(request.getRowKey())
+            .addAllFamilies(FakeRow.toFamilies(modified))
+            .build());
+      }
+    });
+  }
+
+  // Implementation
+
+  /**
+   * Runs the handler after the configured latency, and completes the RPC. The RPC fails if an
+   * error is injected, or if the handler throws a {@link StatusRuntimeException}.
+   */
+  private <T> void handle(final StreamObserver<T> responseObserver, final RpcHandler<T> handler) {
+    rpcCount.incrementAndGet();
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        if (shouldInjectError(errorRate)) {
+          responseObserver.onError(errorCode.toStatus()
+              .withDescription("Injected error").asRuntimeException());
+          return;
+        }
+        try {
+          handler.handle(responseObserver);
+        } catch (StatusRuntimeException e) {
+          responseObserver.onError(e);
+          return;
+        }
+        responseObserver.onCompleted();
+      }
+    };
+    long latency = latencyNanos;
+    if (latency > 0) {
+      scheduler.schedule(runnable, latency, TimeUnit.NANOSECONDS);
+    } else {
+      runnable.run();
+    }
+  }
+
+  private boolean shouldInjectError(double rate) {
+    if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+      injectedErrorCount.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private com.google.rpc.Status mutateEntry(String tableName, MutateRowsRequest.Entry entry) {
+    if (shouldInjectError(entryErrorRate)) {
+      return com.google.rpc.Status.newBuilder()
+          .setCode(errorCode.value())
+          .setMessage("Injected error")
+          .build();
+    }
+    try {
+      getOrCreateRow(tableName, entry.getRowKey()).apply(entry.getMutationsList(), nowMicros());
+      return com.google.rpc.Status.newBuilder().setCode(Status.Code.OK.value()).build();
+    } catch (StatusRuntimeException e) {
+      Status status = e.getStatus();
+      com.google.rpc.Status.Builder builder =
+          com.google.rpc.Status.newBuilder().setCode(status.getCode().value());
+      if (status.getDescription() != null) {
+        builder.setMessage(status.getDescription());
+      }
+      return builder.build();
+    }
+  }
+
+  /**
+   * Computes the new cell for a ReadModifyWrite rule, without writing it.
+   */
+  private static Cell modify(FakeRow row, ReadModifyWriteRule rule, long nowMicros) {
+    if (rule.getFamilyName().isEmpty()) {
+      throw FakeRow.invalidArgument("Family name is not set.");
+    }
+    Cell latest = row.getLatestCell(rule.getFamilyName(), rule.getColumnQualifier());
+    ByteString value = latest == null ? ByteString.EMPTY : latest.getValue();
+    long timestamp = latest == null ? nowMicros : Math.max(nowMicros, latest.getTimestampMicros());
+    switch (rule.getRuleCase()) {
+      case APPEND_VALUE:
+        value = value.concat(rule.getAppendValue());
+        break;
+      case INCREMENT_AMOUNT:
+        long current;
+        if (value.isEmpty()) {
+          current = 0;
+        } else if (value.size() == Longs.BYTES) {
+          current = Longs.fromByteArray(value.toByteArray());
+        } else {
+          throw FakeRow.invalidArgument("Cannot increment a value that is not a 64-bit integer.");
+        }
+        value = ByteString.copyFrom(Longs.toByteArray(current + rule.getIncrementAmount()));
+        break;
+      default:
+        throw FakeRow.invalidArgument("Rule is not set.");
+    }
+    return Cell.newBuilder().setTimestampMicros(timestamp).setValue(value).build();
+  }
+
+  private static boolean containsColumn(Collection<FlatCell> cells, FlatCell cell) {
+    for (FlatCell existing : cells) {
+      if (existing.isSameColumn(cell)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends a row as one or more responses, each with at most {@link #cellsPerResponse} cells.
+   */
+  private void sendRow(ByteString rowKey, List<FlatCell> cells,
+      StreamObserver<ReadRowsResponse> observer) {
+    int chunkSize = cellsPerResponse;
+    for (int start = 0; start < cells.size(); start += chunkSize) {
+      int end = (int) Math.min(cells.size(), (long) start + chunkSize);
+      ReadRowsResponse.Builder response = ReadRowsResponse.newBuilder().setRowKey(rowKey);
+      for (Family family : FakeRow.toFamilies(cells.subList(start, end))) {
+        response.addChunks(Chunk.newBuilder().setRowContents(family));
+      }
+      if (end == cells.size()) {
+        response.addChunks(COMMIT_ROW);
+      }
+      observer.onNext(response.build());
+    }
+  }
+
+  /**
+   * @return The rows that the request targets, in row key order.
+   */
+  private Collection<FakeRow> getRows(ReadRowsRequest request) {
+    ConcurrentNavigableMap<ByteString, FakeRow> table = getTable(request.getTableName());
+    switch (request.getTargetCase()) {
+      case ROW_KEY: {
+        FakeRow row = table.get(request.getRowKey());
+        return row == null ? Collections.<FakeRow> emptyList() : Collections.singletonList(row);
+      }
+      case ROW_RANGE:
+        return getRange(table, request.getRowRange()).values();
+      case ROW_SET: {
+        ConcurrentSkipListMap<ByteString, FakeRow> rows =
+            new ConcurrentSkipListMap<>(FakeRow.BYTE_STRING_COMPARATOR);
+        for (ByteString key : request.getRowSet().getRowKeysList()) {
+          FakeRow row = table.get(key);
+          if (row != null) {
+            rows.put(key, row);
+          }
+        }
+        for (RowRange range : request.getRowSet().getRowRangesList()) {
+          rows.putAll(getRange(table, range));
+        }
+        return rows.values();
+      }
+      default:
+        return table.values();
+    }
+  }
+
+  private static ConcurrentNavigableMap<ByteString, FakeRow> getRange(
+      ConcurrentNavigableMap<ByteString, FakeRow> table, RowRange range) {
+    ConcurrentNavigableMap<ByteString, FakeRow> rows = table;
+    if (!range.getStartKey().isEmpty()) {
+      rows = rows.tailMap(range.getStartKey(), true);
+    }
+    if (!range.getEndKey().isEmpty()) {
+      rows = rows.headMap(range.getEndKey(), false);
+    }
+    return rows;
+  }
+
+  private ConcurrentNavigableMap<ByteString, FakeRow> getTable(String tableName) {
+    ConcurrentNavigableMap<ByteString, FakeRow> table = tables.get(tableName);
+    if (table == null) {
+      table = new ConcurrentSkipListMap<>(FakeRow.BYTE_STRING_COMPARATOR);
+      ConcurrentNavigableMap<ByteString, FakeRow> existing = tables.putIfAbsent(tableName, table);
+      if (existing != null) {
+        table = existing;
+      }
+    }
+    return table;
+  }
+
+  private FakeRow getOrCreateRow(String tableName, ByteString rowKey) {
+    ConcurrentNavigableMap<ByteString, FakeRow> table = getTable(tableName);
+    FakeRow row = table.get(rowKey);
+    if (row == null) {
+      row = new FakeRow(rowKey);
+      FakeRow existing = table.putIfAbsent(rowKey, row);
+      if (existing != null) {
+        row = existing;
+      }
+    }
+    return row;
+  }
+
+  private static long nowMicros() {
+    return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+  }
+}
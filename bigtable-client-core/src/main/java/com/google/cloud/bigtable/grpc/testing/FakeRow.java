@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.testing;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.Column;
+import com.google.bigtable.v1.Family;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.TimestampRange;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+
+/**
+ * The cells of a single row in a {@link FakeBigtableDataService}. Methods are synchronized, and
+ * callers that need several operations to be atomic synchronize on the row.
+ */
+class FakeRow {
+
+  /**
+   * Orders row keys and qualifiers the way Bigtable does: lexicographically, as unsigned bytes.
+   */
+  static final Comparator<ByteString> BYTE_STRING_COMPARATOR = new Comparator<ByteString>() {
+    @Override
+    public int compare(ByteString left, ByteString right) {
+      int size = Math.min(left.size(), right.size());
+      for (int i = 0; i < size; i++) {
+        int diff = (left.byteAt(i) & 0xff) - (right.byteAt(i) & 0xff);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return left.size() - right.size();
+    }
+  };
+
+  /**
+   * Orders cells by family, then qualifier, then newest timestamp first.
+   */
+  static final Comparator<FlatCell> CELL_COMPARATOR = new Comparator<FlatCell>() {
+    @Override
+    public int compare(FlatCell left, FlatCell right) {
+      int diff = left.family.compareTo(right.family);
+      if (diff == 0) {
+        diff = BYTE_STRING_COMPARATOR.compare(left.qualifier, right.qualifier);
+      }
+      if (diff == 0) {
+        diff = Long.compare(right.cell.getTimestampMicros(), left.cell.getTimestampMicros());
+      }
+      return diff;
+    }
+  };
+
+  /**
+   * A cell together with its family and qualifier.
+   */
+  static class FlatCell {
+    final String family;
+    final ByteString qualifier;
+    final Cell cell;
+
+    FlatCell(String family, ByteString qualifier, Cell cell) {
+      this.family = family;
+      this.qualifier = qualifier;
+      this.cell = cell;
+    }
+
+    boolean isSameColumn(FlatCell other) {
+      return family.equals(other.family) && qualifier.equals(other.qualifier);
+    }
+
+    FlatCell withCell(Cell newCell) {
+      return new FlatCell(family, qualifier, newCell);
+    }
+  }
+
+  /**
+   * Groups cells that are sorted by {@link #CELL_COMPARATOR} into families and columns.
+   */
+  static List<Family> toFamilies(List<FlatCell> cells) {
+    List<Family> families = new ArrayList<>();
+    Family.Builder family = null;
+    Column.Builder column = null;
+    FlatCell previous = null;
+    for (FlatCell cell : cells) {
+      if (previous == null || !previous.family.equals(cell.family)) {
+        if (family != null) {
+          families.add(family.addColumns(column).build());
+        }
+        family = Family.newBuilder().setName(cell.family);
+        column = Column.newBuilder().setQualifier(cell.qualifier);
+      } else if (!previous.qualifier.equals(cell.qualifier)) {
+        family.addColumns(column);
+        column = Column.newBuilder().setQualifier(cell.qualifier);
+      }
+      column.addCells(cell.cell);
+      previous = cell;
+    }
+    if (family != null) {
+      families.add(family.addColumns(column).build());
+    }
+    return families;
+  }
+
+  private final ByteString key;
+  // family -> qualifier -> cells, newest first.
+  private final TreeMap<String, TreeMap<ByteString, List<Cell>>> families = new TreeMap<>();
+
+  FakeRow(ByteString key) {
+    this.key = key;
+  }
+
+  ByteString getKey() {
+    return key;
+  }
+
+  synchronized boolean isEmpty() {
+    return families.isEmpty();
+  }
+
+  /**
+   * @return All of the row's cells, sorted by {@link #CELL_COMPARATOR}.
+   */
+  synchronized List<FlatCell> getCells() {
+    List<FlatCell> cells = new ArrayList<>();
+    for (Map.Entry<String, TreeMap<ByteString, List<Cell>>> family : families.entrySet()) {
+      for (Map.Entry<ByteString, List<Cell>> column : family.getValue().entrySet()) {
+        for (Cell cell : column.getValue()) {
+          cells.add(new FlatCell(family.getKey(), column.getKey(), cell));
+        }
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * @return The approximate number of bytes that the row takes up.
+   */
+  synchronized long getSize() {
+    long size = key.size();
+    for (Map.Entry<String, TreeMap<ByteString, List<Cell>>> family : families.entrySet()) {
+      for (Map.Entry<ByteString, List<Cell>> column : family.getValue().entrySet()) {
+        for (Cell cell : column.getValue()) {
+          size += family.getKey().length() + column.getKey().size() + 8 + cell.getValue().size();
+        }
+      }
+    }
+    return size;
+  }
+
+  synchronized Cell getLatestCell(String family, ByteString qualifier) {
+    TreeMap<ByteString, List<Cell>> columns = families.get(family);
+    List<Cell> cells = columns == null ? null : columns.get(qualifier);
+    return cells == null ? null : cells.get(0);
+  }
+
+  /**
+   * Applies all of the mutations, or none of them if any is invalid.
+   *
+   * @param nowMicros The timestamp of cells that are set with a timestamp of -1.
+   */
+  synchronized void apply(List<Mutation> mutations, long nowMicros) {
+    for (Mutation mutation : mutations) {
+      validate(mutation);
+    }
+    for (Mutation mutation : mutations) {
+      switch (mutation.getMutationCase()) {
+        case SET_CELL:
+          Mutation.SetCell setCell = mutation.getSetCell();
+          long timestamp = setCell.getTimestampMicros();
+          setCell(setCell.getFamilyName(), setCell.getColumnQualifier(), Cell.newBuilder()
+              .setTimestampMicros(timestamp == -1 ? nowMicros : timestamp)
+              .setValue(setCell.getValue())
+              .build());
+          break;
+        case DELETE_FROM_COLUMN:
+          Mutation.DeleteFromColumn deleteFromColumn = mutation.getDeleteFromColumn();
+          deleteFromColumn(deleteFromColumn.getFamilyName(), deleteFromColumn.getColumnQualifier(),
+            deleteFromColumn.getTimeRange());
+          break;
+        case DELETE_FROM_FAMILY:
+          families.remove(mutation.getDeleteFromFamily().getFamilyName());
+          break;
+        case DELETE_FROM_ROW:
+          families.clear();
+          break;
+        default:
+          throw new IllegalStateException("Unexpected mutation " + mutation.getMutationCase());
+      }
+    }
+  }
+
+  private static void validate(Mutation mutation) {
+    String family;
+    switch (mutation.getMutationCase()) {
+      case SET_CELL:
+        family = mutation.getSetCell().getFamilyName();
+        if (mutation.getSetCell().getTimestampMicros() < -1) {
+          throw invalidArgument("Invalid timestamp: " + mutation.getSetCell().getTimestampMicros());
+        }
+        break;
+      case DELETE_FROM_COLUMN:
+        family = mutation.getDeleteFromColumn().getFamilyName();
+        break;
+      case DELETE_FROM_FAMILY:
+        family = mutation.getDeleteFromFamily().getFamilyName();
+        break;
+      case DELETE_FROM_ROW:
+        return;
+      default:
+        throw invalidArgument("Mutation is not set.");
+    }
+    if (family.isEmpty()) {
+      throw invalidArgument("Family name is not set.");
+    }
+  }
+
+  /**
+   * Writes a cell, replacing any cell in the same column with the same timestamp.
+   */
+  synchronized void setCell(String family, ByteString qualifier, Cell cell) {
+    TreeMap<ByteString, List<Cell>> columns = families.get(family);
+    if (columns == null) {
+      columns = new TreeMap<>(BYTE_STRING_COMPARATOR);
+      families.put(family, columns);
+    }
+    List<Cell> cells = columns.get(qualifier);
+    if (cells == null) {
+      cells = new ArrayList<>();
+      columns.put(qualifier, cells);
+    }
+    int index = 0;
+    while (index < cells.size()
+        && cells.get(index).getTimestampMicros() > cell.getTimestampMicros()) {
+      index++;
+    }
+    if (index < cells.size()
+        && cells.get(index).getTimestampMicros() == cell.getTimestampMicros()) {
+      cells.set(index, cell);
+    } else {
+      cells.add(index, cell);
+    }
+  }
+
+  private void deleteFromColumn(String family, ByteString qualifier, TimestampRange range) {
+    TreeMap<ByteString, List<Cell>> columns = families.get(family);
+    List<Cell> cells = columns == null ? null : columns.get(qualifier);
+    if (cells == null) {
+      return;
+    }
+    long start = range.getStartTimestampMicros();
+    long end = range.getEndTimestampMicros();
+    for (Iterator<Cell> iterator = cells.iterator(); iterator.hasNext();) {
+      long timestamp = iterator.next().getTimestampMicros();
+      if (timestamp >= start && (end == 0 || timestamp < end)) {
+        iterator.remove();
+      }
+    }
+    if (cells.isEmpty()) {
+      columns.remove(qualifier);
+      if (columns.isEmpty()) {
+        families.remove(family);
+      }
+    }
+  }
+
+  static RuntimeException invalidArgument(String description) {
+    return Status.INVALID_ARGUMENT.withDescription(description).asRuntimeException();
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.testing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.ColumnRange;
+import com.google.bigtable.v1.RowFilter;
+import com.google.bigtable.v1.TimestampRange;
+import com.google.bigtable.v1.ValueRange;
+import com.google.cloud.bigtable.grpc.testing.FakeRow.FlatCell;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+
+/**
+ * Applies a {@link RowFilter} to the cells of a row in a {@link FakeBigtableDataService}. Most
+ * filters are supported; the ones that are not, such as {@code sink}, fail with UNIMPLEMENTED.
+ * Regular expressions use {@link Pattern} rather than RE2, and have to match the whole value.
+ */
+final class RowFilterEvaluator {
+
+  private RowFilterEvaluator() {
+  }
+
+  /**
+   * @param cells The row's cells, sorted by {@link FakeRow#CELL_COMPARATOR}.
+   * @return The cells that pass the filter, sorted by {@link FakeRow#CELL_COMPARATOR}.
+   */
+  static List<FlatCell> apply(RowFilter filter, ByteString rowKey, List<FlatCell> cells) {
+    switch (filter.getFilterCase()) {
+      case FILTER_NOT_SET:
+      case PASS_ALL_FILTER:
+        return cells;
+      case BLOCK_ALL_FILTER:
+        return Collections.emptyList();
+      case CHAIN:
+        for (RowFilter child : filter.getChain().getFiltersList()) {
+          cells = apply(child, rowKey, cells);
+        }
+        return cells;
+      case INTERLEAVE: {
+        List<FlatCell> result = new ArrayList<>();
+        for (RowFilter child : filter.getInterleave().getFiltersList()) {
+          result.addAll(apply(child, rowKey, cells));
+        }
+        Collections.sort(result, FakeRow.CELL_COMPARATOR);
+        return result;
+      }
+      case CONDITION: {
+        RowFilter.Condition condition = filter.getCondition();
+        boolean matched = !apply(condition.getPredicateFilter(), rowKey, cells).isEmpty();
+        if (matched) {
+          return condition.hasTrueFilter()
+              ? apply(condition.getTrueFilter(), rowKey, cells)
+              : Collections.<FlatCell> emptyList();
+        }
+        return condition.hasFalseFilter()
+            ? apply(condition.getFalseFilter(), rowKey, cells)
+            : Collections.<FlatCell> emptyList();
+      }
+      case ROW_KEY_REGEX_FILTER:
+        return matches(filter.getRowKeyRegexFilter(), rowKey)
+            ? cells
+            : Collections.<FlatCell> emptyList();
+      case ROW_SAMPLE_FILTER:
+        return ThreadLocalRandom.current().nextDouble() < filter.getRowSampleFilter()
+            ? cells
+            : Collections.<FlatCell> emptyList();
+      case FAMILY_NAME_REGEX_FILTER: {
+        Pattern pattern = Pattern.compile(filter.getFamilyNameRegexFilter(), Pattern.DOTALL);
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          if (pattern.matcher(cell.family).matches()) {
+            result.add(cell);
+          }
+        }
+        return result;
+      }
+      case COLUMN_QUALIFIER_REGEX_FILTER: {
+        Pattern pattern = compile(filter.getColumnQualifierRegexFilter());
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          if (pattern.matcher(toLatin1(cell.qualifier)).matches()) {
+            result.add(cell);
+          }
+        }
+        return result;
+      }
+      case VALUE_REGEX_FILTER: {
+        Pattern pattern = compile(filter.getValueRegexFilter());
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          if (pattern.matcher(toLatin1(cell.cell.getValue())).matches()) {
+            result.add(cell);
+          }
+        }
+        return result;
+      }
+      case COLUMN_RANGE_FILTER: {
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          if (inColumnRange(filter.getColumnRangeFilter(), cell)) {
+            result.add(cell);
+          }
+        }
+        return result;
+      }
+      case TIMESTAMP_RANGE_FILTER: {
+        TimestampRange range = filter.getTimestampRangeFilter();
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          long timestamp = cell.cell.getTimestampMicros();
+          if (timestamp >= range.getStartTimestampMicros()
+              && (range.getEndTimestampMicros() == 0
+                  || timestamp < range.getEndTimestampMicros())) {
+            result.add(cell);
+          }
+        }
+        return result;
+      }
+      case VALUE_RANGE_FILTER: {
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          if (inValueRange(filter.getValueRangeFilter(), cell.cell.getValue())) {
+            result.add(cell);
+          }
+        }
+        return result;
+      }
+      case CELLS_PER_ROW_OFFSET_FILTER: {
+        int offset = filter.getCellsPerRowOffsetFilter();
+        return offset >= cells.size()
+            ? Collections.<FlatCell> emptyList()
+            : cells.subList(offset, cells.size());
+      }
+      case CELLS_PER_ROW_LIMIT_FILTER:
+        return cells.subList(0, Math.min(cells.size(), filter.getCellsPerRowLimitFilter()));
+      case CELLS_PER_COLUMN_LIMIT_FILTER: {
+        int limit = filter.getCellsPerColumnLimitFilter();
+        List<FlatCell> result = new ArrayList<>();
+        FlatCell previous = null;
+        int count = 0;
+        for (FlatCell cell : cells) {
+          count = previous != null && previous.isSameColumn(cell) ? count + 1 : 1;
+          if (count <= limit) {
+            result.add(cell);
+          }
+          previous = cell;
+        }
+        return result;
+      }
+      case STRIP_VALUE_TRANSFORMER: {
+        if (!filter.getStripValueTransformer()) {
+          return cells;
+        }
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          result.add(cell.withCell(cell.cell.toBuilder().setValue(ByteString.EMPTY).build()));
+        }
+        return result;
+      }
+      case APPLY_LABEL_TRANSFORMER: {
+        List<FlatCell> result = new ArrayList<>();
+        for (FlatCell cell : cells) {
+          Cell labelled =
+              cell.cell.toBuilder().addLabels(filter.getApplyLabelTransformer()).build();
+          result.add(cell.withCell(labelled));
+        }
+        return result;
+      }
+      default:
+        throw Status.UNIMPLEMENTED
+            .withDescription("Unsupported filter: " + filter.getFilterCase())
+            .asRuntimeException();
+    }
+  }
+
+  private static boolean inColumnRange(ColumnRange range, FlatCell cell) {
+    if (!range.getFamilyName().equals(cell.family)) {
+      return false;
+    }
+    int compare;
+    switch (range.getStartQualifierCase()) {
+      case START_QUALIFIER_INCLUSIVE:
+        compare = FakeRow.BYTE_STRING_COMPARATOR.compare(cell.qualifier,
+          range.getStartQualifierInclusive());
+        if (compare < 0) {
+          return false;
+        }
+        break;
+      case START_QUALIFIER_EXCLUSIVE:
+        compare = FakeRow.BYTE_STRING_COMPARATOR.compare(cell.qualifier,
+          range.getStartQualifierExclusive());
+        if (compare <= 0) {
+          return false;
+        }
+        break;
+      default:
+        break;
+    }
+    switch (range.getEndQualifierCase()) {
+      case END_QUALIFIER_INCLUSIVE:
+        return FakeRow.BYTE_STRING_COMPARATOR.compare(cell.qualifier,
+          range.getEndQualifierInclusive()) <= 0;
+      case END_QUALIFIER_EXCLUSIVE:
+        return FakeRow.BYTE_STRING_COMPARATOR.compare(cell.qualifier,
+          range.getEndQualifierExclusive()) < 0;
+      default:
+        return true;
+    }
+  }
+
+  private static boolean inValueRange(ValueRange range, ByteString value) {
+    switch (range.getStartValueCase()) {
+      case START_VALUE_INCLUSIVE:
+        if (FakeRow.BYTE_STRING_COMPARATOR.compare(value, range.getStartValueInclusive()) < 0) {
+          return false;
+        }
+        break;
+      case START_VALUE_EXCLUSIVE:
+        if (FakeRow.BYTE_STRING_COMPARATOR.compare(value, range.getStartValueExclusive()) <= 0) {
+          return false;
+        }
+        break;
+      default:
+        break;
+    }
+    switch (range.getEndValueCase()) {
+      case END_VALUE_INCLUSIVE:
+        return FakeRow.BYTE_STRING_COMPARATOR.compare(value, range.getEndValueInclusive()) <= 0;
+      case END_VALUE_EXCLUSIVE:
+        return FakeRow.BYTE_STRING_COMPARATOR.compare(value, range.getEndValueExclusive()) < 0;
+      default:
+        return true;
+    }
+  }
+
+  private static boolean matches(ByteString regex, ByteString value) {
+    return compile(regex).matcher(toLatin1(value)).matches();
+  }
+
+  private static Pattern compile(ByteString regex) {
+    return Pattern.compile(toLatin1(regex), Pattern.DOTALL);
+  }
+
+  /**
+   * Maps each byte to one char, so that byte-oriented regular expressions work on binary values.
+   */
+  private static String toLatin1(ByteString bytes) {
+    return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+  }
+}
@@ -87,4 +87,14 @@ public class TestBigtableOptions {
   public void testNullStringsDontThrowExceptions() {
      new BigtableOptions.Builder().build();
   }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testHedgeDelayPercentileAbove100() {
+    new BigtableOptions.Builder().setHedgeDelayPercentile(101);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeMaxHedgeRatio() {
+    new BigtableOptions.Builder().setMaxHedgeRatio(-0.1);
+  }
 }
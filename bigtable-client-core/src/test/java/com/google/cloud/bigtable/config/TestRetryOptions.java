@@ -17,10 +17,21 @@ package com.google.cloud.bigtable.config;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.NanoClock;
+import com.google.cloud.bigtable.config.RetryOptions.BackoffPolicy;
+import com.google.cloud.bigtable.config.RetryOptions.BackoffStrategy;
+
 import io.grpc.Status;
 
 /**
@@ -39,6 +50,71 @@ public class TestRetryOptions {
     assertIsRetryableRead(true);
   }
 
+  @Test
+  public void backoffPolicyOverridesDefaultForCode() {
+    RetryOptions options = new RetryOptions.Builder()
+        .setBackoffPolicy(Status.Code.UNAVAILABLE, BackoffStrategy.FULL_JITTER, 50)
+        .build();
+    assertTrue(options.createBackoff(Status.Code.UNAVAILABLE) instanceof JitteredBackOff);
+    assertTrue(options.createBackoff(Status.Code.INTERNAL) instanceof ExponentialBackOff);
+    assertEquals(new BackoffPolicy(BackoffStrategy.FULL_JITTER, 50),
+      options.getBackoffPolicy(Status.Code.UNAVAILABLE));
+    assertEquals(new BackoffPolicy(BackoffStrategy.EXPONENTIAL,
+        RetryOptions.DEFAULT_INITIAL_BACKOFF_MILLIS),
+      options.getBackoffPolicy(Status.Code.INTERNAL));
+  }
+
+  @Test
+  public void fullJitterStaysUnderExponentialInterval() throws IOException {
+    BackOff backoff = new JitteredBackOff(BackoffStrategy.FULL_JITTER,
+        createBackoffSettings(NanoClock.SYSTEM), new Random(1));
+    long exponentialInterval = 10;
+    for (int i = 0; i < 20; i++) {
+      long interval = backoff.nextBackOffMillis();
+      assertTrue(interval >= 0 && interval <= exponentialInterval);
+      exponentialInterval = Math.min(1000, exponentialInterval * 2);
+    }
+  }
+
+  @Test
+  public void decorrelatedJitterDependsOnPreviousInterval() throws IOException {
+    BackOff backoff = new JitteredBackOff(BackoffStrategy.DECORRELATED_JITTER,
+        createBackoffSettings(NanoClock.SYSTEM), new Random(1));
+    long previousInterval = 10;
+    for (int i = 0; i < 20; i++) {
+      long interval = backoff.nextBackOffMillis();
+      assertTrue(interval >= 10 && interval <= Math.min(1000, previousInterval * 2));
+      previousInterval = interval;
+    }
+  }
+
+  @Test
+  public void jitteredBackoffStopsAfterMaxElapsedTime() throws IOException {
+    final AtomicLong now = new AtomicLong();
+    NanoClock clock = new NanoClock() {
+      @Override
+      public long nanoTime() {
+        return now.get();
+      }
+    };
+    BackOff backoff = new JitteredBackOff(BackoffStrategy.FULL_JITTER,
+        createBackoffSettings(clock), new Random(1));
+    assertTrue(backoff.nextBackOffMillis() != BackOff.STOP);
+    now.set(TimeUnit.MILLISECONDS.toNanos(5001));
+    assertEquals(BackOff.STOP, backoff.nextBackOffMillis());
+    backoff.reset();
+    assertTrue(backoff.nextBackOffMillis() != BackOff.STOP);
+  }
+
+  private static ExponentialBackOff.Builder createBackoffSettings(NanoClock clock) {
+    return new ExponentialBackOff.Builder()
+        .setInitialIntervalMillis(10)
+        .setMultiplier(2)
+        .setMaxIntervalMillis(1000)
+        .setMaxElapsedTimeMillis(5000)
+        .setNanoClock(clock);
+  }
+
   private void assertIsRetryableRead(boolean retryOnDeadlineExceeded) {
     RetryOptions options =
         new RetryOptions.Builder().setRetryOnDeadlineExceeded(retryOnDeadlineExceeded).build();
@@ -97,7 +97,8 @@ public class BigtableDataGrpcClientTests {
         .thenReturn(mockClientCall);
     when(mockAsyncUtilities.createAsyncUnaryRpc(any(MethodDescriptor.class)))
         .thenReturn(mockBigtableRpc);
-    when(mockBigtableRpc.call(any(), any(CancellationToken.class))).thenReturn(mockFuture);
+    when(mockBigtableRpc.call(any(), any(CallOptions.class), any(CancellationToken.class)))
+        .thenReturn(mockFuture);
     doAnswer(
             new Answer<Void>() {
               @Override
@@ -211,6 +212,7 @@ public class BigtableDataGrpcClientTests {
   }
 
   private void verifyRequestCalled(Object request) {
-    verify(mockBigtableRpc, times(1)).call(eq(request), any(CancellationToken.class));
+    verify(mockBigtableRpc, times(1))
+        .call(eq(request), any(CallOptions.class), any(CancellationToken.class));
   }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.Row;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CredentialOptions;
+import com.google.cloud.bigtable.grpc.scanner.ResultScanner;
+import com.google.cloud.bigtable.grpc.testing.FakeBigtableDataService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+
+import io.grpc.Server;
+
+/**
+ * Measures the end-to-end throughput and latency of {@link BigtableSession} against a
+ * {@link FakeBigtableDataService}, over the in-process transport and over loopback.
+ */
+public class BigtableSessionPerf {
+  private static final String TABLE_NAME = "projects/p/zones/z/clusters/c/tables/t";
+  private static final int ROW_COUNT = 200_000;
+  private static final int MAX_IN_FLIGHT = 1_000;
+  private static final int VALUE_SIZE = 100;
+  private static final long SERVER_LATENCY_US = 500;
+
+  public static void main(String[] args) throws Exception {
+    FakeBigtableDataService service = new FakeBigtableDataService();
+    service.setLatency(SERVER_LATENCY_US, TimeUnit.MICROSECONDS);
+    Server inProcessServer = service.startInProcessServer("perf");
+    int port = getFreePort();
+    Server loopbackServer = service.startServer(port);
+    try {
+      for (int i = 0; i < 2; i++) {
+        // The first round warms up the JIT.
+        try (BigtableSession session = new BigtableSession(createOptions(port).build(),
+            FakeBigtableDataService.createInProcessChannelFactory("perf"))) {
+          run("in-process", session.getDataClient());
+        }
+        service.clear();
+        BigtableOptions loopbackOptions =
+            createOptions(port).setDataHost("localhost").setUsePlaintextNegotiation(true).build();
+        try (BigtableSession session = new BigtableSession(loopbackOptions)) {
+          run("loopback", session.getDataClient());
+        }
+        service.clear();
+      }
+    } finally {
+      inProcessServer.shutdownNow();
+      loopbackServer.shutdownNow();
+    }
+  }
+
+  private static BigtableOptions.Builder createOptions(int port) {
+    return new BigtableOptions.Builder()
+        .setProjectId("p")
+        .setZoneId("z")
+        .setClusterId("c")
+        .setUserAgent("perf")
+        .setPort(port)
+        .setCredentialOptions(CredentialOptions.nullCredential());
+  }
+
+  private static void run(String name, BigtableDataClient client) throws Exception {
+    final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    final long[] latencies = new long[ROW_COUNT];
+    final AtomicInteger failures = new AtomicInteger();
+    ByteString value = ByteString.copyFrom(new byte[VALUE_SIZE]);
+    long start = System.nanoTime();
+    for (int i = 0; i < ROW_COUNT; i++) {
+      MutateRowRequest request = MutateRowRequest.newBuilder()
+          .setTableName(TABLE_NAME)
+          .setRowKey(ByteString.copyFromUtf8(String.format("row-%08d", i)))
+          .addMutations(Mutation.newBuilder().setSetCell(SetCell.newBuilder()
+              .setFamilyName("cf")
+              .setColumnQualifier(ByteString.copyFromUtf8("q"))
+              .setTimestampMicros(-1)
+              .setValue(value)))
+          .build();
+      inFlight.acquire();
+      final int index = i;
+      final long rpcStart = System.nanoTime();
+      Futures.addCallback(client.mutateRowAsync(request), new FutureCallback<Empty>() {
+        @Override
+        public void onSuccess(Empty result) {
+          latencies[index] = System.nanoTime() - rpcStart;
+          inFlight.release();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          failures.incrementAndGet();
+          inFlight.release();
+        }
+      });
+    }
+    inFlight.acquire(MAX_IN_FLIGHT);
+    long writeNanos = System.nanoTime() - start;
+    inFlight.release(MAX_IN_FLIGHT);
+    Arrays.sort(latencies);
+    System.out.println(String.format(
+      "%s: %d MutateRows in %d ms. %.0f RPCs/sec, p50 %d us, p99 %d us, %d failures", name,
+      ROW_COUNT, TimeUnit.NANOSECONDS.toMillis(writeNanos),
+      ROW_COUNT * 1_000_000_000d / writeNanos, percentileMicros(latencies, 50),
+      percentileMicros(latencies, 99), failures.get()));
+
+    start = System.nanoTime();
+    int rowCount = 0;
+    try (ResultScanner<Row> scanner =
+        client.readRows(ReadRowsRequest.newBuilder().setTableName(TABLE_NAME).build())) {
+      while (scanner.next() != null) {
+        rowCount++;
+      }
+    }
+    long scanNanos = System.nanoTime() - start;
+    System.out.println(String.format("%s: scanned %d rows in %d ms. %.0f rows/sec", name,
+      rowCount, TimeUnit.NANOSECONDS.toMillis(scanNanos), rowCount * 1_000_000_000d / scanNanos));
+  }
+
+  private static long percentileMicros(long[] sortedNanos, int percentile) {
+    int index = Math.min(sortedNanos.length - 1, sortedNanos.length * percentile / 100);
+    return TimeUnit.NANOSECONDS.toMicros(sortedNanos[index]);
+  }
+
+  private static int getFreePort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -17,12 +17,26 @@
 package com.google.cloud.bigtable.grpc;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.Mutation;
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CredentialOptions;
+import com.google.cloud.bigtable.grpc.io.ChannelPool;
+import com.google.cloud.bigtable.grpc.io.ChannelPoolRegistry;
+import com.google.cloud.bigtable.grpc.testing.FakeBigtableDataService;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Server;
 
 @SuppressWarnings({"resource","unused"})
 public class TestBigtableSession {
@@ -73,4 +87,85 @@ public class TestBigtableSession {
     expectedException.expectMessage(BigtableSession.USER_AGENT_EMPTY_OR_NULL);
     createSession(PROJECT_ID, ZONE_ID, CLUSTER_ID, null);
   }
+
+  @Test
+  public void testSessionsShareDataChannelPool() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    FakeBigtableDataService service = new FakeBigtableDataService();
+    Server server = service.startServer(port);
+    try {
+      BigtableOptions options = new BigtableOptions.Builder()
+          .setProjectId(PROJECT_ID)
+          .setZoneId(ZONE_ID)
+          .setClusterId(CLUSTER_ID)
+          .setUserAgent(USER_AGENT)
+          .setDataHost("localhost")
+          .setPort(port)
+          .setUsePlaintextNegotiation(true)
+          .setCredentialOptions(CredentialOptions.nullCredential())
+          .setUseSharedChannelPool(true)
+          .build();
+      ChannelPoolRegistry registry = ChannelPoolRegistry.getInstance();
+      ChannelPoolRegistry.Key key = new ChannelPoolRegistry.Key("localhost", port,
+          CredentialOptions.nullCredential(), USER_AGENT);
+
+      List<BigtableSession> sessions = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        sessions.add(new BigtableSession(options));
+      }
+      Assert.assertEquals(5, registry.getReferenceCount(key));
+
+      ChannelPool pool = getSharedPool(registry, key);
+      for (BigtableSession session : sessions) {
+        session.getDataClient().mutateRow(MutateRowRequest.newBuilder()
+            .setTableName("projects/p/zones/z/clusters/c/tables/t")
+            .setRowKey(ByteString.copyFromUtf8("row"))
+            .addMutations(Mutation.newBuilder()
+                .setDeleteFromRow(Mutation.DeleteFromRow.getDefaultInstance()))
+            .build());
+      }
+
+      // Close the sessions out of order. The pool has to stay usable until the last one closes.
+      for (int index : new int[] { 3, 0, 4, 1 }) {
+        sessions.get(index).close();
+        Assert.assertFalse(pool.isShutdown());
+      }
+      // Closing a session twice must not give up another session's reference.
+      sessions.get(0).close();
+      Assert.assertEquals(1, registry.getReferenceCount(key));
+      sessions.get(2).getDataClient().mutateRow(MutateRowRequest.newBuilder()
+          .setTableName("projects/p/zones/z/clusters/c/tables/t")
+          .setRowKey(ByteString.copyFromUtf8("row"))
+          .addMutations(Mutation.newBuilder()
+              .setDeleteFromRow(Mutation.DeleteFromRow.getDefaultInstance()))
+          .build());
+
+      sessions.get(2).close();
+      Assert.assertEquals(0, registry.getReferenceCount(key));
+      Assert.assertTrue(pool.isShutdown());
+      Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    } finally {
+      server.shutdownNow();
+    }
+  }
+
+  /**
+   * Takes and immediately gives back a lease, to get at the pool that the sessions share.
+   */
+  private static ChannelPool getSharedPool(ChannelPoolRegistry registry,
+      ChannelPoolRegistry.Key key) throws IOException {
+    ChannelPoolRegistry.Lease lease =
+        registry.acquire(key, new ChannelPoolRegistry.ChannelPoolFactory() {
+          @Override
+          public ChannelPool create() throws IOException {
+            throw new IOException("The sessions should have created the pool.");
+          }
+        });
+    ChannelPool pool = lease.getChannelPool();
+    lease.release();
+    return pool;
+  }
 }
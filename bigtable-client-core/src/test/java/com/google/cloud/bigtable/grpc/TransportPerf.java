@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.BigtableServiceGrpc;
+import com.google.bigtable.v1.CheckAndMutateRowRequest;
+import com.google.bigtable.v1.CheckAndMutateRowResponse;
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.ReadRowsResponse;
+import com.google.bigtable.v1.Row;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.netty.NegotiationType;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Compares the throughput of the NIO and the native epoll netty transports by sending MutateRow
+ * RPCs to a trivial server over loopback. Epoll is skipped if it's not available on this machine.
+ */
+public class TransportPerf {
+  private static final int RPC_COUNT = 500_000;
+  private static final int MAX_IN_FLIGHT = 1_000;
+  private static final int VALUE_SIZE = 1_000;
+
+  public static void main(String[] args) throws Exception {
+    int port = getFreePort();
+    Server server = NettyServerBuilder.forAddress(new InetSocketAddress("localhost", port))
+        .addService(BigtableServiceGrpc.bindService(new OkService()))
+        .build()
+        .start();
+    try {
+      MutateRowRequest request = MutateRowRequest.newBuilder()
+          .setTableName("projects/p/zones/z/clusters/c/tables/t")
+          .setRowKey(ByteString.copyFromUtf8("row"))
+          .addMutations(Mutation.newBuilder().setSetCell(SetCell.newBuilder()
+              .setFamilyName("cf")
+              .setColumnQualifier(ByteString.copyFromUtf8("q"))
+              .setValue(ByteString.copyFrom(new byte[VALUE_SIZE]))))
+          .build();
+      boolean epollAvailable = BigtableSessionSharedThreadPools.isEpollAvailable();
+      System.out.println("Epoll available: " + epollAvailable);
+      for (int i = 0; i < 2; i++) {
+        // The first round warms up the JIT.
+        run("nio", port, false, request);
+        if (epollAvailable) {
+          run("epoll", port, true, request);
+        }
+      }
+    } finally {
+      server.shutdownNow();
+    }
+  }
+
+  private static void run(String name, int port, boolean useEpoll, MutateRowRequest request)
+      throws InterruptedException {
+    BigtableSessionSharedThreadPools pools = BigtableSessionSharedThreadPools.getInstance();
+    ManagedChannel channel = NettyChannelBuilder.forAddress("localhost", port)
+        .negotiationType(NegotiationType.PLAINTEXT)
+        .eventLoopGroup(pools.getEventLoopGroup(useEpoll))
+        .channelType(pools.getChannelType(useEpoll))
+        .executor(pools.getBatchThreadPool())
+        .build();
+    try {
+      BigtableServiceGrpc.BigtableServiceFutureStub stub = BigtableServiceGrpc.newFutureStub(channel);
+      final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+      FutureCallback<Empty> release = new FutureCallback<Empty>() {
+        @Override
+        public void onSuccess(Empty result) {
+          inFlight.release();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          inFlight.release();
+        }
+      };
+      long start = System.nanoTime();
+      for (int i = 0; i < RPC_COUNT; i++) {
+        inFlight.acquire();
+        ListenableFuture<Empty> future = stub.mutateRow(request);
+        Futures.addCallback(future, release);
+      }
+      inFlight.acquire(MAX_IN_FLIGHT);
+      long diff = System.nanoTime() - start;
+      System.out.println(String.format("%s: %d RPCs in %d ms. %.0f RPCs/sec", name, RPC_COUNT,
+        TimeUnit.NANOSECONDS.toMillis(diff), RPC_COUNT * 1_000_000_000d / diff));
+    } finally {
+      channel.shutdownNow();
+    }
+  }
+
+  private static int getFreePort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Acknowledges mutations without storing them. Other methods are not needed by this test.
+   */
+  private static class OkService implements BigtableServiceGrpc.BigtableService {
+    @Override
+    public void mutateRow(MutateRowRequest request, StreamObserver<Empty> responseObserver) {
+      responseObserver.onNext(Empty.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void readRows(ReadRowsRequest request,
+        StreamObserver<ReadRowsResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void sampleRowKeys(SampleRowKeysRequest request,
+        StreamObserver<SampleRowKeysResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void mutateRows(MutateRowsRequest request,
+        StreamObserver<MutateRowsResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void checkAndMutateRow(CheckAndMutateRowRequest request,
+        StreamObserver<CheckAndMutateRowResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void readModifyWriteRow(ReadModifyWriteRowRequest request,
+        StreamObserver<Row> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+  }
+}
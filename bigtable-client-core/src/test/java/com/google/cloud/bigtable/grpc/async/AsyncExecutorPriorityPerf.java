@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Simple benchmark for {@link RpcPriority}. Several threads keep the {@link AsyncExecutor} full of
+ * bulk writes while one thread sends reads one at a time, and the read latency is printed with and
+ * without priorities. The RPCs go to an in-memory {@link BigtableDataClient} that completes every
+ * RPC after a fixed latency.
+ */
+public class AsyncExecutorPriorityPerf {
+  final static int MAX_IN_FLIGHT = 50;
+  final static long RPC_LATENCY_MILLIS = 5;
+  final static int WRITER_COUNT = 8;
+  final static int READ_COUNT = 1000;
+
+  public static void main(String[] args) throws Exception {
+    ScheduledExecutorService server = Executors.newScheduledThreadPool(4);
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      BigtableDataClient client = createClient(server);
+      for (int i = 0; i < 5; i++) {
+        System.out.println("=======");
+        test(client, pool, RpcPriority.DEFAULT, RpcPriority.DEFAULT);
+        test(client, pool, RpcPriority.BULK, RpcPriority.INTERACTIVE);
+      }
+    } finally {
+      pool.shutdownNow();
+      server.shutdownNow();
+    }
+  }
+
+  private static void test(BigtableDataClient client, ExecutorService pool,
+      final RpcPriority writePriority, RpcPriority readPriority) throws Exception {
+    final AsyncExecutor asyncExecutor = new AsyncExecutor(client,
+        new RpcThrottler(new ResourceLimiter(Long.MAX_VALUE, MAX_IN_FLIGHT)));
+    final MutateRowsRequest writeRequest =
+        MutateRowsRequest.newBuilder().setTableName("table").build();
+    ReadRowsRequest readRequest = ReadRowsRequest.newBuilder().setTableName("table").build();
+    final AtomicBoolean done = new AtomicBoolean();
+
+    for (int i = 0; i < WRITER_COUNT; i++) {
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (!done.get()) {
+              asyncExecutor.mutateRowsAsync(writeRequest, writePriority);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    Thread.sleep(100);
+
+    long[] latencies = new long[READ_COUNT];
+    for (int i = 0; i < READ_COUNT; i++) {
+      long start = System.nanoTime();
+      asyncExecutor.readRowsAsync(readRequest, readPriority).get();
+      latencies[i] = System.nanoTime() - start;
+    }
+    done.set(true);
+    asyncExecutor.flush();
+
+    Arrays.sort(latencies);
+    System.out.println(String.format(
+      "writes: %s, reads: %s. Read latency p50: %d micros, p99: %d micros, max: %d micros",
+      writePriority, readPriority,
+      TimeUnit.NANOSECONDS.toMicros(latencies[READ_COUNT / 2]),
+      TimeUnit.NANOSECONDS.toMicros(latencies[READ_COUNT * 99 / 100]),
+      TimeUnit.NANOSECONDS.toMicros(latencies[READ_COUNT - 1])));
+  }
+
+  /**
+   * Creates a {@link BigtableDataClient} whose async methods return a future that completes after
+   * {@link #RPC_LATENCY_MILLIS}.
+   */
+  private static BigtableDataClient createClient(final ScheduledExecutorService server) {
+    InvocationHandler handler = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final SettableFuture<Object> future = SettableFuture.create();
+        server.schedule(new Runnable() {
+          @Override
+          public void run() {
+            future.set(null);
+          }
+        }, RPC_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+        return future;
+      }
+    };
+    return (BigtableDataClient) Proxy.newProxyInstance(BigtableDataClient.class.getClassLoader(),
+      new Class<?>[] { BigtableDataClient.class }, handler);
+  }
+}
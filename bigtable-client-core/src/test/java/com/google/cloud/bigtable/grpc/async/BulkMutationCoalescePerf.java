@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.Random;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.protobuf.ByteString;
+
+/**
+ * Simple benchmark for coalescing rows in a {@link BulkMutation}. Bulk mutations of
+ * {@link #BATCH_SIZE} writes are built from a write heavy workload where
+ * {@link #HOT_ROW_PERCENT} percent of the writes go to {@link #HOT_ROW_COUNT} rows. The size of the
+ * requests, the number of entries in them, which is the number of rows that the server has to lock,
+ * and the time to build them are printed with and without coalescing.
+ */
+public class BulkMutationCoalescePerf {
+  final static int BATCH_SIZE = 100;
+  final static int BATCH_COUNT = 100_000;
+  final static int HOT_ROW_COUNT = 10;
+  final static int HOT_ROW_PERCENT = 80;
+  final static int COLD_ROW_COUNT = 1_000_000;
+
+  public static void main(String[] args) {
+    MutateRowRequest[] requests = createRequests();
+    for (int i = 0; i < 5; i++) {
+      System.out.println("=======");
+      test(requests, false);
+      test(requests, true);
+    }
+  }
+
+  private static void test(MutateRowRequest[] requests, boolean coalesceRows) {
+    long totalBytes = 0;
+    long totalEntries = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < BATCH_COUNT; i++) {
+      BulkMutation bulkMutation = new BulkMutation("table", null, null, null, coalesceRows);
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        bulkMutation.add(requests[(i * BATCH_SIZE + j) % requests.length]);
+      }
+      MutateRowsRequest request = bulkMutation.toRequest();
+      totalBytes += request.getSerializedSize();
+      totalEntries += request.getEntriesCount();
+    }
+    long totalTime = System.nanoTime() - start;
+    System.out.println(String.format(
+      "coalesceRows: %s. %d bytes and %f entries per request, %d ns per write", coalesceRows,
+      totalBytes / BATCH_COUNT, (double) totalEntries / BATCH_COUNT,
+      totalTime / (BATCH_COUNT * BATCH_SIZE)));
+  }
+
+  private static MutateRowRequest[] createRequests() {
+    Random random = new Random(0);
+    MutateRowRequest[] requests = new MutateRowRequest[BATCH_SIZE * 100];
+    for (int i = 0; i < requests.length; i++) {
+      int row = random.nextInt(100) < HOT_ROW_PERCENT
+          ? random.nextInt(HOT_ROW_COUNT)
+          : HOT_ROW_COUNT + random.nextInt(COLD_ROW_COUNT);
+      requests[i] = MutateRowRequest.newBuilder()
+          .setRowKey(ByteString.copyFromUtf8(String.format("row-%08d", row)))
+          .addMutations(Mutation.newBuilder()
+            .setSetCell(SetCell.newBuilder()
+              .setFamilyName("family")
+              .setColumnQualifier(ByteString.copyFromUtf8("qualifier-" + random.nextInt(10)))
+              .setValue(ByteString.copyFromUtf8("value"))))
+          .build();
+    }
+    return requests;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.cloud.bigtable.grpc.io.CancellationToken;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+import io.grpc.Status;
+
+/**
+ * Tests for {@link HedgingRpc}.
+ */
+@RunWith(JUnit4.class)
+public class HedgingRpcTest {
+
+  private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /**
+   * Records each call, and lets the test complete it.
+   */
+  private static class FakeRpc implements BigtableAsyncRpc<String, String> {
+    List<SettableFuture<String>> futures = new ArrayList<>();
+    List<AtomicBoolean> cancelled = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<String> call(String request, CallOptions callOptions,
+        CancellationToken cancellationToken) {
+      SettableFuture<String> future = SettableFuture.create();
+      final AtomicBoolean isCancelled = new AtomicBoolean();
+      cancellationToken.addListener(new Runnable() {
+        @Override
+        public void run() {
+          isCancelled.set(true);
+        }
+      }, MoreExecutors.directExecutor());
+      futures.add(future);
+      cancelled.add(isCancelled);
+      return future;
+    }
+  }
+
+  @Mock
+  private ScheduledExecutorService scheduler;
+
+  private FakeRpc rpc;
+  private HedgingRpc.LatencyTracker latencyTracker;
+  private HedgingRpc.Budget budget;
+  private HedgingRpc<String, String> underTest;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    rpc = new FakeRpc();
+    latencyTracker = new HedgingRpc.LatencyTracker(10, 90);
+    budget = new HedgingRpc.Budget(1, 10);
+    underTest = new HedgingRpc<>(rpc, scheduler, latencyTracker, budget);
+  }
+
+  @Test
+  public void testNoHedgeWithoutLatencies() throws Exception {
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, null);
+    verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    rpc.futures.get(0).set("response");
+    Assert.assertEquals("response", result.get());
+  }
+
+  @Test
+  public void testPrimaryWins() throws Exception {
+    recordLatencies();
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, null);
+    Runnable hedge = captureHedge();
+
+    rpc.futures.get(0).set("primary");
+    hedge.run();
+    Assert.assertEquals("primary", result.get());
+    Assert.assertEquals("A completed request should not be hedged", 1, rpc.futures.size());
+    Assert.assertEquals(0, underTest.getHedgedCount());
+  }
+
+  @Test
+  public void testHedgeWinsAndCancelsPrimary() throws Exception {
+    recordLatencies();
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, null);
+    captureHedge().run();
+    Assert.assertEquals(2, rpc.futures.size());
+
+    rpc.futures.get(1).set("hedge");
+    Assert.assertEquals("hedge", result.get());
+    Assert.assertTrue(rpc.cancelled.get(0).get());
+    Assert.assertFalse(rpc.cancelled.get(1).get());
+    Assert.assertEquals(1, underTest.getHedgedCount());
+    Assert.assertEquals(1, underTest.getHedgeWinCount());
+
+    // The loser's late response is ignored.
+    rpc.futures.get(0).set("primary");
+    Assert.assertEquals("hedge", result.get());
+  }
+
+  @Test
+  public void testPrimaryWinsAndCancelsHedge() throws Exception {
+    recordLatencies();
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, null);
+    captureHedge().run();
+
+    rpc.futures.get(0).set("primary");
+    Assert.assertEquals("primary", result.get());
+    Assert.assertTrue(rpc.cancelled.get(1).get());
+    Assert.assertEquals(0, underTest.getHedgeWinCount());
+  }
+
+  @Test
+  public void testFailureWaitsForOtherCopy() throws Exception {
+    recordLatencies();
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, null);
+    captureHedge().run();
+
+    rpc.futures.get(0).setException(Status.UNAVAILABLE.asRuntimeException());
+    Assert.assertFalse(result.isDone());
+    rpc.futures.get(1).set("hedge");
+    Assert.assertEquals("hedge", result.get());
+  }
+
+  @Test
+  public void testBothCopiesFail() throws Exception {
+    recordLatencies();
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, null);
+    captureHedge().run();
+
+    rpc.futures.get(0).setException(Status.UNAVAILABLE.asRuntimeException());
+    rpc.futures.get(1).setException(Status.INTERNAL.asRuntimeException());
+    try {
+      result.get();
+      Assert.fail("Expected a failure");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(Status.Code.INTERNAL, Status.fromThrowable(e).getCode());
+    }
+  }
+
+  @Test
+  public void testCancellationCancelsBothCopies() throws Exception {
+    recordLatencies();
+    CancellationToken token = new CancellationToken();
+    ListenableFuture<String> result = underTest.call("request", CallOptions.DEFAULT, token);
+    captureHedge().run();
+
+    token.cancel();
+    Assert.assertTrue(result.isCancelled());
+    Assert.assertTrue(rpc.cancelled.get(0).get());
+    Assert.assertTrue(rpc.cancelled.get(1).get());
+  }
+
+  @Test
+  public void testBudgetLimitsHedges() throws Exception {
+    budget = new HedgingRpc.Budget(0.05, 1);
+    underTest = new HedgingRpc<>(rpc, scheduler, latencyTracker, budget);
+    recordLatencies();
+    ArgumentCaptor<Runnable> hedges = ArgumentCaptor.forClass(Runnable.class);
+    for (int i = 0; i < 100; i++) {
+      underTest.call("request", CallOptions.DEFAULT, null);
+    }
+    verify(scheduler, times(100))
+        .schedule(hedges.capture(), eq(DELAY_NANOS), eq(TimeUnit.NANOSECONDS));
+    for (Runnable hedge : hedges.getAllValues()) {
+      hedge.run();
+    }
+    // 100 requests earn 5 tokens, but the bucket only holds 1 at a time.
+    Assert.assertEquals(1, underTest.getHedgedCount());
+    Assert.assertEquals(101, rpc.futures.size());
+  }
+
+  @Test
+  public void testBudget() {
+    HedgingRpc.Budget smallBudget = new HedgingRpc.Budget(0.25, 2);
+    Assert.assertFalse(smallBudget.tryAcquire());
+    for (int i = 0; i < 4; i++) {
+      smallBudget.onRequest();
+    }
+    Assert.assertTrue(smallBudget.tryAcquire());
+    Assert.assertFalse(smallBudget.tryAcquire());
+    for (int i = 0; i < 100; i++) {
+      smallBudget.onRequest();
+    }
+    Assert.assertTrue(smallBudget.tryAcquire());
+    Assert.assertTrue(smallBudget.tryAcquire());
+    Assert.assertFalse(smallBudget.tryAcquire());
+  }
+
+  @Test
+  public void testLatencyTrackerPercentile() {
+    HedgingRpc.LatencyTracker tracker = new HedgingRpc.LatencyTracker(100, 95);
+    for (int i = 1; i < 100; i++) {
+      tracker.record(i);
+      Assert.assertEquals(-1, tracker.getPercentileNanos());
+    }
+    tracker.record(100);
+    Assert.assertEquals(95, tracker.getPercentileNanos());
+
+    // Only the most recent latencies count.
+    for (int i = 0; i < 100; i++) {
+      tracker.record(1000 + i);
+    }
+    Assert.assertEquals(1094, tracker.getPercentileNanos());
+  }
+
+  private void recordLatencies() {
+    for (int i = 0; i < 10; i++) {
+      latencyTracker.record(DELAY_NANOS);
+    }
+  }
+
+  private Runnable captureHedge() {
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(captor.capture(), eq(DELAY_NANOS), eq(TimeUnit.NANOSECONDS));
+    return captor.getValue();
+  }
+}
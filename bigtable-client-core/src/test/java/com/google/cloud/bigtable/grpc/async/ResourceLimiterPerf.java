@@ -29,19 +29,26 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
- * Simple microbenchmark for {@link ResourceLimiter}
+ * Simple microbenchmark for {@link ResourceLimiter}. Each run registers operations from a number of
+ * writer threads and completes them from a number of reader threads. The limiter only allows
+ * {@link #MAX_IN_FLIGHT} operations at a time, so writers also wait for completions.
  */
 public class ResourceLimiterPerf {
   final static long SIZE = 10_000L;
   final static int REGISTER_COUNT = ((int) SIZE) * 100;
+  final static int MAX_IN_FLIGHT = 1000;
+  final static int[] THREAD_COUNTS = { 1, 4, 16, 64 };
 
   public static void main(String[] args) throws Exception {
     ListeningExecutorService pool =
         MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
     try {
       for (int i = 0; i < 10; i++) {
-        System.out.println("=======");
-        test(pool);
+        for (int threadCount : THREAD_COUNTS) {
+          System.out.println(String.format("======= %d writers, %d readers", threadCount,
+            threadCount));
+          test(pool, threadCount, threadCount);
+        }
       }
     } finally {
       pool.shutdownNow();
@@ -50,17 +57,17 @@ public class ResourceLimiterPerf {
 
   /**
    * @param pool
+   * @param writerCount The number of threads that register operations.
+   * @param readerCount The number of threads that complete operations.
    * @throws InterruptedException
    * @throws ExecutionException
    * @throws TimeoutException
    */
-  private static void test(ListeningExecutorService pool)
-      throws InterruptedException, ExecutionException, TimeoutException {
-    final ResourceLimiter underTest = new ResourceLimiter(SIZE, (int) SIZE);
+  private static void test(ListeningExecutorService pool, final int writerCount,
+      final int readerCount) throws InterruptedException, ExecutionException, TimeoutException {
+    final ResourceLimiter underTest = new ResourceLimiter(SIZE, MAX_IN_FLIGHT);
     final LinkedBlockingQueue<Long> registeredEvents = new LinkedBlockingQueue<>();
 
-    final int readerCount = 20;
-    final int writerCount = 1;
     Runnable writePerfRunnable =
         new Runnable() {
           @Override
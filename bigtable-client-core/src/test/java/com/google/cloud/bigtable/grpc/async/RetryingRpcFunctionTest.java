@@ -16,13 +16,22 @@
 package com.google.cloud.bigtable.grpc.async;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -35,22 +44,23 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.google.api.client.util.NanoClock;
-import com.google.api.client.util.Sleeper;
 import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.bigtable.v1.ReadRowsResponse;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.config.RetryOptionsUtil;
-import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.io.CancellationToken;
 import com.google.cloud.bigtable.grpc.scanner.BigtableRetriesExhaustedException;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import io.grpc.CallOptions;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 
@@ -73,6 +83,8 @@ public class RetryingRpcFunctionTest {
   private NanoClock nanoClock;
   @Mock
   private ListenableFuture mockFuture;
+  @Mock
+  private ScheduledExecutorService retryExecutor;
 
   private RetryOptions retryOptions;
 
@@ -84,17 +96,29 @@ public class RetryingRpcFunctionTest {
     retryOptions = RetryOptionsUtil.createTestRetryOptions(nanoClock);
 
     underTest = new RetryingRpcFunction<>(retryOptions, ReadRowsRequest.getDefaultInstance(),
-        readAsync, Predicates.<ReadRowsRequest> alwaysTrue(),
-        BigtableSessionSharedThreadPools.getInstance().getRetryExecutor(), null);
+        readAsync, Predicates.<ReadRowsRequest> alwaysTrue(), retryExecutor, null);
 
     totalSleep = new AtomicLong();
 
-    underTest.sleeper = new Sleeper() {
+    // Run scheduled retries right away, and keep track of how long they would have waited.
+    when(retryExecutor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+        .then(new Answer<ScheduledFuture>() {
+          @Override
+          public ScheduledFuture answer(InvocationOnMock invocation) throws Throwable {
+            long delay = invocation.getArgumentAt(1, Long.class);
+            TimeUnit unit = invocation.getArgumentAt(2, TimeUnit.class);
+            totalSleep.addAndGet(unit.toNanos(delay));
+            invocation.getArgumentAt(0, Runnable.class).run();
+            return mock(ScheduledFuture.class);
+          }
+        });
+    doAnswer(new Answer<Void>() {
       @Override
-      public void sleep(long ms) throws InterruptedException {
-        totalSleep.addAndGet(ms * 1000000);
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.getArgumentAt(0, Runnable.class).run();
+        return null;
       }
-    };
+    }).when(retryExecutor).execute(any(Runnable.class));
 
     final long start = System.nanoTime();
 
@@ -117,7 +141,8 @@ public class RetryingRpcFunctionTest {
         return null;
       }
     }).when(mockFuture).addListener(any(Runnable.class), any(Executor.class));
-    when(readAsync.call(any(ReadRowsRequest.class), any(CancellationToken.class))).thenReturn(mockFuture);
+    when(readAsync.call(any(ReadRowsRequest.class), any(CallOptions.class),
+      any(CancellationToken.class))).thenReturn(mockFuture);
   }
 
   @Test
@@ -165,4 +190,176 @@ public class RetryingRpcFunctionTest {
         totalSleep.get() >= maxSleep);
     }
   }
+
+  @Test
+  public void testAttemptDeadline() throws Exception {
+    underTest = createFunctionWithDeadlines(100, 0);
+    when(mockFuture.get()).thenReturn(ReadRowsResponse.getDefaultInstance());
+    long start = System.nanoTime();
+    underTest.callRpcWithRetry().get(1, TimeUnit.SECONDS);
+
+    ArgumentCaptor<CallOptions> options = ArgumentCaptor.forClass(CallOptions.class);
+    verify(readAsync).call(any(ReadRowsRequest.class), options.capture(),
+      any(CancellationToken.class));
+    Long deadline = options.getValue().getDeadlineNanoTime();
+    Assert.assertNotNull(deadline);
+    // The deadline is 100 ms after the attempt starts, which is after start.
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    Assert.assertTrue(deadline - (start + timeoutNanos) >= 0);
+    Assert.assertTrue(deadline - (System.nanoTime() + timeoutNanos) <= 0);
+  }
+
+  @Test
+  public void testNoDeadlineByDefault() throws Exception {
+    when(mockFuture.get()).thenReturn(ReadRowsResponse.getDefaultInstance());
+    underTest.callRpcWithRetry().get(1, TimeUnit.SECONDS);
+    verify(readAsync).call(any(ReadRowsRequest.class), same(CallOptions.DEFAULT),
+      any(CancellationToken.class));
+  }
+
+  @Test
+  public void testOverallDeadlineStopsRetries() throws Exception {
+    underTest = createFunctionWithDeadlines(0, 500);
+    Status expectedStatus = Status.UNAVAILABLE;
+    when(mockFuture.get()).thenThrow(expectedStatus.asRuntimeException());
+    try {
+      underTest.callRpcWithRetry().get(1, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException e) {
+      Assert.assertEquals(BigtableRetriesExhaustedException.class, e.getCause().getClass());
+      Assert.assertEquals("Exceeded the overall deadline.", e.getCause().getMessage());
+      Assert.assertTrue(
+        String.format("Slept %d ms", TimeUnit.NANOSECONDS.toMillis(totalSleep.get())),
+        totalSleep.get() < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    // Each attempt only gets the time that is left before the overall deadline.
+    ArgumentCaptor<CallOptions> options = ArgumentCaptor.forClass(CallOptions.class);
+    verify(readAsync, atLeast(2)).call(any(ReadRowsRequest.class), options.capture(),
+      any(CancellationToken.class));
+    List<CallOptions> allOptions = options.getAllValues();
+    long firstTimeout = allOptions.get(0).getDeadlineNanoTime() - System.nanoTime();
+    long lastTimeout =
+        allOptions.get(allOptions.size() - 1).getDeadlineNanoTime() - System.nanoTime();
+    Assert.assertTrue(lastTimeout < firstTimeout);
+  }
+
+  @Test
+  public void testRetryBudgetStopsRetries() throws Exception {
+    RetryBudget retryBudget = new RetryBudget(2, 0);
+    underTest = createFunctionWithBudget(retryBudget);
+    when(mockFuture.get()).thenThrow(Status.UNAVAILABLE.asRuntimeException());
+    try {
+      underTest.callRpcWithRetry().get(1, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException e) {
+      Assert.assertEquals(BigtableRetriesExhaustedException.class, e.getCause().getClass());
+      Assert.assertEquals("Exhausted the retry budget.", e.getCause().getMessage());
+    }
+    verify(readAsync, times(3)).call(any(ReadRowsRequest.class), any(CallOptions.class),
+      any(CancellationToken.class));
+    Assert.assertEquals(2, retryBudget.getRetryCount());
+    Assert.assertEquals(1, retryBudget.getRejectedRetryCount());
+  }
+
+  @Test
+  public void testFirstAttemptSuccessRefillsRetryBudget() throws Exception {
+    RetryBudget retryBudget = new RetryBudget(1, 0.5);
+    Assert.assertTrue(retryBudget.tryAcquire());
+    underTest = createFunctionWithBudget(retryBudget);
+    when(mockFuture.get()).thenReturn(ReadRowsResponse.getDefaultInstance());
+    underTest.callRpcWithRetry().get(1, TimeUnit.SECONDS);
+    Assert.assertEquals(0.5, retryBudget.getAvailableTokens(), 0.001);
+  }
+
+  @Test
+  public void testManyConcurrentRetriesWithFewThreads() throws Exception {
+    final int rpcCount = 5000;
+    final int failuresPerRpc = 3;
+    ScheduledExecutorService retryThreads = Executors.newScheduledThreadPool(2);
+    try {
+      RetryOptions realRetryOptions = new RetryOptions.Builder().build();
+      List<ListenableFuture<ReadRowsResponse>> results = new ArrayList<>();
+      for (int i = 0; i < rpcCount; i++) {
+        final AtomicInteger attempts = new AtomicInteger();
+        BigtableAsyncRpc<ReadRowsRequest, ReadRowsResponse> flakyRpc =
+            new BigtableAsyncRpc<ReadRowsRequest, ReadRowsResponse>() {
+              @Override
+              public ListenableFuture<ReadRowsResponse> call(ReadRowsRequest request,
+                  CallOptions callOptions, CancellationToken cancellationToken) {
+                if (attempts.incrementAndGet() <= failuresPerRpc) {
+                  return Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException());
+                }
+                return Futures.immediateFuture(ReadRowsResponse.getDefaultInstance());
+              }
+            };
+        RetryingRpcFunction<ReadRowsRequest, ReadRowsResponse> function =
+            new RetryingRpcFunction<>(realRetryOptions, ReadRowsRequest.getDefaultInstance(),
+                flakyRpc, Predicates.<ReadRowsRequest> alwaysTrue(), retryThreads, null);
+        results.add(function.callRpcWithRetry());
+      }
+      // Every RPC is backing off at the same time, so this would take far longer if each retry
+      // held one of the two threads while it waited.
+      Assert.assertEquals(rpcCount, Futures.allAsList(results).get(30, TimeUnit.SECONDS).size());
+    } finally {
+      retryThreads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCancelUnschedulesRetry() throws Exception {
+    ScheduledFuture scheduledRetry = mock(ScheduledFuture.class);
+    underTest = createFunctionWithDelayedRetry(scheduledRetry, null);
+    ListenableFuture result = underTest.callRpcWithRetry();
+    Assert.assertFalse(result.isDone());
+
+    result.cancel(true);
+    verify(scheduledRetry, times(1)).cancel(false);
+    verify(readAsync, times(1)).call(any(ReadRowsRequest.class), any(CallOptions.class),
+      any(CancellationToken.class));
+  }
+
+  @Test
+  public void testCancellationTokenUnschedulesRetry() throws Exception {
+    ScheduledFuture scheduledRetry = mock(ScheduledFuture.class);
+    CancellationToken cancellationToken = new CancellationToken();
+    underTest = createFunctionWithDelayedRetry(scheduledRetry, cancellationToken);
+    ListenableFuture result = underTest.callRpcWithRetry();
+    Assert.assertFalse(result.isDone());
+
+    cancellationToken.cancel();
+    Assert.assertTrue(result.isCancelled());
+    verify(scheduledRetry, times(1)).cancel(false);
+  }
+
+  /**
+   * Creates a function whose RPC fails once with a retryable status, and whose retry stays
+   * scheduled as {@code scheduledRetry}.
+   */
+  private RetryingRpcFunction createFunctionWithDelayedRetry(ScheduledFuture scheduledRetry,
+      CancellationToken cancellationToken) {
+    when(retryExecutor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+        .thenReturn(scheduledRetry);
+    when(readAsync.call(any(ReadRowsRequest.class), any(CallOptions.class),
+      any(CancellationToken.class)))
+        .thenReturn(Futures.<ReadRowsResponse> immediateFailedFuture(
+          Status.UNAVAILABLE.asRuntimeException()));
+    return new RetryingRpcFunction<>(retryOptions, ReadRowsRequest.getDefaultInstance(),
+        readAsync, Predicates.<ReadRowsRequest> alwaysTrue(), retryExecutor, cancellationToken);
+  }
+
+  private RetryingRpcFunction createFunctionWithBudget(RetryBudget retryBudget) {
+    return new RetryingRpcFunction<>(retryOptions, ReadRowsRequest.getDefaultInstance(), readAsync,
+        Predicates.<ReadRowsRequest> alwaysTrue(), retryExecutor, null, 0, 0, retryBudget);
+  }
+
+  private RetryingRpcFunction createFunctionWithDeadlines(int attemptTimeoutMs,
+      int overallTimeoutMs) {
+    RetryingRpcFunction function = new RetryingRpcFunction<>(retryOptions,
+        ReadRowsRequest.getDefaultInstance(), readAsync,
+        Predicates.<ReadRowsRequest> alwaysTrue(), retryExecutor, null,
+        attemptTimeoutMs, overallTimeoutMs);
+    function.clock = nanoClock;
+    return function;
+  }
 }
@@ -27,9 +27,12 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * TODO: Insert description here. (generated by sduskis)
+ * Simple microbenchmark for {@link RpcThrottler}. It measures the cost of registering and
+ * completing operations, and how long {@link RpcThrottler#awaitCompletion()} takes to return after
+ * the last operation completes.
  */
 public class RpcThrottlerPerf {
   final static long SIZE = 10_000L;
@@ -58,6 +61,7 @@ public class RpcThrottlerPerf {
       throws InterruptedException, ExecutionException, TimeoutException {
     final RpcThrottler underTest = new RpcThrottler(new ResourceLimiter(SIZE, (int) SIZE));
     final LinkedBlockingQueue<Long> registeredEvents = new LinkedBlockingQueue<>();
+    final AtomicLong lastCompletionNanos = new AtomicLong();
 
     final int writerCount = 1;
     final int readerCount = 20;
@@ -99,6 +103,7 @@ public class RpcThrottlerPerf {
                   i--;
                 } else {
                   underTest.onRpcCompletion(registeredId);
+                  lastCompletionNanos.set(System.nanoTime());
                 }
               }
             } catch (InterruptedException e) {
@@ -128,5 +133,9 @@ public class RpcThrottlerPerf {
       }
       Futures.allAsList(writerFutures).get(300, TimeUnit.MINUTES);
       underTest.awaitCompletion();
+      long flushNanos = System.nanoTime() - lastCompletionNanos.get();
+      System.out.println(
+        String.format("awaitCompletion returned %d micros after the last completion",
+          TimeUnit.NANOSECONDS.toMicros(flushNanos)));
   }
 }
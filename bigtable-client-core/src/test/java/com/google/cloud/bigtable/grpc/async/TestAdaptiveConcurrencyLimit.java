@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.api.client.util.NanoClock;
+
+/**
+ * Tests for {@link AdaptiveConcurrencyLimit}.
+ */
+@RunWith(JUnit4.class)
+public class TestAdaptiveConcurrencyLimit {
+
+  private static final long LOW_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long HIGH_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Test
+  public void testLimitGrowsWhileLatencyIsFlat() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(20, 1, 25);
+    for (int i = 0; i < 1000; i++) {
+      underTest.onSample(LOW_LATENCY_NANOS, underTest.getLimit());
+    }
+    assertEquals(25, underTest.getLimit());
+    assertEquals(LOW_LATENCY_NANOS, underTest.getMinLatencyNanos());
+  }
+
+  @Test
+  public void testLimitDoesNotGrowWhenUnused() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(20, 1, 100);
+    for (int i = 0; i < 1000; i++) {
+      underTest.onSample(LOW_LATENCY_NANOS, 1);
+    }
+    assertEquals(20, underTest.getLimit());
+  }
+
+  @Test
+  public void testLimitShrinksWhenLatencyRises() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(20, 2, 100);
+    for (int i = 0; i < 20; i++) {
+      underTest.onSample(LOW_LATENCY_NANOS, 20);
+    }
+    assertEquals(21, underTest.getLimit());
+
+    for (int i = 0; i < 21; i++) {
+      underTest.onSample(HIGH_LATENCY_NANOS, 21);
+    }
+    assertEquals(18, underTest.getLimit());
+    assertEquals(HIGH_LATENCY_NANOS, underTest.getLastAverageLatencyNanos());
+
+    for (int i = 0; i < 1000; i++) {
+      underTest.onSample(HIGH_LATENCY_NANOS, underTest.getLimit());
+    }
+    assertEquals(2, underTest.getMinLimit());
+    assertTrue(underTest.getLimit() < 18);
+  }
+
+  @Test
+  public void testConcurrentSamples() throws Exception {
+    final AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(20, 1, 40);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = 0; j < 10000; j++) {
+              underTest.onSample(LOW_LATENCY_NANOS, underTest.getLimit());
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    // Every window that was closed saw a flat latency.
+    assertEquals(40, underTest.getLimit());
+    assertEquals(LOW_LATENCY_NANOS, underTest.getMinLatencyNanos());
+    assertEquals(LOW_LATENCY_NANOS, underTest.getLastAverageLatencyNanos());
+  }
+
+  @Test
+  public void testResourceLimiterUsesAdaptiveLimit() throws InterruptedException {
+    final long[] now = { 0 };
+    NanoClock clock = new NanoClock() {
+      @Override
+      public long nanoTime() {
+        return now[0];
+      }
+    };
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 1, 20);
+    ResourceLimiter underTest = new ResourceLimiter(1000l, 20, limit, clock);
+    assertEquals(10, underTest.getCurrentMaxInFlightRpcs());
+    assertEquals(20, underTest.getMaxInFlightRpcs());
+
+    long[] ids = new long[10];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = underTest.registerOperationWithHeapSize(1);
+    }
+    assertTrue(underTest.isFull());
+
+    // A full window of fast RPCs that used the whole limit raises it.
+    now[0] += LOW_LATENCY_NANOS;
+    for (long id : ids) {
+      underTest.markCanBeCompleted(id);
+    }
+    assertEquals(11, underTest.getCurrentMaxInFlightRpcs());
+    assertEquals(LOW_LATENCY_NANOS, limit.getLastAverageLatencyNanos());
+    assertFalse(underTest.hasInflightRequests());
+  }
+}
@@ -8,21 +8,44 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.google.api.client.util.NanoClock;
 import com.google.bigtable.v1.MutateRowRequest;
 import com.google.bigtable.v1.MutateRowsRequest;
 import com.google.bigtable.v1.MutateRowsRequest.Entry;
 import com.google.bigtable.v1.MutateRowsResponse;
 import com.google.bigtable.v1.Mutation;
 import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.config.RetryOptionsUtil;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
@@ -42,6 +65,50 @@ public class TestBulkMutation {
   @Rule
   public ExpectedException expectedException = ExpectedException.none();
 
+  @Mock
+  private BigtableDataClient client;
+  @Mock
+  private ScheduledExecutorService retryExecutor;
+  @Mock
+  private NanoClock nanoClock;
+
+  private RetryOptions retryOptions;
+  private final AtomicLong totalSleep = new AtomicLong();
+  private final List<SettableFuture<MutateRowsResponse>> retryResponses = new ArrayList<>();
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    retryOptions = RetryOptionsUtil.createTestRetryOptions(nanoClock);
+    when(nanoClock.nanoTime()).then(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        return totalSleep.get();
+      }
+    });
+    // Run scheduled retries right away, and move the clock forward by their delay.
+    when(retryExecutor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+        .then(new Answer<ScheduledFuture<?>>() {
+          @Override
+          public ScheduledFuture<?> answer(InvocationOnMock invocation) throws Throwable {
+            long delay = invocation.getArgumentAt(1, Long.class);
+            TimeUnit unit = invocation.getArgumentAt(2, TimeUnit.class);
+            totalSleep.addAndGet(unit.toNanos(delay));
+            invocation.getArgumentAt(0, Runnable.class).run();
+            return null;
+          }
+        });
+    when(client.mutateRowsAsync(any(MutateRowsRequest.class)))
+        .then(new Answer<SettableFuture<MutateRowsResponse>>() {
+          @Override
+          public SettableFuture<MutateRowsResponse> answer(InvocationOnMock invocation) {
+            SettableFuture<MutateRowsResponse> future = SettableFuture.create();
+            retryResponses.add(future);
+            return future;
+          }
+        });
+  }
+
   @Test
   public void testAdd() {
     BulkMutation underTest = new BulkMutation(tableName);
@@ -140,4 +207,244 @@ public class TestBulkMutation {
       Assert.assertEquals(throwable, e.getCause());
     }
   }
+
+  @Test
+  public void testRetriesOnlyRetryableEntries() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, client, retryOptions, retryExecutor);
+    SettableFuture<Empty> okFuture = underTest.add(createRequest("ok"));
+    SettableFuture<Empty> unavailableFuture = underTest.add(createRequest("unavailable"));
+    SettableFuture<Empty> notFoundFuture = underTest.add(createRequest("notFound"));
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.create();
+    underTest.addCallback(rowsFuture);
+    rowsFuture.set(MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.OK))
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .addStatuses(createStatus(io.grpc.Status.NOT_FOUND))
+        .build());
+
+    Assert.assertEquals(Empty.getDefaultInstance(), okFuture.get());
+    Assert.assertTrue("Non-retryable entries should fail right away", notFoundFuture.isDone());
+    Assert.assertFalse(unavailableFuture.isDone());
+
+    // Only the failed entry is sent again.
+    ArgumentCaptor<MutateRowsRequest> retryRequest =
+        ArgumentCaptor.forClass(MutateRowsRequest.class);
+    verify(client, times(1)).mutateRowsAsync(retryRequest.capture());
+    Assert.assertEquals(tableName, retryRequest.getValue().getTableName());
+    Assert.assertEquals(1, retryRequest.getValue().getEntriesCount());
+    Assert.assertEquals("unavailable",
+      retryRequest.getValue().getEntries(0).getRowKey().toStringUtf8());
+
+    retryResponses.get(0).set(MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.OK))
+        .build());
+    Assert.assertEquals(Empty.getDefaultInstance(), unavailableFuture.get());
+    Assert.assertTrue(totalSleep.get() > 0);
+  }
+
+  @Test
+  public void testEntriesWithoutTimestampsAreNotRetried() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, client, retryOptions, retryExecutor);
+    MutateRowRequest request = createRequest("noTimestamp");
+    request = request.toBuilder().setMutations(0, request.getMutations(0).toBuilder()
+        .setSetCell(request.getMutations(0).getSetCell().toBuilder().setTimestampMicros(-1)))
+        .build();
+    SettableFuture<Empty> noTimestampFuture = underTest.add(request);
+    SettableFuture<Empty> timestampFuture = underTest.add(createRequest("timestamp"));
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.create();
+    underTest.addCallback(rowsFuture);
+    rowsFuture.set(MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .build());
+
+    // The server assigns the timestamp, so sending the entry again could apply it twice.
+    try {
+      noTimestampFuture.get();
+      Assert.fail("expected an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.UNAVAILABLE,
+        ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+    }
+    ArgumentCaptor<MutateRowsRequest> retryRequest =
+        ArgumentCaptor.forClass(MutateRowsRequest.class);
+    verify(client, times(1)).mutateRowsAsync(retryRequest.capture());
+    Assert.assertEquals(1, retryRequest.getValue().getEntriesCount());
+    Assert.assertEquals("timestamp",
+      retryRequest.getValue().getEntries(0).getRowKey().toStringUtf8());
+    Assert.assertFalse(timestampFuture.isDone());
+  }
+
+  @Test
+  public void testRetriesStopAfterBackoff() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, client, retryOptions, retryExecutor);
+    SettableFuture<Empty> rowFuture = underTest.add(createRequest("unavailable"));
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.create();
+    underTest.addCallback(rowsFuture);
+    MutateRowsResponse unavailable = MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .build();
+    rowsFuture.set(unavailable);
+    while (!rowFuture.isDone()) {
+      retryResponses.get(retryResponses.size() - 1).set(unavailable);
+    }
+    try {
+      rowFuture.get();
+      Assert.fail("expected an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.UNAVAILABLE,
+        ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+    }
+    Assert.assertTrue(
+      totalSleep.get() >= TimeUnit.MILLISECONDS.toNanos(retryOptions.getMaxElaspedBackoffMillis()));
+  }
+
+  @Test
+  public void testRetryBudgetStopsRetries() throws Exception {
+    RetryBudget retryBudget = new RetryBudget(1, 0);
+    BulkMutation underTest = new BulkMutation(tableName, client, retryOptions, retryExecutor,
+        false, retryBudget, 0, null, null);
+    SettableFuture<Empty> rowFuture = underTest.add(createRequest("unavailable"));
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.create();
+    underTest.addCallback(rowsFuture);
+    MutateRowsResponse unavailable = MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .build();
+    rowsFuture.set(unavailable);
+    retryResponses.get(0).set(unavailable);
+
+    // The budget only had one retry.
+    verify(client, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertEquals(1, retryBudget.getRejectedRetryCount());
+    try {
+      rowFuture.get();
+      Assert.fail("expected an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.UNAVAILABLE,
+        ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+    }
+  }
+
+  @Test
+  public void testOverallDeadlineStopsRetries() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, client, retryOptions, retryExecutor,
+        false, null, 200, null, null);
+    underTest.clock = nanoClock;
+    SettableFuture<Empty> rowFuture = underTest.add(createRequest("unavailable"));
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.create();
+    underTest.addCallback(rowsFuture);
+    MutateRowsResponse unavailable = MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .build();
+    rowsFuture.set(unavailable);
+    while (!rowFuture.isDone()) {
+      retryResponses.get(retryResponses.size() - 1).set(unavailable);
+    }
+    try {
+      rowFuture.get();
+      Assert.fail("expected an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.UNAVAILABLE,
+        ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+    }
+    Assert.assertFalse(retryResponses.isEmpty());
+    Assert.assertTrue(
+      String.format("Slept %d ms", TimeUnit.NANOSECONDS.toMillis(totalSleep.get())),
+      totalSleep.get() < TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void testRetriesAreRegistered() throws Exception {
+    RpcThrottler rpcThrottler = new RpcThrottler(new ResourceLimiter(1000, 10));
+    final List<Runnable> resends = new ArrayList<>();
+    Executor resendExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        resends.add(command);
+      }
+    };
+    BulkMutation underTest = new BulkMutation(tableName, client, retryOptions, retryExecutor,
+        false, null, 0, rpcThrottler, resendExecutor);
+    SettableFuture<Empty> rowFuture = underTest.add(createRequest("unavailable"));
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.create();
+    underTest.addCallback(rowsFuture);
+    rowsFuture.set(MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.UNAVAILABLE))
+        .build());
+
+    // The retry thread only hands the resend off.
+    Assert.assertEquals(1, resends.size());
+    verify(client, times(0)).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertFalse(rpcThrottler.hasInflightRequests());
+
+    resends.get(0).run();
+    Assert.assertTrue(rpcThrottler.hasInflightRequests());
+    retryResponses.get(0).set(MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.OK))
+        .build());
+    Assert.assertEquals(Empty.getDefaultInstance(), rowFuture.get());
+    Assert.assertFalse(rpcThrottler.hasInflightRequests());
+  }
+
+  @Test
+  public void testCoalesceRows() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, null, null, null, true);
+    BulkMutation notCoalesced = new BulkMutation(tableName);
+    List<SettableFuture<Empty>> rowFutures = new ArrayList<>();
+    for (String rowKey : new String[] { "a", "b", "a" }) {
+      rowFutures.add(underTest.add(createRequest(rowKey)));
+      notCoalesced.add(createRequest(rowKey));
+    }
+    Assert.assertEquals(2, underTest.getRowKeyCount());
+    Assert.assertEquals(3, underTest.getMutationCount());
+    Assert.assertTrue(
+      underTest.getApproximateByteSize() < notCoalesced.getApproximateByteSize());
+
+    MutateRowsRequest request = underTest.toRequest();
+    Assert.assertEquals(2, request.getEntriesCount());
+    Assert.assertEquals("a", request.getEntries(0).getRowKey().toStringUtf8());
+    Assert.assertEquals(2, request.getEntries(0).getMutationsCount());
+    Assert.assertEquals("b", request.getEntries(1).getRowKey().toStringUtf8());
+    Assert.assertEquals(1, request.getEntries(1).getMutationsCount());
+
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.<MutateRowsResponse> create();
+    underTest.addCallback(rowsFuture);
+    rowsFuture.set(MutateRowsResponse.newBuilder()
+        .addStatuses(createStatus(io.grpc.Status.OK))
+        .addStatuses(createStatus(io.grpc.Status.NOT_FOUND))
+        .build());
+
+    // Every caller's future is set by the status of its row's entry.
+    Assert.assertEquals(Empty.getDefaultInstance(), rowFutures.get(0).get());
+    Assert.assertEquals(Empty.getDefaultInstance(), rowFutures.get(2).get());
+    try {
+      rowFutures.get(1).get();
+      Assert.fail("expected an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.NOT_FOUND,
+        ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+    }
+  }
+
+  @Test
+  public void testCoalescedFuturesAreIndependent() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, null, null, null, true);
+    SettableFuture<Empty> rowFuture1 = underTest.add(createRequest("a"));
+    SettableFuture<Empty> rowFuture2 = underTest.add(createRequest("a"));
+    rowFuture1.cancel(true);
+
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.<MutateRowsResponse> create();
+    underTest.addCallback(rowsFuture);
+    rowsFuture.set(
+      MutateRowsResponse.newBuilder().addStatuses(createStatus(io.grpc.Status.OK)).build());
+    Assert.assertEquals(Empty.getDefaultInstance(), rowFuture2.get());
+  }
+
+  protected MutateRowRequest createRequest(String rowKey) {
+    return createRequest().toBuilder().setRowKey(ByteString.copyFromUtf8(rowKey)).build();
+  }
+
+  private static Status createStatus(io.grpc.Status status) {
+    return Status.newBuilder().setCode(status.getCode().value()).build();
+  }
 }
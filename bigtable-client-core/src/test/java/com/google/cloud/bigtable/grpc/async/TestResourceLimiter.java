@@ -19,6 +19,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -75,4 +81,203 @@ public class TestResourceLimiter {
     underTest.markCanBeCompleted(id3);
     assertFalse(underTest.hasInflightRequests());
   }
+
+  @Test
+  public void testCompletionWakesWaiter() throws Exception {
+    final ResourceLimiter underTest = new ResourceLimiter(100l, 1);
+    long id = underTest.registerOperationWithHeapSize(1);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      Future<Long> waiter = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1);
+        }
+      });
+      Thread.sleep(10);
+      assertFalse(waiter.isDone());
+
+      underTest.markCanBeCompleted(id);
+      long id2 = waiter.get(1, TimeUnit.SECONDS);
+      assertTrue(id != id2);
+      assertTrue(underTest.isFull());
+
+      underTest.markCanBeCompleted(id2);
+      assertFalse(underTest.hasInflightRequests());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testDuplicateCompletion() throws InterruptedException {
+    ResourceLimiter underTest = new ResourceLimiter(100l, 2);
+    long id = underTest.registerOperationWithHeapSize(5l);
+    long id2 = underTest.registerOperationWithHeapSize(7l);
+    underTest.markCanBeCompleted(id);
+    underTest.markCanBeCompleted(id);
+    assertEquals(7l, underTest.getHeapSize());
+    assertTrue(underTest.hasInflightRequests());
+
+    // The slot of the first operation is reused, and the stale id does not release it.
+    long id3 = underTest.registerOperationWithHeapSize(3l);
+    underTest.markCanBeCompleted(id);
+    assertEquals(10l, underTest.getHeapSize());
+    underTest.markCanBeCompleted(id2);
+    underTest.markCanBeCompleted(id3);
+    assertEquals(0l, underTest.getHeapSize());
+    assertFalse(underTest.hasInflightRequests());
+  }
+
+  @Test
+  public void testWaitingShareWithLeastUsageGoesFirst() throws Exception {
+    final ResourceLimiter underTest = new ResourceLimiter(1000l, 2);
+    final ResourceLimiter.Share bulk = underTest.getShare("bulk", 1);
+    final ResourceLimiter.Share interactive = underTest.getShare("interactive", 1);
+    assertTrue(bulk == underTest.getShare("bulk", 5));
+
+    // With no contention, one share can use all of the limiter.
+    long id = underTest.registerOperationWithHeapSize(1, bulk);
+    long id2 = underTest.registerOperationWithHeapSize(1, bulk);
+    assertTrue(underTest.isFull());
+    assertEquals(2, bulk.getInFlightRpcs());
+
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      Future<Long> bulkWaiter = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1, bulk);
+        }
+      });
+      Thread.sleep(10);
+      Future<Long> interactiveWaiter = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1, interactive);
+        }
+      });
+      Thread.sleep(10);
+
+      // The interactive share uses less, so it gets the next permit even though it came later.
+      underTest.markCanBeCompleted(id);
+      long interactiveId = interactiveWaiter.get(1, TimeUnit.SECONDS);
+      Thread.sleep(10);
+      assertFalse(bulkWaiter.isDone());
+      assertEquals(1, interactive.getInFlightRpcs());
+
+      underTest.markCanBeCompleted(id2);
+      long bulkId = bulkWaiter.get(1, TimeUnit.SECONDS);
+      assertEquals(1, bulk.getInFlightRpcs());
+
+      underTest.markCanBeCompleted(interactiveId);
+      underTest.markCanBeCompleted(bulkId);
+      assertEquals(0, interactive.getInFlightRpcs());
+      assertEquals(0l, bulk.getHeapSize());
+      assertFalse(underTest.hasInflightRequests());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testHigherPriorityGoesFirst() throws Exception {
+    final ResourceLimiter underTest = new ResourceLimiter(1000l, 10);
+
+    // Bulk operations can only use 80% of the limiter, and leave the rest to the others.
+    long[] bulkIds = new long[8];
+    for (int i = 0; i < bulkIds.length; i++) {
+      bulkIds[i] = underTest.registerOperationWithHeapSize(1, null, RpcPriority.BULK);
+    }
+    assertFalse(underTest.isFull());
+    long id = underTest.registerOperationWithHeapSize(1, null, RpcPriority.INTERACTIVE);
+    long id2 = underTest.registerOperationWithHeapSize(1, null, RpcPriority.DEFAULT);
+    assertTrue(underTest.isFull());
+
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      Future<Long> bulkWaiter = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1, null, RpcPriority.BULK);
+        }
+      });
+      Thread.sleep(10);
+      Future<Long> interactiveWaiter = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1, null, RpcPriority.INTERACTIVE);
+        }
+      });
+      Thread.sleep(10);
+
+      // The interactive operation came later, but gets the next permit.
+      underTest.markCanBeCompleted(bulkIds[0]);
+      long interactiveId = interactiveWaiter.get(1, TimeUnit.SECONDS);
+      Thread.sleep(10);
+      assertFalse(bulkWaiter.isDone());
+
+      // Bulk operations still wait while the others use more than 20% of the limiter.
+      underTest.markCanBeCompleted(bulkIds[1]);
+      Thread.sleep(10);
+      assertFalse(bulkWaiter.isDone());
+
+      underTest.markCanBeCompleted(id);
+      underTest.markCanBeCompleted(id2);
+      long bulkId = bulkWaiter.get(1, TimeUnit.SECONDS);
+
+      underTest.markCanBeCompleted(interactiveId);
+      underTest.markCanBeCompleted(bulkId);
+      for (int i = 2; i < bulkIds.length; i++) {
+        underTest.markCanBeCompleted(bulkIds[i]);
+      }
+      assertFalse(underTest.hasInflightRequests());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWaitingLowerPriorityDoesNotHoldUpOthers() throws Exception {
+    final ResourceLimiter underTest = new ResourceLimiter(1000l, 10);
+    long[] bulkIds = new long[8];
+    for (int i = 0; i < bulkIds.length; i++) {
+      bulkIds[i] = underTest.registerOperationWithHeapSize(1, null, RpcPriority.BULK);
+    }
+
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      // The bulk operation waits at its cap.
+      Future<Long> bulkWaiter = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1, null, RpcPriority.BULK);
+        }
+      });
+      Thread.sleep(10);
+      assertFalse(bulkWaiter.isDone());
+
+      // Other priorities still have room, and register right away.
+      Future<Long> defaultRegistration = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(1, null, RpcPriority.DEFAULT);
+        }
+      });
+      long id = defaultRegistration.get(1, TimeUnit.SECONDS);
+      underTest.markCanBeCompleted(id);
+      Thread.sleep(10);
+      assertFalse(bulkWaiter.isDone());
+
+      underTest.markCanBeCompleted(bulkIds[0]);
+      long bulkId = bulkWaiter.get(1, TimeUnit.SECONDS);
+      underTest.markCanBeCompleted(bulkId);
+      for (int i = 1; i < bulkIds.length; i++) {
+        underTest.markCanBeCompleted(bulkIds[i]);
+      }
+      assertFalse(underTest.hasInflightRequests());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 }
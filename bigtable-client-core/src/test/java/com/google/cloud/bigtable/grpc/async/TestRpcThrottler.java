@@ -37,6 +37,7 @@ import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -244,6 +245,37 @@ public class TestRpcThrottler {
     }
   }
 
+  @Test
+  public void testAwaitCompletionWakesUpOnLastCompletion() throws Exception {
+    ResourceLimiter resourceLimiter = new ResourceLimiter(100l, 100);
+    // A long wait, so that only the completion can wake up awaitCompletion() in time.
+    final RpcThrottler underTest = new RpcThrottler(resourceLimiter, NanoClock.SYSTEM, 60000);
+    long id = underTest.registerOperationWithHeapSize(1);
+    SettableFuture<Void> retryFuture = SettableFuture.create();
+    underTest.registerRetry(retryFuture);
+
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      Future<?> flushFuture = pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          underTest.awaitCompletion();
+          return null;
+        }
+      });
+      Thread.sleep(10);
+      underTest.onRpcCompletion(id);
+      Thread.sleep(10);
+      assertFalse(flushFuture.isDone());
+
+      retryFuture.set(null);
+      flushFuture.get(1, TimeUnit.SECONDS);
+      assertFalse(underTest.hasInflightRequests());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   @Test
   public void testNoSuccessWarning() throws Exception {
 
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.api.client.util.NanoClock;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for {@link TabletPartitioner}.
+ */
+@RunWith(JUnit4.class)
+public class TestTabletPartitioner {
+
+  private static final String TABLE_NAME = "table";
+
+  @Mock
+  private BigtableDataClient client;
+
+  private long now = 0;
+  private TabletPartitioner underTest;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    NanoClock clock = new NanoClock() {
+      @Override
+      public long nanoTime() {
+        return now;
+      }
+    };
+    underTest = new TabletPartitioner(client, TABLE_NAME, 1000, clock);
+  }
+
+  @Test
+  public void testPartitions() {
+    when(client.sampleRowKeysAsync(any(SampleRowKeysRequest.class)))
+        .thenReturn(Futures.immediateFuture(createResponses("b", "d", "")));
+    assertEquals(0, underTest.getPartition(ByteString.copyFromUtf8("a")));
+    assertEquals(3, underTest.getPartitionCount());
+    assertEquals(1, underTest.getPartition(ByteString.copyFromUtf8("b")));
+    assertEquals(1, underTest.getPartition(ByteString.copyFromUtf8("c")));
+    assertEquals(2, underTest.getPartition(ByteString.copyFromUtf8("d")));
+    assertEquals(2, underTest.getPartition(ByteString.copyFromUtf8("z")));
+    assertEquals(0, underTest.getPartition(ByteString.EMPTY));
+  }
+
+  @Test
+  public void testNoSampleYet() {
+    SettableFuture<List<SampleRowKeysResponse>> future = SettableFuture.create();
+    when(client.sampleRowKeysAsync(any(SampleRowKeysRequest.class))).thenReturn(future);
+    assertEquals(0, underTest.getPartition(ByteString.copyFromUtf8("z")));
+    assertEquals(1, underTest.getPartitionCount());
+    // Only one sample is in flight at a time.
+    assertEquals(0, underTest.getPartition(ByteString.copyFromUtf8("z")));
+    verify(client, times(1)).sampleRowKeysAsync(any(SampleRowKeysRequest.class));
+
+    future.set(createResponses("m", ""));
+    assertEquals(1, underTest.getPartition(ByteString.copyFromUtf8("z")));
+  }
+
+  @Test
+  public void testRefresh() {
+    when(client.sampleRowKeysAsync(any(SampleRowKeysRequest.class)))
+        .thenReturn(Futures.immediateFuture(createResponses("m", "")))
+        .thenReturn(Futures.immediateFuture(createResponses("c", "m", "")));
+    assertEquals(1, underTest.getPartition(ByteString.copyFromUtf8("n")));
+    now += TimeUnit.MILLISECONDS.toNanos(999);
+    assertEquals(1, underTest.getPartition(ByteString.copyFromUtf8("n")));
+    verify(client, times(1)).sampleRowKeysAsync(any(SampleRowKeysRequest.class));
+
+    now += TimeUnit.MILLISECONDS.toNanos(1);
+    assertEquals(2, underTest.getPartition(ByteString.copyFromUtf8("n")));
+    verify(client, times(2)).sampleRowKeysAsync(any(SampleRowKeysRequest.class));
+  }
+
+  @Test
+  public void testFailedSample() {
+    when(client.sampleRowKeysAsync(any(SampleRowKeysRequest.class)))
+        .thenReturn(Futures.<List<SampleRowKeysResponse>> immediateFailedFuture(
+          new RuntimeException()))
+        .thenReturn(Futures.immediateFuture(createResponses("m", "")));
+    assertEquals(0, underTest.getPartition(ByteString.copyFromUtf8("z")));
+    // A failed sample is not retried until the refresh period is over.
+    assertEquals(0, underTest.getPartition(ByteString.copyFromUtf8("z")));
+    verify(client, times(1)).sampleRowKeysAsync(any(SampleRowKeysRequest.class));
+
+    now += TimeUnit.MILLISECONDS.toNanos(1000);
+    assertEquals(1, underTest.getPartition(ByteString.copyFromUtf8("z")));
+  }
+
+  @Test
+  public void testBoundariesChange() {
+    when(client.sampleRowKeysAsync(any(SampleRowKeysRequest.class)))
+        .thenReturn(Futures.immediateFuture(createResponses("m", "")))
+        .thenReturn(Futures.immediateFuture(createResponses("m", "")))
+        .thenReturn(Futures.immediateFuture(createResponses("c", "m", "")));
+    TabletPartitioner.Boundaries boundaries = underTest.getBoundaries();
+    assertEquals(2, boundaries.getPartitionCount());
+
+    // A sample with the same boundaries keeps them.
+    now += TimeUnit.MILLISECONDS.toNanos(1000);
+    assertSame(boundaries, underTest.getBoundaries());
+
+    now += TimeUnit.MILLISECONDS.toNanos(1000);
+    TabletPartitioner.Boundaries newBoundaries = underTest.getBoundaries();
+    assertNotSame(boundaries, newBoundaries);
+    assertEquals(3, newBoundaries.getPartitionCount());
+    // The old boundaries still map the row keys as before.
+    assertEquals(0, boundaries.getPartition(ByteString.copyFromUtf8("d")));
+    assertEquals(1, newBoundaries.getPartition(ByteString.copyFromUtf8("d")));
+  }
+
+  @Test
+  public void testCompareIsUnsigned() {
+    ByteString low = ByteString.copyFrom(new byte[] { 0x7f });
+    ByteString high = ByteString.copyFrom(new byte[] { (byte) 0x80 });
+    assertTrue(TabletPartitioner.compare(low, high) < 0);
+    assertTrue(TabletPartitioner.compare(high, low) > 0);
+    assertTrue(TabletPartitioner.compare(low, low) == 0);
+    assertTrue(TabletPartitioner.compare(ByteString.EMPTY, low) < 0);
+  }
+
+  private static List<SampleRowKeysResponse> createResponses(String... rowKeys) {
+    List<SampleRowKeysResponse> responses = new ArrayList<>();
+    for (String rowKey : rowKeys) {
+      responses.add(
+        SampleRowKeysResponse.newBuilder().setRowKey(ByteString.copyFromUtf8(rowKey)).build());
+    }
+    return responses;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link WriteRateLimiter}.
+ */
+@RunWith(JUnit4.class)
+public class TestWriteRateLimiter {
+
+  @Test
+  public void testNoLimit() {
+    WriteRateLimiter underTest = new WriteRateLimiter();
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(0, underTest.acquire(100, 1000000));
+    }
+    assertEquals(0, underTest.getTotalWaitNanos());
+    assertEquals(0, underTest.getWaitCount());
+  }
+
+  @Test
+  public void testMutationLimit() {
+    WriteRateLimiter underTest = new WriteRateLimiter(10, 0);
+    assertEquals(0, underTest.acquire(1, 1000000));
+    long waitNanos = underTest.acquire(1, 1000000);
+    assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(waitNanos, underTest.getTotalWaitNanos());
+    assertEquals(1, underTest.getWaitCount());
+  }
+
+  @Test
+  public void testByteLimit() {
+    WriteRateLimiter underTest = new WriteRateLimiter(0, 1000);
+    assertEquals(0, underTest.acquire(1000, 100));
+    assertTrue(underTest.acquire(1000, 100) > TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(1, underTest.getWaitCount());
+  }
+
+  @Test
+  public void testChangeLimits() {
+    WriteRateLimiter underTest = new WriteRateLimiter(10, 0);
+    assertEquals(10, underTest.getMaxMutationsPerSecond(), 0.001);
+    underTest.acquire(1, 0);
+
+    underTest.setMaxMutationsPerSecond(0);
+    assertEquals(0, underTest.getMaxMutationsPerSecond(), 0.001);
+    assertEquals(0, underTest.acquire(1000, 0));
+
+    underTest.setMaxBytesPerSecond(1000);
+    assertEquals(1000, underTest.getMaxBytesPerSecond(), 0.001);
+    underTest.acquire(0, 100);
+    assertTrue(underTest.acquire(0, 100) > TimeUnit.MILLISECONDS.toNanos(50));
+  }
+}
@@ -16,68 +16,65 @@
 package com.google.cloud.bigtable.grpc.io;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.cloud.bigtable.grpc.io.ChannelPool;
+import com.google.cloud.bigtable.grpc.io.ChannelPool.ChannelSelectionStrategy;
 
 import io.grpc.CallOptions;
 import io.grpc.ClientCall;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 
 /**
- * Simple microbenchmark for {@link ChannelPool}
+ * Simple microbenchmark for {@link ChannelPool}. The first part measures the overhead of
+ * {@link ChannelPool#newCall(MethodDescriptor, CallOptions)} under contention for each
+ * {@link ChannelSelectionStrategy}. The second part simulates one slow channel among fast ones, and
+ * compares the latency distribution of the calls for each strategy.
  */
 public class ChannelPoolPerf {
   private static final int TEST_COUNT = 1_000_000;
 
+  private static final int LATENCY_CHANNEL_COUNT = 4;
+  private static final int LATENCY_THREADS = 16;
+  private static final int LATENCY_CALLS_PER_THREAD = 2_000;
+  private static final long FAST_CALL_MICROS = 500;
+  private static final long SLOW_CALL_MICROS = 20_000;
+
   public static void main(String[] args) throws Exception {
-    final ManagedChannel channel = new ManagedChannel() {
+    for (ChannelSelectionStrategy strategy : ChannelSelectionStrategy.values()) {
+      System.out.println("newCall() overhead using " + strategy);
+      newCallPerf(strategy);
+    }
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    try {
+      for (ChannelSelectionStrategy strategy : ChannelSelectionStrategy.values()) {
+        latencyPerf(strategy, scheduler);
+      }
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
 
+  private static void newCallPerf(ChannelSelectionStrategy strategy) throws Exception {
+    final ManagedChannel channel = new StubChannel() {
       @Override
       public <RequestT, ResponseT> ClientCall<RequestT, ResponseT> newCall(
           MethodDescriptor<RequestT, ResponseT> methodDescriptor, CallOptions callOptions) {
         return null;
       }
-
-      @Override
-      public String authority() {
-        return null;
-      }
-
-      @Override
-      public ManagedChannel shutdown() {
-        // TODO(sduskis): Auto-generated method stub
-        return null;
-      }
-
-      @Override
-      public boolean isShutdown() {
-        // TODO(sduskis): Auto-generated method stub
-        return false;
-      }
-
-      @Override
-      public boolean isTerminated() {
-        // TODO(sduskis): Auto-generated method stub
-        return false;
-      }
-
-      @Override
-      public ManagedChannel shutdownNow() {
-        // TODO(sduskis): Auto-generated method stub
-        return null;
-      }
-
-      @Override
-      public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        // TODO(sduskis): Auto-generated method stub
-        return false;
-      }
     };
     int threads = 100;
     int concurrent = 400;
@@ -87,7 +84,7 @@ public class ChannelPoolPerf {
         public ManagedChannel create() throws IOException {
           return channel;
         }
-      });
+      }, strategy);
     cp.ensureChannelCount(40);
     ExecutorService es = Executors.newFixedThreadPool(threads);
     Callable<Void> runnable = new Callable<Void>() {
@@ -110,4 +107,140 @@ public class ChannelPoolPerf {
     es.shutdown();
     es.awaitTermination(1000, TimeUnit.SECONDS);
   }
-}
\ No newline at end of file
+
+  /**
+   * Runs closed loop callers against a pool where one channel completes its calls
+   * {@link #SLOW_CALL_MICROS} after they start, and the others complete after
+   * {@link #FAST_CALL_MICROS}.
+   */
+  private static void latencyPerf(ChannelSelectionStrategy strategy,
+      final ScheduledExecutorService scheduler) throws Exception {
+    final AtomicInteger createdCount = new AtomicInteger();
+    final ChannelPool cp = new ChannelPool(
+      Collections.<HeaderInterceptor>emptyList(), new ChannelPool.ChannelFactory() {
+        @Override
+        public ManagedChannel create() throws IOException {
+          boolean isSlow = createdCount.getAndIncrement() == 0;
+          return new DelayedChannel(scheduler, isSlow ? SLOW_CALL_MICROS : FAST_CALL_MICROS);
+        }
+      }, strategy);
+    cp.ensureChannelCount(LATENCY_CHANNEL_COUNT);
+
+    final long[] latencies = new long[LATENCY_THREADS * LATENCY_CALLS_PER_THREAD];
+    ExecutorService es = Executors.newFixedThreadPool(LATENCY_THREADS);
+    List<Callable<Void>> callers = new ArrayList<>();
+    for (int t = 0; t < LATENCY_THREADS; t++) {
+      final int offset = t * LATENCY_CALLS_PER_THREAD;
+      callers.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int i = 0; i < LATENCY_CALLS_PER_THREAD; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            long start = System.nanoTime();
+            cp.newCall(null, CallOptions.DEFAULT).start(new ClientCall.Listener<Object>() {
+              @Override
+              public void onClose(Status status, Metadata trailers) {
+                latch.countDown();
+              }
+            }, new Metadata());
+            latch.await();
+            latencies[offset + i] = System.nanoTime() - start;
+          }
+          return null;
+        }
+      });
+    }
+    long start = System.nanoTime();
+    es.invokeAll(callers);
+    long diff = System.nanoTime() - start;
+    es.shutdown();
+
+    Arrays.sort(latencies);
+    System.out.println(String.format(
+      "%s: %d calls in %d ms. p50: %d us, p90: %d us, p99: %d us", strategy, latencies.length,
+      TimeUnit.NANOSECONDS.toMillis(diff), percentileMicros(latencies, 0.50),
+      percentileMicros(latencies, 0.90), percentileMicros(latencies, 0.99)));
+  }
+
+  private static long percentileMicros(long[] sortedLatencies, double percentile) {
+    int index = (int) Math.min(sortedLatencies.length - 1, sortedLatencies.length * percentile);
+    return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[index]);
+  }
+
+  /**
+   * A {@link ManagedChannel} whose calls complete successfully a fixed delay after they start.
+   */
+  private static class DelayedChannel extends StubChannel {
+    private final ScheduledExecutorService scheduler;
+    private final long delayMicros;
+
+    DelayedChannel(ScheduledExecutorService scheduler, long delayMicros) {
+      this.scheduler = scheduler;
+      this.delayMicros = delayMicros;
+    }
+
+    @Override
+    public <RequestT, ResponseT> ClientCall<RequestT, ResponseT> newCall(
+        MethodDescriptor<RequestT, ResponseT> methodDescriptor, CallOptions callOptions) {
+      return new ClientCall<RequestT, ResponseT>() {
+        @Override
+        public void start(final Listener<ResponseT> responseListener, Metadata headers) {
+          scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              responseListener.onClose(Status.OK, new Metadata());
+            }
+          }, delayMicros, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void halfClose() {
+        }
+
+        @Override
+        public void sendMessage(RequestT message) {
+        }
+      };
+    }
+  }
+
+  private static abstract class StubChannel extends ManagedChannel {
+    @Override
+    public String authority() {
+      return null;
+    }
+
+    @Override
+    public ManagedChannel shutdown() {
+      return null;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public ManagedChannel shutdownNow() {
+      return null;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return false;
+    }
+  }
+}
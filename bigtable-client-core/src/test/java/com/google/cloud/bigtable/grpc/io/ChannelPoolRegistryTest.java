@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.cloud.bigtable.config.CredentialOptions;
+
+import io.grpc.ManagedChannel;
+
+@RunWith(JUnit4.class)
+public class ChannelPoolRegistryTest {
+
+  private static final ChannelPoolRegistry.Key KEY = new ChannelPoolRegistry.Key(
+      "data.example.com", 443, CredentialOptions.nullCredential(), "agent");
+
+  private static class MockPoolFactory implements ChannelPoolRegistry.ChannelPoolFactory {
+    List<ChannelPool> pools = new ArrayList<>();
+
+    @Override
+    public ChannelPool create() throws IOException {
+      ChannelPool pool = mock(ChannelPool.class);
+      final AtomicBoolean isShutdown = new AtomicBoolean();
+      when(pool.shutdown()).thenAnswer(new Answer<ManagedChannel>() {
+        @Override
+        public ManagedChannel answer(InvocationOnMock invocation) throws Throwable {
+          isShutdown.set(true);
+          return null;
+        }
+      });
+      when(pool.isShutdown()).thenAnswer(new Answer<Boolean>() {
+        @Override
+        public Boolean answer(InvocationOnMock invocation) throws Throwable {
+          return isShutdown.get();
+        }
+      });
+      pools.add(pool);
+      return pool;
+    }
+  }
+
+  private ChannelPoolRegistry registry;
+  private MockPoolFactory factory;
+
+  @Before
+  public void setup() {
+    registry = new ChannelPoolRegistry();
+    factory = new MockPoolFactory();
+  }
+
+  @Test
+  public void testLeasesShareOnePool() throws IOException {
+    List<ChannelPoolRegistry.Lease> leases = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      leases.add(registry.acquire(KEY, factory));
+    }
+    Assert.assertEquals(1, factory.pools.size());
+    Assert.assertEquals(10, registry.getReferenceCount(KEY));
+    for (ChannelPoolRegistry.Lease lease : leases) {
+      Assert.assertSame(factory.pools.get(0), lease.getChannelPool());
+    }
+  }
+
+  @Test
+  public void testEqualKeysSharePools() throws IOException {
+    ChannelPoolRegistry.Key equalKey = new ChannelPoolRegistry.Key(
+        "data.example.com", 443, CredentialOptions.nullCredential(), "agent");
+    Assert.assertEquals(KEY, equalKey);
+    Assert.assertEquals(KEY.hashCode(), equalKey.hashCode());
+    registry.acquire(KEY, factory);
+    registry.acquire(equalKey, factory);
+    Assert.assertEquals(1, factory.pools.size());
+  }
+
+  @Test
+  public void testDifferentKeysDoNotSharePools() throws IOException {
+    registry.acquire(KEY, factory);
+    registry.acquire(new ChannelPoolRegistry.Key(
+        "data.example.com", 8086, CredentialOptions.nullCredential(), "agent"), factory);
+    registry.acquire(new ChannelPoolRegistry.Key(
+        "other.example.com", 443, CredentialOptions.nullCredential(), "agent"), factory);
+    registry.acquire(new ChannelPoolRegistry.Key(
+        "data.example.com", 443, CredentialOptions.credential(null), "agent"), factory);
+    registry.acquire(new ChannelPoolRegistry.Key(
+        "data.example.com", 443, CredentialOptions.nullCredential(), "other-agent"), factory);
+    Assert.assertEquals(5, factory.pools.size());
+    Assert.assertEquals(5, registry.size());
+  }
+
+  @Test
+  public void testPoolIsShutDownByLastRelease() throws IOException {
+    ChannelPoolRegistry.Lease first = registry.acquire(KEY, factory);
+    ChannelPoolRegistry.Lease second = registry.acquire(KEY, factory);
+    ChannelPool pool = factory.pools.get(0);
+
+    Assert.assertFalse(first.release());
+    verify(pool, never()).shutdown();
+    Assert.assertEquals(1, registry.getReferenceCount(KEY));
+
+    Assert.assertTrue(second.release());
+    verify(pool, times(1)).shutdown();
+    Assert.assertEquals(0, registry.getReferenceCount(KEY));
+    Assert.assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testReleaseIsIdempotent() throws IOException {
+    ChannelPoolRegistry.Lease first = registry.acquire(KEY, factory);
+    ChannelPoolRegistry.Lease second = registry.acquire(KEY, factory);
+    Assert.assertFalse(first.release());
+    Assert.assertFalse(first.release());
+    Assert.assertEquals(1, registry.getReferenceCount(KEY));
+    verify(factory.pools.get(0), never()).shutdown();
+    Assert.assertTrue(second.release());
+    Assert.assertFalse(second.release());
+    verify(factory.pools.get(0), times(1)).shutdown();
+  }
+
+  @Test
+  public void testAcquireAfterLastReleaseCreatesNewPool() throws IOException {
+    registry.acquire(KEY, factory).release();
+    ChannelPoolRegistry.Lease lease = registry.acquire(KEY, factory);
+    Assert.assertEquals(2, factory.pools.size());
+    Assert.assertSame(factory.pools.get(1), lease.getChannelPool());
+  }
+
+  @Test
+  public void testAcquireReplacesPoolThatWasShutDown() throws IOException {
+    ChannelPoolRegistry.Lease stale = registry.acquire(KEY, factory);
+    stale.getChannelPool().shutdown();
+    ChannelPoolRegistry.Lease lease = registry.acquire(KEY, factory);
+    Assert.assertEquals(2, factory.pools.size());
+    Assert.assertSame(factory.pools.get(1), lease.getChannelPool());
+
+    // Releasing the lease on the old pool must not affect the new one.
+    Assert.assertTrue(stale.release());
+    Assert.assertEquals(1, registry.getReferenceCount(KEY));
+    verify(factory.pools.get(1), never()).shutdown();
+  }
+
+  @Test
+  public void testCreationDoesNotBlockOtherKeys() throws Exception {
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch connected = new CountDownLatch(1);
+    final ChannelPoolRegistry.ChannelPoolFactory slowFactory =
+        new ChannelPoolRegistry.ChannelPoolFactory() {
+          @Override
+          public ChannelPool create() throws IOException {
+            creating.countDown();
+            try {
+              connected.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            return factory.create();
+          }
+        };
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      Future<ChannelPoolRegistry.Lease> first = executor.submit(acquire(slowFactory));
+      creating.await();
+      Future<ChannelPoolRegistry.Lease> second = executor.submit(acquire(factory));
+
+      // Other keys don't wait for the pool that is being created.
+      ChannelPoolRegistry.Lease other = registry.acquire(new ChannelPoolRegistry.Key(
+          "other.example.com", 443, CredentialOptions.nullCredential(), "agent"), factory);
+      Assert.assertSame(factory.pools.get(0), other.getChannelPool());
+      Assert.assertTrue(other.release());
+      Assert.assertFalse(second.isDone());
+
+      // The same key waits for it, and shares it.
+      connected.countDown();
+      ChannelPool pool = first.get(1, TimeUnit.SECONDS).getChannelPool();
+      Assert.assertSame(pool, second.get(1, TimeUnit.SECONDS).getChannelPool());
+      Assert.assertEquals(2, factory.pools.size());
+      Assert.assertEquals(2, registry.getReferenceCount(KEY));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedCreationIsNotShared() throws IOException {
+    ChannelPoolRegistry.ChannelPoolFactory failingFactory =
+        new ChannelPoolRegistry.ChannelPoolFactory() {
+          @Override
+          public ChannelPool create() throws IOException {
+            throw new IOException("Could not connect");
+          }
+        };
+    try {
+      registry.acquire(KEY, failingFactory);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertEquals("Could not connect", e.getMessage());
+    }
+    Assert.assertEquals(0, registry.size());
+    ChannelPoolRegistry.Lease lease = registry.acquire(KEY, factory);
+    Assert.assertSame(factory.pools.get(0), lease.getChannelPool());
+    Assert.assertEquals(1, registry.getReferenceCount(KEY));
+  }
+
+  private Callable<ChannelPoolRegistry.Lease> acquire(
+      final ChannelPoolRegistry.ChannelPoolFactory poolFactory) {
+    return new Callable<ChannelPoolRegistry.Lease>() {
+      @Override
+      public ChannelPoolRegistry.Lease call() throws IOException {
+        return registry.acquire(KEY, poolFactory);
+      }
+    };
+  }
+
+  @Test
+  public void testAnyCloseOrderShutsDownExactlyOnce() throws IOException {
+    Random random = new Random(1);
+    for (int round = 0; round < 20; round++) {
+      List<ChannelPoolRegistry.Lease> leases = new ArrayList<>();
+      int leaseCount = 1 + random.nextInt(20);
+      for (int i = 0; i < leaseCount; i++) {
+        leases.add(registry.acquire(KEY, factory));
+      }
+      ChannelPool pool = factory.pools.get(factory.pools.size() - 1);
+      Collections.shuffle(leases, random);
+      for (int i = 0; i < leaseCount; i++) {
+        Assert.assertEquals(i == leaseCount - 1, leases.get(i).release());
+        verify(pool, times(i == leaseCount - 1 ? 1 : 0)).shutdown();
+      }
+      Assert.assertEquals(0, registry.size());
+    }
+    Assert.assertEquals(20, factory.pools.size());
+  }
+}
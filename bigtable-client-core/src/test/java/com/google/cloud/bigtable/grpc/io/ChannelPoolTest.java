@@ -19,6 +19,8 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -28,22 +30,33 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import com.google.api.client.util.NanoClock;
+import com.google.protobuf.MessageLite;
+
 import io.grpc.CallOptions;
 import io.grpc.ClientCall;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 
 @RunWith(JUnit4.class)
 @SuppressWarnings({"rawtypes", "unchecked"})
@@ -51,14 +64,23 @@ public class ChannelPoolTest {
 
   private static class MockChannelFactory implements ChannelPool.ChannelFactory {
     List<ManagedChannel> channels = new ArrayList<>();
+    List<ClientCall> calls = new ArrayList<>();
+    List<AtomicInteger> newCallCounts = new ArrayList<>();
 
     @Override
     public ManagedChannel create() throws IOException {
       final ManagedChannel channel = mock(ManagedChannel.class);
       final AtomicBoolean isShutdown = new AtomicBoolean();
-      ClientCall callStub = mock(ClientCall.class);
+      final ClientCall callStub = mock(ClientCall.class);
+      final AtomicInteger newCallCount = new AtomicInteger();
       when(channel.newCall(any(MethodDescriptor.class), any(CallOptions.class)))
-          .thenReturn(callStub);
+          .thenAnswer(new Answer<ClientCall>() {
+            @Override
+            public ClientCall answer(InvocationOnMock invocation) throws Throwable {
+              newCallCount.incrementAndGet();
+              return callStub;
+            }
+          });
       when(channel.authority()).thenReturn("");
       when(channel.shutdown()).thenAnswer(new Answer<ManagedChannel>() {
         @Override
@@ -70,6 +92,8 @@ public class ChannelPoolTest {
       when(channel.isShutdown()).then(isShutdownAnswer(isShutdown));
       when(channel.isTerminated()).then(isShutdownAnswer(isShutdown));
       channels.add(channel);
+      calls.add(callStub);
+      newCallCounts.add(newCallCount);
       return channel;
     }
 
@@ -83,6 +107,48 @@ public class ChannelPoolTest {
     }
   }
 
+  /**
+   * Creates channels whose calls close as soon as they start. The first {@code failingCount}
+   * channels fail every call with UNAVAILABLE, the rest succeed.
+   */
+  private static class FailingChannelFactory extends MockChannelFactory {
+    private final int failingCount;
+
+    FailingChannelFactory(int failingCount) {
+      this.failingCount = failingCount;
+    }
+
+    @Override
+    public ManagedChannel create() throws IOException {
+      ManagedChannel channel = super.create();
+      final Status status = channels.size() <= failingCount ? Status.UNAVAILABLE : Status.OK;
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          invocation.getArgumentAt(0, ClientCall.Listener.class).onClose(status, new Metadata());
+          return null;
+        }
+      }).when(calls.get(calls.size() - 1)).start(any(ClientCall.Listener.class),
+        any(Metadata.class));
+      return channel;
+    }
+  }
+
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private static void startCalls(ChannelPool pool, int count) {
+    MethodDescriptor descriptor = mock(MethodDescriptor.class);
+    for (int i = 0; i < count; i++) {
+      pool.newCall(descriptor, CallOptions.DEFAULT)
+          .start(mock(ClientCall.Listener.class), new Metadata());
+    }
+  }
+
   @Test
   public void testInterceptorIsCalled() throws Exception {
     MethodDescriptor descriptor = mock(MethodDescriptor.class);
@@ -110,6 +176,409 @@ public class ChannelPoolTest {
     verify(factory.channels.get(1), times(1)).newCall(same(descriptor), same(CallOptions.DEFAULT));
 }
 
+  @Test
+  public void testLeastOutstandingAvoidsBusyChannel() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    MethodDescriptor descriptor = mock(MethodDescriptor.class);
+    ChannelPool pool =
+        new ChannelPool(null, factory, ChannelPool.ChannelSelectionStrategy.LEAST_OUTSTANDING);
+    pool.ensureChannelCount(2);
+
+    ClientCall.Listener listener = mock(ClientCall.Listener.class);
+    pool.newCall(descriptor, CallOptions.DEFAULT).start(listener, new Metadata());
+    Assert.assertEquals(1, pool.getOutstandingRpcCount());
+    int busyIndex = factory.newCallCounts.get(0).get() == 1 ? 0 : 1;
+    int idleIndex = 1 - busyIndex;
+
+    // With two channels, both are always sampled, so the idle one has to win every time.
+    for (int i = 0; i < 10; i++) {
+      pool.newCall(descriptor, CallOptions.DEFAULT);
+    }
+    Assert.assertEquals(1, factory.newCallCounts.get(busyIndex).get());
+    Assert.assertEquals(10, factory.newCallCounts.get(idleIndex).get());
+
+    ArgumentCaptor<ClientCall.Listener> listenerCaptor =
+        ArgumentCaptor.forClass(ClientCall.Listener.class);
+    verify(factory.calls.get(busyIndex), times(1))
+        .start(listenerCaptor.capture(), any(Metadata.class));
+    Metadata trailers = new Metadata();
+    listenerCaptor.getValue().onClose(Status.OK, trailers);
+    verify(listener, times(1)).onClose(same(Status.OK), same(trailers));
+    Assert.assertEquals(0, pool.getOutstandingRpcCount());
+  }
+
+  @Test
+  public void testUnhealthyChannelIsReplaced() throws Exception {
+    FailingChannelFactory factory = new FailingChannelFactory(1);
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.ensureChannelCount(2);
+    pool.enableUnhealthyChannelReplacement(10, 5, DIRECT_EXECUTOR);
+    ScheduledExecutorService drainScheduler = mock(ScheduledExecutorService.class);
+    pool.setDrainScheduler(drainScheduler);
+
+    // Round robin sends every other call to the failing channel.
+    startCalls(pool, 10);
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+    Assert.assertEquals(2, pool.size());
+    Assert.assertEquals(3, factory.channels.size());
+    ManagedChannel unhealthy = factory.channels.get(0);
+    verify(unhealthy, times(1)).shutdown();
+    // The old channel is forced closed later, without waiting for it on the replacement's thread.
+    verify(unhealthy, times(0)).awaitTermination(anyLong(), any(TimeUnit.class));
+    ArgumentCaptor<Runnable> forceClose = ArgumentCaptor.forClass(Runnable.class);
+    verify(drainScheduler, times(1)).schedule(forceClose.capture(), anyLong(),
+      eq(TimeUnit.SECONDS));
+    verify(unhealthy, times(0)).shutdownNow();
+    when(unhealthy.isTerminated()).thenReturn(false);
+    forceClose.getValue().run();
+    verify(unhealthy, times(1)).shutdownNow();
+
+    // New calls only go to the healthy channels.
+    startCalls(pool, 10);
+    verify(factory.calls.get(0), times(5)).start(any(ClientCall.Listener.class),
+      any(Metadata.class));
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+  }
+
+  @Test
+  public void testReplacedChannelIsShutDownOnceIdle() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.enableUnhealthyChannelReplacement(2, 2, DIRECT_EXECUTOR);
+    pool.setDrainScheduler(mock(ScheduledExecutorService.class));
+    startCalls(pool, 3);
+    ArgumentCaptor<ClientCall.Listener> listenerCaptor =
+        ArgumentCaptor.forClass(ClientCall.Listener.class);
+    verify(factory.calls.get(0), times(3)).start(listenerCaptor.capture(), any(Metadata.class));
+    List<ClientCall.Listener> listeners = listenerCaptor.getAllValues();
+
+    listeners.get(0).onClose(Status.UNAVAILABLE, new Metadata());
+    listeners.get(1).onClose(Status.UNAVAILABLE, new Metadata());
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+    ManagedChannel unhealthy = factory.channels.get(0);
+    // The third call is still running on the old channel.
+    verify(unhealthy, times(0)).shutdown();
+
+    listeners.get(2).onClose(Status.OK, new Metadata());
+    verify(unhealthy, times(1)).shutdown();
+  }
+
+  @Test
+  public void testRetiredChannelIsTrackedForTermination() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    NanoClock clock = mock(NanoClock.class);
+    when(clock.nanoTime()).thenReturn(0L);
+    pool.setClock(clock);
+    pool.setDrainScheduler(mock(ScheduledExecutorService.class));
+    pool.ensureChannelCount(2);
+    pool.enableAdaptiveSizing(1, 2, 1, 1000, DIRECT_EXECUTOR);
+
+    when(clock.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(2));
+    pool.resize();
+    Assert.assertEquals(1, pool.size());
+    ManagedChannel retired = factory.channels.get(1);
+    verify(retired, times(1)).shutdown();
+
+    when(retired.isTerminated()).thenReturn(false);
+    pool.shutdown();
+    verify(retired, times(2)).shutdown();
+    Assert.assertFalse(pool.isTerminated());
+    when(retired.isTerminated()).thenReturn(true);
+    Assert.assertTrue(pool.isTerminated());
+  }
+
+  @Test
+  public void testHealthyChannelsAreNotReplaced() throws Exception {
+    FailingChannelFactory factory = new FailingChannelFactory(0);
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.ensureChannelCount(2);
+    pool.enableUnhealthyChannelReplacement(10, 5, DIRECT_EXECUTOR);
+    startCalls(pool, 100);
+    Assert.assertEquals(0, pool.getReplacedChannelCount());
+    Assert.assertEquals(2, factory.channels.size());
+  }
+
+  @Test
+  public void testReplacementDoesNotBlockNewCalls() throws Exception {
+    FailingChannelFactory factory = new FailingChannelFactory(1);
+    ChannelPool pool = new ChannelPool(null, factory);
+    final List<Runnable> pendingReplacements = new ArrayList<>();
+    pool.enableUnhealthyChannelReplacement(10, 5, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        pendingReplacements.add(command);
+      }
+    });
+
+    // The replacement is only scheduled once, and the failing channel keeps being used until the
+    // replacement is ready.
+    startCalls(pool, 20);
+    Assert.assertEquals(1, pendingReplacements.size());
+    Assert.assertEquals(1, factory.channels.size());
+    verify(factory.calls.get(0), times(20)).start(any(ClientCall.Listener.class),
+      any(Metadata.class));
+
+    pendingReplacements.get(0).run();
+    Assert.assertEquals(2, factory.channels.size());
+    Assert.assertEquals(1, pool.size());
+    startCalls(pool, 1);
+    verify(factory.calls.get(1), times(1)).start(any(ClientCall.Listener.class),
+      any(Metadata.class));
+  }
+
+  @Test
+  public void testFailedReplacementIsRetried() throws Exception {
+    final AtomicInteger createCount = new AtomicInteger();
+    FailingChannelFactory factory = new FailingChannelFactory(1) {
+      @Override
+      public ManagedChannel create() throws IOException {
+        if (createCount.incrementAndGet() == 2) {
+          throw new IOException("Could not connect");
+        }
+        return super.create();
+      }
+    };
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.enableUnhealthyChannelReplacement(10, 5, DIRECT_EXECUTOR);
+    startCalls(pool, 5);
+    Assert.assertEquals(0, pool.getReplacedChannelCount());
+    startCalls(pool, 5);
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+  }
+
+  @Test
+  public void testAdaptiveSizing() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    NanoClock clock = mock(NanoClock.class);
+    when(clock.nanoTime()).thenReturn(0L);
+    pool.setClock(clock);
+    pool.enableAdaptiveSizing(1, 4, 2, 1000, DIRECT_EXECUTOR);
+
+    ClientCall.Listener listener = mock(ClientCall.Listener.class);
+    MethodDescriptor descriptor = mock(MethodDescriptor.class);
+    for (int i = 0; i < 6; i++) {
+      pool.newCall(descriptor, CallOptions.DEFAULT).start(listener, new Metadata());
+    }
+
+    // A single interval above the target is treated as a burst.
+    pool.resize();
+    Assert.assertEquals(1, pool.size());
+
+    pool.resize();
+    Assert.assertEquals(3, pool.size());
+    Assert.assertEquals(2, pool.getStats().getAddedChannelCount());
+    Assert.assertEquals(6, pool.getStats().getOutstandingRpcCount());
+    Assert.assertTrue(pool.getStats().isAdaptive());
+
+    // Channels are not retired while they are busy, or before they have been idle long enough.
+    ArgumentCaptor<ClientCall.Listener> listenerCaptor =
+        ArgumentCaptor.forClass(ClientCall.Listener.class);
+    verify(factory.calls.get(0), times(6)).start(listenerCaptor.capture(), any(Metadata.class));
+    pool.resize();
+    Assert.assertEquals(3, pool.size());
+    for (ClientCall.Listener wrappedListener : listenerCaptor.getAllValues()) {
+      wrappedListener.onClose(Status.OK, new Metadata());
+    }
+    pool.resize();
+    Assert.assertEquals(3, pool.size());
+
+    when(clock.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(2));
+    pool.resize();
+    Assert.assertEquals(1, pool.size());
+    Assert.assertEquals(2, pool.getStats().getRetiredChannelCount());
+    verify(factory.channels.get(1), times(1)).shutdown();
+    verify(factory.channels.get(2), times(1)).shutdown();
+    verify(factory.channels.get(0), times(0)).shutdown();
+  }
+
+  @Test
+  public void testAdaptiveSizingRespectsMax() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.enableAdaptiveSizing(2, 3, 1, 1000, DIRECT_EXECUTOR);
+    Assert.assertEquals(2, pool.size());
+    startCalls(pool, 10);
+    pool.resize();
+    pool.resize();
+    Assert.assertEquals(3, pool.size());
+    pool.resize();
+    pool.resize();
+    Assert.assertEquals(3, pool.size());
+  }
+
+  @Test
+  public void testAdaptiveSizingGrowsOnExecutor() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    final List<Runnable> queued = new ArrayList<>();
+    final AtomicBoolean direct = new AtomicBoolean();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (direct.get()) {
+          command.run();
+        } else {
+          queued.add(command);
+        }
+      }
+    };
+    pool.enableAdaptiveSizing(1, 4, 1, 1000, executor);
+    startCalls(pool, 4);
+
+    // resize() hands the growth off, and does not start another one while it is running.
+    for (int i = 0; i < 4; i++) {
+      pool.resize();
+    }
+    Assert.assertEquals(1, pool.size());
+    Assert.assertEquals(1, queued.size());
+
+    direct.set(true);
+    queued.get(0).run();
+    Assert.assertEquals(4, pool.size());
+    Assert.assertEquals(4, factory.channels.size());
+  }
+
+  @Test
+  public void testUndersizedWindowChannelIsRecycled() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    NanoClock clock = mock(NanoClock.class);
+    when(clock.nanoTime()).thenReturn(0L);
+    pool.setClock(clock);
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 4000);
+    pool.enableFlowControlWindowTuning(tuner, DIRECT_EXECUTOR);
+
+    ClientCall.Listener listener = mock(ClientCall.Listener.class);
+    pool.newCall(mock(MethodDescriptor.class), CallOptions.DEFAULT).start(listener, new Metadata());
+    ArgumentCaptor<ClientCall.Listener> listenerCaptor =
+        ArgumentCaptor.forClass(ClientCall.Listener.class);
+    verify(factory.calls.get(0), times(1)).start(listenerCaptor.capture(), any(Metadata.class));
+    ClientCall.Listener wrappedListener = listenerCaptor.getValue();
+
+    // A 1ms round trip, followed by 3000 bytes in 1ms: three times the window was in flight.
+    MessageLite response = mock(MessageLite.class);
+    when(response.getSerializedSize()).thenReturn(3000);
+    when(clock.nanoTime()).thenReturn(TimeUnit.MILLISECONDS.toNanos(1));
+    wrappedListener.onHeaders(new Metadata());
+    wrappedListener.onMessage(response);
+    when(clock.nanoTime()).thenReturn(TimeUnit.MILLISECONDS.toNanos(2));
+    wrappedListener.onClose(Status.OK, new Metadata());
+
+    verify(listener, times(1)).onMessage(same(response));
+    Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), tuner.getMinRttNanos());
+    Assert.assertEquals(2000, tuner.getWindow());
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+    Assert.assertEquals(2, factory.channels.size());
+    verify(factory.channels.get(0), times(1)).shutdown();
+  }
+
+  @Test
+  public void testUndersizedWindowChannelsAreRecycledOneAtATime() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.ensureChannelCount(2, DIRECT_EXECUTOR);
+    NanoClock clock = mock(NanoClock.class);
+    when(clock.nanoTime()).thenReturn(0L);
+    pool.setClock(clock);
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 4000);
+    pool.enableFlowControlWindowTuning(tuner, DIRECT_EXECUTOR);
+
+    // The window grows on the first channel, which is recycled right away.
+    completeCall(pool, factory.calls.get(0), clock, 0, 3000);
+    Assert.assertEquals(2000, tuner.getWindow());
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+
+    // The second channel is still undersized, but was used too soon after the first recycle.
+    completeCall(pool, factory.calls.get(1), clock, 3, 1);
+    Assert.assertEquals(1, pool.getReplacedChannelCount());
+    verify(factory.channels.get(1), times(0)).shutdown();
+
+    // Once the interval is over, the next call on the second channel recycles it.
+    completeCall(pool, factory.calls.get(2), clock, 1000, 1);
+    completeCall(pool, factory.calls.get(1), clock, 1003, 1);
+    Assert.assertEquals(2, pool.getReplacedChannelCount());
+    Assert.assertEquals(4, factory.channels.size());
+    verify(factory.channels.get(1), times(1)).shutdown();
+  }
+
+  /**
+   * Starts a call on the pool, which is expected to go to {@code callStub}, and completes it with a
+   * 1ms round trip and a response of {@code bytes} that arrives 1ms later.
+   */
+  private static void completeCall(ChannelPool pool, ClientCall callStub, NanoClock clock,
+      long startMillis, int bytes) {
+    when(clock.nanoTime()).thenReturn(TimeUnit.MILLISECONDS.toNanos(startMillis));
+    pool.newCall(mock(MethodDescriptor.class), CallOptions.DEFAULT)
+        .start(mock(ClientCall.Listener.class), new Metadata());
+    ArgumentCaptor<ClientCall.Listener> listenerCaptor =
+        ArgumentCaptor.forClass(ClientCall.Listener.class);
+    verify(callStub, atLeastOnce()).start(listenerCaptor.capture(), any(Metadata.class));
+    List<ClientCall.Listener> listeners = listenerCaptor.getAllValues();
+    ClientCall.Listener wrappedListener = listeners.get(listeners.size() - 1);
+
+    MessageLite response = mock(MessageLite.class);
+    when(response.getSerializedSize()).thenReturn(bytes);
+    when(clock.nanoTime()).thenReturn(TimeUnit.MILLISECONDS.toNanos(startMillis + 1));
+    wrappedListener.onHeaders(new Metadata());
+    wrappedListener.onMessage(response);
+    when(clock.nanoTime()).thenReturn(TimeUnit.MILLISECONDS.toNanos(startMillis + 2));
+    wrappedListener.onClose(Status.OK, new Metadata());
+  }
+
+  @Test
+  public void testParallelEnsureChannelCount() throws Exception {
+    final AtomicBoolean parallel = new AtomicBoolean();
+    final CountDownLatch allCreating = new CountDownLatch(4);
+    MockChannelFactory factory = new MockChannelFactory() {
+      @Override
+      public ManagedChannel create() throws IOException {
+        if (parallel.get()) {
+          allCreating.countDown();
+          try {
+            // Only returns if the other channels are being created at the same time.
+            if (!allCreating.await(10, TimeUnit.SECONDS)) {
+              throw new IOException("Channels were not created in parallel.");
+            }
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        synchronized (this) {
+          return super.create();
+        }
+      }
+    };
+    ChannelPool pool = new ChannelPool(null, factory);
+    parallel.set(true);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      pool.ensureChannelCount(5, executor);
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(5, pool.size());
+    Assert.assertEquals(5, factory.channels.size());
+
+    // The pool is already large enough.
+    pool.ensureChannelCount(3, DIRECT_EXECUTOR);
+    Assert.assertEquals(5, pool.size());
+  }
+
+  @Test
+  public void testParallelEnsureChannelCountAfterShutdown() throws Exception {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(null, factory);
+    pool.shutdown();
+    try {
+      pool.ensureChannelCount(2, DIRECT_EXECUTOR);
+      Assert.fail("Expected an IOException.");
+    } catch (IOException expected) {
+    }
+    Assert.assertEquals(1, factory.channels.size());
+  }
+
   @Test
   public void testEnsureCapcity() throws IOException {
     MockChannelFactory factory = new MockChannelFactory();
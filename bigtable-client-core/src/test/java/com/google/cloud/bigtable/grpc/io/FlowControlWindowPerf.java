@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.BigtableServiceGrpc;
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.CheckAndMutateRowRequest;
+import com.google.bigtable.v1.CheckAndMutateRowResponse;
+import com.google.bigtable.v1.Column;
+import com.google.bigtable.v1.Family;
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.ReadRowsResponse;
+import com.google.bigtable.v1.ReadRowsResponse.Chunk;
+import com.google.bigtable.v1.Row;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.netty.NegotiationType;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Compares the throughput of large ReadRows scans with fixed and auto-tuned flow control windows.
+ * The client talks to a loopback server through a proxy that delays all traffic, so that the
+ * connection has a realistic bandwidth-delay product.
+ */
+public class FlowControlWindowPerf {
+  private static final long ONE_WAY_DELAY_MS = 10;
+  private static final int RESPONSE_SIZE = 64 * 1024;
+  private static final int RESPONSES_PER_SCAN = 512;
+  private static final int SCAN_COUNT = 20;
+
+  public static void main(String[] args) throws Exception {
+    int serverPort = getFreePort();
+    Server server = NettyServerBuilder.forAddress(new InetSocketAddress("localhost", serverPort))
+        .addService(BigtableServiceGrpc.bindService(new ScanService()))
+        .build()
+        .start();
+    LatencyProxy proxy = new LatencyProxy(serverPort, ONE_WAY_DELAY_MS);
+    try {
+      System.out.println(String.format("Round trip time: %d ms, scan size: %d MB",
+        2 * ONE_WAY_DELAY_MS, RESPONSE_SIZE * RESPONSES_PER_SCAN >> 20));
+      for (int i = 0; i < 2; i++) {
+        // The first round warms up the JIT.
+        run("64 KB window", proxy.getPort(), 64 * 1024, null);
+        run("1 MB window", proxy.getPort(), 1 << 20, null);
+        run("auto-tuned window", proxy.getPort(), 64 * 1024,
+          new FlowControlWindowTuner(64 * 1024, 1 << 24));
+      }
+    } finally {
+      proxy.close();
+      server.shutdownNow();
+    }
+  }
+
+  private static void run(String name, final int port, final int window,
+      final FlowControlWindowTuner tuner) throws IOException {
+    final BigtableSessionSharedThreadPools pools = BigtableSessionSharedThreadPools.getInstance();
+    ChannelPool pool = new ChannelPool(null, new ChannelPool.ChannelFactory() {
+      @Override
+      public ManagedChannel create() throws IOException {
+        return NettyChannelBuilder.forAddress("localhost", port)
+            .negotiationType(NegotiationType.PLAINTEXT)
+            .eventLoopGroup(pools.getElg())
+            .executor(pools.getBatchThreadPool())
+            .flowControlWindow(tuner == null ? window : tuner.getWindow())
+            .build();
+      }
+    });
+    if (tuner != null) {
+      pool.enableFlowControlWindowTuning(tuner, pools.getBatchThreadPool());
+    }
+    try {
+      BigtableServiceGrpc.BigtableServiceBlockingStub stub =
+          BigtableServiceGrpc.newBlockingStub(pool);
+      ReadRowsRequest request = ReadRowsRequest.newBuilder()
+          .setTableName("projects/p/zones/z/clusters/c/tables/t")
+          .build();
+      long bytes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < SCAN_COUNT; i++) {
+        Iterator<ReadRowsResponse> responses = stub.readRows(request);
+        while (responses.hasNext()) {
+          bytes += responses.next().getSerializedSize();
+        }
+      }
+      long diff = System.nanoTime() - start;
+      String windowDescription = tuner == null ? "" : String.format(
+        " (final window: %d KB, replaced channels: %d)", tuner.getWindow() / 1024,
+        pool.getReplacedChannelCount());
+      System.out.println(String.format("%s: %d scans in %d ms. %.1f MB/sec%s", name, SCAN_COUNT,
+        TimeUnit.NANOSECONDS.toMillis(diff), bytes * 1_000_000_000d / diff / (1 << 20),
+        windowDescription));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static int getFreePort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Forwards TCP connections to a local port and delays every chunk of data by a fixed amount of
+   * time in each direction. Bandwidth is not limited.
+   */
+  private static class LatencyProxy implements Runnable {
+    private final int targetPort;
+    private final long delayNanos;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    LatencyProxy(int targetPort, long delayMs) throws IOException {
+      this.targetPort = targetPort;
+      this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+      this.serverSocket = new ServerSocket(0);
+      executor.execute(this);
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Socket client = serverSocket.accept();
+          Socket server = new Socket("localhost", targetPort);
+          client.setTcpNoDelay(true);
+          server.setTcpNoDelay(true);
+          forward(client, server);
+          forward(server, client);
+        }
+      } catch (IOException e) {
+        // The proxy was closed.
+      }
+    }
+
+    private void forward(Socket from, Socket to) throws IOException {
+      final InputStream in = from.getInputStream();
+      final OutputStream out = to.getOutputStream();
+      final BlockingQueue<DelayedChunk> queue = new LinkedBlockingQueue<>();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          byte[] buffer = new byte[64 * 1024];
+          try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+              queue.put(new DelayedChunk(System.nanoTime() + delayNanos,
+                  Arrays.copyOf(buffer, count)));
+            }
+          } catch (IOException | InterruptedException e) {
+            // The connection was closed.
+          }
+          queue.add(new DelayedChunk(0, null));
+        }
+      });
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              DelayedChunk chunk = queue.take();
+              if (chunk.data == null) {
+                break;
+              }
+              long waitNanos = chunk.deliveryNanos - System.nanoTime();
+              if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+              }
+              out.write(chunk.data);
+              out.flush();
+            }
+            out.close();
+          } catch (IOException | InterruptedException e) {
+            // The connection was closed.
+          }
+        }
+      });
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+      executor.shutdownNow();
+    }
+  }
+
+  private static class DelayedChunk {
+    private final long deliveryNanos;
+    private final byte[] data;
+
+    DelayedChunk(long deliveryNanos, byte[] data) {
+      this.deliveryNanos = deliveryNanos;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Streams {@link #RESPONSES_PER_SCAN} large responses for every ReadRows request. Other methods
+   * are not needed by this test.
+   */
+  private static class ScanService implements BigtableServiceGrpc.BigtableService {
+    private final ReadRowsResponse response = ReadRowsResponse.newBuilder()
+        .setRowKey(ByteString.copyFromUtf8("row"))
+        .addChunks(Chunk.newBuilder().setRowContents(Family.newBuilder()
+            .setName("cf")
+            .addColumns(Column.newBuilder()
+                .setQualifier(ByteString.copyFromUtf8("q"))
+                .addCells(Cell.newBuilder()
+                    .setValue(ByteString.copyFrom(new byte[RESPONSE_SIZE]))))))
+        .addChunks(Chunk.newBuilder().setCommitRow(true))
+        .build();
+
+    @Override
+    public void readRows(ReadRowsRequest request,
+        StreamObserver<ReadRowsResponse> responseObserver) {
+      for (int i = 0; i < RESPONSES_PER_SCAN; i++) {
+        responseObserver.onNext(response);
+      }
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void mutateRow(MutateRowRequest request, StreamObserver<Empty> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void sampleRowKeys(SampleRowKeysRequest request,
+        StreamObserver<SampleRowKeysResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void mutateRows(MutateRowsRequest request,
+        StreamObserver<MutateRowsResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void checkAndMutateRow(CheckAndMutateRowRequest request,
+        StreamObserver<CheckAndMutateRowResponse> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+
+    @Override
+    public void readModifyWriteRow(ReadModifyWriteRowRequest request,
+        StreamObserver<Row> responseObserver) {
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FlowControlWindowTunerTest {
+
+  private static final long ONE_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testKeepsMinimumRtt() {
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 8000);
+    Assert.assertEquals(-1, tuner.getMinRttNanos());
+    tuner.recordRtt(5 * ONE_MS);
+    tuner.recordRtt(2 * ONE_MS);
+    tuner.recordRtt(3 * ONE_MS);
+    tuner.recordRtt(0);
+    Assert.assertEquals(2 * ONE_MS, tuner.getMinRttNanos());
+  }
+
+  @Test
+  public void testNoGrowthWithoutRtt() {
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 8000);
+    tuner.recordTransfer(100000, ONE_MS);
+    Assert.assertEquals(1000, tuner.getWindow());
+  }
+
+  @Test
+  public void testNoGrowthForSmallResponses() {
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 8000);
+    tuner.recordRtt(ONE_MS);
+    tuner.recordTransfer(900, ONE_MS / 10);
+    Assert.assertEquals(1000, tuner.getWindow());
+  }
+
+  @Test
+  public void testNoGrowthWhenWindowIsNotTheBottleneck() {
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 8000);
+    tuner.recordRtt(ONE_MS);
+    // 5000 bytes over 10 round trips means that only 500 bytes were in flight at a time.
+    tuner.recordTransfer(5000, 10 * ONE_MS);
+    Assert.assertEquals(1000, tuner.getWindow());
+  }
+
+  @Test
+  public void testGrowsUpToMax() {
+    FlowControlWindowTuner tuner = new FlowControlWindowTuner(1000, 3000);
+    tuner.recordRtt(ONE_MS);
+    // 10000 bytes over 10 round trips means that a full window was in flight at a time.
+    tuner.recordTransfer(10000, 10 * ONE_MS);
+    Assert.assertEquals(2000, tuner.getWindow());
+    tuner.recordTransfer(20000, 10 * ONE_MS);
+    Assert.assertEquals(3000, tuner.getWindow());
+    tuner.recordTransfer(30000, 10 * ONE_MS);
+    Assert.assertEquals(3000, tuner.getWindow());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxSmallerThanInitial() {
+    new FlowControlWindowTuner(2000, 1000);
+  }
+}
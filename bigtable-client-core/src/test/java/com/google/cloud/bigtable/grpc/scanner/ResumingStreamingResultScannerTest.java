@@ -31,6 +31,7 @@ import com.google.bigtable.v1.Row;
 import com.google.bigtable.v1.RowRange;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
 import com.google.cloud.bigtable.grpc.io.IOExceptionWithStatus;
 import com.google.protobuf.ByteString;
 
@@ -275,6 +276,31 @@ public class ResumingStreamingResultScannerTest {
     doErrorsDoNotResume(Status.DEADLINE_EXCEEDED);
   }
 
+  @Test
+  public void testRetryBudgetStopsResumes() throws IOException {
+    RetryBudget retryBudget = new RetryBudget(1, 0);
+    when(mockScannerFactory.createScanner(any(ReadRowsRequest.class)))
+        .thenReturn(mockScanner);
+    when(mockScanner.next())
+        .thenReturn(buildRow("row1"))
+        .thenThrow(new IOExceptionWithStatus("Test", Status.UNAVAILABLE));
+
+    ResumingStreamingResultScanner scanner = new ResumingStreamingResultScanner(retryOptions,
+        readRowsRequest, mockScannerFactory, retryBudget, logger);
+    assertRowKey("row1", scanner.next());
+    try {
+      scanner.next();
+      fail("Scanner should have stopped resuming once the retry budget was spent");
+    } catch (BigtableRetriesExhaustedException e) {
+      assertEquals("Exhausted the retry budget.", e.getMessage());
+    }
+    // The first error used the only token, and the second one found the budget empty.
+    verify(mockScannerFactory, times(2)).createScanner(any(ReadRowsRequest.class));
+    assertEquals(1, retryBudget.getRetryCount());
+    assertEquals(1, retryBudget.getRejectedRetryCount());
+    scanner.close();
+  }
+
   private void doErrorsDoNotResume(Status status) throws IOException {
     Row row1 = buildRow("row1");
     Row row2 = buildRow("row2");
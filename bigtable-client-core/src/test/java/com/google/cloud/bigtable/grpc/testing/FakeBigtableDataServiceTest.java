@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.bigtable.v1.CheckAndMutateRowRequest;
+import com.google.bigtable.v1.Column;
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRule;
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.Row;
+import com.google.bigtable.v1.RowFilter;
+import com.google.bigtable.v1.RowRange;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CredentialOptions;
+import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.BigtableSession;
+import com.google.cloud.bigtable.grpc.scanner.ResultScanner;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Tests {@link FakeBigtableDataService} through a {@link BigtableSession} over the in-process
+ * transport.
+ */
+@RunWith(JUnit4.class)
+public class FakeBigtableDataServiceTest {
+
+  private static final String SERVER_NAME = "fake-bigtable-test";
+  private static final String TABLE_NAME = "projects/p/zones/z/clusters/c/tables/t";
+
+  private FakeBigtableDataService service;
+  private Server server;
+  private BigtableSession session;
+  private BigtableDataClient client;
+
+  @Before
+  public void setup() throws IOException {
+    service = new FakeBigtableDataService();
+    server = service.startInProcessServer(SERVER_NAME);
+    BigtableOptions options = new BigtableOptions.Builder()
+        .setProjectId("p")
+        .setZoneId("z")
+        .setClusterId("c")
+        .setUserAgent("test")
+        .setCredentialOptions(CredentialOptions.nullCredential())
+        .setRetryOptions(new RetryOptions.Builder().setEnableRetries(false).build())
+        .build();
+    session = new BigtableSession(options,
+        FakeBigtableDataService.createInProcessChannelFactory(SERVER_NAME));
+    client = session.getDataClient();
+  }
+
+  @After
+  public void teardown() throws IOException {
+    session.close();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void testMutateAndReadRows() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      client.mutateRow(setCell(String.format("row-%02d", i), "q", "value-" + i));
+    }
+    Assert.assertEquals(10, service.getRowCount(TABLE_NAME));
+
+    List<Row> rows = readRows(ReadRowsRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowRange(RowRange.newBuilder()
+            .setStartKey(ByteString.copyFromUtf8("row-03"))
+            .setEndKey(ByteString.copyFromUtf8("row-06")))
+        .build());
+    Assert.assertEquals(3, rows.size());
+    Assert.assertEquals("row-03", rows.get(0).getKey().toStringUtf8());
+    Assert.assertEquals("value-5",
+      rows.get(2).getFamilies(0).getColumns(0).getCells(0).getValue().toStringUtf8());
+  }
+
+  @Test
+  public void testLargeRowsAreChunked() throws Exception {
+    MutateRowRequest.Builder request = MutateRowRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ByteString.copyFromUtf8("row"));
+    for (int i = 0; i < 10; i++) {
+      request.addMutations(setCellMutation("q" + i, "value"));
+    }
+    client.mutateRow(request.build());
+    service.setCellsPerResponse(3);
+
+    List<Row> rows = readRows(ReadRowsRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ByteString.copyFromUtf8("row"))
+        .build());
+    Assert.assertEquals(1, rows.size());
+    int cellCount = 0;
+    for (Column column : rows.get(0).getFamilies(0).getColumnsList()) {
+      cellCount += column.getCellsCount();
+    }
+    Assert.assertEquals(10, cellCount);
+  }
+
+  @Test
+  public void testFilters() throws Exception {
+    client.mutateRow(setCell("row", "q1", "a"));
+    client.mutateRow(setCell("row", "q1", "b"));
+    client.mutateRow(setCell("row", "q2", "c"));
+
+    RowFilter filter = RowFilter.newBuilder()
+        .setChain(RowFilter.Chain.newBuilder()
+            .addFilters(RowFilter.newBuilder()
+                .setColumnQualifierRegexFilter(ByteString.copyFromUtf8("q1")))
+            .addFilters(RowFilter.newBuilder().setCellsPerColumnLimitFilter(1)))
+        .build();
+    List<Row> rows = readRows(ReadRowsRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setFilter(filter)
+        .build());
+    Assert.assertEquals(1, rows.size());
+    Assert.assertEquals(1, rows.get(0).getFamilies(0).getColumnsCount());
+    Assert.assertEquals(1, rows.get(0).getFamilies(0).getColumns(0).getCellsCount());
+  }
+
+  @Test
+  public void testCheckAndMutate() throws Exception {
+    CheckAndMutateRowRequest request = CheckAndMutateRowRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ByteString.copyFromUtf8("row"))
+        .addTrueMutations(setCellMutation("matched", "value"))
+        .addFalseMutations(setCellMutation("not matched", "value"))
+        .build();
+    Assert.assertFalse(client.checkAndMutateRow(request).getPredicateMatched());
+    Assert.assertTrue(client.checkAndMutateRow(request).getPredicateMatched());
+    Row row = service.getRow(TABLE_NAME, ByteString.copyFromUtf8("row"));
+    Assert.assertEquals(2, row.getFamilies(0).getColumnsCount());
+  }
+
+  @Test
+  public void testReadModifyWrite() throws Exception {
+    ReadModifyWriteRowRequest request = ReadModifyWriteRowRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ByteString.copyFromUtf8("row"))
+        .addRules(ReadModifyWriteRule.newBuilder()
+            .setFamilyName("cf")
+            .setColumnQualifier(ByteString.copyFromUtf8("counter"))
+            .setIncrementAmount(5))
+        .build();
+    client.readModifyWriteRow(request);
+    Row row = client.readModifyWriteRow(request);
+    ByteString value = row.getFamilies(0).getColumns(0).getCells(0).getValue();
+    Assert.assertEquals(10, Longs.fromByteArray(value.toByteArray()));
+  }
+
+  @Test
+  public void testSampleRowKeys() throws Exception {
+    service.setSampleRowKeyInterval(5);
+    for (int i = 0; i < 12; i++) {
+      client.mutateRow(setCell(String.format("row-%02d", i), "q", "value"));
+    }
+    List<SampleRowKeysResponse> samples = client.sampleRowKeys(
+      SampleRowKeysRequest.newBuilder().setTableName(TABLE_NAME).build());
+    Assert.assertEquals(3, samples.size());
+    Assert.assertEquals("row-04", samples.get(0).getRowKey().toStringUtf8());
+    Assert.assertEquals("row-09", samples.get(1).getRowKey().toStringUtf8());
+    Assert.assertTrue(samples.get(2).getRowKey().isEmpty());
+    Assert.assertTrue(samples.get(2).getOffsetBytes() > samples.get(1).getOffsetBytes());
+  }
+
+  @Test
+  public void testInjectedErrors() throws Exception {
+    service.setErrorCode(Status.Code.FAILED_PRECONDITION);
+    service.setErrorRate(1);
+    try {
+      client.mutateRow(setCell("row", "q", "value"));
+      Assert.fail("Expected an injected error.");
+    } catch (StatusRuntimeException e) {
+      Assert.assertEquals(Status.Code.FAILED_PRECONDITION, e.getStatus().getCode());
+    }
+    Assert.assertEquals(0, service.getRowCount(TABLE_NAME));
+
+    service.setErrorRate(0);
+    service.setEntryErrorRate(1);
+    MutateRowsResponse response = client.mutateRows(MutateRowsRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .addEntries(MutateRowsRequest.Entry.newBuilder()
+            .setRowKey(ByteString.copyFromUtf8("row"))
+            .addMutations(setCellMutation("q", "value")))
+        .build());
+    Assert.assertEquals(Status.Code.FAILED_PRECONDITION.value(),
+      response.getStatuses(0).getCode());
+    Assert.assertEquals(2, service.getInjectedErrorCount());
+  }
+
+  private List<Row> readRows(ReadRowsRequest request) throws IOException {
+    List<Row> rows = new ArrayList<>();
+    try (ResultScanner<Row> scanner = client.readRows(request)) {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  private static MutateRowRequest setCell(String rowKey, String qualifier, String value) {
+    return MutateRowRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ByteString.copyFromUtf8(rowKey))
+        .addMutations(setCellMutation(qualifier, value))
+        .build();
+  }
+
+  private static Mutation setCellMutation(String qualifier, String value) {
+    return Mutation.newBuilder()
+        .setSetCell(SetCell.newBuilder()
+            .setFamilyName("cf")
+            .setColumnQualifier(ByteString.copyFromUtf8(qualifier))
+            .setTimestampMicros(-1)
+            .setValue(ByteString.copyFromUtf8(value)))
+        .build();
+  }
+}
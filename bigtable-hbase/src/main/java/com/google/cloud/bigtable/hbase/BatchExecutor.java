@@ -38,10 +38,13 @@ import com.google.bigtable.v1.MutateRowRequest;
 import com.google.bigtable.v1.MutateRowsResponse;
 import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
 import com.google.cloud.bigtable.grpc.async.BulkMutation;
 import com.google.cloud.bigtable.grpc.async.BulkRead;
+import com.google.cloud.bigtable.grpc.async.RpcPriority;
 import com.google.cloud.bigtable.hbase.adapters.Adapters;
 import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
 import com.google.common.base.Function;
@@ -151,10 +154,19 @@ public class BatchExecutor {
         return asyncExecutor.mutateRowAsync(request);
       }
       if (bulkMutation == null) {
-        bulkMutation = new BulkMutation(tableName);
+        CallOptionsConfig callOptionsConfig = options.getCallOptionsConfig();
+        int overallTimeoutMs = callOptionsConfig != null && callOptionsConfig.isUseTimeout()
+            ? callOptionsConfig.getOverallTimeoutMs() : 0;
+        BigtableSessionSharedThreadPools threadPools =
+            BigtableSessionSharedThreadPools.getInstance();
+        bulkMutation = new BulkMutation(tableName, asyncExecutor.getClient(),
+            options.getRetryOptions(), threadPools.getRetryExecutor(),
+            options.isBulkCoalesceRows(), asyncExecutor.getClient().getRetryBudget(),
+            overallTimeoutMs, asyncExecutor.getRpcThrottler(), threadPools.getBatchThreadPool());
       }
       ListenableFuture<Empty> future = bulkMutation.add(request);
-      if (bulkMutation.getRowKeyCount() >= options.getBulkMaxRowKeyCount()
+      // The mutation count is at least the row key count, and also bounds coalesced rows.
+      if (bulkMutation.getMutationCount() >= options.getBulkMaxRowKeyCount()
           || bulkMutation.getApproximateByteSize() >= options.getBulkMaxRequestSize()) {
         mutateRowAsync();
         bulkMutation = null;
@@ -179,7 +191,9 @@ public class BatchExecutor {
     public ListenableFuture<? extends GeneratedMessage> readRowsAsync(ReadRowsRequest request)
         throws InterruptedException {
       if (!options.useBulkApi()) {
-        return Futures.transform(asyncExecutor.readRowsAsync(request), ROWS_TO_ROW_CONVERTER);
+        // Reads from a Table are usually waited on by a user, so they go ahead of buffered writes.
+        return Futures.transform(asyncExecutor.readRowsAsync(request, RpcPriority.INTERACTIVE),
+          ROWS_TO_ROW_CONVERTER);
       } else {
         return Futures.transform(bulkRead.add(request), ROWS_TO_ROW_CONVERTER);
       }
@@ -16,13 +16,23 @@
 package com.google.cloud.bigtable.hbase;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -39,15 +49,24 @@ import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
 import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import com.google.api.client.util.NanoClock;
 import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
 import com.google.bigtable.v1.MutateRowsResponse;
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
 import com.google.cloud.bigtable.grpc.async.BulkMutation;
+import com.google.cloud.bigtable.grpc.async.RpcPriority;
 import com.google.cloud.bigtable.grpc.async.RpcThrottler;
+import com.google.cloud.bigtable.grpc.async.TabletPartitioner;
+import com.google.cloud.bigtable.grpc.async.WriteRateLimiter;
 import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
+import com.google.cloud.bigtable.util.ThreadPoolUtil;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -64,6 +83,28 @@ public class BigtableBufferedMutator implements BufferedMutator {
 
   protected static final long MUTATION_TO_BE_SENT_WAIT_MS = 1000;
 
+  /**
+   * How long to wait before checking a lingering bulk mutation again, if another thread was adding
+   * to it.
+   */
+  private static final long LINGER_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * How many finished bulk mutations an ordered shard queues while the previous one is in flight,
+   * before the threads that add mutations to it wait.
+   */
+  private static final int MAX_READY_BATCHES = 2;
+
+  /**
+   * Checks the age of the bulk mutations that are being filled. Sending one can block, so the
+   * linger checks only hand it off to a worker thread.
+   */
+  private static class LingerSchedulerHolder {
+    private static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(
+          ThreadPoolUtil.createThreadFactory("bigtable-bulk-linger"));
+  }
+
   private static class MutationException {
     private final Row mutation;
     private final Throwable throwable;
@@ -80,6 +121,340 @@ public class BigtableBufferedMutator implements BufferedMutator {
     }
   };
 
+  /**
+   * An entry for a {@link BulkMutation} that was adapted by a user thread, and is waiting to be
+   * added to a {@link PartitionBatch} of a {@link BulkShard}.
+   */
+  private static class PendingBulkEntry {
+    final MutateRowsRequest.Entry entry;
+    final SettableFuture<Empty> future;
+    // Completes once the entry will no longer be retried.
+    final ListenableFuture<Empty> completion;
+    // The tablet of the entry, or 0 if the entries are not grouped by tablet.
+    final int partition;
+    // The boundaries that the partition is from, or null if the entries are not grouped by tablet.
+    final TabletPartitioner.Boundaries boundaries;
+
+    PendingBulkEntry(MutateRowsRequest.Entry entry, SettableFuture<Empty> future,
+        ListenableFuture<Empty> completion, int partition,
+        TabletPartitioner.Boundaries boundaries) {
+      this.entry = entry;
+      this.future = future;
+      this.completion = completion;
+      this.partition = partition;
+      this.boundaries = boundaries;
+    }
+  }
+
+  /**
+   * A {@link BulkMutation} that a {@link BulkShard} is filling with the entries of one partition.
+   */
+  private class PartitionBatch {
+    final int partition;
+    final BulkMutation bulkMutation = createBulkMutation();
+    // When the first entry was added.
+    final long startNanos = clock.nanoTime();
+    // The completions of the entries, if the shard is ordered.
+    final List<ListenableFuture<Empty>> completions = new ArrayList<>();
+    // The request, once an ordered shard has finished the batch.
+    MutateRowsRequest request;
+
+    PartitionBatch(int partition) {
+      this.partition = partition;
+    }
+
+    boolean isFull() {
+      // The mutation count is at least the row key count, and also bounds coalesced rows.
+      return bulkMutation.getMutationCount() >= options.getBulkMaxRowKeyCount()
+          || bulkMutation.getApproximateByteSize() >= options.getBulkMaxRequestSize();
+    }
+  }
+
+  /**
+   * <p>
+   * Builds and sends the bulk mutations for a part of the row keys. Mutations for the bulk API are
+   * adapted by the threads that call {@link #mutate(Mutation)}, and are then queued here. Whichever
+   * thread holds the shard's lock adds them to the {@link PartitionBatch} of their partition, so
+   * that the other threads do not have to wait for the lock.
+   * </p>
+   * <p>
+   * An ordered shard sends its next bulk mutation only after all of the entries of the previous
+   * one, including their retries, are complete. The mutations of a row always go to the same
+   * shard, so they are applied in the order in which they were made. When the tablet boundaries
+   * change, a row can move to another partition, so the shard first sends the batches that it is
+   * filling. The batches that are finished in the meantime wait in the shard, and are sent one at
+   * a time by a listener on the previous bulk mutation. The listener registers each batch with the
+   * {@link RpcThrottler} just before sending it, without holding the lock. Once more than
+   * {@link #MAX_READY_BATCHES} batches wait, the threads that add mutations wait for the queue to
+   * drain rather than for the limiter.
+   * </p>
+   */
+  private class BulkShard {
+    private final ConcurrentLinkedQueue<PendingBulkEntry> pendingEntries =
+        new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingEntryCount = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final boolean ordered;
+
+    // The batches that are being filled, by partition. Guarded by lock.
+    private final Map<Integer, PartitionBatch> batches = new HashMap<>();
+    // Completes when the entries of the last bulk mutation that was sent complete. Guarded by lock.
+    private ListenableFuture<?> inFlight = Futures.immediateFuture(null);
+    // The finished batches of an ordered shard that wait for inFlight, in order. Guarded by lock.
+    private final Queue<PartitionBatch> readyBatches = new ArrayDeque<>();
+    // Signalled when a ready batch is sent.
+    private final Condition readyBatchSent = lock.newCondition();
+    // Whether a listener on inFlight, or a send that it started, is sending the ready batches.
+    // Guarded by lock.
+    private boolean sendScheduled = false;
+    // The tablet boundaries of the last entry that was added. Guarded by lock.
+    private TabletPartitioner.Boundaries boundaries;
+
+    private final Runnable sendReadyBatchTask = new Runnable() {
+      @Override
+      public void run() {
+        sendReadyBatch();
+      }
+    };
+
+    BulkShard(boolean ordered) {
+      this.ordered = ordered;
+    }
+
+    void add(PendingBulkEntry pending) throws InterruptedException {
+      pendingEntries.add(pending);
+      // Once a whole batch is waiting, wait for the lock as well, so that the queue is bounded
+      // while the thread with the lock is blocked on sending.
+      int pendingCount = pendingEntryCount.incrementAndGet();
+      drain(pendingCount > options.getBulkMaxRowKeyCount());
+      if (ordered) {
+        awaitReadyBatchRoom();
+      }
+    }
+
+    /**
+     * Waits until no more than {@link #MAX_READY_BATCHES} batches wait to be sent. The batches are
+     * queued without waiting, so that they stay in order, and the threads that add mutations wait
+     * here instead.
+     */
+    private void awaitReadyBatchRoom() throws InterruptedException {
+      lock.lock();
+      try {
+        while (readyBatches.size() > MAX_READY_BATCHES) {
+          readyBatchSent.await();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Sends the bulk mutations that are being filled, with all of the entries that are queued.
+     */
+    void flush() {
+      lock.lock();
+      try {
+        addPendingEntries();
+        sendBatches();
+      } finally {
+        lock.unlock();
+      }
+      drain(false);
+    }
+
+    /**
+     * Adds the pending entries to {@link #batches}, unless another thread is already doing so.
+     *
+     * @param wait Wait for the other thread to finish, rather than leaving the entries to it.
+     */
+    private void drain(boolean wait) {
+      if (wait) {
+        lock.lock();
+      } else if (!lock.tryLock()) {
+        return;
+      }
+      while (true) {
+        try {
+          addPendingEntries();
+        } finally {
+          lock.unlock();
+        }
+        // A thread that queued an entry while this thread held the lock left the entry to this
+        // thread.
+        if (pendingEntries.isEmpty() || !lock.tryLock()) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Adds the pending entries to {@link #batches}, and sends a batch whenever it is full. This
+     * must be called while holding {@link #lock}.
+     */
+    private void addPendingEntries() {
+      PendingBulkEntry pending;
+      while ((pending = pendingEntries.poll()) != null) {
+        pendingEntryCount.decrementAndGet();
+        if (ordered && pending.boundaries != boundaries) {
+          // The earlier mutations of the entry's row might be in the batch of another partition.
+          sendBatches();
+          boundaries = pending.boundaries;
+        }
+        PartitionBatch batch = batches.get(pending.partition);
+        if (batch == null) {
+          batch = new PartitionBatch(pending.partition);
+          batches.put(pending.partition, batch);
+          if (bulkLingerNanos > 0) {
+            scheduleLingerCheck(batch, bulkLingerNanos);
+          }
+        }
+        batch.bulkMutation.add(pending.entry, pending.future);
+        if (ordered) {
+          batch.completions.add(pending.completion);
+        }
+        if (batch.isFull()) {
+          send(batch);
+        }
+      }
+    }
+
+    /**
+     * Sends all of the batches that are being filled. This must be called while holding
+     * {@link #lock}.
+     */
+    private void sendBatches() {
+      for (PartitionBatch batch : new ArrayList<>(batches.values())) {
+        send(batch);
+      }
+    }
+
+    /**
+     * Sends the batch. If the shard is ordered, the batch waits in {@link #readyBatches} for the
+     * previous bulk mutation to complete. This must be called while holding {@link #lock}, and
+     * never waits for the {@link RpcThrottler} if the shard is ordered.
+     */
+    private void send(PartitionBatch batch) {
+      batches.remove(batch.partition);
+      if (!ordered) {
+        mutateRowsAsync(batch.bulkMutation);
+        return;
+      }
+      batch.request = batch.bulkMutation.toRequest();
+      readyBatches.add(batch);
+      if (!sendScheduled) {
+        sendScheduled = true;
+        // Registering the batch can block, so it is not done on the thread that completes
+        // inFlight, nor while holding the lock.
+        inFlight.addListener(sendReadyBatchTask, sendExecutor);
+      }
+    }
+
+    /**
+     * Sends the next ready batch, and then sends the one after it once this one completes. This
+     * runs on {@link #sendExecutor}, and only one of these runs at a time for a shard. The batch is
+     * registered with the {@link RpcThrottler} only once the previous bulk mutation is complete, so
+     * that the time it waits in the shard does not count as RPC latency.
+     */
+    private void sendReadyBatch() {
+      PartitionBatch batch;
+      lock.lock();
+      try {
+        batch = readyBatches.poll();
+        if (batch == null) {
+          sendScheduled = false;
+          return;
+        }
+        readyBatchSent.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      ListenableFuture<MutateRowsResponse> future;
+      try {
+        long operationId = rpcThrottler.registerOperationWithHeapSize(
+          batch.request.getSerializedSize(), RpcPriority.BULK);
+        future = asyncExecutor.mutateRowAsync(batch.request, operationId);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future = Futures.immediateFailedFuture(e);
+      }
+      batch.bulkMutation.addCallback(future);
+      lock.lock();
+      try {
+        // successfulAsList never fails.
+        inFlight = Futures.successfulAsList(batch.completions);
+        if (readyBatches.isEmpty()) {
+          sendScheduled = false;
+        } else {
+          inFlight.addListener(sendReadyBatchTask, sendExecutor);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void scheduleLingerCheck(final PartitionBatch batch, long delayNanos) {
+      lingerExecutorService.schedule(new Runnable() {
+        @Override
+        public void run() {
+          sendIfLingering(batch);
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Hands the batch off to {@link #sendExecutor} if it is still being filled and it is at least
+     * {@link #bulkLingerNanos} old. This runs on the linger scheduler, so it never waits for the
+     * lock, the {@link RpcThrottler} or a previous bulk mutation.
+     */
+    private void sendIfLingering(final PartitionBatch batch) {
+      // Another thread that holds the lock might fill the batch and send it anyway.
+      if (!lock.tryLock()) {
+        scheduleLingerCheck(batch, LINGER_RECHECK_NANOS);
+        return;
+      }
+      boolean lingering = false;
+      try {
+        // Otherwise, the batch was already sent.
+        if (batches.get(batch.partition) == batch) {
+          long remainingNanos = batch.startNanos + bulkLingerNanos - clock.nanoTime();
+          if (remainingNanos > 0) {
+            scheduleLingerCheck(batch, remainingNanos);
+          } else {
+            lingering = true;
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+      // Entries might also have been left to this thread while it held the lock.
+      if (lingering || !pendingEntries.isEmpty()) {
+        sendExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            sendLingering(batch);
+          }
+        });
+      }
+    }
+
+    /**
+     * Sends the batch if it was not sent since it was found to be lingering, and then adds the
+     * pending entries. This runs on {@link #sendExecutor}.
+     */
+    private void sendLingering(PartitionBatch batch) {
+      lock.lock();
+      try {
+        if (batches.get(batch.partition) == batch
+            && clock.nanoTime() - batch.startNanos >= bulkLingerNanos) {
+          send(batch);
+        }
+      } finally {
+        lock.unlock();
+      }
+      drain(false);
+    }
+  }
+
   private class MutationOperation implements Runnable {
     final Mutation mutation;
     final long operationId;
@@ -116,6 +491,7 @@ public class BigtableBufferedMutator implements BufferedMutator {
   private final String host;
 
   private final RpcThrottler rpcThrottler;
+  private final WriteRateLimiter writeRateLimiter;
   private final AsyncExecutor asyncExecutor;
   private final ExecutorService executorService;
   private final BigtableOptions options;
@@ -128,8 +504,29 @@ public class BigtableBufferedMutator implements BufferedMutator {
    */
   private final AtomicInteger activeMutationWorkers = new AtomicInteger();
 
-  private Object bulkMutationLock = new String("");
-  private BulkMutation bulkMutation = null;
+  /**
+   * The mutations for the bulk API are split between the shards by the hash of their row key.
+   */
+  private final BulkShard[] bulkShards;
+  /**
+   * Groups the mutations for the bulk API by tablet within each shard, or null if they are not
+   * grouped.
+   */
+  private final TabletPartitioner tabletPartitioner;
+  private final boolean bulkMutationRetriesFailedEntries;
+
+  /**
+   * Sends a partially filled bulk mutation once it is {@link #bulkLingerNanos} old, if the linger
+   * time is not 0.
+   */
+  private final long bulkLingerNanos;
+  private final ScheduledExecutorService lingerExecutorService;
+  /**
+   * Sends the lingering bulk mutations and the ready bulk mutations of the ordered shards, which
+   * can block on the {@link RpcThrottler}.
+   */
+  private final Executor sendExecutor;
+  private final NanoClock clock;
 
   /**
    * This {@link Runnable} pulls a mutation from {@link #asyncOperationsQueue}, and calls {{@link
@@ -181,6 +578,49 @@ public class BigtableBufferedMutator implements BufferedMutator {
       BufferedMutator.ExceptionListener listener,
       RpcThrottler rpcThrottler,
       ExecutorService asyncRpcExecutorService) {
+    this(client, adapter, configuration, options, listener, rpcThrottler,
+        asyncRpcExecutorService, new WriteRateLimiter());
+  }
+
+  /**
+   * @param client Performs the async operations
+   * @param adapter Converts HBase objects to Bigtable protos
+   * @param configuration For Additional configuration. TODO: move this to options
+   * @param options BigtableOptions
+   * @param listener Handles exceptions. By default, it just throws the exception.
+   * @param rpcThrottler Tracks how much memory is used by the requests and how many outstanding
+   *          operations there are.
+   * @param asyncRpcExecutorService Optional performance improvement for adapting hbase objects and
+   *          starting the async operations on the BigtableDataClient.
+   * @param writeRateLimiter Limits the rate of mutations and bytes that are sent.
+   */
+  public BigtableBufferedMutator(
+      BigtableDataClient client,
+      HBaseRequestAdapter adapter,
+      Configuration configuration,
+      BigtableOptions options,
+      BufferedMutator.ExceptionListener listener,
+      RpcThrottler rpcThrottler,
+      ExecutorService asyncRpcExecutorService,
+      WriteRateLimiter writeRateLimiter) {
+    this(client, adapter, configuration, options, listener, rpcThrottler, asyncRpcExecutorService,
+        writeRateLimiter, LingerSchedulerHolder.INSTANCE,
+        BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool(), NanoClock.SYSTEM);
+  }
+
+  @VisibleForTesting
+  BigtableBufferedMutator(
+      BigtableDataClient client,
+      HBaseRequestAdapter adapter,
+      Configuration configuration,
+      BigtableOptions options,
+      BufferedMutator.ExceptionListener listener,
+      RpcThrottler rpcThrottler,
+      ExecutorService asyncRpcExecutorService,
+      WriteRateLimiter writeRateLimiter,
+      ScheduledExecutorService lingerExecutorService,
+      Executor sendExecutor,
+      NanoClock clock) {
     this.adapter = adapter;
     this.configuration = configuration;
     this.exceptionListener = listener;
@@ -189,6 +629,34 @@ public class BigtableBufferedMutator implements BufferedMutator {
     this.options = options;
     this.rpcThrottler = rpcThrottler;
     this.executorService = asyncRpcExecutorService;
+    this.writeRateLimiter = writeRateLimiter;
+    this.bulkMutationRetriesFailedEntries = createBulkMutation().retriesFailedEntries();
+    this.bulkLingerNanos = TimeUnit.MILLISECONDS.toNanos(options.getBulkLingerMs());
+    this.lingerExecutorService = lingerExecutorService;
+    this.sendExecutor = sendExecutor;
+    this.clock = clock;
+    // With no shard count, the mutator builds one bulk mutation at a time, and does not wait for
+    // one to complete before sending the next.
+    int bulkShardCount = options.getBulkShardCount();
+    this.bulkShards = new BulkShard[Math.max(1, bulkShardCount)];
+    for (int i = 0; i < bulkShards.length; i++) {
+      bulkShards[i] = new BulkShard(bulkShardCount > 0);
+    }
+    this.tabletPartitioner = options.isBulkPartitionByTablet()
+        ? new TabletPartitioner(asyncExecutor.getClient(),
+            this.adapter.getBigtableTableName().toString())
+        : null;
+  }
+
+  private BulkMutation createBulkMutation() {
+    CallOptionsConfig callOptionsConfig = options.getCallOptionsConfig();
+    int overallTimeoutMs = callOptionsConfig != null && callOptionsConfig.isUseTimeout()
+        ? callOptionsConfig.getOverallTimeoutMs() : 0;
+    BigtableSessionSharedThreadPools threadPools = BigtableSessionSharedThreadPools.getInstance();
+    return new BulkMutation(this.adapter.getBigtableTableName().toString(),
+        asyncExecutor.getClient(), options.getRetryOptions(), threadPools.getRetryExecutor(),
+        options.isBulkCoalesceRows(), asyncExecutor.getClient().getRetryBudget(),
+        overallTimeoutMs, rpcThrottler, threadPools.getBatchThreadPool());
   }
 
   private void initializeAsyncMutators() {
@@ -223,12 +691,9 @@ public class BigtableBufferedMutator implements BufferedMutator {
     if (!asyncOperationsQueue.isEmpty()) {
       initializeAsyncMutators();
     }
-    // If there is a bulk mutation in progress, then send it.
-    synchronized (bulkMutationLock) {
-      if (bulkMutation != null) {
-        mutateRowsAsync(bulkMutation);
-        bulkMutation = null;
-      }
+    // If there are bulk mutations in progress, then send them.
+    for (BulkShard bulkShard : bulkShards) {
+      bulkShard.flush();
     }
     asyncExecutor.flush();
     handleExceptions();
@@ -237,7 +702,7 @@ public class BigtableBufferedMutator implements BufferedMutator {
   protected void mutateRowsAsync(BulkMutation bulkMutation) {
     ListenableFuture<MutateRowsResponse> future = null;
     try {
-      future = asyncExecutor.mutateRowsAsync(bulkMutation.toRequest());
+      future = asyncExecutor.mutateRowsAsync(bulkMutation.toRequest(), RpcPriority.BULK);
     } catch (InterruptedException e) {
       future = Futures.<MutateRowsResponse> immediateFailedFuture(e);
     } finally {
@@ -279,9 +744,10 @@ public class BigtableBufferedMutator implements BufferedMutator {
   }
 
   /**
-   * Being a Mutation. This method will block if either of the following are true:
+   * Being a Mutation. This method will block if any of the following are true:
    * 1) There are more than {@code maxInflightRpcs} RPCs in flight
    * 2) There are more than {@link #getWriteBufferSize()} bytes pending
+   * 3) Sending the mutation would go over the limits of the {@link #getWriteRateLimiter()}
    */
   @Override
   public void mutate(final Mutation mutation) throws IOException {
@@ -306,28 +772,40 @@ public class BigtableBufferedMutator implements BufferedMutator {
     try {
       Runnable operation = null;
       if (options.useBulkApi() && (mutation instanceof Put || mutation instanceof Delete)) {
-        // TODO: Do this logic asynchronously.
-        synchronized (bulkMutationLock) {
-          if (bulkMutation == null) {
-            bulkMutation = new BulkMutation(this.adapter.getBigtableTableName().toString());
-          }
-          MutateRowRequest request = adapt(mutation);
-          SettableFuture<Empty> future = bulkMutation.add(request);
+        // The mutation is adapted and its callbacks are added on this thread, without a lock.
+        MutateRowRequest request = adapt(mutation);
+        // Wait for the rate limiter before queueing, so that flush() is not held up.
+        writeRateLimiter.acquire(1, request.getSerializedSize());
+        SettableFuture<Empty> future = SettableFuture.create();
+        ListenableFuture<Empty> completion;
+        if (bulkMutationRetriesFailedEntries) {
+          // The bulk mutation resends the entries that fail with a retryable status together.
+          // Make sure that flush will not finish until the retries are finished.
+          rpcThrottler.registerRetry(future);
           addExceptionCallback(future, mutation);
-          ListenableFuture<Empty> retryingFuture = asyncExecutor.addMutationRetry(future, request);
+          completion = future;
+        } else {
+          addExceptionCallback(future, mutation);
+          ListenableFuture<Empty> retryingFuture =
+              asyncExecutor.addMutationRetry(future, request);
 
           // Make sure that flush will not finish until the retries are finished.
           rpcThrottler.registerRetry(retryingFuture);
           addExceptionCallback(retryingFuture, mutation);
-          if (bulkMutation.getRowKeyCount() >= options.getBulkMaxRowKeyCount()
-              || bulkMutation.getApproximateByteSize() >= options.getBulkMaxRequestSize()) {
-            mutateRowsAsync(bulkMutation);
-            bulkMutation = null;
-          }
+          completion = retryingFuture;
         }
+        TabletPartitioner.Boundaries boundaries =
+            tabletPartitioner == null ? null : tabletPartitioner.getBoundaries();
+        int partition = boundaries == null ? 0 : boundaries.getPartition(request.getRowKey());
+        getBulkShard(request).add(new PendingBulkEntry(BulkMutation.toEntry(request), future,
+            completion, partition, boundaries));
       } else {
+        // The mutation is converted to a request later on a worker thread, so its heap size is
+        // used as an estimate of its serialized size.
+        writeRateLimiter.acquire(1, mutation.heapSize());
         initializeAsyncMutators();
-        long operationId = rpcThrottler.registerOperationWithHeapSize(mutation.heapSize());
+        long operationId =
+            rpcThrottler.registerOperationWithHeapSize(mutation.heapSize(), RpcPriority.BULK);
         operation = new MutationOperation(mutation, operationId);
         if (executorService != null && options.getAsyncMutatorCount() > 0) {
           asyncOperationsQueue.add(operation);
@@ -341,6 +819,11 @@ public class BigtableBufferedMutator implements BufferedMutator {
     }
   }
 
+  private BulkShard getBulkShard(MutateRowRequest request) {
+    int hash = request.getRowKey().hashCode() & Integer.MAX_VALUE;
+    return bulkShards[hash % bulkShards.length];
+  }
+
   private void issueRequest(Mutation mutation, long operationId) {
     addExceptionCallback(issueRequestDetails(mutation, operationId), mutation);
   }
@@ -447,4 +930,12 @@ public class BigtableBufferedMutator implements BufferedMutator {
   public boolean hasInflightRequests() {
     return this.asyncExecutor.hasInflightRequests();
   }
+
+  /**
+   * @return The {@link WriteRateLimiter} of this mutator. Its limits can be changed while the
+   *         mutator is in use, and it reports how long {@link #mutate(Mutation)} waited for it.
+   */
+  public WriteRateLimiter getWriteRateLimiter() {
+    return writeRateLimiter;
+  }
 }
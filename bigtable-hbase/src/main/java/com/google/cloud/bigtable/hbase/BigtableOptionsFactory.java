@@ -23,9 +23,11 @@ import static com.google.cloud.bigtable.config.BigtableOptions.BIGTABLE_PORT_DEF
 import static com.google.cloud.bigtable.config.BigtableOptions.BIGTABLE_ASYNC_MUTATOR_COUNT_DEFAULT;
 
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.CredentialOptions;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.io.ChannelPool;
 import com.google.common.base.Preconditions;
 
 import io.grpc.Status;
@@ -115,6 +117,20 @@ public class BigtableOptionsFactory {
   public static final String MAX_ELAPSED_BACKOFF_MILLIS_KEY =
       "google.bigtable.grpc.retry.max.elapsed.backoff.ms";
 
+  /**
+   * Key to set the amount of time to wait before the first retry. Append "." and a
+   * {@link Status.Code} name, such as UNAVAILABLE, to set it for failures with that code only.
+   */
+  public static final String INITIAL_BACKOFF_MILLIS_KEY =
+      "google.bigtable.grpc.retry.initial.backoff.ms";
+
+  /**
+   * Key to set how the time to wait between retries grows: EXPONENTIAL, FULL_JITTER or
+   * DECORRELATED_JITTER. See {@link RetryOptions.BackoffStrategy} for more information. Append "."
+   * and a {@link Status.Code} name to set it for failures with that code only.
+   */
+  public static final String BACKOFF_STRATEGY_KEY = "google.bigtable.grpc.retry.backoff.strategy";
+
   /**
    * Key to set the amount of time to wait when reading a partial row.
    */
@@ -127,6 +143,61 @@ public class BigtableOptionsFactory {
   public static final String MAX_SCAN_TIMEOUT_RETRIES =
       "google.bigtable.grpc.retry.max.scan.timeout.retries";
 
+  /**
+   * Key to set to a boolean flag indicating whether the RPCs of a session share a retry budget, so
+   * that RPCs fail without retrying while too many of them are failing. Defaults to false.
+   */
+  public static final String ENABLE_RETRY_BUDGET_KEY = "google.bigtable.grpc.retry.budget.enable";
+
+  /**
+   * Key to set the number of retries that the retry budget allows in a burst.
+   */
+  public static final String RETRY_BUDGET_MAX_TOKENS_KEY =
+      "google.bigtable.grpc.retry.budget.max.tokens";
+
+  /**
+   * Key to set the fraction of a retry that is added to the retry budget by each RPC that succeeds
+   * on its first attempt, such as 0.1.
+   */
+  public static final String RETRY_BUDGET_TOKEN_RATIO_KEY =
+      "google.bigtable.grpc.retry.budget.token.ratio";
+
+  /**
+   * Key to set to a boolean flag indicating whether data RPCs should have deadlines. Defaults to
+   * false.
+   */
+  public static final String BIGTABLE_USE_TIMEOUTS_KEY = "google.bigtable.rpc.use.timeouts";
+
+  /**
+   * Key to set the deadline in milliseconds for each attempt of a MutateRow or MutateRows RPC.
+   */
+  public static final String BIGTABLE_MUTATE_RPC_TIMEOUT_MS_KEY =
+      "google.bigtable.rpc.mutate.timeout.ms";
+
+  /**
+   * Key to set the deadline in milliseconds for each attempt of a single row read.
+   */
+  public static final String BIGTABLE_READ_ROW_RPC_TIMEOUT_MS_KEY =
+      "google.bigtable.rpc.read.row.timeout.ms";
+
+  /**
+   * Key to set the deadline in milliseconds for each attempt of a CheckAndMutateRow RPC.
+   */
+  public static final String BIGTABLE_CHECK_AND_MUTATE_RPC_TIMEOUT_MS_KEY =
+      "google.bigtable.rpc.check.and.mutate.timeout.ms";
+
+  /**
+   * Key to set the deadline in milliseconds for a ReadModifyWriteRow RPC.
+   */
+  public static final String BIGTABLE_READ_MODIFY_WRITE_RPC_TIMEOUT_MS_KEY =
+      "google.bigtable.rpc.read.modify.write.timeout.ms";
+
+  /**
+   * Key to set the deadline in milliseconds for all of the attempts of an RPC, including backoff.
+   */
+  public static final String BIGTABLE_OVERALL_RPC_TIMEOUT_MS_KEY =
+      "google.bigtable.rpc.overall.timeout.ms";
+
   /**
    * Key to set the maximum number of messages to buffer when scanning.
    */
@@ -142,12 +213,121 @@ public class BigtableOptionsFactory {
    */
   public static final String BIGTABLE_DATA_CHANNEL_COUNT_KEY = "google.bigtable.grpc.channel.count";
 
+  /**
+   * Key to set to a boolean flag indicating whether the number of grpc data channels should follow
+   * the load, rather than staying at {@link #BIGTABLE_DATA_CHANNEL_COUNT_KEY}. When enabled,
+   * {@link #BIGTABLE_DATA_CHANNEL_COUNT_KEY} is the maximum number of channels.
+   */
+  public static final String BIGTABLE_USE_ADAPTIVE_CHANNEL_POOL_KEY =
+      "google.bigtable.grpc.channel.adaptive.enable";
+
+  /**
+   * The smallest number of grpc data channels to keep open when the channel pool is adaptive.
+   */
+  public static final String BIGTABLE_MIN_DATA_CHANNEL_COUNT_KEY =
+      "google.bigtable.grpc.channel.min.count";
+
+  /**
+   * The number of concurrent RPCs per grpc channel above which an adaptive channel pool grows.
+   */
+  public static final String BIGTABLE_TARGET_RPCS_PER_CHANNEL_KEY =
+      "google.bigtable.grpc.channel.target.rpcs.per.channel";
+
+  /**
+   * Key to set to a boolean flag indicating whether grpc channels should use netty's native epoll
+   * transport when it's available. Defaults to true. NIO is used when this is false, or when epoll
+   * is not available.
+   * <p>
+   * The epoll jar is an optional dependency, since it only works on Linux x86_64. To use epoll,
+   * add io.netty:netty-transport-native-epoll with the linux-x86_64 classifier, at the same
+   * version as the other netty jars, to the application's dependencies.
+   */
+  public static final String BIGTABLE_USE_EPOLL_KEY = "google.bigtable.grpc.epoll.enable";
+
+  /**
+   * The HTTP/2 flow control window of grpc channels, in bytes. When auto tuning is enabled, this is
+   * the initial window.
+   */
+  public static final String BIGTABLE_FLOW_CONTROL_WINDOW_KEY =
+      "google.bigtable.grpc.flow.control.window";
+
+  /**
+   * Key to set to a boolean flag indicating whether the flow control window of grpc data channels
+   * should grow toward the measured bandwidth-delay product of the connection. Defaults to false.
+   */
+  public static final String BIGTABLE_AUTO_TUNE_FLOW_CONTROL_WINDOW_KEY =
+      "google.bigtable.grpc.flow.control.window.autotune.enable";
+
+  /**
+   * The largest flow control window, in bytes, that auto tuning grows to.
+   */
+  public static final String BIGTABLE_MAX_FLOW_CONTROL_WINDOW_KEY =
+      "google.bigtable.grpc.flow.control.window.max";
+
+  /**
+   * Key to set to a boolean flag indicating whether grpc channels should use plaintext instead of
+   * TLS. Only use this to connect to a local server, such as an emulator. Defaults to false.
+   */
+  public static final String BIGTABLE_USE_PLAINTEXT_NEGOTIATION_KEY =
+      "google.bigtable.grpc.plaintext.enable";
+
+  /**
+   * Key to set to a boolean flag indicating whether all grpc data channels should be created and
+   * connected, including the TLS handshake, when the connection is opened rather than on the first
+   * RPCs. Defaults to false.
+   */
+  public static final String BIGTABLE_WARM_UP_CHANNELS_KEY =
+      "google.bigtable.grpc.channel.warmup.enable";
+
+  /**
+   * Key to set to a boolean flag indicating whether connections in the same process that use the
+   * same data host and credentials should share one set of grpc data channels. The channels are
+   * closed when the last of those connections is closed. Defaults to false.
+   */
+  public static final String BIGTABLE_USE_SHARED_CHANNEL_POOL_KEY =
+      "google.bigtable.grpc.channel.shared.enable";
+
+  /**
+   * Key to set to a boolean flag indicating whether single row reads should be hedged: if a read
+   * takes longer than most recent reads, a second copy of it is sent on another channel, and the
+   * first response is used. Defaults to false.
+   */
+  public static final String BIGTABLE_HEDGE_SINGLE_ROW_READS_KEY =
+      "google.bigtable.grpc.read.hedge.enable";
+
+  /**
+   * Key to set the percentile of recent single row read latencies, from 0 to 100, after which a
+   * read is hedged.
+   */
+  public static final String BIGTABLE_HEDGE_DELAY_PERCENTILE_KEY =
+      "google.bigtable.grpc.read.hedge.delay.percentile";
+
+  /**
+   * Key to set the largest fraction of single row reads that can be hedged, such as 0.05.
+   */
+  public static final String BIGTABLE_MAX_HEDGE_RATIO_KEY =
+      "google.bigtable.grpc.read.hedge.max.ratio";
+
   /**
    * The maximum length of time to keep a Bigtable grpc channel open.
    */
   public static final String BIGTABLE_CHANNEL_TIMEOUT_MS_KEY =
       "google.bigtable.grpc.channel.timeout.ms";
 
+  /**
+   * How RPCs are spread across the grpc channels: ROUND_ROBIN or LEAST_OUTSTANDING. See
+   * {@link ChannelPool.ChannelSelectionStrategy} for more information.
+   */
+  public static final String BIGTABLE_CHANNEL_SELECTION_STRATEGY_KEY =
+      "google.bigtable.grpc.channel.selection.strategy";
+
+  /**
+   * Key to set to a boolean flag indicating whether grpc channels that keep failing with
+   * UNAVAILABLE or INTERNAL errors should be replaced with new channels. Defaults to false.
+   */
+  public static final String BIGTABLE_REPLACE_UNHEALTHY_CHANNELS_KEY =
+      "google.bigtable.grpc.channel.replace.unhealthy.enable";
+
   public static final String BIGTABLE_USE_BULK_API =
       "google.bigtable.use.bulk.api";
 
@@ -157,6 +337,35 @@ public class BigtableOptionsFactory {
   public static final String BIGTABLE_BULK_MAX_ROW_KEY_COUNT =
       "google.bigtable.bulk.max.row.key.count";
 
+  /**
+   * How long a partially filled bulk mutation can wait for more mutations before it is sent, in
+   * milliseconds. Defaults to 0, which means that it waits until it is full or flushed.
+   */
+  public static final String BIGTABLE_BULK_LINGER_MS =
+      "google.bigtable.bulk.linger.ms";
+
+  /**
+   * The number of shards that a buffered mutator splits its bulk mutations between by row key.
+   * Each shard has at most one bulk mutation in flight, which keeps the mutations of a row in
+   * order. Defaults to 0, which means a single shard that does not keep them in order.
+   */
+  public static final String BIGTABLE_BULK_SHARD_COUNT =
+      "google.bigtable.bulk.shard.count";
+
+  /**
+   * Whether a buffered mutator groups the mutations of a bulk mutation by tablet, using the
+   * sampled row keys of the table. Defaults to false.
+   */
+  public static final String BIGTABLE_BULK_PARTITION_BY_TABLET =
+      "google.bigtable.bulk.partition.by.tablet";
+
+  /**
+   * Whether the mutations for a row key that is already in a bulk mutation are merged into its
+   * entry. Defaults to false.
+   */
+  public static final String BIGTABLE_BULK_COALESCE_ROWS =
+      "google.bigtable.bulk.coalesce.rows";
+
   /**
    * The number of asynchronous workers to use for buffered mutator operations.
    */
@@ -199,6 +408,18 @@ public class BigtableOptionsFactory {
         configuration.getLong(
             BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES,
             BigtableOptions.BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES_DEFAULT));
+    bigtableOptionsBuilder.setBulkLingerMs(
+        configuration.getLong(
+            BIGTABLE_BULK_LINGER_MS,
+            BigtableOptions.BIGTABLE_BULK_LINGER_MS_DEFAULT));
+    bigtableOptionsBuilder.setBulkShardCount(
+        configuration.getInt(
+            BIGTABLE_BULK_SHARD_COUNT,
+            BigtableOptions.BIGTABLE_BULK_SHARD_COUNT_DEFAULT));
+    bigtableOptionsBuilder.setBulkPartitionByTablet(
+        configuration.getBoolean(BIGTABLE_BULK_PARTITION_BY_TABLET, false));
+    bigtableOptionsBuilder.setBulkCoalesceRows(
+        configuration.getBoolean(BIGTABLE_BULK_COALESCE_ROWS, false));
 
     return bigtableOptionsBuilder.build();
   }
@@ -225,11 +446,33 @@ public class BigtableOptionsFactory {
     setCredentialOptions(builder, configuration);
 
     builder.setRetryOptions(createRetryOptions(configuration));
+    builder.setCallOptionsConfig(createCallOptionsConfig(configuration));
 
     int channelCount = configuration.getInt(
         BIGTABLE_DATA_CHANNEL_COUNT_KEY, BigtableOptions.BIGTABLE_DATA_CHANNEL_COUNT_DEFAULT);
     builder.setDataChannelCount(channelCount);
 
+    boolean useAdaptiveChannelPool =
+        configuration.getBoolean(BIGTABLE_USE_ADAPTIVE_CHANNEL_POOL_KEY, false);
+    LOG.debug("gRPC adaptive channel pool enabled: %s", useAdaptiveChannelPool);
+    builder.setUseAdaptiveChannelPool(useAdaptiveChannelPool);
+    builder.setMinDataChannelCount(configuration.getInt(BIGTABLE_MIN_DATA_CHANNEL_COUNT_KEY,
+      BigtableOptions.BIGTABLE_MIN_DATA_CHANNEL_COUNT_DEFAULT));
+    builder.setTargetRpcsPerChannel(configuration.getInt(BIGTABLE_TARGET_RPCS_PER_CHANNEL_KEY,
+      BigtableOptions.BIGTABLE_TARGET_RPCS_PER_CHANNEL_DEFAULT));
+
+    String selectionStrategy = configuration.get(BIGTABLE_CHANNEL_SELECTION_STRATEGY_KEY);
+    if (!isNullOrEmpty(selectionStrategy)) {
+      LOG.debug("gRPC channel selection strategy: %s", selectionStrategy);
+      builder.setChannelSelectionStrategy(
+          ChannelPool.ChannelSelectionStrategy.valueOf(selectionStrategy.trim().toUpperCase()));
+    }
+
+    boolean replaceUnhealthyChannels =
+        configuration.getBoolean(BIGTABLE_REPLACE_UNHEALTHY_CHANNELS_KEY, false);
+    LOG.debug("gRPC unhealthy channel replacement enabled: %s", replaceUnhealthyChannels);
+    builder.setReplaceUnhealthyChannels(replaceUnhealthyChannels);
+
     int channelTimeout = configuration.getInt(
         BIGTABLE_CHANNEL_TIMEOUT_MS_KEY, BigtableOptions.BIGTABLE_CHANNEL_TIMEOUT_MS_DEFAULT);
 
@@ -239,6 +482,43 @@ public class BigtableOptionsFactory {
       BIGTABLE_CHANNEL_TIMEOUT_MS_KEY + " has to be 0 (no timeout) or 1 minute+ (60000)");
     builder.setTimeoutMs(channelTimeout);
 
+    boolean useEpoll =
+        configuration.getBoolean(BIGTABLE_USE_EPOLL_KEY, BigtableOptions.BIGTABLE_USE_EPOLL_DEFAULT);
+    LOG.debug("gRPC epoll transport enabled: %s", useEpoll);
+    builder.setUseEpoll(useEpoll);
+
+    builder.setFlowControlWindow(configuration.getInt(BIGTABLE_FLOW_CONTROL_WINDOW_KEY,
+      BigtableOptions.BIGTABLE_FLOW_CONTROL_WINDOW_DEFAULT));
+    builder.setMaxFlowControlWindow(configuration.getInt(BIGTABLE_MAX_FLOW_CONTROL_WINDOW_KEY,
+      BigtableOptions.BIGTABLE_MAX_FLOW_CONTROL_WINDOW_DEFAULT));
+    boolean autoTuneFlowControlWindow =
+        configuration.getBoolean(BIGTABLE_AUTO_TUNE_FLOW_CONTROL_WINDOW_KEY, false);
+    LOG.debug("gRPC flow control window auto tuning enabled: %s", autoTuneFlowControlWindow);
+    builder.setAutoTuneFlowControlWindow(autoTuneFlowControlWindow);
+
+    boolean usePlaintextNegotiation =
+        configuration.getBoolean(BIGTABLE_USE_PLAINTEXT_NEGOTIATION_KEY, false);
+    LOG.debug("gRPC plaintext negotiation enabled: %s", usePlaintextNegotiation);
+    builder.setUsePlaintextNegotiation(usePlaintextNegotiation);
+
+    boolean warmUpChannels = configuration.getBoolean(BIGTABLE_WARM_UP_CHANNELS_KEY, false);
+    LOG.debug("gRPC channel warm up enabled: %s", warmUpChannels);
+    builder.setWarmUpChannels(warmUpChannels);
+
+    boolean useSharedChannelPool =
+        configuration.getBoolean(BIGTABLE_USE_SHARED_CHANNEL_POOL_KEY, false);
+    LOG.debug("gRPC shared channel pool enabled: %s", useSharedChannelPool);
+    builder.setUseSharedChannelPool(useSharedChannelPool);
+
+    boolean hedgeSingleRowReads =
+        configuration.getBoolean(BIGTABLE_HEDGE_SINGLE_ROW_READS_KEY, false);
+    LOG.debug("gRPC single row read hedging enabled: %s", hedgeSingleRowReads);
+    builder.setHedgeSingleRowReads(hedgeSingleRowReads);
+    builder.setHedgeDelayPercentile(configuration.getDouble(BIGTABLE_HEDGE_DELAY_PERCENTILE_KEY,
+      BigtableOptions.BIGTABLE_HEDGE_DELAY_PERCENTILE_DEFAULT));
+    builder.setMaxHedgeRatio(configuration.getDouble(BIGTABLE_MAX_HEDGE_RATIO_KEY,
+      BigtableOptions.BIGTABLE_MAX_HEDGE_RATIO_DEFAULT));
+
     builder.setUserAgent(BigtableConstants.USER_AGENT);
   }
 
@@ -309,6 +589,32 @@ public class BigtableOptionsFactory {
     LOG.debug("gRPC retry maxElapsedBackoffMillis: %d", maxElapsedBackoffMillis);
     retryOptionsBuilder.setMaxElapsedBackoffMillis(maxElapsedBackoffMillis);
 
+    int initialBackoffMillis = configuration.getInt(
+        INITIAL_BACKOFF_MILLIS_KEY, RetryOptions.DEFAULT_INITIAL_BACKOFF_MILLIS);
+    LOG.debug("gRPC retry initialBackoffMillis: %d", initialBackoffMillis);
+    retryOptionsBuilder.setInitialBackoffMillis(initialBackoffMillis);
+
+    RetryOptions.BackoffStrategy backoffStrategy = RetryOptions.BackoffStrategy.valueOf(
+        configuration.get(BACKOFF_STRATEGY_KEY, RetryOptions.DEFAULT_BACKOFF_STRATEGY.name()));
+    LOG.debug("gRPC retry backoff strategy: %s", backoffStrategy);
+    retryOptionsBuilder.setBackoffStrategy(backoffStrategy);
+
+    for (Status.Code code : Status.Code.values()) {
+      String strategyForCode = configuration.get(BACKOFF_STRATEGY_KEY + "." + code.name());
+      String initialBackoffForCode =
+          configuration.get(INITIAL_BACKOFF_MILLIS_KEY + "." + code.name());
+      if (strategyForCode == null && initialBackoffForCode == null) {
+        continue;
+      }
+      RetryOptions.BackoffStrategy codeStrategy = strategyForCode == null ? backoffStrategy
+          : RetryOptions.BackoffStrategy.valueOf(strategyForCode.trim());
+      int codeInitialBackoffMillis = initialBackoffForCode == null ? initialBackoffMillis
+          : Integer.parseInt(initialBackoffForCode.trim());
+      LOG.debug("gRPC retry backoff for %s: %s, initialBackoffMillis: %d", code, codeStrategy,
+        codeInitialBackoffMillis);
+      retryOptionsBuilder.setBackoffPolicy(code, codeStrategy, codeInitialBackoffMillis);
+    }
+
     int readPartialRowTimeoutMillis = configuration.getInt(
         READ_PARTIAL_ROW_TIMEOUT_MS, RetryOptions.DEFAULT_READ_PARTIAL_ROW_TIMEOUT_MS);
     LOG.debug("gRPC read partial row timeout (millis): %d", readPartialRowTimeoutMillis);
@@ -329,6 +635,36 @@ public class BigtableOptionsFactory {
     LOG.debug("gRPC max scan timeout retries (count): %d", maxScanTimeoutRetries);
     retryOptionsBuilder.setMaxScanTimeoutRetries(maxScanTimeoutRetries);
 
+    boolean enableRetryBudget = configuration.getBoolean(
+        ENABLE_RETRY_BUDGET_KEY, RetryOptions.DEFAULT_ENABLE_RETRY_BUDGET);
+    LOG.debug("gRPC retry budget enabled: %s", enableRetryBudget);
+    retryOptionsBuilder.setEnableRetryBudget(enableRetryBudget);
+    retryOptionsBuilder.setRetryBudgetMaxTokens(configuration.getInt(
+        RETRY_BUDGET_MAX_TOKENS_KEY, RetryOptions.DEFAULT_RETRY_BUDGET_MAX_TOKENS));
+    retryOptionsBuilder.setRetryBudgetTokenRatio(configuration.getDouble(
+        RETRY_BUDGET_TOKEN_RATIO_KEY, RetryOptions.DEFAULT_RETRY_BUDGET_TOKEN_RATIO));
+
     return retryOptionsBuilder.build();
   }
+
+  private static CallOptionsConfig createCallOptionsConfig(Configuration configuration) {
+    CallOptionsConfig.Builder builder = new CallOptionsConfig.Builder();
+    boolean useTimeout =
+        configuration.getBoolean(BIGTABLE_USE_TIMEOUTS_KEY, CallOptionsConfig.DEFAULT_USE_TIMEOUT);
+    LOG.debug("gRPC RPC deadlines enabled: %s", useTimeout);
+    builder.setUseTimeout(useTimeout);
+    builder.setMutateTimeoutMs(configuration.getInt(BIGTABLE_MUTATE_RPC_TIMEOUT_MS_KEY,
+      CallOptionsConfig.DEFAULT_MUTATE_TIMEOUT_MS));
+    builder.setReadRowTimeoutMs(configuration.getInt(BIGTABLE_READ_ROW_RPC_TIMEOUT_MS_KEY,
+      CallOptionsConfig.DEFAULT_READ_ROW_TIMEOUT_MS));
+    builder.setCheckAndMutateTimeoutMs(configuration.getInt(
+      BIGTABLE_CHECK_AND_MUTATE_RPC_TIMEOUT_MS_KEY,
+      CallOptionsConfig.DEFAULT_CHECK_AND_MUTATE_TIMEOUT_MS));
+    builder.setReadModifyWriteTimeoutMs(configuration.getInt(
+      BIGTABLE_READ_MODIFY_WRITE_RPC_TIMEOUT_MS_KEY,
+      CallOptionsConfig.DEFAULT_READ_MODIFY_WRITE_TIMEOUT_MS));
+    builder.setOverallTimeoutMs(configuration.getInt(BIGTABLE_OVERALL_RPC_TIMEOUT_MS_KEY,
+      CallOptionsConfig.DEFAULT_OVERALL_TIMEOUT_MS));
+    return builder.build();
+  }
 }
@@ -22,8 +22,10 @@ import com.google.cloud.bigtable.grpc.BigtableDataClient;
 import com.google.cloud.bigtable.grpc.BigtableSession;
 import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.BigtableTableAdminClient;
+import com.google.cloud.bigtable.grpc.async.AdaptiveConcurrencyLimit;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
 import com.google.cloud.bigtable.grpc.async.RpcThrottler;
+import com.google.cloud.bigtable.grpc.async.WriteRateLimiter;
 import com.google.cloud.bigtable.grpc.async.ResourceLimiter;
 import com.google.cloud.bigtable.hbase.BatchExecutor;
 import com.google.cloud.bigtable.hbase.BigtableBufferedMutator;
@@ -60,6 +62,52 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
   public static final String BIGTABLE_BUFFERED_MUTATOR_MAX_MEMORY_KEY =
       "google.bigtable.buffered.mutator.max.memory";
 
+  /**
+   * Adjust the number of in-flight RPCs from their latency, starting at
+   * {@link #MAX_INFLIGHT_RPCS_KEY}. See {@link AdaptiveConcurrencyLimit}.
+   */
+  public static final String ENABLE_ADAPTIVE_INFLIGHT_RPCS_KEY =
+      "google.bigtable.buffered.mutator.adaptive.inflight.rpcs.enable";
+
+  /**
+   * The highest that an adaptive limit on in-flight RPCs can go. Defaults to
+   * {@link #ADAPTIVE_MAX_INFLIGHT_RPCS_MULTIPLIER} times the initial limit.
+   */
+  public static final String ADAPTIVE_MAX_INFLIGHT_RPCS_KEY =
+      "google.bigtable.buffered.mutator.adaptive.max.inflight.rpcs";
+
+  /**
+   * The lowest that an adaptive limit on in-flight RPCs can go. Defaults to the channel count.
+   */
+  public static final String ADAPTIVE_MIN_INFLIGHT_RPCS_KEY =
+      "google.bigtable.buffered.mutator.adaptive.min.inflight.rpcs";
+
+  public static final int ADAPTIVE_MAX_INFLIGHT_RPCS_MULTIPLIER = 4;
+
+  /**
+   * The weight of a table's share of the in-flight RPCs and memory when several tables compete for
+   * them. It can be set for a single table by adding "." and the table name to the key. See
+   * {@link ResourceLimiter.Share}.
+   */
+  public static final String RESOURCE_SHARE_WEIGHT_KEY =
+      "google.bigtable.buffered.mutator.share.weight";
+
+  /**
+   * The highest number of mutations per second that a buffered mutator sends, or 0 for no limit.
+   * It can be set for a single table by adding "." and the table name to the key. See
+   * {@link WriteRateLimiter}.
+   */
+  public static final String BUFFERED_MUTATOR_MAX_MUTATIONS_PER_SECOND_KEY =
+      "google.bigtable.buffered.mutator.max.mutations.per.second";
+
+  /**
+   * The highest number of bytes per second that a buffered mutator sends, or 0 for no limit. It
+   * can be set for a single table by adding "." and the table name to the key. See
+   * {@link WriteRateLimiter}.
+   */
+  public static final String BUFFERED_MUTATOR_MAX_BYTES_PER_SECOND_KEY =
+      "google.bigtable.buffered.mutator.max.bytes.per.second";
+
   private static final AtomicLong SEQUENCE_GENERATOR = new AtomicLong();
   private static final Map<Long, BigtableBufferedMutator> ACTIVE_BUFFERED_MUTATORS =
       Collections.synchronizedMap(new HashMap<Long, BigtableBufferedMutator>());
@@ -147,10 +195,60 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
       long maxMemory = conf.getLong(
           BIGTABLE_BUFFERED_MUTATOR_MAX_MEMORY_KEY,
           AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT);
-      AbstractBigtableConnection.resourceLimiter = new ResourceLimiter(maxMemory, maxInflightRpcs);
+      if (conf.getBoolean(ENABLE_ADAPTIVE_INFLIGHT_RPCS_KEY, false)) {
+        int maxLimit = conf.getInt(ADAPTIVE_MAX_INFLIGHT_RPCS_KEY,
+          maxInflightRpcs * ADAPTIVE_MAX_INFLIGHT_RPCS_MULTIPLIER);
+        int minLimit = conf.getInt(ADAPTIVE_MIN_INFLIGHT_RPCS_KEY,
+          Math.min(options.getChannelCount(), maxInflightRpcs));
+        if (minLimit <= 0 || minLimit > maxLimit) {
+          throw new IllegalArgumentException(String.format(
+            "%s (%d) must be positive, and at most %s (%d).", ADAPTIVE_MIN_INFLIGHT_RPCS_KEY,
+            minLimit, ADAPTIVE_MAX_INFLIGHT_RPCS_KEY, maxLimit));
+        }
+        // The adaptive bounds can be set on their own, so the initial limit is kept within them.
+        int initialLimit = Math.min(maxLimit, Math.max(minLimit, maxInflightRpcs));
+        AdaptiveConcurrencyLimit adaptiveLimit =
+            new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit);
+        AbstractBigtableConnection.resourceLimiter =
+            new ResourceLimiter(maxMemory, maxLimit, adaptiveLimit);
+      } else {
+        AbstractBigtableConnection.resourceLimiter =
+            new ResourceLimiter(maxMemory, maxInflightRpcs);
+      }
     }
   }
 
+  /**
+   * Creates an {@link RpcThrottler} whose RPCs count against the table's share of the
+   * {@link ResourceLimiter}, so that one busy table does not starve the others.
+   */
+  private RpcThrottler createRpcThrottler(TableName tableName) {
+    String name = tableName.getNameAsString();
+    int weight = conf.getInt(RESOURCE_SHARE_WEIGHT_KEY + "." + name,
+      conf.getInt(RESOURCE_SHARE_WEIGHT_KEY, ResourceLimiter.DEFAULT_SHARE_WEIGHT));
+    return new RpcThrottler(resourceLimiter, resourceLimiter.getShare(name, weight));
+  }
+
+  /**
+   * Creates a {@link WriteRateLimiter} with the table's limits, if any are configured.
+   */
+  private WriteRateLimiter createWriteRateLimiter(TableName tableName) {
+    String name = tableName.getNameAsString();
+    long maxMutationsPerSecond = conf.getLong(BUFFERED_MUTATOR_MAX_MUTATIONS_PER_SECOND_KEY + "."
+        + name, conf.getLong(BUFFERED_MUTATOR_MAX_MUTATIONS_PER_SECOND_KEY, 0));
+    long maxBytesPerSecond = conf.getLong(BUFFERED_MUTATOR_MAX_BYTES_PER_SECOND_KEY + "." + name,
+      conf.getLong(BUFFERED_MUTATOR_MAX_BYTES_PER_SECOND_KEY, 0));
+    return new WriteRateLimiter(maxMutationsPerSecond, maxBytesPerSecond);
+  }
+
+  /**
+   * @return The {@link ResourceLimiter} that is shared by the buffered mutators and batch
+   *         operations of all connections. Its in-flight and limit counts can be used as metrics.
+   */
+  public static ResourceLimiter getResourceLimiter() {
+    return resourceLimiter;
+  }
+
   @Override
   public Configuration getConfiguration() {
     return this.conf;
@@ -168,7 +266,7 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
       pool = BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool();
     }
     BatchExecutor batchExecutor = new BatchExecutor(
-         new AsyncExecutor(client, new RpcThrottler(resourceLimiter)),
+         new AsyncExecutor(client, createRpcThrottler(tableName)),
          options,
          MoreExecutors.listeningDecorator(pool),
          createAdapter(tableName));
@@ -192,8 +290,9 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
         conf,
         options,
         params.getListener(),
-        new RpcThrottler(resourceLimiter),
-        pool) {
+        createRpcThrottler(tableName),
+        pool,
+        createWriteRateLimiter(tableName)) {
       @Override
       public void close() throws IOException {
         try {
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.hbase;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.ResourceLimiter;
+import com.google.cloud.bigtable.grpc.async.RpcThrottler;
+import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
+import com.google.common.util.concurrent.Futures;
+import com.google.rpc.Status;
+
+/**
+ * Simple multi-threaded benchmark for the bulk API path of {@link BigtableBufferedMutator}. Several
+ * threads write puts with {@link #CELL_COUNT} cells to one mutator, and the number of puts per
+ * second is printed for each number of threads and of bulk shards. The RPCs go to an in-memory
+ * {@link BigtableDataClient} that answers right away.
+ */
+public class BigtableBufferedMutatorPerf {
+  final static int CELL_COUNT = 10;
+  final static int PUT_COUNT = 1_000_000;
+  final static int[] THREAD_COUNTS = { 1, 4, 16, 32 };
+  final static int[] SHARD_COUNTS = { 0, 8 };
+
+  final static byte[] FAMILY = Bytes.toBytes("family");
+
+  public static void main(String[] args) throws Exception {
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      for (int i = 0; i < 5; i++) {
+        System.out.println("=======");
+        for (int shardCount : SHARD_COUNTS) {
+          for (int threadCount : THREAD_COUNTS) {
+            test(pool, threadCount, shardCount);
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void test(ExecutorService pool, int threadCount, int shardCount)
+      throws Exception {
+    final BigtableBufferedMutator underTest = createMutator(pool, shardCount);
+    final int putsPerThread = PUT_COUNT / threadCount;
+    List<Future<Void>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < threadCount; i++) {
+      final int threadId = i;
+      futures.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = 0; j < putsPerThread; j++) {
+            underTest.mutate(createPut(threadId, j));
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    underTest.close();
+    long totalTime = System.nanoTime() - start;
+    int putCount = putsPerThread * threadCount;
+    System.out.println(String.format("%d threads, %d shards: %d puts in %d ms.  %f puts/sec",
+      threadCount, shardCount, putCount, totalTime / 1000000,
+      putCount * 1000000000.0 / totalTime));
+  }
+
+  private static Put createPut(int threadId, int index) {
+    Put put = new Put(Bytes.toBytes(String.format("row-%02d-%08d", threadId, index)));
+    for (int i = 0; i < CELL_COUNT; i++) {
+      put.addColumn(FAMILY, Bytes.toBytes("qualifier-" + i), Bytes.toBytes("value-" + i));
+    }
+    return put;
+  }
+
+  private static BigtableBufferedMutator createMutator(ExecutorService pool, int shardCount)
+      throws IOException {
+    Configuration configuration = new Configuration(false);
+    configuration.set(BigtableOptionsFactory.PROJECT_ID_KEY, "project");
+    configuration.set(BigtableOptionsFactory.ZONE_KEY, "zone");
+    configuration.set(BigtableOptionsFactory.CLUSTER_KEY, "cluster");
+    configuration.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    configuration.setInt(BigtableOptionsFactory.BIGTABLE_BULK_SHARD_COUNT, shardCount);
+    BigtableOptions options = BigtableOptionsFactory.fromConfiguration(configuration);
+    HBaseRequestAdapter adapter = new HBaseRequestAdapter(options.getClusterName(),
+        TableName.valueOf("table"), configuration);
+    BufferedMutator.ExceptionListener listener = new BufferedMutator.ExceptionListener() {
+      @Override
+      public void onException(RetriesExhaustedWithDetailsException exception,
+          BufferedMutator mutator) throws RetriesExhaustedWithDetailsException {
+        throw exception;
+      }
+    };
+    RpcThrottler rpcThrottler = new RpcThrottler(new ResourceLimiter(
+        AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT));
+    return new BigtableBufferedMutator(createClient(), adapter, configuration, options, listener,
+        rpcThrottler, pool);
+  }
+
+  /**
+   * Creates a {@link BigtableDataClient} that answers every
+   * {@link BigtableDataClient#mutateRowsAsync(MutateRowsRequest)} with a success for each entry.
+   */
+  private static BigtableDataClient createClient() {
+    InvocationHandler handler = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getRetryBudget")) {
+          return null;
+        }
+        if (!method.getName().equals("mutateRowsAsync")) {
+          throw new UnsupportedOperationException(method.getName());
+        }
+        MutateRowsRequest request = (MutateRowsRequest) args[0];
+        MutateRowsResponse.Builder response = MutateRowsResponse.newBuilder();
+        for (int i = 0; i < request.getEntriesCount(); i++) {
+          response.addStatuses(Status.getDefaultInstance());
+        }
+        return Futures.immediateFuture(response.build());
+      }
+    };
+    return (BigtableDataClient) Proxy.newProxyInstance(BigtableDataClient.class.getClassLoader(),
+      new Class<?>[] { BigtableDataClient.class }, handler);
+  }
+}
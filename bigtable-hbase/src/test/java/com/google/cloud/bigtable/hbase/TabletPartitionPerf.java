@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.hbase;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.SampleRowKeysResponse;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.ResourceLimiter;
+import com.google.cloud.bigtable.grpc.async.RpcThrottler;
+import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import com.google.rpc.Status;
+
+/**
+ * Simple benchmark for grouping bulk mutations by tablet. Several threads write puts for random
+ * tablets to one {@link BigtableBufferedMutator}, with and without
+ * {@link BigtableOptionsFactory#BIGTABLE_BULK_PARTITION_BY_TABLET}. The RPCs go to an in-memory
+ * {@link BigtableDataClient} with {@link #TABLET_COUNT} tablets. Each tablet in a request is
+ * usually fast, but is sometimes slow, and a request completes when its slowest tablet does. The
+ * number of puts per second and the latency of the requests are printed.
+ */
+public class TabletPartitionPerf {
+  final static int TABLET_COUNT = 16;
+  final static long FAST_TABLET_MILLIS = 2;
+  final static long SLOW_TABLET_MILLIS = 30;
+  final static double SLOW_TABLET_PROBABILITY = 0.05;
+
+  final static int MAX_IN_FLIGHT = 20;
+  final static int THREAD_COUNT = 8;
+  final static int PUT_COUNT = 200_000;
+
+  final static byte[] FAMILY = Bytes.toBytes("family");
+
+  public static void main(String[] args) throws Exception {
+    ScheduledExecutorService server = Executors.newScheduledThreadPool(4);
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      for (int i = 0; i < 5; i++) {
+        System.out.println("=======");
+        test(server, pool, false);
+        test(server, pool, true);
+      }
+    } finally {
+      pool.shutdownNow();
+      server.shutdownNow();
+    }
+  }
+
+  private static void test(ScheduledExecutorService server, ExecutorService pool,
+      boolean partitionByTablet) throws Exception {
+    List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+    final BigtableBufferedMutator underTest =
+        createMutator(createClient(server, latencies), pool, partitionByTablet);
+    final int putsPerThread = PUT_COUNT / THREAD_COUNT;
+    List<Future<Void>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      futures.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = 0; j < putsPerThread; j++) {
+            underTest.mutate(createPut());
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    underTest.close();
+    long totalTime = System.nanoTime() - start;
+    int putCount = putsPerThread * THREAD_COUNT;
+
+    List<Long> sortedLatencies = new ArrayList<>(latencies);
+    Collections.sort(sortedLatencies);
+    int rpcCount = sortedLatencies.size();
+    System.out.println(String.format(
+      "partitionByTablet: %s. %f puts/sec, %d RPCs. RPC latency p50: %d ms, p99: %d ms",
+      partitionByTablet, putCount * 1000000000.0 / totalTime, rpcCount,
+      sortedLatencies.get(rpcCount / 2), sortedLatencies.get(rpcCount * 99 / 100)));
+  }
+
+  private static Put createPut() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String rowKey = String.format("row-%02d-%08d", random.nextInt(TABLET_COUNT),
+      random.nextInt(100_000_000));
+    return new Put(Bytes.toBytes(rowKey)).addColumn(FAMILY, Bytes.toBytes("qualifier"),
+      Bytes.toBytes("value"));
+  }
+
+  private static int getTablet(ByteString rowKey) {
+    return Integer.parseInt(rowKey.toStringUtf8().substring(4, 6));
+  }
+
+  private static BigtableBufferedMutator createMutator(BigtableDataClient client,
+      ExecutorService pool, boolean partitionByTablet) throws IOException {
+    Configuration configuration = new Configuration(false);
+    configuration.set(BigtableOptionsFactory.PROJECT_ID_KEY, "project");
+    configuration.set(BigtableOptionsFactory.ZONE_KEY, "zone");
+    configuration.set(BigtableOptionsFactory.CLUSTER_KEY, "cluster");
+    configuration.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    configuration.setBoolean(BigtableOptionsFactory.BIGTABLE_BULK_PARTITION_BY_TABLET,
+      partitionByTablet);
+    BigtableOptions options = BigtableOptionsFactory.fromConfiguration(configuration);
+    HBaseRequestAdapter adapter = new HBaseRequestAdapter(options.getClusterName(),
+        TableName.valueOf("table"), configuration);
+    BufferedMutator.ExceptionListener listener = new BufferedMutator.ExceptionListener() {
+      @Override
+      public void onException(RetriesExhaustedWithDetailsException exception,
+          BufferedMutator mutator) throws RetriesExhaustedWithDetailsException {
+        throw exception;
+      }
+    };
+    RpcThrottler rpcThrottler = new RpcThrottler(
+        new ResourceLimiter(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, MAX_IN_FLIGHT));
+    return new BigtableBufferedMutator(client, adapter, configuration, options, listener,
+        rpcThrottler, pool);
+  }
+
+  /**
+   * Creates a {@link BigtableDataClient} whose
+   * {@link BigtableDataClient#mutateRowsAsync(MutateRowsRequest)} completes with a success for
+   * each entry once the slowest of the request's tablets is done. The latency of each request, in
+   * milliseconds, is added to the list.
+   */
+  private static BigtableDataClient createClient(final ScheduledExecutorService server,
+      final List<Long> latencies) {
+    InvocationHandler handler = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("sampleRowKeysAsync")) {
+          List<SampleRowKeysResponse> responses = new ArrayList<>();
+          for (int i = 1; i < TABLET_COUNT; i++) {
+            responses.add(SampleRowKeysResponse.newBuilder()
+                .setRowKey(ByteString.copyFromUtf8(String.format("row-%02d", i))).build());
+          }
+          responses.add(SampleRowKeysResponse.getDefaultInstance());
+          return Futures.immediateFuture(responses);
+        }
+        if (method.getName().equals("getRetryBudget")) {
+          return null;
+        }
+        if (!method.getName().equals("mutateRowsAsync")) {
+          throw new UnsupportedOperationException(method.getName());
+        }
+        MutateRowsRequest request = (MutateRowsRequest) args[0];
+        Set<Integer> tablets = new HashSet<>();
+        final MutateRowsResponse.Builder response = MutateRowsResponse.newBuilder();
+        for (MutateRowsRequest.Entry entry : request.getEntriesList()) {
+          tablets.add(getTablet(entry.getRowKey()));
+          response.addStatuses(Status.getDefaultInstance());
+        }
+        long latency = 0;
+        for (int i = 0; i < tablets.size(); i++) {
+          boolean slow = ThreadLocalRandom.current().nextDouble() < SLOW_TABLET_PROBABILITY;
+          latency = Math.max(latency, slow ? SLOW_TABLET_MILLIS : FAST_TABLET_MILLIS);
+        }
+        latencies.add(latency);
+        final SettableFuture<MutateRowsResponse> future = SettableFuture.create();
+        server.schedule(new Runnable() {
+          @Override
+          public void run() {
+            future.set(response.build());
+          }
+        }, latency, TimeUnit.MILLISECONDS);
+        return future;
+      }
+    };
+    return (BigtableDataClient) Proxy.newProxyInstance(BigtableDataClient.class.getClassLoader(),
+      new Class<?>[] { BigtableDataClient.class }, handler);
+  }
+}
@@ -16,6 +16,8 @@
 package com.google.cloud.bigtable.hbase;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -29,6 +31,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
@@ -36,31 +39,41 @@ import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.BufferedMutator;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import com.google.api.client.util.NanoClock;
 import com.google.bigtable.v1.MutateRowRequest;
 import com.google.bigtable.v1.MutateRowsRequest;
 import com.google.bigtable.v1.MutateRowsResponse;
 import com.google.bigtable.v1.MutateRowsResponse.Builder;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
 import com.google.cloud.bigtable.grpc.async.RpcThrottler;
 import com.google.cloud.bigtable.grpc.async.ResourceLimiter;
+import com.google.cloud.bigtable.grpc.async.WriteRateLimiter;
 import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
 import com.google.rpc.Status;
 
@@ -113,6 +126,19 @@ public class TestBigtableBufferedMutator {
   }
 
   private BigtableBufferedMutator createMutator(Configuration configuration) throws IOException {
+    return createMutator(configuration, new WriteRateLimiter());
+  }
+
+  private BigtableBufferedMutator createMutator(Configuration configuration,
+      WriteRateLimiter writeRateLimiter) throws IOException {
+    return createMutator(configuration, writeRateLimiter,
+      BigtableSessionSharedThreadPools.getInstance().getRetryExecutor(),
+      MoreExecutors.directExecutor(), NanoClock.SYSTEM);
+  }
+
+  private BigtableBufferedMutator createMutator(Configuration configuration,
+      WriteRateLimiter writeRateLimiter, ScheduledExecutorService lingerExecutorService,
+      Executor sendExecutor, NanoClock clock) throws IOException {
     RpcThrottler rpcThrottler =
         new RpcThrottler(new ResourceLimiter(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT,
             AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT)) {
@@ -140,7 +166,11 @@ public class TestBigtableBufferedMutator {
       options,
       listener,
         rpcThrottler,
-      executorService);
+      executorService,
+      writeRateLimiter,
+      lingerExecutorService,
+      sendExecutor,
+      clock);
   }
 
   @Test
@@ -195,6 +225,26 @@ public class TestBigtableBufferedMutator {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testWriteRateLimit() throws Exception {
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class))).thenReturn(mockFuture);
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "0");
+    try (BigtableBufferedMutator underTest =
+        createMutator(config, new WriteRateLimiter(10, 0))) {
+      underTest.mutate(SIMPLE_PUT);
+      Assert.assertEquals(0, underTest.getWriteRateLimiter().getWaitCount());
+      underTest.mutate(SIMPLE_PUT);
+      Assert.assertEquals(1, underTest.getWriteRateLimiter().getWaitCount());
+      Assert.assertTrue(underTest.getWriteRateLimiter().getTotalWaitNanos()
+          > TimeUnit.MILLISECONDS.toNanos(50));
+      verify(mockClient, times(2)).mutateRowAsync(any(MutateRowRequest.class));
+      completeCall();
+      Assert.assertFalse(underTest.hasInflightRequests());
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testBulkSingleRequests() throws IOException, InterruptedException {
@@ -285,6 +335,241 @@ public class TestBigtableBufferedMutator {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testBulkLinger() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_LINGER_MS, "10");
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class)))
+        .thenReturn(SettableFuture.<MutateRowsResponse> create());
+    when(mockClient.addMutationRetry(any(ListenableFuture.class), any(MutateRowRequest.class)))
+        .thenReturn(createRetryFuture());
+    ScheduledExecutorService lingerExecutorService = Mockito.mock(ScheduledExecutorService.class);
+    final long[] now = { 0 };
+    NanoClock clock = new NanoClock() {
+      @Override
+      public long nanoTime() {
+        return now[0];
+      }
+    };
+    final List<Runnable> sends = new ArrayList<>();
+    Executor sendExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        sends.add(command);
+      }
+    };
+    BigtableBufferedMutator underTest = createMutator(config, new WriteRateLimiter(),
+      lingerExecutorService, sendExecutor, clock);
+
+    underTest.mutate(SIMPLE_PUT);
+    ArgumentCaptor<Runnable> lingerCheck = ArgumentCaptor.forClass(Runnable.class);
+    verify(lingerExecutorService, times(1)).schedule(lingerCheck.capture(),
+      eq(TimeUnit.MILLISECONDS.toNanos(10)), eq(TimeUnit.NANOSECONDS));
+
+    // Later mutations join the batch, which keeps the age of its first mutation.
+    now[0] += TimeUnit.MILLISECONDS.toNanos(4);
+    underTest.mutate(SIMPLE_PUT);
+    verify(lingerExecutorService, times(1)).schedule(any(Runnable.class), anyLong(),
+      any(TimeUnit.class));
+
+    // A check that runs too early waits for the rest of the linger time.
+    lingerCheck.getValue().run();
+    verify(mockClient, times(0)).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertTrue(sends.isEmpty());
+    verify(lingerExecutorService, times(1)).schedule(lingerCheck.capture(),
+      eq(TimeUnit.MILLISECONDS.toNanos(6)), eq(TimeUnit.NANOSECONDS));
+
+    // The linger check does not send the batch itself, since sending can block.
+    now[0] += TimeUnit.MILLISECONDS.toNanos(6);
+    lingerCheck.getValue().run();
+    verify(mockClient, times(0)).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertEquals(1, sends.size());
+    sends.get(0).run();
+    ArgumentCaptor<MutateRowsRequest> request = ArgumentCaptor.forClass(MutateRowsRequest.class);
+    verify(mockClient, times(1)).mutateRowsAsync(request.capture());
+    Assert.assertEquals(2, request.getValue().getEntriesCount());
+
+    // The next mutation starts a new batch.
+    underTest.mutate(SIMPLE_PUT);
+    verify(lingerExecutorService, times(2)).schedule(any(Runnable.class),
+      eq(TimeUnit.MILLISECONDS.toNanos(10)), eq(TimeUnit.NANOSECONDS));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testBulkShardOrdering() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_MAX_ROW_KEY_COUNT, "1");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_SHARD_COUNT, "1");
+    final List<SettableFuture<MutateRowsResponse>> futures = new ArrayList<>();
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class)))
+        .thenAnswer(new Answer<SettableFuture<MutateRowsResponse>>() {
+          @Override
+          public SettableFuture<MutateRowsResponse> answer(InvocationOnMock invocation)
+              throws Throwable {
+            SettableFuture<MutateRowsResponse> future = SettableFuture.create();
+            futures.add(future);
+            return future;
+          }
+        });
+    when(mockClient.addMutationRetry(any(ListenableFuture.class), any(MutateRowRequest.class)))
+        .thenReturn(createRetryFuture());
+    final BigtableBufferedMutator underTest = createMutator(config);
+
+    underTest.mutate(SIMPLE_PUT);
+    verify(mockClient, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+
+    // The second batch for the same row waits in the shard for the first one to complete, without
+    // holding up the caller.
+    Future<Void> mutateFuture = executorService.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        underTest.mutate(SIMPLE_PUT);
+        return null;
+      }
+    });
+    mutateFuture.get(1, TimeUnit.SECONDS);
+    verify(mockClient, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+
+    futures.get(0).set(MutateRowsResponse.newBuilder().addStatuses(OK_STATUS).build());
+    verify(mockClient, times(2)).mutateRowsAsync(any(MutateRowsRequest.class));
+    futures.get(1).set(MutateRowsResponse.newBuilder().addStatuses(OK_STATUS).build());
+    completeCall();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testBulkShardBoundsReadyBatches() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_MAX_ROW_KEY_COUNT, "1");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_SHARD_COUNT, "1");
+    final List<SettableFuture<MutateRowsResponse>> futures = new ArrayList<>();
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class)))
+        .thenAnswer(new Answer<SettableFuture<MutateRowsResponse>>() {
+          @Override
+          public SettableFuture<MutateRowsResponse> answer(InvocationOnMock invocation)
+              throws Throwable {
+            SettableFuture<MutateRowsResponse> future = SettableFuture.create();
+            futures.add(future);
+            return future;
+          }
+        });
+    when(mockClient.addMutationRetry(any(ListenableFuture.class), any(MutateRowRequest.class)))
+        .thenReturn(createRetryFuture());
+    final BigtableBufferedMutator underTest = createMutator(config);
+
+    // One batch is in flight, and the next two wait in the shard.
+    for (int i = 0; i < 3; i++) {
+      underTest.mutate(SIMPLE_PUT);
+    }
+    verify(mockClient, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+
+    // A third waiting batch holds up the caller until a batch is sent.
+    Future<Void> mutateFuture = executorService.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        underTest.mutate(SIMPLE_PUT);
+        return null;
+      }
+    });
+    Thread.sleep(100);
+    Assert.assertFalse(mutateFuture.isDone());
+
+    futures.get(0).set(MutateRowsResponse.newBuilder().addStatuses(OK_STATUS).build());
+    mutateFuture.get(1, TimeUnit.SECONDS);
+    verify(mockClient, times(2)).mutateRowsAsync(any(MutateRowsRequest.class));
+    for (int i = 1; i < 4; i++) {
+      futures.get(i).set(MutateRowsResponse.newBuilder().addStatuses(OK_STATUS).build());
+    }
+    completeCall();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testBulkPartitionByTablet() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_MAX_ROW_KEY_COUNT, "2");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_PARTITION_BY_TABLET, "true");
+    List<SampleRowKeysResponse> samples = new ArrayList<>();
+    samples.add(SampleRowKeysResponse.newBuilder().setRowKey(ByteString.copyFromUtf8("m")).build());
+    samples.add(SampleRowKeysResponse.getDefaultInstance());
+    when(mockClient.sampleRowKeysAsync(any(SampleRowKeysRequest.class)))
+        .thenReturn(Futures.immediateFuture(samples));
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class)))
+        .thenReturn(SettableFuture.<MutateRowsResponse> create());
+    when(mockClient.addMutationRetry(any(ListenableFuture.class), any(MutateRowRequest.class)))
+        .thenReturn(createRetryFuture());
+    BigtableBufferedMutator underTest = createMutator(config);
+
+    // The rows before and after "m" are in different tablets, so they are sent separately.
+    underTest.mutate(createPut("a"));
+    underTest.mutate(createPut("z"));
+    verify(mockClient, times(0)).mutateRowsAsync(any(MutateRowsRequest.class));
+    underTest.mutate(createPut("b"));
+    ArgumentCaptor<MutateRowsRequest> request = ArgumentCaptor.forClass(MutateRowsRequest.class);
+    verify(mockClient, times(1)).mutateRowsAsync(request.capture());
+    Assert.assertEquals(2, request.getValue().getEntriesCount());
+    Assert.assertEquals("a", request.getValue().getEntries(0).getRowKey().toStringUtf8());
+    Assert.assertEquals("b", request.getValue().getEntries(1).getRowKey().toStringUtf8());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testBulkBoundaryChangeKeepsRowOrder() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_MAX_ROW_KEY_COUNT, "2");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_SHARD_COUNT, "1");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_PARTITION_BY_TABLET, "true");
+    SettableFuture<List<SampleRowKeysResponse>> sample = SettableFuture.create();
+    when(mockClient.sampleRowKeysAsync(any(SampleRowKeysRequest.class))).thenReturn(sample);
+    final List<SettableFuture<MutateRowsResponse>> futures = new ArrayList<>();
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class)))
+        .thenAnswer(new Answer<SettableFuture<MutateRowsResponse>>() {
+          @Override
+          public SettableFuture<MutateRowsResponse> answer(InvocationOnMock invocation)
+              throws Throwable {
+            SettableFuture<MutateRowsResponse> future = SettableFuture.create();
+            futures.add(future);
+            return future;
+          }
+        });
+    when(mockClient.addMutationRetry(any(ListenableFuture.class), any(MutateRowRequest.class)))
+        .thenReturn(createRetryFuture());
+    BigtableBufferedMutator underTest = createMutator(config);
+
+    // Until the first sample returns, every row is in partition 0.
+    underTest.mutate(createPut("z"));
+    List<SampleRowKeysResponse> samples = new ArrayList<>();
+    samples.add(SampleRowKeysResponse.newBuilder().setRowKey(ByteString.copyFromUtf8("m")).build());
+    samples.add(SampleRowKeysResponse.getDefaultInstance());
+    sample.set(samples);
+
+    // The row moved to partition 1, so the batch of partition 0 with its first mutation is sent
+    // before the batch with the later ones.
+    underTest.mutate(createPut("z"));
+    underTest.mutate(createPut("z"));
+    ArgumentCaptor<MutateRowsRequest> request = ArgumentCaptor.forClass(MutateRowsRequest.class);
+    verify(mockClient, times(1)).mutateRowsAsync(request.capture());
+    Assert.assertEquals(1, request.getValue().getEntriesCount());
+
+    futures.get(0).set(MutateRowsResponse.newBuilder().addStatuses(OK_STATUS).build());
+    verify(mockClient, times(2)).mutateRowsAsync(request.capture());
+    Assert.assertEquals(2, request.getValue().getEntriesCount());
+    futures.get(1).set(MutateRowsResponse.newBuilder()
+        .addStatuses(OK_STATUS).addStatuses(OK_STATUS).build());
+    completeCall();
+  }
+
+  private static Put createPut(String rowKey) {
+    return new Put(Bytes.toBytes(rowKey)).addColumn(EMPTY_BYTES, EMPTY_BYTES, EMPTY_BYTES);
+  }
+
   private SettableFuture<Empty> createRetryFuture() {
     SettableFuture<Empty> future = SettableFuture.create();
     retryFutures.add(future);